@@ -29,6 +29,7 @@ import static ca.uqac.lif.sparql.LabelOf.l;
 
 import ca.uqac.lif.sparql.GraphAssertion;
 import ca.uqac.lif.sparql.KnowledgeGraph;
+import ca.uqac.lif.sparql.QueryPlanner;
 
 /**
  * Recognizes whether a pattern represents a valid
@@ -70,8 +71,9 @@ public class Polyomino
 		GraphAssertion connected = allNodes("$x", implies(eq(l("$x"), "X"),
 				existsNode("$y", and(eq(l("$y"), "X"), connectedUndir("$x", "", "$y")))));
 
-		// Check if the polyomino is connected
-		System.out.println(connected.evaluate(g));
+		/* Check if the polyomino is connected. The planner makes $x range only
+		 * over the cells marked with an "X". */
+		System.out.println(QueryPlanner.plan(connected).evaluate(g));
 	}
 	
 	/**
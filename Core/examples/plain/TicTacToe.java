@@ -20,6 +20,7 @@ package plain;
 import ca.uqac.lif.sparql.DotGraphParser;
 import ca.uqac.lif.sparql.GraphAssertion;
 import ca.uqac.lif.sparql.KnowledgeGraph;
+import ca.uqac.lif.sparql.QueryPlanner;
 
 import static ca.uqac.lif.sparql.Conjunction.and;
 import static ca.uqac.lif.sparql.ConnectedBy.connected;
@@ -68,7 +69,8 @@ public class TicTacToe
 						connected("$y", "$t", "$z")
 				))))));
 		
-		// Check if the state is a win for some player
-		System.out.println(win.evaluate(g));
+		/* Check if the state is a win for some player. The planner binds $y and
+		 * $z from the neighbours of $x instead of trying all triplets of nodes. */
+		System.out.println(QueryPlanner.plan(win).evaluate(g));
 	}
 }
@@ -74,5 +74,9 @@ public class BatchUpdate extends GraphUpdateFunction
 				add(list, in_f);
 			}
 		}
+		else
+		{
+			list.add(f);
+		}
 	}
 }
@@ -22,7 +22,11 @@ import ca.uqac.lif.sparql.KnowledgeGraph;
 
 /**
  * A BeepBeep {@link Function} that applies an update operation on a knowledge
- * graph, producing another knowledge graph in return.
+ * graph, producing another knowledge graph in return. The input graph is
+ * left untouched: the update is applied to a copy of it, which shares its
+ * structure with the input (see {@link KnowledgeGraph#duplicate()}). Making
+ * this copy takes constant time, and the update itself only copies the parts
+ * of the graph it modifies.
  */
 public abstract class GraphUpdateFunction extends UnaryFunction<KnowledgeGraph,KnowledgeGraph>
 {
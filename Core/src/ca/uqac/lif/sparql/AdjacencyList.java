@@ -0,0 +1,306 @@
+/*
+    Basic processing of SPARQL queries in Java
+    Copyright (C) 2024 Sylvain Hallé
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Lesser General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.uqac.lif.sparql;
+
+import java.util.Arrays;
+import java.util.function.LongPredicate;
+
+/**
+ * The edges incident on a single node of a knowledge graph, stored in a
+ * {@link PersistentLongMap} that associates each neighbour to the
+ * identifiers of the labels (as given by {@link LabelDictionary}) of the
+ * edges leading to it. Most pairs of nodes are connected by a single edge,
+ * whose label is stored as an {@link Integer}; the labels of several edges
+ * between the same nodes are stored as a sorted array. Compared to a set of
+ * {@link GraphEdge} objects, this representation does not allocate any
+ * object per edge; edge objects are only created on demand when the
+ * adjacency is queried through {@link KnowledgeGraph#getEdges(long)}.
+ * <p>
+ * An adjacency list behaves like a set: a given pair (label, neighbour)
+ * appears at most once. Testing the presence of an edge, adding it or
+ * removing it takes time logarithmic in the number of neighbours of the
+ * node (the labels between two given nodes are few, and scanned linearly).
+ * <p>
+ * A list can optionally record an "owner" token. A
+ * {@link KnowledgeGraph} only modifies in place the lists that bear its own
+ * token, and replaces the others by a copy before modifying them; this is
+ * what allows two versions of a graph to share their adjacency lists. The
+ * copy takes constant time, since it shares its map with the original list;
+ * updating the edges of a node therefore takes logarithmic time even when
+ * the node has a large degree and its list is shared with another version of
+ * the graph.
+ * @author Sylvain Hallé
+ */
+public class AdjacencyList
+{
+	/**
+	 * The labels of the edges leading to each neighbour, either as an
+	 * {@link Integer} or as a sorted array of at least two {@code int}s.
+	 */
+	/*@ non_null @*/ protected final PersistentLongMap<Object> m_neighbours;
+
+	/**
+	 * The number of edges in the list.
+	 */
+	protected int m_size;
+
+	/**
+	 * The token identifying the owner of this list, if any.
+	 */
+	protected final Object m_owner;
+
+	/**
+	 * Creates a new empty adjacency list.
+	 */
+	public AdjacencyList()
+	{
+		this((Object) null);
+	}
+
+	/**
+	 * Creates a new empty adjacency list with an owner.
+	 * @param owner The token identifying the owner of the list
+	 */
+	public AdjacencyList(Object owner)
+	{
+		super();
+		m_owner = owner;
+		m_neighbours = new PersistentLongMap<Object>();
+		m_size = 0;
+	}
+
+	/**
+	 * Creates a new adjacency list by copying an existing one.
+	 * @param list The list to copy
+	 */
+	public AdjacencyList(AdjacencyList list)
+	{
+		this(list, null);
+	}
+
+	/**
+	 * Creates a new adjacency list by copying an existing one, and gives it
+	 * an owner. The copy takes constant time.
+	 * @param list The list to copy
+	 * @param owner The token identifying the owner of the new list
+	 */
+	public AdjacencyList(AdjacencyList list, Object owner)
+	{
+		super();
+		m_owner = owner;
+		m_neighbours = list.m_neighbours.copy();
+		m_size = list.m_size;
+	}
+
+	/**
+	 * Determines if this list belongs to a given owner.
+	 * @param owner The token identifying the owner
+	 * @return {@code true} if the list belongs to this owner, {@code false}
+	 * otherwise
+	 */
+	public boolean isOwnedBy(Object owner)
+	{
+		return owner != null && m_owner == owner;
+	}
+
+	/**
+	 * Gets the number of edges in the list.
+	 * @return The number of edges
+	 */
+	public int size()
+	{
+		return m_size;
+	}
+
+	/**
+	 * Determines if an edge is in the list.
+	 * @param label The identifier of the label of the edge
+	 * @param neighbour The neighbour at the other end of the edge
+	 * @return {@code true} if the edge is present, {@code false} otherwise
+	 */
+	public boolean contains(int label, long neighbour)
+	{
+		Object labels = m_neighbours.get(neighbour);
+		if (labels == null)
+		{
+			return false;
+		}
+		if (labels instanceof Integer)
+		{
+			return (Integer) labels == label;
+		}
+		return Arrays.binarySearch((int[]) labels, label) >= 0;
+	}
+
+	/**
+	 * Adds an edge to the list, if it is not already present.
+	 * @param label The identifier of the label of the edge
+	 * @param neighbour The neighbour at the other end of the edge
+	 * @return {@code true} if the edge was added, {@code false} if it was
+	 * already present
+	 */
+	public boolean add(int label, long neighbour)
+	{
+		Object labels = m_neighbours.get(neighbour);
+		if (labels == null)
+		{
+			m_neighbours.put(neighbour, label);
+		}
+		else if (labels instanceof Integer)
+		{
+			int other = (Integer) labels;
+			if (other == label)
+			{
+				return false;
+			}
+			m_neighbours.put(neighbour, other < label ? new int[] {other, label} : new int[] {label, other});
+		}
+		else
+		{
+			int[] a = (int[]) labels;
+			int pos = Arrays.binarySearch(a, label);
+			if (pos >= 0)
+			{
+				return false;
+			}
+			pos = -pos - 1;
+			int[] b = new int[a.length + 1];
+			System.arraycopy(a, 0, b, 0, pos);
+			b[pos] = label;
+			System.arraycopy(a, pos, b, pos + 1, a.length - pos);
+			m_neighbours.put(neighbour, b);
+		}
+		m_size++;
+		return true;
+	}
+
+	/**
+	 * Removes an edge from the list.
+	 * @param label The identifier of the label of the edge
+	 * @param neighbour The neighbour at the other end of the edge
+	 * @return {@code true} if the edge was removed, {@code false} if it was
+	 * not present
+	 */
+	public boolean remove(int label, long neighbour)
+	{
+		Object labels = m_neighbours.get(neighbour);
+		if (labels == null)
+		{
+			return false;
+		}
+		if (labels instanceof Integer)
+		{
+			if ((Integer) labels != label)
+			{
+				return false;
+			}
+			m_neighbours.remove(neighbour);
+		}
+		else
+		{
+			int[] a = (int[]) labels;
+			int pos = Arrays.binarySearch(a, label);
+			if (pos < 0)
+			{
+				return false;
+			}
+			if (a.length == 2)
+			{
+				m_neighbours.put(neighbour, a[1 - pos]);
+			}
+			else
+			{
+				int[] b = new int[a.length - 1];
+				System.arraycopy(a, 0, b, 0, pos);
+				System.arraycopy(a, pos + 1, b, pos, a.length - pos - 1);
+				m_neighbours.put(neighbour, b);
+			}
+		}
+		m_size--;
+		return true;
+	}
+
+	/**
+	 * Calls an action on each edge of the list. The list must not be
+	 * modified by the action.
+	 * @param action The action, which returns {@code false} to stop the visit
+	 * @return {@code false} if the action stopped the visit, {@code true}
+	 * otherwise
+	 */
+	public boolean forEach(/*@ non_null @*/ EdgePredicate action)
+	{
+		return m_neighbours.forEach((neighbour, labels) -> {
+			if (labels instanceof Integer)
+			{
+				return action.test((Integer) labels, neighbour);
+			}
+			for (int label : (int[]) labels)
+			{
+				if (!action.test(label, neighbour))
+				{
+					return false;
+				}
+			}
+			return true;
+		});
+	}
+
+	/**
+	 * Calls an action on the neighbour of each edge of the list having a
+	 * given label. The list must not be modified by the action.
+	 * @param label The identifier of the label
+	 * @param action The action, which returns {@code false} to stop the visit
+	 * @return {@code false} if the action stopped the visit, {@code true}
+	 * otherwise
+	 */
+	public boolean forEach(int label, /*@ non_null @*/ LongPredicate action)
+	{
+		return forEach((l, neighbour) -> l != label || action.test(neighbour));
+	}
+
+	@Override
+	public String toString()
+	{
+		StringBuilder out = new StringBuilder();
+		out.append("[");
+		forEach((label, neighbour) -> {
+			if (out.length() > 1)
+			{
+				out.append(", ");
+			}
+			out.append(LabelDictionary.getLabel(label)).append(":").append(neighbour);
+			return true;
+		});
+		out.append("]");
+		return out.toString();
+	}
+
+	/**
+	 * An action called on an edge of an adjacency list.
+	 */
+	public interface EdgePredicate
+	{
+		/**
+		 * Calls the action on an edge.
+		 * @param label The identifier of the label of the edge
+		 * @param neighbour The neighbour at the other end of the edge
+		 * @return {@code false} to stop the visit, {@code true} otherwise
+		 */
+		public boolean test(int label, long neighbour);
+	}
+}
@@ -0,0 +1,326 @@
+/*
+    Basic processing of SPARQL queries in Java
+    Copyright (C) 2024 Sylvain Hallé
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Lesser General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.uqac.lif.sparql;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.function.Predicate;
+
+/**
+ * A graph function combining the data of all the nodes that satisfy an
+ * assertion, such as {@code count("$x", eq(l("$x"), "A"))} for the number
+ * of nodes labelled "A". The result is a number, and can therefore be
+ * compared with other functions by a {@link NumberComparison}.
+ * <p>
+ * An aggregate is computed in a single pass over the nodes, without
+ * building the collection of nodes satisfying the assertion. When the
+ * assertion is a conjunction containing a guard on the label of the node or
+ * a {@link ConnectedBy} with a node bound outside of the aggregate, only
+ * the nodes provided by the corresponding index are visited, in the same
+ * way as in a {@link JoinPlan}. Counting all the nodes of the graph simply
+ * returns its size.
+ * @author Sylvain Hallé
+ */
+public abstract class Aggregate implements GraphFunction<Number>
+{
+	/**
+	 * Creates a function counting the nodes of a graph.
+	 * @param variable The variable designating a node
+	 * @return The function
+	 */
+	public static Count count(String variable)
+	{
+		return new Count(variable, null);
+	}
+
+	/**
+	 * Creates a function counting the nodes that satisfy an assertion.
+	 * @param variable The variable designating a node in the assertion
+	 * @param phi The assertion
+	 * @return The function
+	 */
+	public static Count count(String variable, GraphAssertion phi)
+	{
+		return new Count(variable, phi);
+	}
+
+	/**
+	 * Creates a function summing the data of the nodes that satisfy an
+	 * assertion. Data that is not a number is ignored, and the sum over no
+	 * node is 0.
+	 * @param variable The variable designating a node in the assertion
+	 * @param phi The assertion
+	 * @return The function
+	 */
+	public static Sum sum(String variable, GraphAssertion phi)
+	{
+		return new Sum(variable, phi);
+	}
+
+	/**
+	 * Creates a function giving the minimum of the data of the nodes that
+	 * satisfy an assertion. Data that is not a number is ignored, and the
+	 * minimum over no node is {@code null}.
+	 * @param variable The variable designating a node in the assertion
+	 * @param phi The assertion
+	 * @return The function
+	 */
+	public static Extremum min(String variable, GraphAssertion phi)
+	{
+		return new Extremum(variable, phi, false);
+	}
+
+	/**
+	 * Creates a function giving the maximum of the data of the nodes that
+	 * satisfy an assertion. Data that is not a number is ignored, and the
+	 * maximum over no node is {@code null}.
+	 * @param variable The variable designating a node in the assertion
+	 * @param phi The assertion
+	 * @return The function
+	 */
+	public static Extremum max(String variable, GraphAssertion phi)
+	{
+		return new Extremum(variable, phi, true);
+	}
+
+	/**
+	 * The variable designating a node in the assertion.
+	 */
+	/*@ non_null @*/ protected final String m_variable;
+
+	/**
+	 * The identifier of the variable in the {@link VariableDictionary}.
+	 */
+	protected final int m_slot;
+
+	/**
+	 * The assertion that the nodes must satisfy, or {@code null} to take all
+	 * the nodes.
+	 */
+	protected final GraphAssertion m_phi;
+
+	/**
+	 * The domains that can provide the nodes satisfying the assertion, sorted
+	 * by decreasing score.
+	 */
+	/*@ non_null @*/ protected final List<Domain<?>> m_generators;
+
+	/**
+	 * Creates a new aggregate.
+	 * @param variable The variable designating a node in the assertion
+	 * @param phi The assertion, or {@code null} to take all the nodes
+	 */
+	public Aggregate(/*@ non_null @*/ String variable, GraphAssertion phi)
+	{
+		super();
+		m_variable = variable;
+		m_slot = VariableDictionary.getId(variable);
+		m_phi = phi;
+		List<GraphAssertion> operands = new ArrayList<GraphAssertion>();
+		if (phi != null)
+		{
+			QueryPlanner.addConjuncts(phi, operands);
+		}
+		BitSet block = new BitSet();
+		block.set(m_slot);
+		m_generators = JoinPlan.getGenerators(m_slot, false, operands, block, new BitSet());
+	}
+
+	/**
+	 * Visits the nodes that satisfy the assertion, each node being visited
+	 * once. The valuation is left as it was when the method returns.
+	 * @param g The graph
+	 * @param nu The valuation
+	 * @param visitor A predicate called on each node, which returns
+	 * {@code false} to stop the visit
+	 */
+	protected void visit(KnowledgeGraph g, Valuation nu, Predicate<GraphNode> visitor)
+	{
+		Collection<?> candidates = null;
+		for (Domain<?> d : m_generators)
+		{
+			candidates = d.getCandidates(g, nu);
+			if (candidates != null)
+			{
+				break;
+			}
+		}
+		// Nodes provided by an index may be repeated, but not those of the graph
+		Set<Long> seen = candidates == null ? null : new HashSet<Long>();
+		if (candidates == null)
+		{
+			candidates = g.getNodes();
+		}
+		Object previous = nu.get(m_slot);
+		try
+		{
+			for (Object o : candidates)
+			{
+				GraphNode n = (GraphNode) o;
+				if (seen != null && !seen.add(n.getId()))
+				{
+					continue;
+				}
+				nu.set(m_slot, n);
+				if ((m_phi == null || m_phi.evaluate(g, nu)) && !visitor.test(n))
+				{
+					return;
+				}
+			}
+		}
+		finally
+		{
+			nu.set(m_slot, previous);
+		}
+	}
+
+	@Override
+	public boolean getFreeVariables(BitSet slots)
+	{
+		if (m_phi == null)
+		{
+			return true;
+		}
+		BitSet inner = new BitSet();
+		boolean complete = m_phi.getFreeVariables(inner);
+		inner.clear(m_slot);
+		slots.or(inner);
+		return complete;
+	}
+
+	/**
+	 * Counts the nodes that satisfy an assertion.
+	 */
+	public static class Count extends Aggregate
+	{
+		/**
+		 * Creates a new count.
+		 * @param variable The variable designating a node in the assertion
+		 * @param phi The assertion, or {@code null} to count all the nodes
+		 */
+		public Count(/*@ non_null @*/ String variable, GraphAssertion phi)
+		{
+			super(variable, phi);
+		}
+
+		@Override
+		public Integer evaluate(KnowledgeGraph g, Valuation nu)
+		{
+			return count(g, nu, Integer.MAX_VALUE);
+		}
+
+		/**
+		 * Counts the nodes that satisfy the assertion, stopping as soon as a
+		 * given number of them is reached.
+		 * @param g The graph
+		 * @param nu The valuation
+		 * @param limit The number at which to stop
+		 * @return The number of nodes, which is at most the limit
+		 */
+		public int count(KnowledgeGraph g, Valuation nu, int limit)
+		{
+			if (m_phi == null)
+			{
+				return Math.min(g.size(), limit);
+			}
+			int[] count = new int[1];
+			if (limit > 0)
+			{
+				visit(g, nu, n -> ++count[0] < limit);
+			}
+			return count[0];
+		}
+	}
+
+	/**
+	 * Sums the data of the nodes that satisfy an assertion.
+	 */
+	public static class Sum extends Aggregate
+	{
+		/**
+		 * Creates a new sum.
+		 * @param variable The variable designating a node in the assertion
+		 * @param phi The assertion, or {@code null} to sum over all the nodes
+		 */
+		public Sum(/*@ non_null @*/ String variable, GraphAssertion phi)
+		{
+			super(variable, phi);
+		}
+
+		@Override
+		public Double evaluate(KnowledgeGraph g, Valuation nu)
+		{
+			double[] sum = new double[1];
+			visit(g, nu, n -> {
+				if (n.getData() instanceof Number)
+				{
+					sum[0] += ((Number) n.getData()).doubleValue();
+				}
+				return true;
+			});
+			return sum[0];
+		}
+	}
+
+	/**
+	 * Finds the minimum or the maximum of the data of the nodes that satisfy
+	 * an assertion.
+	 */
+	public static class Extremum extends Aggregate
+	{
+		/**
+		 * Whether the function finds the maximum (otherwise, the minimum).
+		 */
+		protected final boolean m_max;
+
+		/**
+		 * Creates a new extremum.
+		 * @param variable The variable designating a node in the assertion
+		 * @param phi The assertion, or {@code null} to take all the nodes
+		 * @param max Whether the function finds the maximum
+		 */
+		public Extremum(/*@ non_null @*/ String variable, GraphAssertion phi, boolean max)
+		{
+			super(variable, phi);
+			m_max = max;
+		}
+
+		@Override
+		public Number evaluate(KnowledgeGraph g, Valuation nu)
+		{
+			Number[] best = new Number[1];
+			visit(g, nu, n -> {
+				if (n.getData() instanceof Number)
+				{
+					Number x = (Number) n.getData();
+					double d = x.doubleValue();
+					if (best[0] == null || (m_max ? d > best[0].doubleValue() : d < best[0].doubleValue()))
+					{
+						best[0] = x;
+					}
+				}
+				return true;
+			});
+			return best[0];
+		}
+	}
+}
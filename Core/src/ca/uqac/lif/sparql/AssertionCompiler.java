@@ -0,0 +1,543 @@
+/*
+    Basic processing of SPARQL queries in Java
+    Copyright (C) 2024 Sylvain Hallé
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Lesser General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.uqac.lif.sparql;
+
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.function.Function;
+
+import ca.uqac.lif.sparql.ConnectedBy.DirectedConnectedBy;
+import ca.uqac.lif.sparql.ConnectedBy.UndirectedConnectedBy;
+import ca.uqac.lif.sparql.NumberComparison.IsGreaterThan;
+
+/**
+ * Compiles a graph assertion into a tree of closures that evaluates it with
+ * fewer indirections. The compiler walks the assertion once and, for each
+ * operator, creates a lambda specialized for its operands:
+ * <ul>
+ * <li>constants, and the label of a constant, are computed once and
+ * captured by the closure;</li>
+ * <li>variables are read directly at their index in the
+ * {@link Valuation}, without going through
+ * {@link ContextFunction#evaluateFromValuation(ca.uqac.lif.cep.functions.Function, int, Valuation)};</li>
+ * <li>conjunctions, disjunctions and equalities with two operands, and
+ * comparisons with a constant number, get dedicated closures;</li>
+ * <li>quantifiers become loops over their domain; the nodes and edges of
+ * the graph are fetched once per evaluation and shared by all the
+ * quantifiers that range over the whole graph.</li>
+ * </ul>
+ * Compilation walks the whole assertion and creates all the closures
+ * upfront; it is therefore meant for an assertion that is evaluated
+ * repeatedly, for instance on every event of a stream of graphs.
+ * <p>
+ * Assertions and functions are recognized as described in
+ * {@link QueryPlanner}; any other assertion or function, including a
+ * {@link JoinPlan} produced by the planner, is evaluated by calling its
+ * own {@code evaluate} method. Compiling the result of
+ * {@link QueryPlanner#plan(GraphAssertion)} hence combines both
+ * optimizations.
+ * @author Sylvain Hallé
+ */
+public final class AssertionCompiler
+{
+	/**
+	 * Cannot be instantiated.
+	 */
+	private AssertionCompiler()
+	{
+		super();
+	}
+
+	/**
+	 * Compiles an assertion.
+	 * @param phi The assertion
+	 * @return An assertion that evaluates to the same value as {@code phi} on
+	 * every graph and every valuation
+	 */
+	/*@ non_null @*/ public static CompiledAssertion compile(/*@ non_null @*/ GraphAssertion phi)
+	{
+		return new CompiledAssertion(phi, compileAssertion(phi));
+	}
+
+	/**
+	 * An assertion compiled into closures.
+	 */
+	public static class CompiledAssertion implements GraphAssertion
+	{
+		/**
+		 * The assertion that has been compiled.
+		 */
+		/*@ non_null @*/ protected final GraphAssertion m_source;
+
+		/**
+		 * The closure evaluating the assertion.
+		 */
+		/*@ non_null @*/ protected final Condition m_condition;
+
+		/**
+		 * Creates a new compiled assertion.
+		 * @param source The assertion that has been compiled
+		 * @param condition The closure evaluating the assertion
+		 */
+		protected CompiledAssertion(/*@ non_null @*/ GraphAssertion source, /*@ non_null @*/ Condition condition)
+		{
+			super();
+			m_source = source;
+			m_condition = condition;
+		}
+
+		/**
+		 * Gets the assertion that has been compiled.
+		 * @return The assertion
+		 */
+		/*@ non_null @*/ public GraphAssertion getSource()
+		{
+			return m_source;
+		}
+
+		@Override
+		public Boolean evaluate(KnowledgeGraph graph, Valuation nu)
+		{
+			return m_condition.test(new Frame(graph, nu));
+		}
+
+		@Override
+		public boolean getFreeVariables(BitSet slots)
+		{
+			return m_source.getFreeVariables(slots);
+		}
+	}
+
+	/**
+	 * The state of one evaluation of a compiled assertion.
+	 */
+	protected static final class Frame
+	{
+		/**
+		 * The graph on which the assertion is evaluated.
+		 */
+		/*@ non_null @*/ protected final KnowledgeGraph m_graph;
+
+		/**
+		 * The valuation, which quantifiers modify in place.
+		 */
+		/*@ non_null @*/ protected final Valuation m_valuation;
+
+		/**
+		 * The nodes of the graph, fetched on first use.
+		 */
+		protected Collection<GraphNode> m_nodes;
+
+		/**
+		 * The edges of the graph, fetched on first use.
+		 */
+		protected Collection<GraphEdge> m_edges;
+
+		/**
+		 * Creates a new frame.
+		 * @param graph The graph on which the assertion is evaluated
+		 * @param nu The valuation
+		 */
+		protected Frame(/*@ non_null @*/ KnowledgeGraph graph, /*@ non_null @*/ Valuation nu)
+		{
+			super();
+			m_graph = graph;
+			m_valuation = nu;
+		}
+
+		/**
+		 * Gets the nodes of the graph.
+		 * @return The nodes
+		 */
+		/*@ non_null @*/ protected Collection<GraphNode> getNodes()
+		{
+			if (m_nodes == null)
+			{
+				m_nodes = m_graph.getNodes();
+			}
+			return m_nodes;
+		}
+
+		/**
+		 * Gets the edges of the graph. Unlike the nodes, the edges of a
+		 * {@link KnowledgeGraph} are created anew on every call to
+		 * {@link KnowledgeGraph#getEdges()}; caching them avoids doing so for
+		 * every iteration of an enclosing quantifier.
+		 * @return The edges
+		 */
+		/*@ non_null @*/ protected Collection<GraphEdge> getEdges()
+		{
+			if (m_edges == null)
+			{
+				m_edges = m_graph.getEdges();
+			}
+			return m_edges;
+		}
+	}
+
+	/**
+	 * A compiled assertion.
+	 */
+	@FunctionalInterface
+	protected interface Condition
+	{
+		/**
+		 * Evaluates the assertion.
+		 * @param f The current frame
+		 * @return The value of the assertion
+		 */
+		public boolean test(/*@ non_null @*/ Frame f);
+	}
+
+	/**
+	 * A compiled function.
+	 */
+	@FunctionalInterface
+	protected interface Term
+	{
+		/**
+		 * Evaluates the function.
+		 * @param f The current frame
+		 * @return The value of the function
+		 */
+		public Object get(/*@ non_null @*/ Frame f);
+	}
+
+	/**
+	 * Compiles an assertion into a closure.
+	 * @param phi The assertion
+	 * @return The closure
+	 */
+	/*@ non_null @*/ protected static Condition compileAssertion(/*@ non_null @*/ GraphAssertion phi)
+	{
+		Class<?> c = phi.getClass();
+		if (c == Conjunction.class)
+		{
+			return compileConjunction(compileAll((Conjunction) phi));
+		}
+		if (c == Disjunction.class)
+		{
+			return compileDisjunction(compileAll((Disjunction) phi));
+		}
+		if (c == Negation.class)
+		{
+			Condition operand = compileAssertion(((Negation) phi).m_operand);
+			return f -> !operand.test(f);
+		}
+		if (c == IsEqualTo.class)
+		{
+			return compileEquality(((IsEqualTo) phi).m_arguments);
+		}
+		if (c == IsGreaterThan.class)
+		{
+			IsGreaterThan gt = (IsGreaterThan) phi;
+			return compileGreaterThan(gt.m_left, gt.m_right);
+		}
+		if (c == DirectedConnectedBy.class || c == UndirectedConnectedBy.class)
+		{
+			return compileConnectedBy((ConnectedBy) phi, c == DirectedConnectedBy.class);
+		}
+		if (c == ExistsNode.class || c == ForAllNodes.class)
+		{
+			NodeQuantifier q = (NodeQuantifier) phi;
+			return compileQuantifier(q, c == ExistsNode.class, Frame::getNodes);
+		}
+		if (c == ExistsEdge.class || c == ForAllEdges.class)
+		{
+			EdgeQuantifier q = (EdgeQuantifier) phi;
+			return compileQuantifier(q, c == ExistsEdge.class, Frame::getEdges);
+		}
+		return f -> phi.evaluate(f.m_graph, f.m_valuation);
+	}
+
+	/**
+	 * Compiles each operand of a connective, in the order in which the
+	 * connective currently evaluates them. The order of the closures is
+	 * fixed once compiled.
+	 * @param c The connective
+	 * @return The closures
+	 */
+	/*@ non_null @*/ protected static Condition[] compileAll(/*@ non_null @*/ NaryConnective c)
+	{
+		int[] order = c.m_order;
+		Condition[] conditions = new Condition[order.length];
+		for (int i = 0; i < order.length; i++)
+		{
+			conditions[i] = compileAssertion(c.m_operands[order[i]]);
+		}
+		return conditions;
+	}
+
+	/**
+	 * Creates the closure of a conjunction.
+	 * @param operands The compiled operands of the conjunction
+	 * @return The closure
+	 */
+	/*@ non_null @*/ protected static Condition compileConjunction(/*@ non_null @*/ Condition[] operands)
+	{
+		switch (operands.length)
+		{
+		case 0:
+			return f -> true;
+		case 1:
+			return operands[0];
+		case 2:
+		{
+			Condition left = operands[0];
+			Condition right = operands[1];
+			return f -> left.test(f) && right.test(f);
+		}
+		default:
+			return f -> {
+				for (Condition op : operands)
+				{
+					if (!op.test(f))
+					{
+						return false;
+					}
+				}
+				return true;
+			};
+		}
+	}
+
+	/**
+	 * Creates the closure of a disjunction.
+	 * @param operands The compiled operands of the disjunction
+	 * @return The closure
+	 */
+	/*@ non_null @*/ protected static Condition compileDisjunction(/*@ non_null @*/ Condition[] operands)
+	{
+		switch (operands.length)
+		{
+		case 0:
+			return f -> false;
+		case 1:
+			return operands[0];
+		case 2:
+		{
+			Condition left = operands[0];
+			Condition right = operands[1];
+			return f -> left.test(f) || right.test(f);
+		}
+		default:
+			return f -> {
+				for (Condition op : operands)
+				{
+					if (op.test(f))
+					{
+						return true;
+					}
+				}
+				return false;
+			};
+		}
+	}
+
+	/**
+	 * Creates the closure of an equality.
+	 * @param arguments The operands of the equality
+	 * @return The closure
+	 */
+	/*@ non_null @*/ protected static Condition compileEquality(/*@ non_null @*/ GraphFunction<?>[] arguments)
+	{
+		if (arguments.length == 2)
+		{
+			Term left = compileFunction(arguments[0]);
+			if (arguments[1] instanceof Constant)
+			{
+				Object value = ((Constant<?>) arguments[1]).m_value;
+				return f -> IsEqualTo.equalObjects(left.get(f), value);
+			}
+			Term right = compileFunction(arguments[1]);
+			return f -> IsEqualTo.equalObjects(left.get(f), right.get(f));
+		}
+		Term[] terms = new Term[arguments.length];
+		for (int i = 0; i < arguments.length; i++)
+		{
+			terms[i] = compileFunction(arguments[i]);
+		}
+		return f -> {
+			Object last_val = terms[0].get(f);
+			for (int i = 1; i < terms.length; i++)
+			{
+				Object val = terms[i].get(f);
+				if (!IsEqualTo.equalObjects(last_val, val))
+				{
+					return false;
+				}
+				last_val = val;
+			}
+			return true;
+		};
+	}
+
+	/**
+	 * Creates the closure of an {@link IsGreaterThan} comparison. When one of
+	 * the operands is a constant number, its value is converted to a
+	 * {@code double} once.
+	 * @param left The left operand
+	 * @param right The right operand
+	 * @return The closure
+	 */
+	/*@ non_null @*/ protected static Condition compileGreaterThan(/*@ non_null @*/ GraphFunction<?> left, /*@ non_null @*/ GraphFunction<?> right)
+	{
+		if (right.getClass() == Constant.class && ((Constant<?>) right).m_value instanceof Number)
+		{
+			Term l = compileFunction(left);
+			double r = ((Number) ((Constant<?>) right).m_value).doubleValue();
+			return f -> {
+				Object o = l.get(f);
+				return o instanceof Number && ((Number) o).doubleValue() > r;
+			};
+		}
+		if (left.getClass() == Constant.class && ((Constant<?>) left).m_value instanceof Number)
+		{
+			double l = ((Number) ((Constant<?>) left).m_value).doubleValue();
+			Term r = compileFunction(right);
+			return f -> {
+				Object o = r.get(f);
+				return o instanceof Number && l > ((Number) o).doubleValue();
+			};
+		}
+		Term l = compileFunction(left);
+		Term r = compileFunction(right);
+		return f -> {
+			Object lo = l.get(f);
+			Object ro = r.get(f);
+			return lo instanceof Number && ro instanceof Number
+					&& ((Number) lo).doubleValue() > ((Number) ro).doubleValue();
+		};
+	}
+
+	/**
+	 * Creates the closure of a {@link ConnectedBy} assertion.
+	 * @param c The assertion
+	 * @param directed Set to {@code true} if the edge must go from the source
+	 * to the destination, {@code false} if its direction does not matter
+	 * @return The closure
+	 */
+	/*@ non_null @*/ protected static Condition compileConnectedBy(/*@ non_null @*/ ConnectedBy c, boolean directed)
+	{
+		Term from = compileArgument(c.m_from, c.m_fromSlot);
+		Term to = compileArgument(c.m_to, c.m_toSlot);
+		int label_id = c.m_labelId;
+		if (label_id >= 0)
+		{
+			if (directed)
+			{
+				return f -> f.m_graph.matches(from.get(f), label_id, to.get(f));
+			}
+			return f -> f.m_graph.matchesUndirected(from.get(f), label_id, to.get(f));
+		}
+		Term label = compileArgument(c.m_label, c.m_labelSlot);
+		if (directed)
+		{
+			return f -> f.m_graph.matches(from.get(f), label.get(f), to.get(f));
+		}
+		return f -> f.m_graph.matchesUndirected(from.get(f), label.get(f), to.get(f));
+	}
+
+	/**
+	 * Creates the closure of a quantifier. The closure binds the variable of
+	 * the quantifier in place, in the same way as the quantifiers themselves.
+	 * @param q The quantifier
+	 * @param exists Set to {@code true} for an existential quantifier,
+	 * {@code false} for a universal quantifier
+	 * @param all A function giving all the values over which the quantifier
+	 * ranges when it has no {@link Domain}
+	 * @return The closure
+	 */
+	/*@ non_null @*/ protected static <T> Condition compileQuantifier(/*@ non_null @*/ Quantifier<T> q, boolean exists, /*@ non_null @*/ Function<Frame,Collection<T>> all)
+	{
+		Condition phi = compileAssertion(q.m_phi);
+		int slot = q.m_slot;
+		Domain<T> domain = q.m_domain;
+		return f -> {
+			Collection<T> values = domain == null ? null : domain.getCandidates(f.m_graph, f.m_valuation);
+			if (values == null)
+			{
+				values = all.apply(f);
+			}
+			Valuation nu = f.m_valuation;
+			Object previous = nu.get(slot);
+			// Makes room for the variable, so that it can be written directly
+			nu.set(slot, previous);
+			try
+			{
+				for (T value : values)
+				{
+					nu.m_values[slot] = value;
+					if (phi.test(f) == exists)
+					{
+						return exists;
+					}
+				}
+				return !exists;
+			}
+			finally
+			{
+				nu.m_values[slot] = previous;
+			}
+		};
+	}
+
+	/**
+	 * Compiles a graph function into a closure.
+	 * @param function The function
+	 * @return The closure
+	 */
+	/*@ non_null @*/ protected static Term compileFunction(/*@ non_null @*/ GraphFunction<?> function)
+	{
+		Class<?> c = function.getClass();
+		if (c == Constant.class)
+		{
+			Object value = ((Constant<?>) function).m_value;
+			return f -> value;
+		}
+		if (c == LabelOf.class)
+		{
+			LabelOf l = (LabelOf) function;
+			int slot = l.m_slot;
+			if (slot < 0)
+			{
+				Object label = LabelOf.getLabel(ContextFunction.evaluateFromValuation(l.m_variable, slot, new Valuation()));
+				return f -> label;
+			}
+			return f -> LabelOf.getLabel(f.m_valuation.get(slot));
+		}
+		return f -> function.evaluate(f.m_graph, f.m_valuation);
+	}
+
+	/**
+	 * Compiles an argument of a {@link ContextFunction} into a closure.
+	 * @param function The argument
+	 * @param slot The index of the variable read by the argument, or -1 if the
+	 * argument is not a variable
+	 * @return The closure
+	 */
+	/*@ non_null @*/ protected static Term compileArgument(/*@ non_null @*/ ca.uqac.lif.cep.functions.Function function, int slot)
+	{
+		if (slot >= 0)
+		{
+			return f -> f.m_valuation.get(slot);
+		}
+		Object value = ContextFunction.evaluateFromValuation(function, slot, new Valuation());
+		return f -> value;
+	}
+}
@@ -0,0 +1,102 @@
+/*
+    Basic processing of SPARQL queries in Java
+    Copyright (C) 2024 Sylvain Hallé
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Lesser General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.uqac.lif.sparql;
+
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Represents a counting quantifier that asserts a property for at least a
+ * given number of nodes in a graph. For example,
+ * {@code allNodes("$x", atLeastNodes(3, "$y", connected("$x", "r", "$y")))}
+ * asserts that every node has at least three successors through edges
+ * labelled "r". Asserting a property for at most <i>n</i> nodes is done by
+ * negating the quantifier for <i>n</i>+1 nodes.
+ * <p>
+ * The nodes are counted by an {@link Aggregate.Count}, which only visits
+ * the nodes provided by an index when the assertion allows it, and stops as
+ * soon as the required number of nodes is reached.
+ * @author Sylvain Hallé
+ */
+public class AtLeastNodes extends NodeQuantifier
+{
+	/**
+	 * Creates an assertion for at least a number of nodes in a graph.
+	 * 
+	 * @param count
+	 *          The minimum number of nodes
+	 * @param variable
+	 *          The variable over which to quantify
+	 * @param phi
+	 *          The assertion to evaluate
+	 */
+	public static AtLeastNodes atLeastNodes(int count, String variable, GraphAssertion phi)
+	{
+		return new AtLeastNodes(count, variable, phi);
+	}
+
+	/**
+	 * The minimum number of nodes that must satisfy the assertion.
+	 */
+	protected final int m_count;
+
+	/**
+	 * The function counting the nodes that satisfy the assertion.
+	 */
+	/*@ non_null @*/ protected final Aggregate.Count m_counter;
+
+	/**
+	 * Creates an assertion for at least a number of nodes in a graph.
+	 * 
+	 * @param count
+	 *          The minimum number of nodes
+	 * @param variable
+	 *          The variable over which to quantify
+	 * @param phi
+	 *          The assertion to evaluate
+	 */
+	public AtLeastNodes(int count, String variable, GraphAssertion phi)
+	{
+		super(variable, phi);
+		m_count = count;
+		m_counter = new Aggregate.Count(variable, phi);
+	}
+
+	@Override
+	public Boolean evaluate(KnowledgeGraph graph, Valuation nu)
+	{
+		return m_counter.count(graph, nu, m_count) >= m_count;
+	}
+
+	/**
+	 * Evaluates the quantifier. The nodes are counted sequentially on the
+	 * calling thread, since a chunk of the domain cannot decide the result
+	 * on its own.
+	 */
+	@Override
+	public Boolean evaluate(KnowledgeGraph graph, Valuation nu, ForkJoinPool pool)
+	{
+		return evaluate(graph, nu);
+	}
+
+	@Override
+	protected boolean isExistential()
+	{
+		// Like an existential, decided by the nodes satisfying the assertion
+		return true;
+	}
+}
@@ -0,0 +1,858 @@
+/*
+    Basic processing of SPARQL queries in Java
+    Copyright (C) 2024 Sylvain Hallé
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Lesser General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.uqac.lif.sparql;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.List;
+
+import ca.uqac.lif.cep.functions.Function;
+import ca.uqac.lif.sparql.ConnectedBy.DirectedConnectedBy;
+import ca.uqac.lif.sparql.ConnectedBy.UndirectedConnectedBy;
+import ca.uqac.lif.sparql.NumberComparison.IsGreaterThan;
+
+/**
+ * Evaluates a block of nested {@link ExistsNode} quantifiers over a
+ * conjunction on batches of bindings instead of one valuation at a time.
+ * The variables of the block are bound in order: the bindings of the first
+ * variables are kept in a {@link BindingTable}, whose rows are combined with
+ * all the nodes of the graph to produce a table for the next variable. As
+ * soon as a table is full, the conjuncts whose variables are all bound are
+ * checked on its rows, and the rows that fail are removed before moving to
+ * the next variable. The block is true as soon as a row survives all the
+ * conjuncts.
+ * <p>
+ * Conjuncts made of {@link IsEqualTo}, {@link IsGreaterThan} and
+ * {@link ConnectedBy} over labels of the variables, constants and a
+ * constant edge label, possibly negated, are checked by loops over the
+ * columns of the table, without creating a valuation or calling a method
+ * for each row. Any other conjunct is evaluated row by row on a valuation.
+ * <p>
+ * The identifiers and data of the nodes of the graph are copied into two
+ * arrays the first time the join is evaluated on a graph, and reused until
+ * the join is evaluated on another graph, or on a graph whose
+ * {@link KnowledgeGraph#getVersion() version} has changed.
+ * <p>
+ * Method {@link #vectorize(GraphAssertion)} replaces the blocks of
+ * {@link ExistsNode} quantifiers of an assertion with instances of this
+ * class; blocks of {@link ForAllNodes} quantifiers over a disjunction are
+ * handled through their negation.
+ * @author Sylvain Hallé
+ */
+public class BatchJoin implements GraphAssertion
+{
+	/**
+	 * The maximum number of rows of a table.
+	 */
+	public static final int BATCH_SIZE = 1024;
+
+	/**
+	 * Replaces the blocks of nested {@link ExistsNode} or {@link ForAllNodes}
+	 * quantifiers of an assertion with a {@link BatchJoin}. Assertions are
+	 * recognized as described in {@link QueryPlanner}, and quantifiers that
+	 * have a {@link Domain} are left unchanged.
+	 * @param phi The assertion
+	 * @return An equivalent assertion
+	 */
+	/*@ non_null @*/ public static GraphAssertion vectorize(/*@ non_null @*/ GraphAssertion phi)
+	{
+		Class<?> c = phi.getClass();
+		if (c == Conjunction.class)
+		{
+			return new Conjunction(vectorizeAll(((Conjunction) phi).m_operands));
+		}
+		if (c == Disjunction.class)
+		{
+			return new Disjunction(vectorizeAll(((Disjunction) phi).m_operands));
+		}
+		if (c == Negation.class)
+		{
+			return new Negation(vectorize(((Negation) phi).m_operand));
+		}
+		if ((c == ExistsNode.class || c == ForAllNodes.class) && ((Quantifier<?>) phi).m_domain == null)
+		{
+			return vectorizeBlock((Quantifier<?>) phi, c == ExistsNode.class);
+		}
+		if (c == ExistsNode.class || c == ForAllNodes.class || c == ExistsEdge.class || c == ForAllEdges.class)
+		{
+			return copy((Quantifier<?>) phi, vectorize(((Quantifier<?>) phi).m_phi));
+		}
+		return phi;
+	}
+
+	/**
+	 * Creates a copy of a quantifier with a new operand.
+	 * @param q The quantifier
+	 * @param body The new operand
+	 * @return The copy
+	 */
+	@SuppressWarnings("unchecked")
+	/*@ non_null @*/ protected static GraphAssertion copy(/*@ non_null @*/ Quantifier<?> q, /*@ non_null @*/ GraphAssertion body)
+	{
+		Class<?> c = q.getClass();
+		if (c == ExistsNode.class)
+		{
+			return new ExistsNode(q.m_variable, (Domain<GraphNode>) q.m_domain, body);
+		}
+		if (c == ForAllNodes.class)
+		{
+			return new ForAllNodes(q.m_variable, (Domain<GraphNode>) q.m_domain, body);
+		}
+		if (c == ExistsEdge.class)
+		{
+			return new ExistsEdge(q.m_variable, (Domain<GraphEdge>) q.m_domain, body);
+		}
+		return new ForAllEdges(q.m_variable, (Domain<GraphEdge>) q.m_domain, body);
+	}
+
+	/**
+	 * Applies {@link #vectorize(GraphAssertion)} to each assertion of an
+	 * array.
+	 * @param operands The assertions
+	 * @return The new assertions
+	 */
+	/*@ non_null @*/ protected static GraphAssertion[] vectorizeAll(/*@ non_null @*/ GraphAssertion[] operands)
+	{
+		GraphAssertion[] out = new GraphAssertion[operands.length];
+		for (int i = 0; i < operands.length; i++)
+		{
+			out[i] = vectorize(operands[i]);
+		}
+		return out;
+	}
+
+	/**
+	 * Replaces a block of nested quantifiers of the same kind with a
+	 * {@link BatchJoin}. A universal block over a disjunction is the negation
+	 * of an existential block over the conjunction of the negated disjuncts.
+	 * @param q The outermost quantifier of the block
+	 * @param exists Set to {@code true} if the block is made of
+	 * {@link ExistsNode} quantifiers, {@code false} if it is made of
+	 * {@link ForAllNodes} quantifiers
+	 * @return The new assertion
+	 */
+	/*@ non_null @*/ protected static GraphAssertion vectorizeBlock(/*@ non_null @*/ Quantifier<?> q, boolean exists)
+	{
+		Class<?> c = q.getClass();
+		List<Integer> slots = new ArrayList<Integer>();
+		GraphAssertion body = q;
+		while (body.getClass() == c && ((Quantifier<?>) body).m_domain == null && !slots.contains(((Quantifier<?>) body).m_slot))
+		{
+			slots.add(((Quantifier<?>) body).m_slot);
+			body = ((Quantifier<?>) body).m_phi;
+		}
+		GraphAssertion[] operands;
+		if (body.getClass() == (exists ? Conjunction.class : Disjunction.class))
+		{
+			operands = vectorizeAll(((NaryConnective) body).m_operands);
+		}
+		else
+		{
+			operands = new GraphAssertion[] {vectorize(body)};
+		}
+		if (!exists)
+		{
+			for (int i = 0; i < operands.length; i++)
+			{
+				operands[i] = operands[i] instanceof Negation ? ((Negation) operands[i]).m_operand : new Negation(operands[i]);
+			}
+		}
+		int[] block = new int[slots.size()];
+		for (int i = 0; i < block.length; i++)
+		{
+			block[i] = slots.get(i);
+		}
+		BatchJoin j = new BatchJoin(block, operands);
+		return exists ? j : new Negation(j);
+	}
+
+	/**
+	 * The variables of the block, in the order in which they are bound.
+	 */
+	/*@ non_null @*/ protected final int[] m_slots;
+
+	/**
+	 * The operands of the conjunction.
+	 */
+	/*@ non_null @*/ protected final GraphAssertion[] m_operands;
+
+	/**
+	 * The filters checked once each variable is bound, indexed by the
+	 * position of the variable in the block.
+	 */
+	/*@ non_null @*/ protected final Filter[][] m_filters;
+
+	/**
+	 * The columns of the graph on which the join was last evaluated, or
+	 * {@code null} if it was never evaluated.
+	 */
+	protected volatile Columns m_columns = null;
+
+	/**
+	 * Creates a new batch join.
+	 * @param slots The variables of the block, in the order in which they are
+	 * bound
+	 * @param operands The operands of the conjunction
+	 */
+	public BatchJoin(/*@ non_null @*/ int[] slots, /*@ non_null @*/ GraphAssertion[] operands)
+	{
+		super();
+		m_slots = slots;
+		m_operands = operands;
+		List<List<Filter>> filters = new ArrayList<List<Filter>>();
+		for (int i = 0; i < slots.length; i++)
+		{
+			filters.add(new ArrayList<Filter>());
+		}
+		for (GraphAssertion op : operands)
+		{
+			// A conjunct is checked once the last of its variables is bound
+			BitSet vars = new BitSet();
+			int level = 0;
+			if (op.getFreeVariables(vars))
+			{
+				for (int i = 0; i < slots.length; i++)
+				{
+					if (vars.get(slots[i]))
+					{
+						level = i;
+					}
+				}
+			}
+			else
+			{
+				level = slots.length - 1;
+			}
+			filters.get(level).add(createFilter(op, level));
+		}
+		m_filters = new Filter[slots.length][];
+		for (int i = 0; i < slots.length; i++)
+		{
+			m_filters[i] = filters.get(i).toArray(new Filter[0]);
+		}
+	}
+
+	@Override
+	public Boolean evaluate(KnowledgeGraph graph, Valuation nu)
+	{
+		Columns columns = getColumns(graph);
+		BindingTable[] tables = new BindingTable[m_slots.length + 1];
+		tables[0] = new BindingTable(m_slots.length, 1);
+		tables[0].addEmpty();
+		for (int i = 1; i < tables.length; i++)
+		{
+			tables[i] = new BindingTable(m_slots.length, BATCH_SIZE);
+		}
+		Batch b = new Batch(graph, new Valuation(nu), columns.m_ids, columns.m_data, tables, new boolean[BATCH_SIZE]);
+		return search(b, 0);
+	}
+
+	/**
+	 * Gets the identifiers and data of the nodes of a graph, copying them
+	 * only if the columns obtained for the last evaluation are out of date.
+	 * @param graph The graph
+	 * @return The columns
+	 */
+	/*@ non_null @*/ protected Columns getColumns(/*@ non_null @*/ KnowledgeGraph graph)
+	{
+		long version = graph.getVersion();
+		Columns columns = m_columns;
+		if (columns != null && columns.m_graph.get() == graph && columns.m_version == version)
+		{
+			return columns;
+		}
+		columns = new Columns(graph, version);
+		m_columns = columns;
+		return columns;
+	}
+
+	/**
+	 * Binds a variable of the block for all the rows of the table of the
+	 * previous variables, and looks for a row that satisfies all the
+	 * conjuncts.
+	 * @param b The state of the evaluation
+	 * @param level The position of the variable in the block
+	 * @return {@code true} if some row satisfies all the conjuncts,
+	 * {@code false} otherwise
+	 */
+	protected boolean search(/*@ non_null @*/ Batch b, int level)
+	{
+		BindingTable parent = b.m_tables[level];
+		BindingTable child = b.m_tables[level + 1];
+		child.clear();
+		for (int row = 0; row < parent.size(); row++)
+		{
+			for (int j = 0; j < b.m_ids.length; j++)
+			{
+				child.add(parent, row, level, b.m_ids[j], b.m_data[j]);
+				if (child.isFull())
+				{
+					if (flush(b, level))
+					{
+						return true;
+					}
+					child.clear();
+				}
+			}
+		}
+		return child.size() > 0 && flush(b, level);
+	}
+
+	/**
+	 * Removes from the table of a variable the rows that fail the conjuncts
+	 * checked at this variable, and continues the search with the next
+	 * variable.
+	 * @param b The state of the evaluation
+	 * @param level The position of the variable in the block
+	 * @return {@code true} if some row satisfies all the conjuncts,
+	 * {@code false} otherwise
+	 */
+	protected boolean flush(/*@ non_null @*/ Batch b, int level)
+	{
+		BindingTable t = b.m_tables[level + 1];
+		if (m_filters[level].length > 0)
+		{
+			boolean[] keep = b.m_keep;
+			for (int i = 0; i < t.size(); i++)
+			{
+				keep[i] = true;
+			}
+			for (Filter f : m_filters[level])
+			{
+				f.filter(b, t, keep);
+			}
+			t.retain(keep, level + 1);
+		}
+		if (t.size() == 0)
+		{
+			return false;
+		}
+		if (level == m_slots.length - 1)
+		{
+			return true;
+		}
+		return search(b, level + 1);
+	}
+
+	@Override
+	public boolean getFreeVariables(BitSet slots)
+	{
+		boolean complete = true;
+		BitSet vars = new BitSet();
+		for (GraphAssertion op : m_operands)
+		{
+			complete &= op.getFreeVariables(vars);
+		}
+		for (int slot : m_slots)
+		{
+			vars.clear(slot);
+		}
+		slots.or(vars);
+		return complete;
+	}
+
+	/**
+	 * The state of an evaluation.
+	 */
+	protected static class Batch
+	{
+		/**
+		 * The graph.
+		 */
+		/*@ non_null @*/ protected final KnowledgeGraph m_graph;
+
+		/**
+		 * A copy of the valuation given to the assertion, used to evaluate
+		 * conjuncts row by row.
+		 */
+		/*@ non_null @*/ protected final Valuation m_valuation;
+
+		/**
+		 * The identifiers of the nodes of the graph.
+		 */
+		/*@ non_null @*/ protected final long[] m_ids;
+
+		/**
+		 * The data of the nodes of the graph.
+		 */
+		/*@ non_null @*/ protected final Object[] m_data;
+
+		/**
+		 * The table of each variable; the first table contains a single empty
+		 * row.
+		 */
+		/*@ non_null @*/ protected final BindingTable[] m_tables;
+
+		/**
+		 * The rows to keep in the table being filtered.
+		 */
+		/*@ non_null @*/ protected final boolean[] m_keep;
+
+		/**
+		 * Creates a new evaluation state.
+		 * @param graph The graph
+		 * @param nu A copy of the valuation
+		 * @param ids The identifiers of the nodes of the graph
+		 * @param data The data of the nodes of the graph
+		 * @param tables The table of each variable
+		 * @param keep The rows to keep in the table being filtered
+		 */
+		protected Batch(KnowledgeGraph graph, Valuation nu, long[] ids, Object[] data, BindingTable[] tables, boolean[] keep)
+		{
+			super();
+			m_graph = graph;
+			m_valuation = nu;
+			m_ids = ids;
+			m_data = data;
+			m_tables = tables;
+			m_keep = keep;
+		}
+	}
+
+	/**
+	 * The identifiers and data of the nodes of a version of a graph. The
+	 * arrays are never modified, so that concurrent evaluations of the join
+	 * can share them.
+	 */
+	protected static class Columns
+	{
+		/**
+		 * The graph from which the columns were copied. The reference is weak
+		 * so that the join does not keep a graph alive.
+		 */
+		/*@ non_null @*/ protected final WeakReference<KnowledgeGraph> m_graph;
+
+		/**
+		 * The version of the graph from which the columns were copied.
+		 */
+		protected final long m_version;
+
+		/**
+		 * The identifiers of the nodes of the graph.
+		 */
+		/*@ non_null @*/ protected final long[] m_ids;
+
+		/**
+		 * The data of the nodes of the graph.
+		 */
+		/*@ non_null @*/ protected final Object[] m_data;
+
+		/**
+		 * Copies the identifiers and data of the nodes of a graph.
+		 * @param graph The graph
+		 * @param version The version of the graph
+		 */
+		protected Columns(/*@ non_null @*/ KnowledgeGraph graph, long version)
+		{
+			super();
+			m_graph = new WeakReference<KnowledgeGraph>(graph);
+			m_version = version;
+			Collection<GraphNode> nodes = graph.getNodes();
+			long[] ids = new long[nodes.size()];
+			Object[] data = new Object[nodes.size()];
+			int n = 0;
+			for (GraphNode node : nodes)
+			{
+				ids[n] = node.getId();
+				data[n] = node.getData();
+				n++;
+			}
+			m_ids = ids;
+			m_data = data;
+		}
+	}
+
+	/**
+	 * Creates the filter checking a conjunct.
+	 * @param op The conjunct
+	 * @param level The position in the block of the last variable bound
+	 * when the conjunct is checked
+	 * @return The filter
+	 */
+	/*@ non_null @*/ protected Filter createFilter(/*@ non_null @*/ GraphAssertion op, int level)
+	{
+		Class<?> c = op.getClass();
+		if (c == Negation.class)
+		{
+			Filter f = createFilter(((Negation) op).m_operand, level);
+			if (!(f instanceof RowFilter))
+			{
+				return new NegatedFilter(f);
+			}
+		}
+		if (c == IsEqualTo.class)
+		{
+			GraphFunction<?>[] args = ((IsEqualTo) op).m_arguments;
+			Column[] columns = new Column[args.length];
+			for (int i = 0; i < args.length; i++)
+			{
+				columns[i] = getColumn(args[i]);
+				if (columns[i] == null)
+				{
+					return new RowFilter(op, level);
+				}
+			}
+			return new EqualsFilter(columns);
+		}
+		if (c == IsGreaterThan.class)
+		{
+			IsGreaterThan gt = (IsGreaterThan) op;
+			Column left = getColumn(gt.m_left);
+			Column right = getColumn(gt.m_right);
+			if (left != null && right != null)
+			{
+				return new GreaterThanFilter(left, right);
+			}
+		}
+		if (c == DirectedConnectedBy.class || c == UndirectedConnectedBy.class)
+		{
+			ConnectedBy cb = (ConnectedBy) op;
+			int from = indexOf(cb.m_fromSlot);
+			int to = indexOf(cb.m_toSlot);
+			if (cb.m_labelId >= 0 && from >= 0 && to >= 0)
+			{
+				return new EdgeFilter(from, cb.m_labelId, to, c == DirectedConnectedBy.class);
+			}
+		}
+		return new RowFilter(op, level);
+	}
+
+	/**
+	 * Gets the position of a variable in the block.
+	 * @param slot The identifier of the variable
+	 * @return The position, or -1 if the variable is not bound by the block
+	 */
+	protected int indexOf(int slot)
+	{
+		for (int i = m_slots.length - 1; i >= 0; i--)
+		{
+			if (m_slots[i] == slot)
+			{
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Gets the column giving the values of a function of a conjunct.
+	 * @param f The function
+	 * @return The column, or {@code null} if the function cannot be
+	 * evaluated by columns
+	 */
+	protected Column getColumn(/*@ non_null @*/ GraphFunction<?> f)
+	{
+		if (f.getClass() == Constant.class)
+		{
+			return new Column(-1, ((Constant<?>) f).m_value);
+		}
+		if (f.getClass() == LabelOf.class)
+		{
+			LabelOf l = (LabelOf) f;
+			int index = indexOf(l.m_slot);
+			if (index >= 0)
+			{
+				return new Column(index, null);
+			}
+			if (l.m_slot < 0)
+			{
+				Function arg = l.m_variable;
+				return new Column(-1, LabelOf.getLabel(ContextFunction.evaluateFromValuation(arg, -1, new Valuation())));
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * The values of a function over the rows of a table: either the data of
+	 * the nodes bound to a variable, or a constant.
+	 */
+	protected static class Column
+	{
+		/**
+		 * The column of the variable in the table, or -1 for a constant.
+		 */
+		protected final int m_index;
+
+		/**
+		 * The value of the constant.
+		 */
+		protected final Object m_value;
+
+		/**
+		 * Creates a new column.
+		 * @param index The column of the variable in the table, or -1 for a
+		 * constant
+		 * @param value The value of the constant
+		 */
+		protected Column(int index, Object value)
+		{
+			super();
+			m_index = index;
+			m_value = value;
+		}
+
+		/**
+		 * Gets the value of the function on a row.
+		 * @param t The table
+		 * @param row The row
+		 * @return The value
+		 */
+		protected Object get(BindingTable t, int row)
+		{
+			return m_index < 0 ? m_value : t.m_data[m_index][row];
+		}
+	}
+
+	/**
+	 * Removes from a table the rows that do not satisfy a condition.
+	 */
+	protected interface Filter
+	{
+		/**
+		 * Checks the condition on the rows of a table.
+		 * @param b The state of the evaluation
+		 * @param t The table
+		 * @param keep An array telling, for each row, whether it is kept; rows
+		 * that fail the condition are set to {@code false}, and rows already
+		 * set to {@code false} need not be checked
+		 */
+		public void filter(Batch b, BindingTable t, boolean[] keep);
+	}
+
+	/**
+	 * Checks that functions have equal values.
+	 */
+	protected static class EqualsFilter implements Filter
+	{
+		/**
+		 * The columns to compare.
+		 */
+		/*@ non_null @*/ protected final Column[] m_columns;
+
+		/**
+		 * Creates a new filter.
+		 * @param columns The columns to compare
+		 */
+		protected EqualsFilter(/*@ non_null @*/ Column[] columns)
+		{
+			super();
+			m_columns = columns;
+		}
+
+		@Override
+		public void filter(Batch b, BindingTable t, boolean[] keep)
+		{
+			for (int k = 1; k < m_columns.length; k++)
+			{
+				Column left = m_columns[k - 1];
+				Column right = m_columns[k];
+				for (int row = 0; row < t.m_size; row++)
+				{
+					keep[row] &= IsEqualTo.equalObjects(left.get(t, row), right.get(t, row));
+				}
+			}
+		}
+	}
+
+	/**
+	 * Checks that a function has a numerical value greater than another.
+	 */
+	protected static class GreaterThanFilter implements Filter
+	{
+		/**
+		 * The left operand.
+		 */
+		/*@ non_null @*/ protected final Column m_left;
+
+		/**
+		 * The right operand.
+		 */
+		/*@ non_null @*/ protected final Column m_right;
+
+		/**
+		 * Creates a new filter.
+		 * @param left The left operand
+		 * @param right The right operand
+		 */
+		protected GreaterThanFilter(/*@ non_null @*/ Column left, /*@ non_null @*/ Column right)
+		{
+			super();
+			m_left = left;
+			m_right = right;
+		}
+
+		@Override
+		public void filter(Batch b, BindingTable t, boolean[] keep)
+		{
+			for (int row = 0; row < t.m_size; row++)
+			{
+				Object l = m_left.get(t, row);
+				Object r = m_right.get(t, row);
+				keep[row] &= l instanceof Number && r instanceof Number && ((Number) l).doubleValue() > ((Number) r).doubleValue();
+			}
+		}
+	}
+
+	/**
+	 * Checks that the nodes bound to two variables are connected by an edge
+	 * with a given label.
+	 */
+	protected static class EdgeFilter implements Filter
+	{
+		/**
+		 * The column of the source node.
+		 */
+		protected final int m_from;
+
+		/**
+		 * The identifier of the label in the {@link LabelDictionary}.
+		 */
+		protected final int m_label;
+
+		/**
+		 * The column of the destination node.
+		 */
+		protected final int m_to;
+
+		/**
+		 * Whether the edge must go from the source to the destination.
+		 */
+		protected final boolean m_directed;
+
+		/**
+		 * Creates a new filter.
+		 * @param from The column of the source node
+		 * @param label The identifier of the label
+		 * @param to The column of the destination node
+		 * @param directed Set to {@code true} if the edge must go from the
+		 * source to the destination, {@code false} if its direction does not
+		 * matter
+		 */
+		protected EdgeFilter(int from, int label, int to, boolean directed)
+		{
+			super();
+			m_from = from;
+			m_label = label;
+			m_to = to;
+			m_directed = directed;
+		}
+
+		@Override
+		public void filter(Batch b, BindingTable t, boolean[] keep)
+		{
+			KnowledgeGraph g = b.m_graph;
+			long[] from = t.m_ids[m_from];
+			long[] to = t.m_ids[m_to];
+			for (int row = 0; row < t.m_size; row++)
+			{
+				if (keep[row])
+				{
+					keep[row] = g.hasEdge(from[row], m_label, to[row]) || (!m_directed && g.hasEdge(to[row], m_label, from[row]));
+				}
+			}
+		}
+	}
+
+	/**
+	 * Negates another filter.
+	 */
+	protected static class NegatedFilter implements Filter
+	{
+		/**
+		 * The filter to negate.
+		 */
+		/*@ non_null @*/ protected final Filter m_filter;
+
+		/**
+		 * Creates a new filter.
+		 * @param f The filter to negate
+		 */
+		protected NegatedFilter(/*@ non_null @*/ Filter f)
+		{
+			super();
+			m_filter = f;
+		}
+
+		@Override
+		public void filter(Batch b, BindingTable t, boolean[] keep)
+		{
+			boolean[] inner = new boolean[t.m_size];
+			for (int row = 0; row < t.m_size; row++)
+			{
+				inner[row] = keep[row];
+			}
+			m_filter.filter(b, t, inner);
+			for (int row = 0; row < t.m_size; row++)
+			{
+				keep[row] &= !inner[row];
+			}
+		}
+	}
+
+	/**
+	 * Evaluates a conjunct on each row, by writing the nodes of the row into
+	 * the valuation.
+	 */
+	protected class RowFilter implements Filter
+	{
+		/**
+		 * The conjunct.
+		 */
+		/*@ non_null @*/ protected final GraphAssertion m_phi;
+
+		/**
+		 * The position in the block of the last variable bound when the
+		 * conjunct is checked.
+		 */
+		protected final int m_level;
+
+		/**
+		 * Creates a new filter.
+		 * @param phi The conjunct
+		 * @param level The position in the block of the last variable bound
+		 * when the conjunct is checked
+		 */
+		protected RowFilter(/*@ non_null @*/ GraphAssertion phi, int level)
+		{
+			super();
+			m_phi = phi;
+			m_level = level;
+		}
+
+		@Override
+		public void filter(Batch b, BindingTable t, boolean[] keep)
+		{
+			Valuation nu = b.m_valuation;
+			for (int row = 0; row < t.m_size; row++)
+			{
+				if (!keep[row])
+				{
+					continue;
+				}
+				for (int i = 0; i <= m_level; i++)
+				{
+					nu.set(m_slots[i], b.m_graph.getNode(t.m_ids[i][row]));
+				}
+				keep[row] = m_phi.evaluate(b.m_graph, nu);
+			}
+		}
+	}
+}
@@ -0,0 +1,384 @@
+/*
+    Basic processing of SPARQL queries in Java
+    Copyright (C) 2024 Sylvain Hallé
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Lesser General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.uqac.lif.sparql;
+
+import static ca.uqac.lif.sparql.MappedKnowledgeGraph.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Renders a knowledge graph in a binary format that can be read in place by
+ * a {@link MappedKnowledgeGraph}. The format is described in the
+ * documentation of that class.
+ * <p>
+ * The data of nodes is written according to its type: integers, longs,
+ * floats, doubles, booleans and strings keep their type (shorts and bytes
+ * become integers), while any other object is written as the string
+ * returned by its {@code toString()} method, as is the case with the
+ * {@link DotGraphRenderer}.
+ * @author Sylvain Hallé
+ */
+public class BinaryGraphRenderer implements GraphRenderer
+{
+	@Override
+	public void render(KnowledgeGraph g, OutputStream os)
+	{
+		try
+		{
+			write(g.freeze(), os);
+		}
+		catch (IOException e)
+		{
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/**
+	 * Writes a compact graph to an output stream.
+	 * @param g The graph
+	 * @param os The output stream
+	 * @throws IOException If the stream cannot be written to, or if the graph
+	 * is too large for the format
+	 */
+	public void write(/*@ non_null @*/ CompactKnowledgeGraph g, /*@ non_null @*/ OutputStream os) throws IOException
+	{
+		int n = g.getNodeCount();
+		int e = g.getOutOffset(n);
+		// Keep the labels that occur in the graph; since the renumbering
+		// preserves their order, the adjacency of each node stays sorted
+		int[] new_labels = new int[g.getLabelCount()];
+		int label_count = 0;
+		for (int l = 0; l < new_labels.length; l++)
+		{
+			new_labels[l] = g.countLocalEdges(l) > 0 ? label_count++ : -1;
+		}
+		Output label_bytes = new Output(new ByteArrayOutputStream());
+		int[] label_strings = new int[label_count + 1];
+		for (int l = 0; l < new_labels.length; l++)
+		{
+			if (new_labels[l] >= 0)
+			{
+				label_bytes.writeBytes(LabelDictionary.getLabel(g.toGlobalLabel(l)).getBytes(StandardCharsets.UTF_8));
+				label_strings[new_labels[l] + 1] = (int) label_bytes.getPosition();
+			}
+		}
+		label_bytes.flush();
+		// Encode the data of the nodes and the hash codes of their values
+		Output data_bytes = new Output(new ByteArrayOutputStream());
+		int[] data_offsets = new int[n];
+		int[] data_nodes = new int[n];
+		long[] values = new long[n];
+		int data_count = 0, value_count = 0;
+		for (int i = 0; i < n; i++)
+		{
+			GraphNode node = g.getNodeAt(i);
+			if (node == null)
+			{
+				data_offsets[i] = -1;
+				continue;
+			}
+			data_nodes[data_count++] = i;
+			data_offsets[i] = (int) data_bytes.getPosition();
+			Object value = writeData(data_bytes, node.getData());
+			Object key = ValueIndex.normalize(value);
+			if (key != null)
+			{
+				// Sorts by hash code, then by position
+				values[value_count++] = ((long) key.hashCode() << 32) | i;
+			}
+			if (data_bytes.getPosition() > Integer.MAX_VALUE)
+			{
+				throw new IOException("Graph too large for the binary format");
+			}
+		}
+		data_bytes.flush();
+		Arrays.sort(values, 0, value_count);
+		// Compute the position of each section
+		long[] lengths = getSectionLengths(n, e, label_count, data_count, value_count);
+		lengths[S_LABEL_BYTES] = label_strings[label_count];
+		lengths[S_DATA_BYTES] = data_bytes.getPosition();
+		long[] starts = new long[NUM_SECTIONS];
+		long position = HEADER_SIZE;
+		for (int i = 0; i < NUM_SECTIONS; i++)
+		{
+			starts[i] = position;
+			position = align(position + lengths[i]);
+		}
+		if (position > Integer.MAX_VALUE)
+		{
+			throw new IOException("Graph too large for the binary format");
+		}
+		Output out = new Output(os);
+		out.writeInt(MAGIC);
+		out.writeInt(VERSION);
+		out.writeInt(n);
+		out.writeInt(e);
+		out.writeInt(label_count);
+		out.writeInt(data_count);
+		out.writeInt(value_count);
+		out.writeInt(0);
+		for (long start : starts)
+		{
+			out.writeLong(start);
+		}
+		out.pad(starts[S_IDS]);
+		for (int i = 0; i < n; i++)
+		{
+			out.writeLong(g.getNodeId(i));
+		}
+		out.pad(starts[S_OUT_OFFSETS]);
+		for (int i = 0; i <= n; i++)
+		{
+			out.writeInt(g.getOutOffset(i));
+		}
+		out.pad(starts[S_OUT_LABELS]);
+		for (int p = 0; p < e; p++)
+		{
+			out.writeInt(new_labels[g.getOutLabel(p)]);
+		}
+		out.pad(starts[S_OUT_TARGETS]);
+		for (int p = 0; p < e; p++)
+		{
+			out.writeInt(g.getOutTarget(p));
+		}
+		out.pad(starts[S_IN_OFFSETS]);
+		for (int i = 0; i <= n; i++)
+		{
+			out.writeInt(g.getInOffset(i));
+		}
+		out.pad(starts[S_IN_LABELS]);
+		for (int p = 0; p < e; p++)
+		{
+			out.writeInt(new_labels[g.getInLabel(p)]);
+		}
+		out.pad(starts[S_IN_SOURCES]);
+		for (int p = 0; p < e; p++)
+		{
+			out.writeInt(g.getInSource(p));
+		}
+		out.pad(starts[S_LABEL_OFFSETS]);
+		int label_offset = 0;
+		out.writeInt(0);
+		for (int l = 0; l < new_labels.length; l++)
+		{
+			if (new_labels[l] >= 0)
+			{
+				label_offset += g.countLocalEdges(l);
+				out.writeInt(label_offset);
+			}
+		}
+		out.pad(starts[S_LABEL_EDGES]);
+		for (int l = 0; l < new_labels.length; l++)
+		{
+			if (new_labels[l] >= 0)
+			{
+				for (int k = g.getLabelOffset(l); k < g.getLabelOffset(l + 1); k++)
+				{
+					out.writeInt(g.getLabelEdge(k));
+				}
+			}
+		}
+		out.pad(starts[S_LABEL_STRINGS]);
+		for (int offset : label_strings)
+		{
+			out.writeInt(offset);
+		}
+		out.pad(starts[S_LABEL_BYTES]);
+		out.writeBytes(((ByteArrayOutputStream) label_bytes.m_out).toByteArray());
+		out.pad(starts[S_DATA_NODES]);
+		for (int k = 0; k < data_count; k++)
+		{
+			out.writeInt(data_nodes[k]);
+		}
+		out.pad(starts[S_DATA_OFFSETS]);
+		for (int i = 0; i < n; i++)
+		{
+			out.writeInt(data_offsets[i]);
+		}
+		out.pad(starts[S_DATA_BYTES]);
+		out.writeBytes(((ByteArrayOutputStream) data_bytes.m_out).toByteArray());
+		out.pad(starts[S_VALUE_HASHES]);
+		for (int k = 0; k < value_count; k++)
+		{
+			out.writeInt((int) (values[k] >> 32));
+		}
+		out.pad(starts[S_VALUE_NODES]);
+		for (int k = 0; k < value_count; k++)
+		{
+			out.writeInt((int) values[k]);
+		}
+		out.pad(position);
+		out.flush();
+	}
+
+	/**
+	 * Writes the data of a node, preceded by its type tag.
+	 * @param out The output to write to
+	 * @param data The data
+	 * @return The value that will be read back from the output
+	 * @throws IOException If the output cannot be written to
+	 */
+	protected static Object writeData(Output out, Object data) throws IOException
+	{
+		if (data == null)
+		{
+			out.writeByte(T_NULL);
+			return null;
+		}
+		if (data instanceof Integer || data instanceof Short || data instanceof Byte)
+		{
+			int x = ((Number) data).intValue();
+			out.writeByte(T_INTEGER);
+			out.writeInt(x);
+			return x;
+		}
+		if (data instanceof Long)
+		{
+			out.writeByte(T_LONG);
+			out.writeLong((Long) data);
+			return data;
+		}
+		if (data instanceof Float)
+		{
+			out.writeByte(T_FLOAT);
+			out.writeInt(Float.floatToRawIntBits((Float) data));
+			return data;
+		}
+		if (data instanceof Double)
+		{
+			out.writeByte(T_DOUBLE);
+			out.writeLong(Double.doubleToRawLongBits((Double) data));
+			return data;
+		}
+		if (data instanceof Boolean)
+		{
+			out.writeByte(T_BOOLEAN);
+			out.writeByte((Boolean) data ? 1 : 0);
+			return data;
+		}
+		String s = data.toString();
+		byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+		out.writeByte(T_STRING);
+		out.writeInt(bytes.length);
+		out.writeBytes(bytes);
+		return s;
+	}
+
+	/**
+	 * Rounds a position up to the next multiple of 8.
+	 * @param position The position
+	 * @return The aligned position
+	 */
+	protected static long align(long position)
+	{
+		return (position + 7) & ~7L;
+	}
+
+	/**
+	 * Writes little-endian values to an output stream through a buffer, and
+	 * keeps track of the number of bytes written.
+	 */
+	protected static class Output
+	{
+		/**
+		 * The stream to write to.
+		 */
+		protected final OutputStream m_out;
+
+		/**
+		 * The buffer holding the bytes not yet written to the stream.
+		 */
+		protected final ByteBuffer m_buffer = ByteBuffer.allocate(1 << 16).order(ByteOrder.LITTLE_ENDIAN);
+
+		/**
+		 * The number of bytes already written to the stream.
+		 */
+		protected long m_flushed = 0;
+
+		public Output(OutputStream out)
+		{
+			super();
+			m_out = out;
+		}
+
+		public long getPosition()
+		{
+			return m_flushed + m_buffer.position();
+		}
+
+		public void writeByte(int x) throws IOException
+		{
+			ensure(1);
+			m_buffer.put((byte) x);
+		}
+
+		public void writeInt(int x) throws IOException
+		{
+			ensure(4);
+			m_buffer.putInt(x);
+		}
+
+		public void writeLong(long x) throws IOException
+		{
+			ensure(8);
+			m_buffer.putLong(x);
+		}
+
+		public void writeBytes(byte[] bytes) throws IOException
+		{
+			flush();
+			m_out.write(bytes);
+			m_flushed += bytes.length;
+		}
+
+		/**
+		 * Writes zeros until a given position is reached.
+		 * @param position The position
+		 * @throws IOException If the stream cannot be written to
+		 */
+		public void pad(long position) throws IOException
+		{
+			while (getPosition() < position)
+			{
+				writeByte(0);
+			}
+		}
+
+		public void flush() throws IOException
+		{
+			m_out.write(m_buffer.array(), 0, m_buffer.position());
+			m_flushed += m_buffer.position();
+			m_buffer.clear();
+		}
+
+		protected void ensure(int bytes) throws IOException
+		{
+			if (m_buffer.remaining() < bytes)
+			{
+				flush();
+			}
+		}
+	}
+}
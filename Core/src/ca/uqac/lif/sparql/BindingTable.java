@@ -0,0 +1,170 @@
+/*
+    Basic processing of SPARQL queries in Java
+    Copyright (C) 2024 Sylvain Hallé
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Lesser General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.uqac.lif.sparql;
+
+/**
+ * A table of bindings of node variables, stored by columns. Each row of the
+ * table associates a node to each of the variables of the table; the
+ * identifiers of the nodes bound to a variable are stored in a primitive
+ * array, and the data of these nodes in a parallel array, so that a
+ * condition on a variable can be checked on all the rows of the table in a
+ * single loop. Tables are used by {@link BatchJoin} to evaluate quantifiers
+ * on batches of bindings.
+ * <p>
+ * A table is created with a fixed capacity and is meant to be reused: it is
+ * filled row by row, filtered, and then cleared.
+ * @author Sylvain Hallé
+ */
+public class BindingTable
+{
+	/**
+	 * The identifiers of the nodes bound to each variable, indexed by column
+	 * and then by row.
+	 */
+	/*@ non_null @*/ protected final long[][] m_ids;
+
+	/**
+	 * The data of the nodes bound to each variable, indexed by column and
+	 * then by row.
+	 */
+	/*@ non_null @*/ protected final Object[][] m_data;
+
+	/**
+	 * The number of rows in the table.
+	 */
+	protected int m_size;
+
+	/**
+	 * Creates a new empty table.
+	 * @param width The number of columns
+	 * @param capacity The maximum number of rows
+	 */
+	public BindingTable(int width, int capacity)
+	{
+		super();
+		m_ids = new long[width][capacity];
+		m_data = new Object[width][capacity];
+		m_size = 0;
+	}
+
+	/**
+	 * Gets the number of rows in the table.
+	 * @return The number of rows
+	 */
+	public int size()
+	{
+		return m_size;
+	}
+
+	/**
+	 * Determines if the table has reached its capacity.
+	 * @return {@code true} if no row can be added, {@code false} otherwise
+	 */
+	public boolean isFull()
+	{
+		return m_ids.length > 0 ? m_size == m_ids[0].length : m_size > 0;
+	}
+
+	/**
+	 * Gets the identifier of the node bound to a variable in a row.
+	 * @param column The column of the variable
+	 * @param row The row
+	 * @return The identifier of the node
+	 */
+	public long getId(int column, int row)
+	{
+		return m_ids[column][row];
+	}
+
+	/**
+	 * Gets the data of the node bound to a variable in a row.
+	 * @param column The column of the variable
+	 * @param row The row
+	 * @return The data of the node
+	 */
+	public Object getData(int column, int row)
+	{
+		return m_data[column][row];
+	}
+
+	/**
+	 * Adds an empty row to the table. Rows of this kind are only found in a
+	 * table without columns, where they stand for the single valuation that
+	 * binds no variable.
+	 */
+	public void addEmpty()
+	{
+		m_size++;
+	}
+
+	/**
+	 * Adds a row to the table, made of the first columns of a row of another
+	 * table followed by a new node.
+	 * @param parent The other table
+	 * @param row The row in the other table
+	 * @param column The column of the new node; the columns before it are
+	 * copied from the other table
+	 * @param id The identifier of the new node
+	 * @param data The data of the new node
+	 */
+	public void add(/*@ non_null @*/ BindingTable parent, int row, int column, long id, Object data)
+	{
+		for (int i = 0; i < column; i++)
+		{
+			m_ids[i][m_size] = parent.m_ids[i][row];
+			m_data[i][m_size] = parent.m_data[i][row];
+		}
+		m_ids[column][m_size] = id;
+		m_data[column][m_size] = data;
+		m_size++;
+	}
+
+	/**
+	 * Removes rows from the table, keeping the remaining ones in order.
+	 * @param keep An array telling, for each row, whether it must be kept
+	 * @param columns The number of columns to move
+	 */
+	public void retain(/*@ non_null @*/ boolean[] keep, int columns)
+	{
+		int out = 0;
+		for (int row = 0; row < m_size; row++)
+		{
+			if (keep[row])
+			{
+				if (out != row)
+				{
+					for (int i = 0; i < columns; i++)
+					{
+						m_ids[i][out] = m_ids[i][row];
+						m_data[i][out] = m_data[i][row];
+					}
+				}
+				out++;
+			}
+		}
+		m_size = out;
+	}
+
+	/**
+	 * Removes all the rows of the table.
+	 */
+	public void clear()
+	{
+		m_size = 0;
+	}
+}
@@ -0,0 +1,759 @@
+/*
+    Basic processing of SPARQL queries in Java
+    Copyright (C) 2024 Sylvain Hallé
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Lesser General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.uqac.lif.sparql;
+
+import java.util.AbstractList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.function.LongPredicate;
+
+/**
+ * A read-only knowledge graph stored in compressed sparse row (CSR) form.
+ * <p>
+ * The identifiers of the nodes are remapped to dense integers, which are
+ * their position in the sorted sequence of identifiers. The edges leaving
+ * node <i>i</i> occupy positions {@link #getOutOffset(int) getOutOffset(i)}
+ * to {@code getOutOffset(i+1)} of two parallel sequences giving their label
+ * and their target, sorted by label and then by target; the incoming edges
+ * are stored in the same way. Finding the edges of a node with a given label,
+ * or checking the presence of an edge, is therefore a binary search in a
+ * contiguous region of memory. The positions of the outgoing edges are also
+ * grouped by label, so that the edges carrying a label can be enumerated
+ * directly.
+ * <p>
+ * Labels are designated by a "local" identifier, which may differ from their
+ * identifier in the {@link LabelDictionary}; the order of edges within the
+ * adjacency of a node follows the local identifiers. This class implements
+ * all the queries of {@link KnowledgeGraph} on top of this layout; descendants
+ * only provide access to the underlying sequences, which can reside in arrays
+ * ({@link FrozenKnowledgeGraph}) or in a file mapped in memory
+ * ({@link MappedKnowledgeGraph}).
+ * <p>
+ * All the methods that modify the graph throw an
+ * {@link UnsupportedOperationException}; a modifiable copy of the graph can
+ * be obtained with {@link #duplicate()}.
+ * @author Sylvain Hallé
+ */
+public abstract class CompactKnowledgeGraph extends KnowledgeGraph
+{
+	/**
+	 * Creates a new compact graph and assigns it a unique identifier.
+	 */
+	public CompactKnowledgeGraph()
+	{
+		super();
+	}
+
+	/**
+	 * Gets the number of positions given to nodes. This includes the nodes
+	 * that only appear at the end of an edge and carry no data.
+	 * @return The number of positions
+	 */
+	protected abstract int getNodeCount();
+
+	/**
+	 * Gets the identifier of the node at a given position. Identifiers are
+	 * sorted in ascending order of position.
+	 * @param index The position
+	 * @return The identifier
+	 */
+	protected abstract long getNodeId(int index);
+
+	/**
+	 * Gets the node at a given position.
+	 * @param index The position
+	 * @return The node, or {@code null} if the node carries no data
+	 */
+	protected abstract GraphNode getNodeAt(int index);
+
+	/**
+	 * Determines if the data of the node at a given position is equal to a
+	 * value, in the sense of {@link IsEqualTo#equalObjects(Object, Object)}.
+	 * @param index The position
+	 * @param value The value
+	 * @return {@code true} if the node exists and its data is equal to the
+	 * value, {@code false} otherwise
+	 */
+	protected abstract boolean hasData(int index, Object value);
+
+	/**
+	 * Gets the position of the first outgoing edge of a node.
+	 * @param index The position of the node, between 0 and
+	 * {@link #getNodeCount()} inclusively
+	 * @return The position of the edge
+	 */
+	protected abstract int getOutOffset(int index);
+
+	/**
+	 * Gets the local label identifier of an outgoing edge.
+	 * @param p The position of the edge
+	 * @return The local label identifier
+	 */
+	protected abstract int getOutLabel(int p);
+
+	/**
+	 * Gets the position of the target of an outgoing edge.
+	 * @param p The position of the edge
+	 * @return The position of the target
+	 */
+	protected abstract int getOutTarget(int p);
+
+	/**
+	 * Gets the position of the first incoming edge of a node.
+	 * @param index The position of the node, between 0 and
+	 * {@link #getNodeCount()} inclusively
+	 * @return The position of the edge
+	 */
+	protected abstract int getInOffset(int index);
+
+	/**
+	 * Gets the local label identifier of an incoming edge.
+	 * @param p The position of the edge
+	 * @return The local label identifier
+	 */
+	protected abstract int getInLabel(int p);
+
+	/**
+	 * Gets the position of the source of an incoming edge.
+	 * @param p The position of the edge
+	 * @return The position of the source
+	 */
+	protected abstract int getInSource(int p);
+
+	/**
+	 * Gets the number of local label identifiers.
+	 * @return The number of identifiers
+	 */
+	protected abstract int getLabelCount();
+
+	/**
+	 * Gets the index of the first element of the sequence of edges grouped by
+	 * label that refers to an edge with a given label.
+	 * @param label The local label identifier, between 0 and
+	 * {@link #getLabelCount()} inclusively
+	 * @return The index
+	 */
+	protected abstract int getLabelOffset(int label);
+
+	/**
+	 * Gets an element of the sequence of outgoing edges grouped by label.
+	 * Within the group of a label, positions are sorted in ascending order.
+	 * @param k The index in the sequence
+	 * @return The position of the edge
+	 */
+	protected abstract int getLabelEdge(int k);
+
+	/**
+	 * Converts an identifier of the {@link LabelDictionary} into a local
+	 * label identifier.
+	 * @param label The identifier in the dictionary
+	 * @return The local identifier, or -1 if no edge of this graph carries
+	 * the label
+	 */
+	protected abstract int toLocalLabel(int label);
+
+	/**
+	 * Converts a local label identifier into an identifier of the
+	 * {@link LabelDictionary}.
+	 * @param label The local identifier
+	 * @return The identifier in the dictionary
+	 */
+	protected abstract int toGlobalLabel(int label);
+
+	/**
+	 * Gets the position of a node identifier.
+	 * @param id The identifier
+	 * @return The position, or -1 if the identifier does not occur in the
+	 * graph
+	 */
+	protected int getIndex(long id)
+	{
+		int n = getNodeCount();
+		if (n == 0)
+		{
+			return -1;
+		}
+		long first = getNodeId(0);
+		if (getNodeId(n - 1) - first == n - 1)
+		{
+			// Identifiers form a contiguous range
+			long d = id - first;
+			return d >= 0 && d < n ? (int) d : -1;
+		}
+		int lo = 0, hi = n - 1;
+		while (lo <= hi)
+		{
+			int mid = (lo + hi) >>> 1;
+			long x = getNodeId(mid);
+			if (x < id)
+			{
+				lo = mid + 1;
+			}
+			else if (x > id)
+			{
+				hi = mid - 1;
+			}
+			else
+			{
+				return mid;
+			}
+		}
+		return -1;
+	}
+
+	@Override
+	public CompactKnowledgeGraph freeze()
+	{
+		return this;
+	}
+
+	/**
+	 * Creates a modifiable copy of this graph.
+	 * @return The copy, which is a plain {@link KnowledgeGraph}
+	 */
+	@Override
+	public KnowledgeGraph duplicate()
+	{
+		KnowledgeGraph g = new KnowledgeGraph();
+		for (GraphNode node : getNodes())
+		{
+			g.setNodeData(node.getId(), node.getData());
+		}
+		for (int i = 0; i < getNodeCount(); i++)
+		{
+			for (int p = getOutOffset(i); p < getOutOffset(i + 1); p++)
+			{
+				g.addEdge(getNodeId(i), toGlobalLabel(getOutLabel(p)), getNodeId(getOutTarget(p)));
+			}
+		}
+		return g;
+	}
+
+	@Override
+	public KnowledgeGraph addEdge(long from, String label, long to)
+	{
+		throw new UnsupportedOperationException("The graph is read-only");
+	}
+
+	@Override
+	public KnowledgeGraph addEdge(long from, int label, long to)
+	{
+		throw new UnsupportedOperationException("The graph is read-only");
+	}
+
+	@Override
+	public KnowledgeGraph setNodeData(long id, Object data)
+	{
+		throw new UnsupportedOperationException("The graph is read-only");
+	}
+
+	@Override
+	public KnowledgeGraph deleteEdge(long from, String label, long to)
+	{
+		throw new UnsupportedOperationException("The graph is read-only");
+	}
+
+	@Override
+	public KnowledgeGraph deleteNode(long id)
+	{
+		throw new UnsupportedOperationException("The graph is read-only");
+	}
+
+	@Override
+	public GraphNode getNode(long id)
+	{
+		int i = getIndex(id);
+		return i < 0 ? null : getNodeAt(i);
+	}
+
+	@Override
+	public Collection<GraphEdge> getEdges()
+	{
+		return new OutEdgeList(false, 0, getOutOffset(getNodeCount()));
+	}
+
+	@Override
+	public Collection<GraphEdge> getEdges(long id)
+	{
+		int i = getIndex(id);
+		if (i < 0)
+		{
+			return Collections.emptyList();
+		}
+		return new OutEdgeList(false, getOutOffset(i), getOutOffset(i + 1));
+	}
+
+	@Override
+	public Collection<GraphEdge> getOutgoingEdges(long id, String label)
+	{
+		int i = getIndex(id);
+		int local = findLabel(label);
+		if (i < 0 || local < 0)
+		{
+			return Collections.emptyList();
+		}
+		int start = getOutOffset(i), end = getOutOffset(i + 1);
+		return new OutEdgeList(false, lowerBound(true, start, end, local), lowerBound(true, start, end, local + 1));
+	}
+
+	@Override
+	public Collection<GraphEdge> getIncomingEdges(long id)
+	{
+		int i = getIndex(id);
+		if (i < 0)
+		{
+			return Collections.emptyList();
+		}
+		return new InEdgeList(i, getInOffset(i), getInOffset(i + 1));
+	}
+
+	@Override
+	public Collection<GraphEdge> getIncomingEdges(long id, String label)
+	{
+		int i = getIndex(id);
+		int local = findLabel(label);
+		if (i < 0 || local < 0)
+		{
+			return Collections.emptyList();
+		}
+		int start = getInOffset(i), end = getInOffset(i + 1);
+		return new InEdgeList(i, lowerBound(false, start, end, local), lowerBound(false, start, end, local + 1));
+	}
+
+	@Override
+	public Collection<GraphEdge> getEdgesWithLabel(String label)
+	{
+		int local = findLabel(label);
+		if (local < 0)
+		{
+			return Collections.emptyList();
+		}
+		return new OutEdgeList(true, getLabelOffset(local), getLabelOffset(local + 1));
+	}
+
+	@Override
+	public int countEdges(String label)
+	{
+		return countLocalEdges(findLabel(label));
+	}
+
+	@Override
+	public boolean hasEdge(long from, int label, long to)
+	{
+		int i = getIndex(from);
+		int j = getIndex(to);
+		int local = toLocalLabel(label);
+		if (i < 0 || j < 0 || local < 0)
+		{
+			return false;
+		}
+		int start = getOutOffset(i), end = getOutOffset(i + 1);
+		start = lowerBound(true, start, end, local);
+		end = lowerBound(true, start, end, local + 1);
+		// Targets are sorted within the range of a label
+		while (start < end)
+		{
+			int mid = (start + end) >>> 1;
+			int t = getOutTarget(mid);
+			if (t < j)
+			{
+				start = mid + 1;
+			}
+			else if (t > j)
+			{
+				end = mid;
+			}
+			else
+			{
+				return true;
+			}
+		}
+		return false;
+	}
+
+	@Override
+	public boolean forEachNeighbour(long id, int label, boolean outgoing, LongPredicate action)
+	{
+		int i = getIndex(id);
+		int local = toLocalLabel(label);
+		if (i < 0 || local < 0)
+		{
+			return true;
+		}
+		int start = outgoing ? getOutOffset(i) : getInOffset(i);
+		int end = outgoing ? getOutOffset(i + 1) : getInOffset(i + 1);
+		start = lowerBound(outgoing, start, end, local);
+		end = lowerBound(outgoing, start, end, local + 1);
+		for (int p = start; p < end; p++)
+		{
+			if (!action.test(getNodeId(outgoing ? getOutTarget(p) : getInSource(p))))
+			{
+				return false;
+			}
+		}
+		return true;
+	}
+
+	@Override
+	public boolean matches(Object from, int label, Object to)
+	{
+		int local = toLocalLabel(label);
+		if (to == null || from == null || countLocalEdges(local) == 0)
+		{
+			return false;
+		}
+		if (from instanceof GraphNode && to instanceof GraphNode)
+		{
+			return hasEdge(((GraphNode) from).getId(), label, ((GraphNode) to).getId());
+		}
+		if (from instanceof GraphNode)
+		{
+			int i = getIndex(((GraphNode) from).getId());
+			return i >= 0 && matchesRange(true, i, local, to);
+		}
+		if (to instanceof GraphNode)
+		{
+			int i = getIndex(((GraphNode) to).getId());
+			return i >= 0 && matchesRange(false, i, local, from);
+		}
+		Collection<GraphNode> set_from = getNodesWithData(from);
+		Collection<GraphNode> set_to = getNodesWithData(to);
+		int num_edges = countLocalEdges(local);
+		if (num_edges < set_from.size() && num_edges < set_to.size())
+		{
+			// Fewer edges with this label than candidate nodes at either end
+			for (int k = getLabelOffset(local); k < getLabelOffset(local + 1); k++)
+			{
+				int p = getLabelEdge(k);
+				if (isNode(to, getOutTarget(p)) && isNode(from, getSource(p)))
+				{
+					return true;
+				}
+			}
+			return false;
+		}
+		if (set_from.size() <= set_to.size())
+		{
+			for (GraphNode n : set_from)
+			{
+				if (matchesRange(true, getIndex(n.getId()), local, to))
+				{
+					return true;
+				}
+			}
+		}
+		else
+		{
+			for (GraphNode n : set_to)
+			{
+				if (matchesRange(false, getIndex(n.getId()), local, from))
+				{
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	@Override
+	public boolean matchesUndirected(Object from, int label, Object to)
+	{
+		if (!(from instanceof GraphNode))
+		{
+			return matches(from, label, to) || matches(to, label, from);
+		}
+		int local = toLocalLabel(label);
+		if (to == null || countLocalEdges(local) == 0)
+		{
+			return false;
+		}
+		int i = getIndex(((GraphNode) from).getId());
+		return i >= 0 && (matchesRange(true, i, local, to) || matchesRange(false, i, local, to));
+	}
+
+	@Override
+	protected boolean isNode(Object arg, long id)
+	{
+		int i = getIndex(id);
+		return i >= 0 && isNode(arg, i);
+	}
+
+	/**
+	 * Determines if the node at a given position corresponds to an argument
+	 * of {@link #matches(Object, Object, Object)}.
+	 * @param arg The argument, either a {@link GraphNode} or the data of a
+	 * node
+	 * @param index The position of the node
+	 * @return {@code true} if the node corresponds to the argument,
+	 * {@code false} otherwise
+	 */
+	protected boolean isNode(Object arg, int index)
+	{
+		if (arg instanceof GraphNode)
+		{
+			return ((GraphNode) arg).getId() == getNodeId(index);
+		}
+		return hasData(index, arg);
+	}
+
+	/**
+	 * Gets the local identifier of a label.
+	 * @param label The label
+	 * @return The local identifier, or -1 if no edge carries this label
+	 */
+	protected int findLabel(String label)
+	{
+		int id = LabelDictionary.find(label);
+		return id < 0 ? -1 : toLocalLabel(id);
+	}
+
+	/**
+	 * Gets the number of edges carrying a given label.
+	 * @param label The local label identifier
+	 * @return The number of edges
+	 */
+	protected int countLocalEdges(int label)
+	{
+		if (label < 0 || label >= getLabelCount())
+		{
+			return 0;
+		}
+		return getLabelOffset(label + 1) - getLabelOffset(label);
+	}
+
+	/**
+	 * Determines if the edges of a node include an edge with a given label
+	 * leading to a given node.
+	 * @param out Set to {@code true} to examine the outgoing edges,
+	 * {@code false} to examine the incoming edges
+	 * @param index The position of the node
+	 * @param label The local label identifier
+	 * @param other The node at the other end, or the data of that node
+	 * @return {@code true} if such an edge exists, {@code false} otherwise
+	 */
+	protected boolean matchesRange(boolean out, int index, int label, Object other)
+	{
+		int start = out ? getOutOffset(index) : getInOffset(index);
+		int end = out ? getOutOffset(index + 1) : getInOffset(index + 1);
+		start = lowerBound(out, start, end, label);
+		end = lowerBound(out, start, end, label + 1);
+		for (int p = start; p < end; p++)
+		{
+			if (isNode(other, out ? getOutTarget(p) : getInSource(p)))
+			{
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Gets the position of the source of an outgoing edge.
+	 * @param p The position of the edge
+	 * @return The position of its source node
+	 */
+	protected int getSource(int p)
+	{
+		// Find the last node whose first edge is at or before p
+		int lo = 0, hi = getNodeCount() - 1;
+		while (lo < hi)
+		{
+			int mid = (lo + hi + 1) >>> 1;
+			if (getOutOffset(mid) <= p)
+			{
+				lo = mid;
+			}
+			else
+			{
+				hi = mid - 1;
+			}
+		}
+		return lo;
+	}
+
+	/**
+	 * Finds the first edge in a range of the adjacency of a node whose label
+	 * is greater than or equal to a given label.
+	 * @param out Set to {@code true} to examine the outgoing edges,
+	 * {@code false} to examine the incoming edges
+	 * @param start The start of the range (inclusive)
+	 * @param end The end of the range (exclusive)
+	 * @param label The local label identifier
+	 * @return The position of the edge
+	 */
+	protected int lowerBound(boolean out, int start, int end, int label)
+	{
+		while (start < end)
+		{
+			int mid = (start + end) >>> 1;
+			if ((out ? getOutLabel(mid) : getInLabel(mid)) < label)
+			{
+				start = mid + 1;
+			}
+			else
+			{
+				end = mid;
+			}
+		}
+		return start;
+	}
+
+	/**
+	 * A read-only view over a range of outgoing edges. The range designates
+	 * either a contiguous region of the outgoing edges, or a region of the
+	 * sequence of edges grouped by label.
+	 */
+	protected class OutEdgeList extends AbstractList<GraphEdge>
+	{
+		/**
+		 * Whether the range refers to the sequence of edges grouped by label.
+		 */
+		protected final boolean m_byLabel;
+
+		/**
+		 * The start of the range (inclusive).
+		 */
+		protected final int m_start;
+
+		/**
+		 * The end of the range (exclusive).
+		 */
+		protected final int m_end;
+
+		public OutEdgeList(boolean by_label, int start, int end)
+		{
+			super();
+			m_byLabel = by_label;
+			m_start = start;
+			m_end = end;
+		}
+
+		@Override
+		public GraphEdge get(int index)
+		{
+			if (index < 0 || index >= size())
+			{
+				throw new IndexOutOfBoundsException();
+			}
+			int p = position(m_start + index);
+			return getEdge(getSource(p), p);
+		}
+
+		@Override
+		public int size()
+		{
+			return m_end - m_start;
+		}
+
+		@Override
+		public Iterator<GraphEdge> iterator()
+		{
+			return new Iterator<GraphEdge>()
+			{
+				// The source node is tracked along the iteration, since the
+				// positions are increasing
+				int m_k = m_start;
+
+				int m_source = -1;
+
+				@Override
+				public boolean hasNext()
+				{
+					return m_k < m_end;
+				}
+
+				@Override
+				public GraphEdge next()
+				{
+					if (m_k >= m_end)
+					{
+						throw new NoSuchElementException();
+					}
+					int p = position(m_k++);
+					if (m_source < 0)
+					{
+						m_source = getSource(p);
+					}
+					while (getOutOffset(m_source + 1) <= p)
+					{
+						m_source++;
+					}
+					return getEdge(m_source, p);
+				}
+			};
+		}
+
+		protected int position(int k)
+		{
+			return m_byLabel ? getLabelEdge(k) : k;
+		}
+
+		protected GraphEdge getEdge(int source, int p)
+		{
+			return new WritableGraphEdge(getNodeId(source), toGlobalLabel(getOutLabel(p)), getNodeId(getOutTarget(p)));
+		}
+	}
+
+	/**
+	 * A read-only view over a range of incoming edges of a node.
+	 */
+	protected class InEdgeList extends AbstractList<GraphEdge>
+	{
+		/**
+		 * The position of the target node of the edges.
+		 */
+		protected final int m_target;
+
+		/**
+		 * The start of the range (inclusive).
+		 */
+		protected final int m_start;
+
+		/**
+		 * The end of the range (exclusive).
+		 */
+		protected final int m_end;
+
+		public InEdgeList(int target, int start, int end)
+		{
+			super();
+			m_target = target;
+			m_start = start;
+			m_end = end;
+		}
+
+		@Override
+		public GraphEdge get(int index)
+		{
+			if (index < 0 || index >= size())
+			{
+				throw new IndexOutOfBoundsException();
+			}
+			int p = m_start + index;
+			return new WritableGraphEdge(getNodeId(getInSource(p)), toGlobalLabel(getInLabel(p)), getNodeId(m_target));
+		}
+
+		@Override
+		public int size()
+		{
+			return m_end - m_start;
+		}
+	}
+}
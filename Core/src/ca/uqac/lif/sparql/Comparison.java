@@ -17,6 +17,8 @@
  */
 package ca.uqac.lif.sparql;
 
+import java.util.BitSet;
+
 /**
  * An abstract assertion applying a comparison on the return value of two
  * graph functions.
@@ -57,6 +59,13 @@ public abstract class Comparison implements GraphAssertion
 		return compare(left_val, right_val);
 	}
 
+	@Override
+	public boolean getFreeVariables(BitSet slots)
+	{
+		boolean complete = m_left.getFreeVariables(slots);
+		return m_right.getFreeVariables(slots) && complete;
+	}
+
 	/**
 	 * Compares two objects.
 	 * 
@@ -38,7 +38,7 @@ public class Conjunction extends NaryConnective
 		{
 			if (op instanceof Conjunction)
 			{
-				for (GraphAssertion child : ((Disjunction) op).m_operands)
+				for (GraphAssertion child : ((Conjunction) op).m_operands)
 				{
 					ops.add(child);
 				}
@@ -74,13 +74,6 @@ public class Conjunction extends NaryConnective
 	@Override
 	public Boolean evaluate(KnowledgeGraph g, Valuation nu)
 	{
-		for (GraphAssertion child : m_operands)
-		{
-			if (!child.evaluate(g, nu))
-			{
-				return false;
-			}
-		}
-		return true;
+		return evaluateUntil(g, nu, false);
 	}
 }
@@ -17,6 +17,8 @@
  */
 package ca.uqac.lif.sparql;
 
+import java.util.BitSet;
+
 import ca.uqac.lif.cep.Context;
 import ca.uqac.lif.cep.EventTracker;
 import ca.uqac.lif.cep.functions.Constant;
@@ -50,8 +52,8 @@ public abstract class ConnectedBy extends ContextFunction implements GraphAssert
 	public static DirectedConnectedBy connected(String from, String label, String to)
 	{
 		Function p_from = from.startsWith("$") ? new ContextVariable(from) : new Constant(from);
-		Function p_label = from.startsWith("$") ? new ContextVariable(label) : new Constant(label);
-		Function p_to = from.startsWith("$") ? new ContextVariable(to) : new Constant(to);
+		Function p_label = label.startsWith("$") ? new ContextVariable(label) : new Constant(label);
+		Function p_to = to.startsWith("$") ? new ContextVariable(to) : new Constant(to);
 		return new DirectedConnectedBy(p_from, p_label, p_to);
 	}
 
@@ -70,8 +72,8 @@ public abstract class ConnectedBy extends ContextFunction implements GraphAssert
 	public static UndirectedConnectedBy connectedUndir(String from, String label, String to)
 	{
 		Function p_from = from.startsWith("$") ? new ContextVariable(from) : new Constant(from);
-		Function p_label = from.startsWith("$") ? new ContextVariable(label) : new Constant(label);
-		Function p_to = from.startsWith("$") ? new ContextVariable(to) : new Constant(to);
+		Function p_label = label.startsWith("$") ? new ContextVariable(label) : new Constant(label);
+		Function p_to = to.startsWith("$") ? new ContextVariable(to) : new Constant(to);
 		return new UndirectedConnectedBy(p_from, p_label, p_to);
 	}
 
@@ -90,6 +92,31 @@ public abstract class ConnectedBy extends ContextFunction implements GraphAssert
 	 */
 	protected final Function m_to;
 
+	/**
+	 * The identifier of the label of the edge in the {@link LabelDictionary},
+	 * if this label is a constant string. Otherwise, this field is set to -1
+	 * and the label is evaluated each time the assertion is evaluated.
+	 */
+	protected final int m_labelId;
+
+	/**
+	 * The index in a {@link Valuation} of the variable standing for the
+	 * source node, or -1 if the source is not a variable.
+	 */
+	protected final int m_fromSlot;
+
+	/**
+	 * The index in a {@link Valuation} of the variable standing for the
+	 * label, or -1 if the label is not a variable.
+	 */
+	protected final int m_labelSlot;
+
+	/**
+	 * The index in a {@link Valuation} of the variable standing for the
+	 * destination node, or -1 if the destination is not a variable.
+	 */
+	protected final int m_toSlot;
+
 	/**
 	 * Creates a new assertion that two nodes are connected by an edge with a given
 	 * label.
@@ -108,6 +135,30 @@ public abstract class ConnectedBy extends ContextFunction implements GraphAssert
 		m_from = from;
 		m_label = label;
 		m_to = to;
+		m_fromSlot = getSlot(from);
+		m_labelSlot = getSlot(label);
+		m_toSlot = getSlot(to);
+		if (label instanceof Constant && ((Constant) label).getValue() instanceof String)
+		{
+			m_labelId = LabelDictionary.getId((String) ((Constant) label).getValue());
+		}
+		else
+		{
+			m_labelId = -1;
+		}
+	}
+
+	@Override
+	public boolean getFreeVariables(BitSet slots)
+	{
+		for (int slot : new int[] {m_fromSlot, m_labelSlot, m_toSlot})
+		{
+			if (slot >= 0)
+			{
+				slots.set(slot);
+			}
+		}
+		return true;
 	}
 
 	@Override
@@ -120,6 +171,12 @@ public abstract class ConnectedBy extends ContextFunction implements GraphAssert
 		return null;
 	}
 
+	/**
+	 * Asserts that two nodes are connected by a directed edge. The evaluation
+	 * is delegated to {@link KnowledgeGraph#matches(Object, Object, Object)},
+	 * which chooses the index to use depending on which arguments are bound
+	 * to nodes or edges of the graph.
+	 */
 	public static class DirectedConnectedBy extends ConnectedBy
 	{
 		public DirectedConnectedBy(Function from, Function label, Function to)
@@ -130,9 +187,13 @@ public abstract class ConnectedBy extends ContextFunction implements GraphAssert
 		@Override
 		public Boolean evaluate(KnowledgeGraph graph, Valuation nu)
 		{
-			Object from = evaluateFromValuation(m_from, graph, nu);
-			Object edge = evaluateFromValuation(m_label, graph, nu);
-			Object to = evaluateFromValuation(m_to, graph, nu);
+			Object from = evaluateFromValuation(m_from, m_fromSlot, nu);
+			Object to = evaluateFromValuation(m_to, m_toSlot, nu);
+			if (m_labelId >= 0)
+			{
+				return graph.matches(from, m_labelId, to);
+			}
+			Object edge = evaluateFromValuation(m_label, m_labelSlot, nu);
 			return graph.matches(from, edge, to);
 		}
 
@@ -153,6 +214,11 @@ public abstract class ConnectedBy extends ContextFunction implements GraphAssert
 		}
 	}
 
+	/**
+	 * Asserts that two nodes are connected by an edge in either direction.
+	 * The evaluation is delegated to
+	 * {@link KnowledgeGraph#matchesUndirected(Object, Object, Object)}.
+	 */
 	public static class UndirectedConnectedBy extends ConnectedBy
 	{
 		public UndirectedConnectedBy(Function from, Function label, Function to)
@@ -163,10 +229,14 @@ public abstract class ConnectedBy extends ContextFunction implements GraphAssert
 		@Override
 		public Boolean evaluate(KnowledgeGraph graph, Valuation nu)
 		{
-			Object from = evaluateFromValuation(m_from, graph, nu);
-			Object edge = evaluateFromValuation(m_label, graph, nu);
-			Object to = evaluateFromValuation(m_to, graph, nu);
-			return graph.matches(from, edge, to) || graph.matches(to, edge, from);
+			Object from = evaluateFromValuation(m_from, m_fromSlot, nu);
+			Object to = evaluateFromValuation(m_to, m_toSlot, nu);
+			if (m_labelId >= 0)
+			{
+				return graph.matchesUndirected(from, m_labelId, to);
+			}
+			Object edge = evaluateFromValuation(m_label, m_labelSlot, nu);
+			return graph.matchesUndirected(from, edge, to);
 		}
 
 		@Override
@@ -182,7 +252,7 @@ public abstract class ConnectedBy extends ContextFunction implements GraphAssert
 			Object from = evaluateFromContext(m_from, inputs[0], c);
 			Object edge = evaluateFromContext(m_label, inputs[0], c);
 			Object to = evaluateFromContext(m_to, inputs[0], c);
-			outputs[0] = (g.matches(from, edge, to) || g.matches(to, edge, from)) ? Troolean.Value.TRUE : Troolean.Value.FALSE;
+			outputs[0] = g.matchesUndirected(from, edge, to) ? Troolean.Value.TRUE : Troolean.Value.FALSE;
 		}
 	}
 }
@@ -17,6 +17,8 @@
  */
 package ca.uqac.lif.sparql;
 
+import java.util.BitSet;
+
 /**
  * A constant value in a graph function
  * 
@@ -47,4 +49,10 @@ public class Constant<T> implements GraphFunction<T>
 	{
 		return m_value;
 	}
+
+	@Override
+	public boolean getFreeVariables(BitSet slots)
+	{
+		return true;
+	}
 }
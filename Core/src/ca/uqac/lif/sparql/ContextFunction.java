@@ -59,4 +59,42 @@ public abstract class ContextFunction extends Function
 		}
 		return null;
 	}
+
+	/**
+	 * Gets the index in a {@link Valuation} of the variable read by a
+	 * function.
+	 * @param f The function
+	 * @return The identifier of the variable in the {@link VariableDictionary},
+	 * or -1 if the function is not a {@link ContextVariable}
+	 */
+	protected static int getSlot(Function f)
+	{
+		if (f instanceof ContextVariable)
+		{
+			return VariableDictionary.getId(((ContextVariable) f).getName());
+		}
+		return -1;
+	}
+
+	/**
+	 * Evaluates a function on a valuation, using the index of its variable
+	 * resolved in advance by {@link #getSlot(Function)}.
+	 * @param f The function
+	 * @param slot The index of the variable read by the function, or -1 if
+	 * the function is not a variable
+	 * @param nu The valuation
+	 * @return The value of the function
+	 */
+	protected static Object evaluateFromValuation(Function f, int slot, Valuation nu)
+	{
+		if (slot >= 0)
+		{
+			return nu.get(slot);
+		}
+		if (f instanceof Constant)
+		{
+			return ((Constant) f).getValue();
+		}
+		return null;
+	}
 }
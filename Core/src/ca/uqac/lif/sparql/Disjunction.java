@@ -92,13 +92,6 @@ public class Disjunction extends NaryConnective
 	@Override
 	public Boolean evaluate(KnowledgeGraph g, Valuation nu)
 	{
-		for (GraphAssertion child : m_operands)
-		{
-			if (child.evaluate(g, nu))
-			{
-				return true;
-			}
-		}
-		return false;
+		return evaluateUntil(g, nu, true);
 	}
 }
@@ -0,0 +1,270 @@
+/*
+    Basic processing of SPARQL queries in Java
+    Copyright (C) 2024 Sylvain Hallé
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Lesser General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.uqac.lif.sparql;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+import ca.uqac.lif.sparql.NumberComparison.IsGreaterThan;
+
+/**
+ * Provides, from an index of the graph, the candidate values of a variable
+ * given the values of the other variables. A domain does not need to be
+ * exact: it may return a superset of the values that satisfy the condition
+ * it stands for, as long as it does not leave out any of them. The
+ * assertions using a domain therefore still evaluate that condition on each
+ * candidate.
+ * <p>
+ * The domains defined in this class stand for a guard on the label of a
+ * node or an edge, such as {@code eq(l("$x"), "A")} or
+ * {@code gt(l("$x"), 5)}; they are obtained from such a guard by
+ * {@link #getDomains(GraphAssertion, int, boolean) getDomains()}.
+ * @param <T> The type of the candidate values
+ * @author Sylvain Hallé
+ */
+public abstract class Domain<T>
+{
+	/**
+	 * A score indicating the expected selectivity of the domain; higher is
+	 * better.
+	 */
+	protected final int m_score;
+
+	/**
+	 * Creates a new domain.
+	 * @param score The score of the domain
+	 */
+	public Domain(int score)
+	{
+		super();
+		m_score = score;
+	}
+
+	/**
+	 * Gets the candidate values of the variable.
+	 * @param g The graph
+	 * @param nu The valuation
+	 * @return The candidates, or {@code null} if the domain cannot restrict
+	 * the values of the variable for this valuation
+	 */
+	public abstract Collection<T> getCandidates(KnowledgeGraph g, Valuation nu);
+
+	/**
+	 * Gets the domains that contain all the values of a variable satisfying a
+	 * guard. The functions compared with the label of the variable must not
+	 * read that variable.
+	 * @param guard The guard
+	 * @param slot The variable
+	 * @param edge Whether the variable stands for an edge
+	 * @return The domains, which is empty if the guard is not recognized
+	 */
+	/*@ non_null @*/ public static List<Domain<?>> getDomains(GraphAssertion guard, int slot, boolean edge)
+	{
+		return getDomains(guard, slot, edge, new BitSet());
+	}
+
+	/**
+	 * Gets the domains that contain all the values of a variable satisfying a
+	 * guard, when some variables are not yet bound.
+	 * @param guard The guard
+	 * @param slot The variable
+	 * @param edge Whether the variable stands for an edge
+	 * @param unbound The variables that have no value when the candidates are
+	 * requested; the functions compared with the label of the variable must
+	 * not read them
+	 * @return The domains, which is empty if the guard is not recognized
+	 */
+	/*@ non_null @*/ public static List<Domain<?>> getDomains(GraphAssertion guard, int slot, boolean edge, BitSet unbound)
+	{
+		List<Domain<?>> domains = new ArrayList<Domain<?>>(1);
+		if (guard instanceof IsEqualTo)
+		{
+			GraphFunction<?>[] args = ((IsEqualTo) guard).m_arguments;
+			for (int i = 0; i < args.length; i++)
+			{
+				if (!isLabelOf(args[i], slot))
+				{
+					continue;
+				}
+				// Only neighbouring arguments are compared directly
+				for (int j = i - 1; j <= i + 1; j += 2)
+				{
+					if (j >= 0 && j < args.length && isKnown(args[j], slot, unbound))
+					{
+						domains.add(edge ? new EdgesWithLabel(args[j]) : new NodesWithValue(args[j]));
+					}
+				}
+			}
+		}
+		else if (guard instanceof IsGreaterThan && !edge)
+		{
+			IsGreaterThan c = (IsGreaterThan) guard;
+			if (isLabelOf(c.m_left, slot) && isKnown(c.m_right, slot, unbound))
+			{
+				domains.add(new NodesInRange(c.m_right, true));
+			}
+			else if (isLabelOf(c.m_right, slot) && isKnown(c.m_left, slot, unbound))
+			{
+				domains.add(new NodesInRange(c.m_left, false));
+			}
+		}
+		return domains;
+	}
+
+	/**
+	 * Determines if a function gives the label of a variable.
+	 * @param f The function
+	 * @param slot The variable
+	 * @return {@code true} if the function is {@link LabelOf} applied to the
+	 * variable, {@code false} otherwise
+	 */
+	protected static boolean isLabelOf(GraphFunction<?> f, int slot)
+	{
+		return f instanceof LabelOf && ((LabelOf) f).m_slot == slot;
+	}
+
+	/**
+	 * Determines if a function can be evaluated before a variable is bound.
+	 * @param f The function
+	 * @param slot The variable
+	 * @param unbound The other variables without a value
+	 * @return {@code true} if the function can be evaluated, {@code false}
+	 * otherwise
+	 */
+	protected static boolean isKnown(GraphFunction<?> f, int slot, BitSet unbound)
+	{
+		BitSet vars = new BitSet();
+		return f.getFreeVariables(vars) && !vars.get(slot) && !vars.intersects(unbound);
+	}
+
+	/**
+	 * The nodes whose data is equal to the value of a function, obtained from
+	 * the index of node values.
+	 */
+	public static class NodesWithValue extends Domain<GraphNode>
+	{
+		/**
+		 * The function giving the value.
+		 */
+		/*@ non_null @*/ protected final GraphFunction<?> m_value;
+
+		/**
+		 * Creates a new domain.
+		 * @param value The function giving the value
+		 */
+		public NodesWithValue(/*@ non_null @*/ GraphFunction<?> value)
+		{
+			super(2);
+			m_value = value;
+		}
+
+		@Override
+		public Collection<GraphNode> getCandidates(KnowledgeGraph g, Valuation nu)
+		{
+			Object value = m_value.evaluate(g, nu);
+			if (value == null)
+			{
+				return null;
+			}
+			return g.getNodesWithData(value);
+		}
+	}
+
+	/**
+	 * The nodes whose data is a number greater than, or less than, the value
+	 * of a function, obtained from the index of numerical values.
+	 */
+	public static class NodesInRange extends Domain<GraphNode>
+	{
+		/**
+		 * The function giving the bound.
+		 */
+		/*@ non_null @*/ protected final GraphFunction<?> m_bound;
+
+		/**
+		 * Whether the nodes are above the bound (otherwise they are below).
+		 */
+		protected final boolean m_above;
+
+		/**
+		 * Creates a new domain.
+		 * @param bound The function giving the bound
+		 * @param above Whether the nodes are above the bound
+		 */
+		public NodesInRange(/*@ non_null @*/ GraphFunction<?> bound, boolean above)
+		{
+			super(1);
+			m_bound = bound;
+			m_above = above;
+		}
+
+		@Override
+		public Collection<GraphNode> getCandidates(KnowledgeGraph g, Valuation nu)
+		{
+			Object bound = m_bound.evaluate(g, nu);
+			if (!(bound instanceof Number))
+			{
+				// A comparison with anything but a number is false
+				return Collections.emptyList();
+			}
+			double x = ((Number) bound).doubleValue();
+			if (m_above)
+			{
+				return g.getNodesInRange(x, false, Double.POSITIVE_INFINITY, true);
+			}
+			return g.getNodesInRange(Double.NEGATIVE_INFINITY, true, x, false);
+		}
+	}
+
+	/**
+	 * The edges whose label is equal to the value of a function, obtained
+	 * from the index of labels.
+	 */
+	public static class EdgesWithLabel extends Domain<GraphEdge>
+	{
+		/**
+		 * The function giving the label.
+		 */
+		/*@ non_null @*/ protected final GraphFunction<?> m_label;
+
+		/**
+		 * Creates a new domain.
+		 * @param label The function giving the label
+		 */
+		public EdgesWithLabel(/*@ non_null @*/ GraphFunction<?> label)
+		{
+			super(2);
+			m_label = label;
+		}
+
+		@Override
+		public Collection<GraphEdge> getCandidates(KnowledgeGraph g, Valuation nu)
+		{
+			Object label = m_label.evaluate(g, nu);
+			if (!(label instanceof String))
+			{
+				// Edge labels are strings and can be equal to nothing else
+				return Collections.emptyList();
+			}
+			return g.getEdgesWithLabel((String) label);
+		}
+	}
+}
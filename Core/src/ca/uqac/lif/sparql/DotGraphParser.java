@@ -1,21 +1,75 @@
 package ca.uqac.lif.sparql;
 
+import java.io.IOException;
 import java.io.InputStream;
-import java.util.Scanner;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 
+/**
+ * Parses a knowledge graph from a DOT file. The parser accepts the subset of
+ * DOT produced by the {@link DotGraphRenderer}: each line declares either a
+ * node, as in {@code 0 [label="data"];}, or an edge, as in
+ * {@code 0 -> 1 [label="label"];}. Leading and trailing whitespace is
+ * ignored, as well as blank lines, lines starting with {@code #}, and any
+ * line that does not follow one of these two forms.
+ * <p>
+ * The parser works directly on the bytes of its input, which is assumed to
+ * be encoded in UTF-8. Lines are recognized by a hand-written lexer rather
+ * than regular expressions; identifiers and numbers are decoded without
+ * creating intermediate strings, and the type of the data of a node is
+ * determined without relying on exceptions. The labels of edges are looked
+ * up in a table indexed by their bytes, so that an edge whose label has
+ * already been seen does not allocate anything. The nodes and edges read are
+ * sent to a {@link GraphBuilder}.
+ * <p>
+ * A file can also be parsed in parallel with
+ * {@link #parse(Path, ForkJoinPool)}. The file is then cut into chunks of
+ * roughly equal size, each chunk is parsed into its own builder by a task of
+ * a {@link ForkJoinPool}, and the builders are added to the graph in the
+ * order of the chunks, which gives the same graph as a sequential parse.
+ * <p>
+ * The data of a node is an {@link Integer} if its label is accepted by
+ * {@link Integer#parseInt(String)}, otherwise a {@link Double} if it is
+ * accepted by {@link Double#parseDouble(String)}, and otherwise the label
+ * itself as a string.
+ * @author Sylvain Hallé
+ */
 public class DotGraphParser implements GraphParser
 {
 	/**
-	 * Pattern to match a node in the input.
+	 * The initial size of the buffer in which the input is read.
 	 */
-	protected static final Pattern s_nodePattern = Pattern.compile("(\\d+) \\[label=\"([^\"]*)\"\\];*");
+	protected static final int BUFFER_SIZE = 1 << 16;
 
 	/**
-	 * Pattern to match an edge in the input.
+	 * The default size of the chunks read by each task when a file is parsed
+	 * in parallel.
 	 */
-	protected static final Pattern s_edgePattern = Pattern.compile("(\\d+) -> (\\d+) \\[label=\"([^\"]*)\"\\];*");
+	public static final int CHUNK_SIZE = 1 << 24;
+
+	/**
+	 * The bytes that start the attribute list of a node or an edge.
+	 */
+	protected static final byte[] s_labelStart = "[label=\"".getBytes(StandardCharsets.US_ASCII);
+
+	/**
+	 * Exact powers of ten that can be represented as a {@code double}.
+	 */
+	protected static final double[] s_powersOfTen = {1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11, 1e12,
+			1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22};
 
 	/**
 	 * Creates a new parser.
@@ -25,41 +79,706 @@ public class DotGraphParser implements GraphParser
 		super();
 	}
 
+	/**
+	 * Parses a knowledge graph from an input stream. The stream is closed
+	 * once it has been read.
+	 * @param is The input stream
+	 * @return The parsed knowledge graph
+	 */
 	@Override
 	public KnowledgeGraph parse(InputStream is)
 	{
-		KnowledgeGraph g = new KnowledgeGraph();
-		Scanner scanner = new Scanner(is);
-		while (scanner.hasNextLine())
+		GraphBuilder b = new GraphBuilder();
+		try (InputStream in = is)
+		{
+			parse(in, b);
+		}
+		catch (IOException e)
+		{
+			throw new UncheckedIOException(e);
+		}
+		return b.build();
+	}
+
+	/**
+	 * Parses a knowledge graph from a file. The file is read through a
+	 * channel, without an intermediate buffered stream.
+	 * @param path The path of the file
+	 * @return The parsed knowledge graph
+	 * @throws IOException If the file cannot be read
+	 */
+	/*@ non_null @*/ public KnowledgeGraph parse(/*@ non_null @*/ Path path) throws IOException
+	{
+		GraphBuilder b = new GraphBuilder();
+		try (InputStream in = Files.newInputStream(path))
 		{
-			String line = scanner.nextLine().trim();
-			if (line.isEmpty() || line.startsWith("#"))
+			parse(in, b);
+		}
+		return b.build();
+	}
+
+	/**
+	 * Parses a knowledge graph from a file, using the tasks of a pool to read
+	 * the file in parallel.
+	 * @param path The path of the file
+	 * @param pool The pool running the tasks
+	 * @return The parsed knowledge graph
+	 * @throws IOException If the file cannot be read
+	 */
+	/*@ non_null @*/ public KnowledgeGraph parse(/*@ non_null @*/ Path path, /*@ non_null @*/ ForkJoinPool pool) throws IOException
+	{
+		return parse(path, pool, CHUNK_SIZE);
+	}
+
+	/**
+	 * Parses a knowledge graph from a file, using the tasks of a pool to read
+	 * the file in parallel.
+	 * @param path The path of the file
+	 * @param pool The pool running the tasks
+	 * @param chunk_size The approximate number of bytes read by each task
+	 * @return The parsed knowledge graph
+	 * @throws IOException If the file cannot be read
+	 */
+	/*@ non_null @*/ public KnowledgeGraph parse(/*@ non_null @*/ Path path, /*@ non_null @*/ ForkJoinPool pool, int chunk_size) throws IOException
+	{
+		if (chunk_size <= 0)
+		{
+			throw new IllegalArgumentException("Chunk size must be positive");
+		}
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ))
+		{
+			long[] bounds = getChunkBounds(channel, chunk_size);
+			List<Callable<GraphBuilder>> tasks = new ArrayList<Callable<GraphBuilder>>(bounds.length - 1);
+			for (int i = 0; i < bounds.length - 1; i++)
 			{
-				// Ignore blank and comment lines
-				continue;
+				long start = bounds[i], end = bounds[i + 1];
+				tasks.add(() -> parseChunk(channel, start, end));
 			}
-			Matcher node_matcher = s_nodePattern.matcher(line);
-			if (node_matcher.matches())
+			KnowledgeGraph g = new KnowledgeGraph();
+			for (Future<GraphBuilder> f : pool.invokeAll(tasks))
 			{
-				long id = Long.parseLong(node_matcher.group(1));
-				String label = node_matcher.group(2);
-				g.addNode(id, readFromString(label));
+				f.get().addTo(g);
+			}
+			return g;
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Parsing interrupted");
+		}
+		catch (ExecutionException e)
+		{
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException)
+			{
+				throw (IOException) cause;
+			}
+			if (cause instanceof RuntimeException)
+			{
+				throw (RuntimeException) cause;
+			}
+			if (cause instanceof Error)
+			{
+				throw (Error) cause;
+			}
+			throw new IOException(cause);
+		}
+	}
+
+	/**
+	 * Cuts a file into chunks made of complete lines. Each chunk, except the
+	 * last, ends just after a {@code \n} or {@code \r} character; since these
+	 * bytes never occur inside a multi-byte UTF-8 sequence, every line of the
+	 * file lies entirely in one chunk.
+	 * @param channel The channel of the file
+	 * @param chunk_size The approximate size of each chunk
+	 * @return The positions where the chunks start, followed by the size of
+	 * the file
+	 * @throws IOException If the file cannot be read
+	 */
+	protected static long[] getChunkBounds(FileChannel channel, int chunk_size) throws IOException
+	{
+		long size = channel.size();
+		List<Long> bounds = new ArrayList<Long>();
+		bounds.add(0L);
+		long position = 0;
+		ByteBuffer window = ByteBuffer.allocate(4096);
+		while (position + chunk_size < size)
+		{
+			// Look for the end of the line containing the nominal boundary
+			long p = position + chunk_size;
+			long found = -1;
+			while (found < 0 && p < size)
+			{
+				window.clear();
+				int n = channel.read(window, p);
+				if (n < 0)
+				{
+					break;
+				}
+				for (int i = 0; i < n; i++)
+				{
+					byte c = window.get(i);
+					if (c == '\n' || c == '\r')
+					{
+						found = p + i + 1;
+						break;
+					}
+				}
+				p += n;
+			}
+			if (found < 0 || found >= size)
+			{
+				break;
+			}
+			bounds.add(found);
+			position = found;
+		}
+		bounds.add(size);
+		long[] out = new long[bounds.size()];
+		for (int i = 0; i < out.length; i++)
+		{
+			out[i] = bounds.get(i);
+		}
+		return out;
+	}
+
+	/**
+	 * Parses the lines contained in a chunk of a file.
+	 * @param channel The channel of the file
+	 * @param start The position where the chunk starts
+	 * @param end The position where the chunk ends
+	 * @return A builder containing the nodes and edges of the chunk
+	 * @throws IOException If the file cannot be read
+	 */
+	protected static GraphBuilder parseChunk(FileChannel channel, long start, long end) throws IOException
+	{
+		if (end - start > Integer.MAX_VALUE - 8)
+		{
+			throw new IOException("Line too long at position " + start);
+		}
+		byte[] buf = new byte[(int) (end - start)];
+		ByteBuffer bb = ByteBuffer.wrap(buf);
+		while (bb.hasRemaining())
+		{
+			if (channel.read(bb, start + bb.position()) < 0)
+			{
+				throw new IOException("File truncated while being read");
+			}
+		}
+		GraphBuilder b = new GraphBuilder();
+		LabelTable labels = new LabelTable();
+		int line_start = 0;
+		int eol;
+		while ((eol = findLineEnd(buf, line_start, buf.length)) >= 0)
+		{
+			parseLine(buf, line_start, eol, b, labels);
+			line_start = eol + separatorLength(buf, eol);
+		}
+		parseLine(buf, line_start, buf.length, b, labels);
+		return b;
+	}
+
+	/**
+	 * Reads the nodes and edges declared in an input stream, and sends them
+	 * to a graph builder. The stream is read until its end, but is not
+	 * closed.
+	 * @param is The input stream
+	 * @param b The builder
+	 * @throws IOException If the stream cannot be read
+	 */
+	public void parse(/*@ non_null @*/ InputStream is, /*@ non_null @*/ GraphBuilder b) throws IOException
+	{
+		LabelTable labels = new LabelTable();
+		byte[] buf = new byte[BUFFER_SIZE];
+		// The bytes not yet processed are between start and end; no line
+		// separator occurs between start and scan
+		int start = 0, scan = 0, end = 0;
+		boolean eof = false;
+		while (true)
+		{
+			int eol = findLineEnd(buf, scan, end);
+			if (eol < 0)
+			{
+				if (eof)
+				{
+					parseLine(buf, start, end, b, labels);
+					return;
+				}
+				// Keep the last bytes, which may be an incomplete separator
+				scan = Math.max(start, end - 2);
+				if (start > 0)
+				{
+					System.arraycopy(buf, start, buf, 0, end - start);
+					end -= start;
+					scan -= start;
+					start = 0;
+				}
+				if (end == buf.length)
+				{
+					buf = Arrays.copyOf(buf, buf.length * 2);
+				}
+				int n = is.read(buf, end, buf.length - end);
+				if (n < 0)
+				{
+					eof = true;
+				}
+				else
+				{
+					end += n;
+				}
 				continue;
 			}
-			Matcher edge_matcher = s_edgePattern.matcher(line);
-			if (edge_matcher.matches())
+			parseLine(buf, start, eol, b, labels);
+			start = eol + separatorLength(buf, eol);
+			scan = start;
+		}
+	}
+
+	/**
+	 * Finds the next line separator in a region of a buffer. The separators
+	 * are those recognized by {@link java.util.Scanner#nextLine()}, namely
+	 * {@code \n}, {@code \r}, and the characters U+0085, U+2028 and U+2029.
+	 * @param buf The buffer
+	 * @param from The start of the region (inclusive)
+	 * @param to The end of the region (exclusive)
+	 * @return The position of the separator, or -1 if the region contains no
+	 * complete separator
+	 */
+	protected static int findLineEnd(byte[] buf, int from, int to)
+	{
+		for (int i = from; i < to; i++)
+		{
+			byte c = buf[i];
+			if (c >= 0)
 			{
-				long source = Long.parseLong(edge_matcher.group(1));
-				long dest = Long.parseLong(edge_matcher.group(2));
-				String label = edge_matcher.group(3);
-				g.addEdge(source, label, dest);
+				if (c == '\n' || c == '\r')
+				{
+					return i;
+				}
 				continue;
 			}
+			if (c == (byte) 0xC2 && i + 1 < to && buf[i + 1] == (byte) 0x85)
+			{
+				return i;
+			}
+			if (c == (byte) 0xE2 && i + 2 < to && buf[i + 1] == (byte) 0x80 && (buf[i + 2] == (byte) 0xA8 || buf[i + 2] == (byte) 0xA9))
+			{
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Gets the number of bytes of the line separator at a given position.
+	 * @param buf The buffer
+	 * @param pos The position of the separator
+	 * @return The number of bytes
+	 */
+	protected static int separatorLength(byte[] buf, int pos)
+	{
+		switch (buf[pos])
+		{
+		case (byte) 0xC2:
+			return 2;
+		case (byte) 0xE2:
+			return 3;
+		default:
+			return 1;
+		}
+	}
+
+	/**
+	 * Parses a single line of the input.
+	 * @param buf The buffer containing the line
+	 * @param start The start of the line (inclusive)
+	 * @param end The end of the line (exclusive)
+	 * @param b The builder to which the node or edge is sent
+	 * @param labels The table of the edge labels already seen
+	 */
+	protected static void parseLine(byte[] buf, int start, int end, GraphBuilder b, LabelTable labels)
+	{
+		while (start < end && (buf[start] & 0xFF) <= ' ')
+		{
+			start++;
+		}
+		while (end > start && (buf[end - 1] & 0xFF) <= ' ')
+		{
+			end--;
+		}
+		if (start == end || buf[start] == '#')
+		{
+			// Ignore blank and comment lines
+			return;
+		}
+		int id1_end = skipDigits(buf, start, end);
+		if (id1_end == start || id1_end >= end || buf[id1_end] != ' ')
+		{
+			return;
+		}
+		int p = id1_end + 1;
+		if (p + 2 < end && buf[p] == '-' && buf[p + 1] == '>' && buf[p + 2] == ' ')
+		{
+			int id2_start = p + 3;
+			int id2_end = skipDigits(buf, id2_start, end);
+			if (id2_end == id2_start || id2_end >= end || buf[id2_end] != ' ')
+			{
+				return;
+			}
+			int label_end = matchLabel(buf, id2_end + 1, end);
+			if (label_end >= 0)
+			{
+				int label_start = id2_end + 1 + s_labelStart.length;
+				b.addEdge(parseId(buf, start, id1_end), labels.getId(buf, label_start, label_end), parseId(buf, id2_start, id2_end));
+			}
+			return;
+		}
+		int label_end = matchLabel(buf, p, end);
+		if (label_end >= 0)
+		{
+			b.addNode(parseId(buf, start, id1_end), readValue(buf, p + s_labelStart.length, label_end));
+		}
+	}
+
+	/**
+	 * Matches the attribute list {@code [label="..."]}, followed by any number
+	 * of semicolons, at a given position of a line.
+	 * @param buf The buffer containing the line
+	 * @param start The position where the attribute list should start
+	 * @param end The end of the line
+	 * @return The position of the quote closing the label, or -1 if the rest
+	 * of the line does not match
+	 */
+	protected static int matchLabel(byte[] buf, int start, int end)
+	{
+		if (end - start < s_labelStart.length)
+		{
+			return -1;
+		}
+		for (int i = 0; i < s_labelStart.length; i++)
+		{
+			if (buf[start + i] != s_labelStart[i])
+			{
+				return -1;
+			}
+		}
+		int quote = start + s_labelStart.length;
+		while (quote < end && buf[quote] != '"')
+		{
+			quote++;
 		}
-		scanner.close();
-		return g;
+		if (quote + 1 >= end || buf[quote + 1] != ']')
+		{
+			return -1;
+		}
+		for (int i = quote + 2; i < end; i++)
+		{
+			if (buf[i] != ';')
+			{
+				return -1;
+			}
+		}
+		return quote;
 	}
 
+	/**
+	 * Skips the ASCII digits at a given position.
+	 * @param buf The buffer
+	 * @param start The position
+	 * @param end The end of the region to examine
+	 * @return The position of the first byte that is not a digit
+	 */
+	protected static int skipDigits(byte[] buf, int start, int end)
+	{
+		while (start < end && buf[start] >= '0' && buf[start] <= '9')
+		{
+			start++;
+		}
+		return start;
+	}
+
+	/**
+	 * Decodes a node identifier made of ASCII digits.
+	 * @param buf The buffer
+	 * @param start The position of the first digit
+	 * @param end The position after the last digit
+	 * @return The identifier
+	 * @throws NumberFormatException If the identifier does not fit in a
+	 * {@code long}, as with {@link Long#parseLong(String)}
+	 */
+	protected static long parseId(byte[] buf, int start, int end)
+	{
+		long v = 0;
+		for (int i = start; i < end; i++)
+		{
+			int d = buf[i] - '0';
+			if (v > (Long.MAX_VALUE - d) / 10)
+			{
+				throw new NumberFormatException("For input string: \"" + new String(buf, start, end - start, StandardCharsets.US_ASCII) + "\"");
+			}
+			v = v * 10 + d;
+		}
+		return v;
+	}
+
+	/**
+	 * Decodes the data of a node from its label. The result is the same as
+	 * {@link #readFromString(String)}; labels containing non-ASCII characters
+	 * are actually passed to that method, since {@link Integer#parseInt(String)}
+	 * accepts digits from other scripts.
+	 * @param buf The buffer
+	 * @param start The start of the label (inclusive)
+	 * @param end The end of the label (exclusive)
+	 * @return The data
+	 */
+	protected static Object readValue(byte[] buf, int start, int end)
+	{
+		for (int i = start; i < end; i++)
+		{
+			if (buf[i] < 0)
+			{
+				return readFromString(new String(buf, start, end - start, StandardCharsets.UTF_8));
+			}
+		}
+		// Same syntax as Integer.parseInt
+		int i = start;
+		boolean negative = false;
+		if (i < end && (buf[i] == '-' || buf[i] == '+'))
+		{
+			negative = buf[i] == '-';
+			i++;
+		}
+		if (i < end && skipDigits(buf, i, end) == end)
+		{
+			long v = 0;
+			for (; i < end && v <= Integer.MAX_VALUE + 1L; i++)
+			{
+				v = v * 10 + (buf[i] - '0');
+			}
+			if (negative && v <= Integer.MAX_VALUE + 1L)
+			{
+				return (int) -v;
+			}
+			if (!negative && v <= Integer.MAX_VALUE)
+			{
+				return (int) v;
+			}
+		}
+		Double d = readDouble(buf, start, end);
+		if (d != null)
+		{
+			return d;
+		}
+		return new String(buf, start, end - start, StandardCharsets.US_ASCII);
+	}
+
+	/**
+	 * Decodes a floating-point number, following the syntax accepted by
+	 * {@link Double#parseDouble(String)}. Decimal numbers with at most 15
+	 * digits and a small exponent are computed directly, which gives the
+	 * correctly rounded result; other numbers are passed to
+	 * {@link Double#parseDouble(String)} once their syntax has been checked.
+	 * @param buf The buffer, which only contains ASCII characters in the
+	 * region to read
+	 * @param start The start of the region (inclusive)
+	 * @param end The end of the region (exclusive)
+	 * @return The number, or {@code null} if the region does not contain a
+	 * number
+	 */
+	protected static Double readDouble(byte[] buf, int start, int end)
+	{
+		while (start < end && buf[start] <= ' ')
+		{
+			start++;
+		}
+		while (end > start && buf[end - 1] <= ' ')
+		{
+			end--;
+		}
+		int i = start;
+		boolean negative = false;
+		if (i < end && (buf[i] == '-' || buf[i] == '+'))
+		{
+			negative = buf[i] == '-';
+			i++;
+		}
+		if (matches(buf, i, end, "NaN") || matches(buf, i, end, "Infinity"))
+		{
+			return parseDouble(buf, start, end);
+		}
+		if (i + 1 < end && buf[i] == '0' && (buf[i + 1] == 'x' || buf[i + 1] == 'X'))
+		{
+			// Hexadecimal significand followed by a mandatory binary exponent
+			i += 2;
+			int digits = 0;
+			while (i < end && Character.digit(buf[i], 16) >= 0)
+			{
+				i++;
+				digits++;
+			}
+			if (i < end && buf[i] == '.')
+			{
+				i++;
+				while (i < end && Character.digit(buf[i], 16) >= 0)
+				{
+					i++;
+					digits++;
+				}
+			}
+			if (digits == 0 || i >= end || (buf[i] != 'p' && buf[i] != 'P'))
+			{
+				return null;
+			}
+			i = skipExponent(buf, i + 1, end);
+			if (i < 0)
+			{
+				return null;
+			}
+			return isSuffix(buf, i, end) ? parseDouble(buf, start, end) : null;
+		}
+		long mantissa = 0;
+		int digits = 0, fraction_digits = 0;
+		int int_end = skipDigits(buf, i, end);
+		for (int k = i; k < int_end; k++)
+		{
+			mantissa = mantissa * 10 + (buf[k] - '0');
+		}
+		digits += int_end - i;
+		i = int_end;
+		if (i < end && buf[i] == '.')
+		{
+			int frac_end = skipDigits(buf, i + 1, end);
+			for (int k = i + 1; k < frac_end && k < i + 20; k++)
+			{
+				mantissa = mantissa * 10 + (buf[k] - '0');
+			}
+			fraction_digits = frac_end - i - 1;
+			digits += fraction_digits;
+			i = frac_end;
+		}
+		if (digits == 0)
+		{
+			return null;
+		}
+		boolean simple = digits <= 15;
+		int exponent = 0;
+		if (i < end && (buf[i] == 'e' || buf[i] == 'E'))
+		{
+			int exp_start = i + 1;
+			i = skipExponent(buf, exp_start, end);
+			if (i < 0)
+			{
+				return null;
+			}
+			boolean exp_negative = buf[exp_start] == '-';
+			for (int k = buf[exp_start] == '-' || buf[exp_start] == '+' ? exp_start + 1 : exp_start; k < i; k++)
+			{
+				exponent = Math.min(exponent * 10 + (buf[k] - '0'), 1000);
+			}
+			if (exp_negative)
+			{
+				exponent = -exponent;
+			}
+		}
+		if (i < end)
+		{
+			// A type suffix is allowed; the number is then parsed by the JDK
+			return isSuffix(buf, i, end) ? parseDouble(buf, start, end) : null;
+		}
+		exponent -= fraction_digits;
+		if (!simple || exponent < -22 || exponent > 22)
+		{
+			return parseDouble(buf, start, end);
+		}
+		// Both operands are exact, so a single operation is correctly rounded
+		double v = exponent >= 0 ? mantissa * s_powersOfTen[exponent] : mantissa / s_powersOfTen[-exponent];
+		return negative ? -v : v;
+	}
+
+	/**
+	 * Skips a decimal exponent made of an optional sign and at least one
+	 * digit.
+	 * @param buf The buffer
+	 * @param start The position of the exponent
+	 * @param end The end of the region to examine
+	 * @return The position after the exponent, or -1 if there is no valid
+	 * exponent at this position
+	 */
+	protected static int skipExponent(byte[] buf, int start, int end)
+	{
+		int i = start;
+		if (i < end && (buf[i] == '-' || buf[i] == '+'))
+		{
+			i++;
+		}
+		int digits_end = skipDigits(buf, i, end);
+		return digits_end == i ? -1 : digits_end;
+	}
+
+	/**
+	 * Determines if a region contains exactly one floating-point type suffix.
+	 * @param buf The buffer
+	 * @param start The start of the region (inclusive)
+	 * @param end The end of the region (exclusive)
+	 * @return {@code true} if the region is a suffix, {@code false} otherwise
+	 */
+	protected static boolean isSuffix(byte[] buf, int start, int end)
+	{
+		if (start == end)
+		{
+			return true;
+		}
+		if (end - start != 1)
+		{
+			return false;
+		}
+		byte c = buf[start];
+		return c == 'f' || c == 'F' || c == 'd' || c == 'D';
+	}
+
+	/**
+	 * Determines if a region of a buffer is equal to an ASCII string.
+	 * @param buf The buffer
+	 * @param start The start of the region (inclusive)
+	 * @param end The end of the region (exclusive)
+	 * @param s The string
+	 * @return {@code true} if the region is equal to the string,
+	 * {@code false} otherwise
+	 */
+	protected static boolean matches(byte[] buf, int start, int end, String s)
+	{
+		if (end - start != s.length())
+		{
+			return false;
+		}
+		for (int i = 0; i < s.length(); i++)
+		{
+			if (buf[start + i] != s.charAt(i))
+			{
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Parses a floating-point number whose syntax has already been checked.
+	 * @param buf The buffer
+	 * @param start The start of the number (inclusive)
+	 * @param end The end of the number (exclusive)
+	 * @return The number
+	 */
+	protected static Double parseDouble(byte[] buf, int start, int end)
+	{
+		return Double.parseDouble(new String(buf, start, end - start, StandardCharsets.US_ASCII));
+	}
+
+	/**
+	 * Converts the label of a node into its data.
+	 * @param s The label
+	 * @return The data
+	 */
 	protected static Object readFromString(String s)
 	{
 		try
@@ -80,4 +799,99 @@ public class DotGraphParser implements GraphParser
 		}
 		return s;
 	}
+
+	/**
+	 * A table associating the bytes of an edge label to the identifier of
+	 * that label in the {@link LabelDictionary}. The table uses open
+	 * addressing with linear probing.
+	 */
+	protected static class LabelTable
+	{
+		/**
+		 * The bytes of each label in the table.
+		 */
+		protected byte[][] m_keys = new byte[64][];
+
+		/**
+		 * The identifier of each label in the table.
+		 */
+		protected int[] m_ids = new int[64];
+
+		/**
+		 * The number of labels in the table.
+		 */
+		protected int m_size = 0;
+
+		/**
+		 * Gets the identifier of a label, adding it to the
+		 * {@link LabelDictionary} if necessary.
+		 * @param buf The buffer containing the label
+		 * @param start The start of the label (inclusive)
+		 * @param end The end of the label (exclusive)
+		 * @return The identifier
+		 */
+		public int getId(byte[] buf, int start, int end)
+		{
+			int mask = m_keys.length - 1;
+			int slot = hash(buf, start, end) & mask;
+			while (m_keys[slot] != null)
+			{
+				if (Arrays.equals(m_keys[slot], 0, m_keys[slot].length, buf, start, end))
+				{
+					return m_ids[slot];
+				}
+				slot = (slot + 1) & mask;
+			}
+			int id = LabelDictionary.getId(new String(buf, start, end - start, StandardCharsets.UTF_8));
+			m_keys[slot] = Arrays.copyOfRange(buf, start, end);
+			m_ids[slot] = id;
+			if (++m_size * 2 > m_keys.length)
+			{
+				rehash();
+			}
+			return id;
+		}
+
+		/**
+		 * Doubles the capacity of the table.
+		 */
+		protected void rehash()
+		{
+			byte[][] keys = m_keys;
+			int[] ids = m_ids;
+			m_keys = new byte[keys.length * 2][];
+			m_ids = new int[keys.length * 2];
+			int mask = m_keys.length - 1;
+			for (int i = 0; i < keys.length; i++)
+			{
+				if (keys[i] != null)
+				{
+					int slot = hash(keys[i], 0, keys[i].length) & mask;
+					while (m_keys[slot] != null)
+					{
+						slot = (slot + 1) & mask;
+					}
+					m_keys[slot] = keys[i];
+					m_ids[slot] = ids[i];
+				}
+			}
+		}
+
+		/**
+		 * Computes the hash of a sequence of bytes.
+		 * @param buf The buffer
+		 * @param start The start of the sequence (inclusive)
+		 * @param end The end of the sequence (exclusive)
+		 * @return The hash
+		 */
+		protected static int hash(byte[] buf, int start, int end)
+		{
+			int h = 0x811C9DC5;
+			for (int i = start; i < end; i++)
+			{
+				h = (h ^ buf[i]) * 0x01000193;
+			}
+			return h ^ (h >>> 16);
+		}
+	}
 }
@@ -29,6 +29,11 @@ public abstract class EdgeQuantifier extends Quantifier<GraphEdge>
 	{
 		super(variable, phi);
 	}
+
+	public EdgeQuantifier(String variable, Domain<GraphEdge> domain, GraphAssertion phi)
+	{
+		super(variable, domain, phi);
+	}
 	
 	@Override
 	protected Collection<GraphEdge> getDomain(KnowledgeGraph graph)
@@ -50,18 +50,47 @@ public class ExistsNode extends NodeQuantifier
 		super(variable, phi);
 	}
 
+	/**
+	 * Creates an assertion for some node in a restricted domain of a graph.
+	 * 
+	 * @param variable
+	 *          The variable over which to quantify
+	 * @param domain
+	 *          The domain, which must contain every node for which the
+	 *          assertion may decide the result of the quantifier
+	 * @param phi
+	 *          The assertion to evaluate
+	 */
+	public ExistsNode(String variable, Domain<GraphNode> domain, GraphAssertion phi)
+	{
+		super(variable, domain, phi);
+	}
+
 	@Override
 	public Boolean evaluate(KnowledgeGraph graph, Valuation nu)
 	{
-		for (GraphNode n : graph.getNodes())
+		Object previous = nu.get(m_slot);
+		try
 		{
-			Valuation nu_prime = new Valuation(nu);
-			nu_prime.add(m_variable, n);
-			if (m_phi.evaluate(graph, nu_prime))
+			for (GraphNode n : getDomain(graph, nu))
 			{
-				return true;
+				nu.set(m_slot, n);
+				if (m_phi.evaluate(graph, nu))
+				{
+					return true;
+				}
 			}
+			return false;
+		}
+		finally
+		{
+			nu.set(m_slot, previous);
 		}
-		return false;
+	}
+
+	@Override
+	protected boolean isExistential()
+	{
+		return true;
 	}
 }
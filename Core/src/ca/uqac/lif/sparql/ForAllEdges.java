@@ -50,18 +50,47 @@ public class ForAllEdges extends EdgeQuantifier
 		super(variable, phi);
 	}
 
+	/**
+	 * Creates an assertion for all edges in a restricted domain of a graph.
+	 * 
+	 * @param variable
+	 *          The variable over which to quantify
+	 * @param domain
+	 *          The domain, which must contain every edge for which the
+	 *          assertion may decide the result of the quantifier
+	 * @param phi
+	 *          The assertion to evaluate
+	 */
+	public ForAllEdges(String variable, Domain<GraphEdge> domain, GraphAssertion phi)
+	{
+		super(variable, domain, phi);
+	}
+
 	@Override
 	public Boolean evaluate(KnowledgeGraph graph, Valuation nu)
 	{
-		for (GraphEdge n : getDomain(graph))
+		Object previous = nu.get(m_slot);
+		try
 		{
-			Valuation nu_prime = new Valuation(nu);
-			nu_prime.add(m_variable, n);
-			if (!m_phi.evaluate(graph, nu_prime))
+			for (GraphEdge n : getDomain(graph, nu))
 			{
-				return false;
+				nu.set(m_slot, n);
+				if (!m_phi.evaluate(graph, nu))
+				{
+					return false;
+				}
 			}
+			return true;
+		}
+		finally
+		{
+			nu.set(m_slot, previous);
 		}
-		return true;
+	}
+
+	@Override
+	protected boolean isExistential()
+	{
+		return false;
 	}
 }
@@ -0,0 +1,397 @@
+/*
+    Basic processing of SPARQL queries in Java
+    Copyright (C) 2024 Sylvain Hallé
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Lesser General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.uqac.lif.sparql;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PrimitiveIterator;
+
+/**
+ * A read-only knowledge graph whose compressed sparse row layout (see
+ * {@link CompactKnowledgeGraph}) is held in arrays. Such a graph is obtained
+ * by calling {@link KnowledgeGraph#freeze()}; it takes less memory than a
+ * modifiable graph, and answers queries faster.
+ * <p>
+ * Label identifiers are those of the {@link LabelDictionary}. The nodes are
+ * kept in an array, so that iterating over them does not allocate anything.
+ * @author Sylvain Hallé
+ */
+public class FrozenKnowledgeGraph extends CompactKnowledgeGraph
+{
+	/**
+	 * The identifiers of the nodes, sorted in ascending order. This array
+	 * includes every node appearing at the end of an edge, even when no data
+	 * is associated with it.
+	 */
+	/*@ non_null @*/ protected final long[] m_ids;
+
+	/**
+	 * The nodes of the graph, indexed by their position in {@link #m_ids}.
+	 * An element is null if the corresponding node carries no data.
+	 */
+	/*@ non_null @*/ protected final GraphNode[] m_nodeArray;
+
+	/**
+	 * A read-only list of the nodes of the graph.
+	 */
+	/*@ non_null @*/ protected final List<GraphNode> m_nodeList;
+
+	/**
+	 * The position of the first outgoing edge of each node; the last element
+	 * is the total number of edges.
+	 */
+	/*@ non_null @*/ protected final int[] m_outOffsets;
+
+	/**
+	 * The label identifier of each outgoing edge.
+	 */
+	/*@ non_null @*/ protected final int[] m_outLabels;
+
+	/**
+	 * The position of the target of each outgoing edge.
+	 */
+	/*@ non_null @*/ protected final int[] m_outTargets;
+
+	/**
+	 * The position of the first incoming edge of each node.
+	 */
+	/*@ non_null @*/ protected final int[] m_inOffsets;
+
+	/**
+	 * The label identifier of each incoming edge.
+	 */
+	/*@ non_null @*/ protected final int[] m_inLabels;
+
+	/**
+	 * The position of the source of each incoming edge.
+	 */
+	/*@ non_null @*/ protected final int[] m_inSources;
+
+	/**
+	 * For each label identifier, the first element of {@link #m_labelEdges}
+	 * referring to an edge with this label.
+	 */
+	/*@ non_null @*/ protected final int[] m_labelOffsets;
+
+	/**
+	 * The positions of the outgoing edges, grouped by label. Within a group,
+	 * positions are sorted in ascending order.
+	 */
+	/*@ non_null @*/ protected final int[] m_labelEdges;
+
+	/**
+	 * The nodes associated with each value, normalized as in
+	 * {@link ValueIndex}.
+	 */
+	/*@ non_null @*/ protected final Map<Object,List<GraphNode>> m_values;
+
+	/**
+	 * Creates a frozen copy of a knowledge graph.
+	 * @param g The graph to copy
+	 */
+	protected FrozenKnowledgeGraph(/*@ non_null @*/ KnowledgeGraph g)
+	{
+		super();
+		m_ids = collectIds(g);
+		int n = m_ids.length;
+		m_nodeArray = new GraphNode[n];
+		List<GraphNode> nodes = new ArrayList<GraphNode>(g.size());
+		Map<Object,List<GraphNode>> values = new HashMap<Object,List<GraphNode>>();
+		for (int i = 0; i < n; i++)
+		{
+			GraphNode node = g.getNode(m_ids[i]);
+			if (node == null)
+			{
+				continue;
+			}
+			m_nodeArray[i] = node;
+			nodes.add(node);
+			Object key = ValueIndex.normalize(node.getData());
+			if (key != null)
+			{
+				List<GraphNode> list = values.get(key);
+				if (list == null)
+				{
+					list = new ArrayList<GraphNode>(1);
+					values.put(key, list);
+				}
+				list.add(node);
+			}
+		}
+		m_nodeList = Collections.unmodifiableList(nodes);
+		m_values = new HashMap<Object,List<GraphNode>>(values.size() * 2);
+		for (Map.Entry<Object,List<GraphNode>> e : values.entrySet())
+		{
+			m_values.put(e.getKey(), Collections.unmodifiableList(e.getValue()));
+		}
+		m_outOffsets = new int[n + 1];
+		m_inOffsets = new int[n + 1];
+		int num_edges = countEdges(g.m_edges, m_outOffsets);
+		countEdges(g.m_inEdges, m_inOffsets);
+		m_outLabels = new int[num_edges];
+		m_outTargets = new int[num_edges];
+		m_inLabels = new int[num_edges];
+		m_inSources = new int[num_edges];
+		fillEdges(g.m_edges, m_outOffsets, m_outLabels, m_outTargets);
+		fillEdges(g.m_inEdges, m_inOffsets, m_inLabels, m_inSources);
+		// Group the outgoing edges by label with a counting sort
+		int max_label = -1;
+		for (int label : m_outLabels)
+		{
+			max_label = Math.max(max_label, label);
+		}
+		m_labelOffsets = new int[max_label + 2];
+		for (int label : m_outLabels)
+		{
+			m_labelOffsets[label + 1]++;
+		}
+		for (int i = 0; i <= max_label; i++)
+		{
+			m_labelOffsets[i + 1] += m_labelOffsets[i];
+		}
+		m_labelEdges = new int[num_edges];
+		int[] next = Arrays.copyOf(m_labelOffsets, max_label + 1);
+		for (int p = 0; p < num_edges; p++)
+		{
+			m_labelEdges[next[m_outLabels[p]]++] = p;
+		}
+	}
+
+	@Override
+	public Collection<GraphNode> getNodes()
+	{
+		return m_nodeList;
+	}
+
+	@Override
+	public int size()
+	{
+		return m_nodeList.size();
+	}
+
+	@Override
+	public Collection<GraphNode> getNodesWithData(Object data)
+	{
+		Object key = ValueIndex.normalize(data);
+		List<GraphNode> nodes = key == null ? null : m_values.get(key);
+		return nodes == null ? Collections.<GraphNode>emptyList() : nodes;
+	}
+
+	@Override
+	protected int getNodeCount()
+	{
+		return m_ids.length;
+	}
+
+	@Override
+	protected long getNodeId(int index)
+	{
+		return m_ids[index];
+	}
+
+	@Override
+	protected GraphNode getNodeAt(int index)
+	{
+		return m_nodeArray[index];
+	}
+
+	@Override
+	protected boolean hasData(int index, Object value)
+	{
+		GraphNode n = m_nodeArray[index];
+		return n != null && IsEqualTo.equalObjects(n.getData(), value);
+	}
+
+	@Override
+	protected int getOutOffset(int index)
+	{
+		return m_outOffsets[index];
+	}
+
+	@Override
+	protected int getOutLabel(int p)
+	{
+		return m_outLabels[p];
+	}
+
+	@Override
+	protected int getOutTarget(int p)
+	{
+		return m_outTargets[p];
+	}
+
+	@Override
+	protected int getInOffset(int index)
+	{
+		return m_inOffsets[index];
+	}
+
+	@Override
+	protected int getInLabel(int p)
+	{
+		return m_inLabels[p];
+	}
+
+	@Override
+	protected int getInSource(int p)
+	{
+		return m_inSources[p];
+	}
+
+	@Override
+	protected int getLabelCount()
+	{
+		return m_labelOffsets.length - 1;
+	}
+
+	@Override
+	protected int getLabelOffset(int label)
+	{
+		return m_labelOffsets[label];
+	}
+
+	@Override
+	protected int getLabelEdge(int k)
+	{
+		return m_labelEdges[k];
+	}
+
+	@Override
+	protected int toLocalLabel(int label)
+	{
+		return label >= 0 && label < m_labelOffsets.length - 1 ? label : -1;
+	}
+
+	@Override
+	protected int toGlobalLabel(int label)
+	{
+		return label;
+	}
+
+	/**
+	 * Gets the sorted array of the identifiers of the nodes of a graph,
+	 * including those that only appear as the end of an edge.
+	 * @param g The graph
+	 * @return The array of identifiers
+	 */
+	protected static long[] collectIds(KnowledgeGraph g)
+	{
+		long[] ids = new long[g.m_nodes.size() + g.m_edges.size() + g.m_inEdges.size()];
+		int n = 0;
+		PrimitiveIterator.OfLong it = g.m_nodes.keyIterator();
+		while (it.hasNext())
+		{
+			ids[n++] = it.nextLong();
+		}
+		n = collectIds(g.m_edges, ids, n);
+		n = collectIds(g.m_inEdges, ids, n);
+		Arrays.sort(ids, 0, n);
+		int unique = 0;
+		for (int i = 0; i < n; i++)
+		{
+			if (unique == 0 || ids[i] != ids[unique - 1])
+			{
+				ids[unique++] = ids[i];
+			}
+		}
+		return Arrays.copyOf(ids, unique);
+	}
+
+	/**
+	 * Adds to an array the identifiers of the nodes having a non-empty
+	 * adjacency list in an edge index.
+	 * @param index The edge index
+	 * @param ids The array
+	 * @param n The number of elements already in the array
+	 * @return The new number of elements in the array
+	 */
+	protected static int collectIds(PersistentLongMap<AdjacencyList> index, long[] ids, int n)
+	{
+		PrimitiveIterator.OfLong it = index.keyIterator();
+		while (it.hasNext())
+		{
+			long id = it.nextLong();
+			if (index.get(id).size() > 0)
+			{
+				ids[n++] = id;
+			}
+		}
+		return n;
+	}
+
+	/**
+	 * Computes the offsets of the adjacency of each node in one of the edge
+	 * indexes of a graph.
+	 * @param index The edge index
+	 * @param offsets The array of offsets to fill
+	 * @return The total number of edges
+	 */
+	protected int countEdges(PersistentLongMap<AdjacencyList> index, int[] offsets)
+	{
+		for (int i = 0; i < m_ids.length; i++)
+		{
+			AdjacencyList list = index.get(m_ids[i]);
+			offsets[i + 1] = offsets[i] + (list == null ? 0 : list.size());
+		}
+		return offsets[m_ids.length];
+	}
+
+	/**
+	 * Copies the adjacency lists of one of the edge indexes of a graph into
+	 * arrays, sorting the edges of each node by label and then by neighbour.
+	 * @param index The edge index
+	 * @param offsets The offsets of the adjacency of each node
+	 * @param labels The array of labels to fill
+	 * @param neighbours The array of neighbours to fill
+	 */
+	protected void fillEdges(PersistentLongMap<AdjacencyList> index, int[] offsets, int[] labels, int[] neighbours)
+	{
+		long[] keys = new long[0];
+		for (int i = 0; i < m_ids.length; i++)
+		{
+			AdjacencyList list = index.get(m_ids[i]);
+			if (list == null)
+			{
+				continue;
+			}
+			int size = list.size();
+			if (keys.length < size)
+			{
+				keys = new long[size];
+			}
+			long[] list_keys = keys;
+			int[] pos = {0};
+			list.forEach((label, neighbour) -> {
+				// Both values are non-negative: the key sorts by label, then by neighbour
+				list_keys[pos[0]++] = ((long) label << 32) | getIndex(neighbour);
+				return true;
+			});
+			Arrays.sort(keys, 0, size);
+			for (int k = 0; k < size; k++)
+			{
+				labels[offsets[i] + k] = (int) (keys[k] >>> 32);
+				neighbours[offsets[i] + k] = (int) keys[k];
+			}
+		}
+	}
+}
@@ -0,0 +1,211 @@
+/*
+    Basic processing of SPARQL queries in Java
+    Copyright (C) 2024 Sylvain Hallé
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Lesser General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.uqac.lif.sparql;
+
+import java.util.Arrays;
+
+/**
+ * Accumulates the nodes and edges of a knowledge graph before creating the
+ * graph in a single step. Nodes and edges are recorded in primitive arrays,
+ * in the order in which they are added; they are only inserted into a
+ * {@link KnowledgeGraph} when {@link #build()} or
+ * {@link #addTo(KnowledgeGraph)} is called. The resulting graph is the same
+ * as if each node and edge had been added directly to the graph, in the same
+ * order: a node added twice keeps its last data, and an edge added twice
+ * appears once.
+ * <p>
+ * Parsers use a builder to decouple the reading of their input from the
+ * construction of the graph; several builders filled independently can then
+ * be concatenated with {@link #addAll(GraphBuilder)}.
+ * @author Sylvain Hallé
+ */
+public class GraphBuilder
+{
+	/**
+	 * The initial capacity of the arrays.
+	 */
+	protected static final int INITIAL_CAPACITY = 16;
+
+	/**
+	 * The identifiers of the nodes.
+	 */
+	/*@ non_null @*/ protected long[] m_nodeIds;
+
+	/**
+	 * The data of the nodes.
+	 */
+	/*@ non_null @*/ protected Object[] m_nodeData;
+
+	/**
+	 * The number of nodes added to the builder.
+	 */
+	protected int m_nodeCount;
+
+	/**
+	 * The identifiers of the source of the edges.
+	 */
+	/*@ non_null @*/ protected long[] m_edgeFrom;
+
+	/**
+	 * The identifiers of the labels of the edges in the
+	 * {@link LabelDictionary}.
+	 */
+	/*@ non_null @*/ protected int[] m_edgeLabels;
+
+	/**
+	 * The identifiers of the target of the edges.
+	 */
+	/*@ non_null @*/ protected long[] m_edgeTo;
+
+	/**
+	 * The number of edges added to the builder.
+	 */
+	protected int m_edgeCount;
+
+	/**
+	 * Creates a new empty builder.
+	 */
+	public GraphBuilder()
+	{
+		super();
+		m_nodeIds = new long[INITIAL_CAPACITY];
+		m_nodeData = new Object[INITIAL_CAPACITY];
+		m_edgeFrom = new long[INITIAL_CAPACITY];
+		m_edgeLabels = new int[INITIAL_CAPACITY];
+		m_edgeTo = new long[INITIAL_CAPACITY];
+	}
+
+	/**
+	 * Adds a node.
+	 * @param id The identifier of the node
+	 * @param data The data of the node
+	 * @return This builder
+	 */
+	/*@ non_null @*/ public GraphBuilder addNode(long id, Object data)
+	{
+		if (m_nodeCount == m_nodeIds.length)
+		{
+			m_nodeIds = Arrays.copyOf(m_nodeIds, m_nodeCount * 2);
+			m_nodeData = Arrays.copyOf(m_nodeData, m_nodeCount * 2);
+		}
+		m_nodeIds[m_nodeCount] = id;
+		m_nodeData[m_nodeCount] = data;
+		m_nodeCount++;
+		return this;
+	}
+
+	/**
+	 * Adds an edge.
+	 * @param from The identifier of the source node
+	 * @param label The label of the edge
+	 * @param to The identifier of the target node
+	 * @return This builder
+	 */
+	/*@ non_null @*/ public GraphBuilder addEdge(long from, /*@ non_null @*/ String label, long to)
+	{
+		return addEdge(from, LabelDictionary.getId(label), to);
+	}
+
+	/**
+	 * Adds an edge.
+	 * @param from The identifier of the source node
+	 * @param label The identifier of the label of the edge in the
+	 * {@link LabelDictionary}
+	 * @param to The identifier of the target node
+	 * @return This builder
+	 */
+	/*@ non_null @*/ public GraphBuilder addEdge(long from, int label, long to)
+	{
+		if (m_edgeCount == m_edgeFrom.length)
+		{
+			m_edgeFrom = Arrays.copyOf(m_edgeFrom, m_edgeCount * 2);
+			m_edgeLabels = Arrays.copyOf(m_edgeLabels, m_edgeCount * 2);
+			m_edgeTo = Arrays.copyOf(m_edgeTo, m_edgeCount * 2);
+		}
+		m_edgeFrom[m_edgeCount] = from;
+		m_edgeLabels[m_edgeCount] = label;
+		m_edgeTo[m_edgeCount] = to;
+		m_edgeCount++;
+		return this;
+	}
+
+	/**
+	 * Appends the contents of another builder to this one.
+	 * @param b The other builder
+	 * @return This builder
+	 */
+	/*@ non_null @*/ public GraphBuilder addAll(/*@ non_null @*/ GraphBuilder b)
+	{
+		for (int i = 0; i < b.m_nodeCount; i++)
+		{
+			addNode(b.m_nodeIds[i], b.m_nodeData[i]);
+		}
+		for (int i = 0; i < b.m_edgeCount; i++)
+		{
+			addEdge(b.m_edgeFrom[i], b.m_edgeLabels[i], b.m_edgeTo[i]);
+		}
+		return this;
+	}
+
+	/**
+	 * Gets the number of nodes added to the builder, counting duplicates.
+	 * @return The number of nodes
+	 */
+	public int countNodes()
+	{
+		return m_nodeCount;
+	}
+
+	/**
+	 * Gets the number of edges added to the builder, counting duplicates.
+	 * @return The number of edges
+	 */
+	public int countEdges()
+	{
+		return m_edgeCount;
+	}
+
+	/**
+	 * Creates a new knowledge graph with the contents of this builder.
+	 * @return The graph
+	 */
+	/*@ non_null @*/ public KnowledgeGraph build()
+	{
+		KnowledgeGraph g = new KnowledgeGraph();
+		addTo(g);
+		return g;
+	}
+
+	/**
+	 * Adds the contents of this builder to an existing graph.
+	 * @param g The graph
+	 */
+	public void addTo(/*@ non_null @*/ KnowledgeGraph g)
+	{
+		// Nodes and edges are independent: adding the nodes first yields the
+		// same graph as interleaving them in their original order
+		for (int i = 0; i < m_nodeCount; i++)
+		{
+			g.setNodeData(m_nodeIds[i], m_nodeData[i]);
+		}
+		for (int i = 0; i < m_edgeCount; i++)
+		{
+			g.addEdge(m_edgeFrom[i], m_edgeLabels[i], m_edgeTo[i]);
+		}
+	}
+}
@@ -18,7 +18,9 @@
 package ca.uqac.lif.sparql;
 
 /**
- * Represents an edge in a knowledge graph.
+ * Represents an edge in a knowledge graph. The edge stores the identifier of
+ * its label in the {@link LabelDictionary} rather than the label itself, so
+ * that comparing edges only involves integer comparisons.
  * @author Sylvain Hallé
  */
 public abstract class GraphEdge
@@ -34,9 +36,9 @@ public abstract class GraphEdge
 	private final long m_to;
 	
 	/**
-	 * The label of this edge.
+	 * The identifier of the label of this edge.
 	 */
-	private final String m_label;
+	private final int m_label;
 	
 	/**
 	 * Creates a new edge.
@@ -49,6 +51,21 @@ public abstract class GraphEdge
 	 *          The destination node
 	 */
 	protected GraphEdge(long from, String label, long to)
+	{
+		this(from, LabelDictionary.getId(label), to);
+	}
+	
+	/**
+	 * Creates a new edge.
+	 * 
+	 * @param from
+	 *          The source node
+	 * @param label
+	 *          The identifier of the label of this edge
+	 * @param to
+	 *          The destination node
+	 */
+	protected GraphEdge(long from, int label, long to)
 	{
 		super();
 		m_from = from;
@@ -82,6 +99,16 @@ public abstract class GraphEdge
 	 * @return The label
 	 */
 	public String getLabel()
+	{
+		return LabelDictionary.getLabel(m_label);
+	}
+	
+	/**
+	 * Gets the identifier of the label of this edge.
+	 * 
+	 * @return The label identifier
+	 */
+	public int getLabelId()
 	{
 		return m_label;
 	}
@@ -89,7 +116,7 @@ public abstract class GraphEdge
 	@Override
 	public int hashCode()
 	{
-		return (int) (m_from + m_to + m_label.hashCode());
+		return (int) (m_from + m_to + m_label);
 	}
 	
 	@Override
@@ -100,12 +127,12 @@ public abstract class GraphEdge
 			return false;
 		}
 		GraphEdge e = (GraphEdge) o;
-		return m_from == e.m_from && m_to == e.m_to && m_label.compareTo(e.m_label) == 0;
+		return m_from == e.m_from && m_to == e.m_to && m_label == e.m_label;
 	}
 	
 	@Override
 	public String toString()
 	{
-		return m_from + "-[" + m_label + "]-> " + m_to;
+		return m_from + "-[" + getLabel() + "]-> " + m_to;
 	}
 }
@@ -17,6 +17,8 @@
  */
 package ca.uqac.lif.sparql;
 
+import java.util.BitSet;
+
 public interface GraphFunction<T>
 {
 	/**
@@ -38,4 +40,18 @@ public interface GraphFunction<T>
 	 * @return The result of the evaluation
 	 */
 	public T evaluate(KnowledgeGraph graph, Valuation nu);
+
+	/**
+	 * Adds to a set the variables whose value is read by this function, and
+	 * that are not bound by a quantifier inside the function. Variables are
+	 * designated by their identifier in the {@link VariableDictionary}.
+	 * @param slots The set to which the variables are added
+	 * @return {@code true} if all the variables read by the function have
+	 * been added, {@code false} if the function may read variables that it
+	 * cannot list
+	 */
+	public default boolean getFreeVariables(/*@ non_null @*/ BitSet slots)
+	{
+		return false;
+	}
 }
@@ -17,6 +17,8 @@
  */
 package ca.uqac.lif.sparql;
 
+import java.util.BitSet;
+
 /**
  * A function that checks if the result of two graph functions is equal.
  * @author Sylvain Hallé
@@ -74,6 +76,17 @@ public class IsEqualTo implements GraphAssertion
 		return true;
 	}
 
+	@Override
+	public boolean getFreeVariables(BitSet slots)
+	{
+		boolean complete = true;
+		for (GraphFunction<?> f : m_arguments)
+		{
+			complete &= f.getFreeVariables(slots);
+		}
+		return complete;
+	}
+
 	/**
 	 * Checks if two objects are equal. This method is necessary because
 	 * the equals() method in Java does not handle cases where one object
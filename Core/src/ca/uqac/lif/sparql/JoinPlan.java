@@ -0,0 +1,580 @@
+/*
+    Basic processing of SPARQL queries in Java
+    Copyright (C) 2024 Sylvain Hallé
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Lesser General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.uqac.lif.sparql;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import ca.uqac.lif.sparql.ConnectedBy.UndirectedConnectedBy;
+
+/**
+ * Evaluates a block of existential quantifiers over a conjunction of
+ * assertions, such as
+ * {@code existsNode("$x", existsNode("$y", and(connected("$x", "r", "$y"),
+ * eq(l("$y"), "A"))))}, as a join. Instead of enumerating the whole domain of
+ * each quantifier, the variables are bound one after the other, and the
+ * candidate values of a variable are taken from an index whenever an
+ * operand of the conjunction relates it to the variables already bound:
+ * <ul>
+ * <li>a node connected by an edge to a node already bound is taken from the
+ * adjacency list of that node;</li>
+ * <li>an edge whose endpoint is already bound is taken from the adjacency
+ * list of that endpoint, and conversely;</li>
+ * <li>a node or an edge whose label is compared with a known value is taken
+ * from one of the indices described in {@link Domain}.</li>
+ * </ul>
+ * Each operand of the conjunction is evaluated as soon as all the variables
+ * it reads are bound, so that partial bindings that cannot lead to a
+ * solution are discarded early. The candidates obtained from the indices
+ * are only a superset of the values satisfying the operands; every operand
+ * is still evaluated on every binding, so that the result is the same as
+ * that of the quantifiers the plan replaces.
+ * <p>
+ * The order in which the variables are bound is chosen when the plan is
+ * created, by preferring at each step the variable that can be bound from
+ * the most selective index. Plans are created by the {@link QueryPlanner}.
+ * @author Sylvain Hallé
+ */
+public class JoinPlan implements GraphAssertion
+{
+	/**
+	 * The variables of the block, in the order in which they are bound.
+	 */
+	/*@ non_null @*/ protected final int[] m_slots;
+
+	/**
+	 * Whether each variable of the block stands for an edge (otherwise it
+	 * stands for a node).
+	 */
+	/*@ non_null @*/ protected final boolean[] m_edges;
+
+	/**
+	 * The sources of candidate values for each variable, in decreasing order
+	 * of preference.
+	 */
+	/*@ non_null @*/ protected final Domain<?>[][] m_generators;
+
+	/**
+	 * The operands to evaluate after each variable is bound. The operands at
+	 * index 0 do not read any variable of the block and are evaluated first;
+	 * those at index <i>k</i>+1 are evaluated once the <i>k</i>-th variable is
+	 * bound.
+	 */
+	/*@ non_null @*/ protected final GraphAssertion[][] m_filters;
+
+	/**
+	 * The free variables of the plan.
+	 */
+	/*@ non_null @*/ protected final BitSet m_freeVariables;
+
+	/**
+	 * Whether {@link #m_freeVariables} lists all the free variables of the
+	 * plan.
+	 */
+	protected final boolean m_freeComplete;
+
+	/**
+	 * Creates a plan for a block of existential quantifiers.
+	 * @param slots The variables of the quantifiers, from the outermost to the
+	 * innermost; they must be distinct
+	 * @param edges Whether each variable stands for an edge
+	 * @param operands The operands of the conjunction under the quantifiers
+	 */
+	public JoinPlan(/*@ non_null @*/ int[] slots, /*@ non_null @*/ boolean[] edges, /*@ non_null @*/ List<GraphAssertion> operands)
+	{
+		super();
+		int n = slots.length;
+		BitSet block = new BitSet();
+		for (int slot : slots)
+		{
+			block.set(slot);
+		}
+		// Variables read by each operand, restricted to those of the block
+		BitSet[] reads = new BitSet[operands.size()];
+		m_freeVariables = new BitSet();
+		boolean complete = true;
+		for (int i = 0; i < reads.length; i++)
+		{
+			BitSet vars = new BitSet();
+			if (operands.get(i).getFreeVariables(vars))
+			{
+				m_freeVariables.or(vars);
+				vars.and(block);
+			}
+			else
+			{
+				// Unknown variables: the operand is evaluated last
+				complete = false;
+				vars = (BitSet) block.clone();
+			}
+			reads[i] = vars;
+		}
+		m_freeVariables.andNot(block);
+		m_freeComplete = complete;
+		// Choose the order of the variables greedily
+		m_slots = new int[n];
+		m_edges = new boolean[n];
+		m_generators = new Domain<?>[n][];
+		BitSet bound = new BitSet();
+		boolean[] used = new boolean[n];
+		for (int k = 0; k < n; k++)
+		{
+			int best = -1, best_score = -1;
+			List<Domain<?>> best_generators = null;
+			for (int i = 0; i < n; i++)
+			{
+				if (used[i])
+				{
+					continue;
+				}
+				List<Domain<?>> generators = getGenerators(slots[i], edges[i], operands, block, bound);
+				int score = generators.isEmpty() ? 0 : generators.get(0).m_score;
+				if (score > best_score)
+				{
+					best = i;
+					best_score = score;
+					best_generators = generators;
+				}
+			}
+			used[best] = true;
+			m_slots[k] = slots[best];
+			m_edges[k] = edges[best];
+			m_generators[k] = best_generators.toArray(new Domain<?>[best_generators.size()]);
+			bound.set(slots[best]);
+		}
+		// Attach each operand to the first level where its variables are bound
+		List<List<GraphAssertion>> filters = new ArrayList<List<GraphAssertion>>(n + 1);
+		for (int k = 0; k <= n; k++)
+		{
+			filters.add(new ArrayList<GraphAssertion>());
+		}
+		for (int i = 0; i < reads.length; i++)
+		{
+			int level = 0;
+			for (int k = 0; k < n; k++)
+			{
+				if (reads[i].get(m_slots[k]))
+				{
+					level = k + 1;
+				}
+			}
+			filters.get(level).add(operands.get(i));
+		}
+		m_filters = new GraphAssertion[n + 1][];
+		for (int k = 0; k <= n; k++)
+		{
+			m_filters[k] = filters.get(k).toArray(new GraphAssertion[filters.get(k).size()]);
+		}
+	}
+
+	@Override
+	public Boolean evaluate(KnowledgeGraph g, Valuation nu)
+	{
+		return check(m_filters[0], g, nu) && search(g, nu, 0);
+	}
+
+	@Override
+	public boolean getFreeVariables(BitSet slots)
+	{
+		slots.or(m_freeVariables);
+		return m_freeComplete;
+	}
+
+	/**
+	 * Binds the variables of the block starting from a given position, and
+	 * determines if one of the bindings satisfies all the operands.
+	 * @param g The graph
+	 * @param nu The valuation, where the variables before position {@code k}
+	 * are bound
+	 * @param k The position of the next variable to bind
+	 * @return {@code true} if a satisfying binding exists, {@code false}
+	 * otherwise
+	 */
+	protected boolean search(KnowledgeGraph g, Valuation nu, int k)
+	{
+		if (k == m_slots.length)
+		{
+			return true;
+		}
+		Collection<?> candidates = null;
+		for (Domain<?> gen : m_generators[k])
+		{
+			candidates = gen.getCandidates(g, nu);
+			if (candidates != null)
+			{
+				break;
+			}
+		}
+		if (candidates == null)
+		{
+			candidates = m_edges[k] ? g.getEdges() : g.getNodes();
+		}
+		int slot = m_slots[k];
+		Object previous = nu.get(slot);
+		try
+		{
+			for (Object c : candidates)
+			{
+				nu.set(slot, c);
+				if (check(m_filters[k + 1], g, nu) && search(g, nu, k + 1))
+				{
+					return true;
+				}
+			}
+			return false;
+		}
+		finally
+		{
+			nu.set(slot, previous);
+		}
+	}
+
+	/**
+	 * Evaluates a list of assertions.
+	 * @param filters The assertions
+	 * @param g The graph
+	 * @param nu The valuation
+	 * @return {@code true} if all the assertions are true, {@code false}
+	 * otherwise
+	 */
+	protected static boolean check(GraphAssertion[] filters, KnowledgeGraph g, Valuation nu)
+	{
+		for (GraphAssertion a : filters)
+		{
+			if (!a.evaluate(g, nu))
+			{
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Finds the indices that can provide candidate values for a variable.
+	 * @param slot The variable
+	 * @param edge Whether the variable stands for an edge
+	 * @param operands The operands of the conjunction
+	 * @param block The variables of the block
+	 * @param bound The variables of the block bound before this one
+	 * @return The domains, sorted by decreasing score
+	 */
+	protected static List<Domain<?>> getGenerators(int slot, boolean edge, List<GraphAssertion> operands, BitSet block, BitSet bound)
+	{
+		List<Domain<?>> generators = new ArrayList<Domain<?>>();
+		for (GraphAssertion a : operands)
+		{
+			if (a instanceof ConnectedBy)
+			{
+				ConnectedBy c = (ConnectedBy) a;
+				boolean undirected = c instanceof UndirectedConnectedBy;
+				if (edge)
+				{
+					if (c.m_labelSlot != slot)
+					{
+						continue;
+					}
+					if (isKnown(c.m_fromSlot, slot, block, bound))
+					{
+						generators.add(new IncidentEdges(c.m_fromSlot, true, undirected));
+					}
+					if (isKnown(c.m_toSlot, slot, block, bound))
+					{
+						generators.add(new IncidentEdges(c.m_toSlot, false, undirected));
+					}
+					continue;
+				}
+				if (c.m_fromSlot != slot && c.m_toSlot != slot)
+				{
+					continue;
+				}
+				if (isKnown(c.m_labelSlot, slot, block, bound))
+				{
+					generators.add(new EdgeEndpoints(c.m_labelSlot, c.m_fromSlot == slot, c.m_toSlot == slot, undirected));
+				}
+				boolean label_known = c.m_labelSlot < 0 || isKnown(c.m_labelSlot, slot, block, bound);
+				if (c.m_fromSlot == slot && isKnown(c.m_toSlot, slot, block, bound))
+				{
+					generators.add(new AdjacentNodes(c, c.m_toSlot, true, undirected, label_known));
+				}
+				if (c.m_toSlot == slot && isKnown(c.m_fromSlot, slot, block, bound))
+				{
+					generators.add(new AdjacentNodes(c, c.m_fromSlot, false, undirected, label_known));
+				}
+			}
+			else
+			{
+				BitSet unbound = (BitSet) block.clone();
+				unbound.andNot(bound);
+				generators.addAll(Domain.getDomains(a, slot, edge, unbound));
+			}
+		}
+		generators.sort((x, y) -> y.m_score - x.m_score);
+		return generators;
+	}
+
+	/**
+	 * Determines if a variable has a value when another variable of the block
+	 * is about to be bound.
+	 * @param var The variable, or -1 if there is no variable
+	 * @param slot The variable about to be bound
+	 * @param block The variables of the block
+	 * @param bound The variables of the block already bound
+	 * @return {@code true} if the variable has a value, {@code false}
+	 * otherwise
+	 */
+	protected static boolean isKnown(int var, int slot, BitSet block, BitSet bound)
+	{
+		return var >= 0 && var != slot && (!block.get(var) || bound.get(var));
+	}
+
+	/**
+	 * Provides the endpoints of an edge, for a node connected by that edge.
+	 */
+	protected static class EdgeEndpoints extends Domain<GraphNode>
+	{
+		/**
+		 * The variable holding the edge.
+		 */
+		protected final int m_edge;
+
+		/**
+		 * Whether the source of the edge is a candidate.
+		 */
+		protected final boolean m_from;
+
+		/**
+		 * Whether the target of the edge is a candidate.
+		 */
+		protected final boolean m_to;
+
+		public EdgeEndpoints(int edge, boolean from, boolean to, boolean undirected)
+		{
+			super(4);
+			m_edge = edge;
+			m_from = from || undirected;
+			m_to = to || undirected;
+		}
+
+		@Override
+		public Collection<GraphNode> getCandidates(KnowledgeGraph g, Valuation nu)
+		{
+			Object o = nu.get(m_edge);
+			if (!(o instanceof GraphEdge))
+			{
+				return null;
+			}
+			GraphEdge e = (GraphEdge) o;
+			List<GraphNode> nodes = new ArrayList<GraphNode>(2);
+			if (m_from)
+			{
+				addNode(g, e.getFrom(), nodes);
+			}
+			if (m_to && !(m_from && e.getTo() == e.getFrom()))
+			{
+				addNode(g, e.getTo(), nodes);
+			}
+			return nodes;
+		}
+
+		/**
+		 * Adds a node to a list if it exists in a graph.
+		 */
+		protected static void addNode(KnowledgeGraph g, long id, List<GraphNode> nodes)
+		{
+			GraphNode n = g.getNode(id);
+			if (n != null)
+			{
+				nodes.add(n);
+			}
+		}
+	}
+
+	/**
+	 * Provides the nodes connected to a given node by an edge with the label
+	 * required by a {@link ConnectedBy} assertion. Each node is provided once,
+	 * even if several edges connect it to the given node.
+	 */
+	protected static class AdjacentNodes extends Domain<GraphNode>
+	{
+		/**
+		 * The assertion relating the two nodes.
+		 */
+		protected final ConnectedBy m_atom;
+
+		/**
+		 * The variable holding the node at the other end of the edge.
+		 */
+		protected final int m_other;
+
+		/**
+		 * Whether the candidates are the sources of edges leading to the other
+		 * node (otherwise, they are the targets of edges leaving it).
+		 */
+		protected final boolean m_incoming;
+
+		/**
+		 * Whether edges in the other direction also connect the nodes.
+		 */
+		protected final boolean m_undirected;
+
+		/**
+		 * Whether the label of the edge is known when the candidates are
+		 * requested; otherwise, edges with any label are considered.
+		 */
+		protected final boolean m_labelKnown;
+
+		public AdjacentNodes(ConnectedBy atom, int other, boolean incoming, boolean undirected, boolean label_known)
+		{
+			super(3);
+			m_atom = atom;
+			m_other = other;
+			m_incoming = incoming;
+			m_undirected = undirected;
+			m_labelKnown = label_known;
+		}
+
+		@Override
+		public Collection<GraphNode> getCandidates(KnowledgeGraph g, Valuation nu)
+		{
+			Object o = nu.get(m_other);
+			if (!(o instanceof GraphNode))
+			{
+				return null;
+			}
+			long id = ((GraphNode) o).getId();
+			String label = null;
+			if (m_atom.m_labelId >= 0)
+			{
+				label = LabelDictionary.getLabel(m_atom.m_labelId);
+			}
+			else if (m_labelKnown)
+			{
+				Object l = ContextFunction.evaluateFromValuation(m_atom.m_label, m_atom.m_labelSlot, nu);
+				if (l instanceof String)
+				{
+					label = (String) l;
+				}
+				else if (!(l instanceof GraphEdge))
+				{
+					// Such a label is connected to nothing
+					return new ArrayList<GraphNode>(0);
+				}
+			}
+			List<GraphNode> nodes = new ArrayList<GraphNode>();
+			// Only a single edge with a given label leads from a node to
+			// another; edges in both directions or with any label can lead to
+			// the same node more than once
+			Set<Long> seen = m_undirected || label == null ? new HashSet<Long>() : null;
+			if (m_incoming || m_undirected)
+			{
+				addEnds(g, label == null ? g.getIncomingEdges(id) : g.getIncomingEdges(id, label), true, nodes, seen);
+			}
+			if (!m_incoming || m_undirected)
+			{
+				addEnds(g, label == null ? g.getEdges(id) : g.getOutgoingEdges(id, label), false, nodes, seen);
+			}
+			return nodes;
+		}
+
+		/**
+		 * Adds to a list the nodes at one end of a collection of edges.
+		 * @param g The graph
+		 * @param edges The edges
+		 * @param from Whether to add the source of each edge (otherwise, its
+		 * target)
+		 * @param nodes The list
+		 * @param seen The IDs of the nodes already in the list, or {@code null}
+		 * if the edges cannot lead to the same node twice
+		 */
+		protected static void addEnds(KnowledgeGraph g, Collection<GraphEdge> edges, boolean from, List<GraphNode> nodes, Set<Long> seen)
+		{
+			for (GraphEdge e : edges)
+			{
+				long end = from ? e.getFrom() : e.getTo();
+				if (seen != null && !seen.add(end))
+				{
+					continue;
+				}
+				GraphNode n = g.getNode(end);
+				if (n != null)
+				{
+					nodes.add(n);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Provides the edges incident on a given node.
+	 */
+	protected static class IncidentEdges extends Domain<GraphEdge>
+	{
+		/**
+		 * The variable holding the node.
+		 */
+		protected final int m_node;
+
+		/**
+		 * Whether the node is the source of the edges (otherwise it is their
+		 * target).
+		 */
+		protected final boolean m_outgoing;
+
+		/**
+		 * Whether edges in the other direction are also candidates.
+		 */
+		protected final boolean m_undirected;
+
+		public IncidentEdges(int node, boolean outgoing, boolean undirected)
+		{
+			super(3);
+			m_node = node;
+			m_outgoing = outgoing;
+			m_undirected = undirected;
+		}
+
+		@Override
+		public Collection<GraphEdge> getCandidates(KnowledgeGraph g, Valuation nu)
+		{
+			Object o = nu.get(m_node);
+			if (!(o instanceof GraphNode))
+			{
+				return null;
+			}
+			long id = ((GraphNode) o).getId();
+			if (!m_undirected)
+			{
+				return m_outgoing ? g.getEdges(id) : g.getIncomingEdges(id);
+			}
+			List<GraphEdge> edges = new ArrayList<GraphEdge>(g.getEdges(id));
+			for (GraphEdge e : g.getIncomingEdges(id))
+			{
+				if (e.getFrom() != id)
+				{
+					// Loops are already among the outgoing edges
+					edges.add(e);
+				}
+			}
+			return edges;
+		}
+	}
+}
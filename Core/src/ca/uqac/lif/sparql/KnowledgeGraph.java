@@ -17,12 +17,11 @@
  */
 package ca.uqac.lif.sparql;
 
+import java.util.ArrayList;
 import java.util.Collection;
-import java.util.HashMap;
-import java.util.HashSet;
-import java.util.Iterator;
-import java.util.Map;
-import java.util.Set;
+import java.util.List;
+import java.util.PrimitiveIterator;
+import java.util.function.LongPredicate;
 
 public class KnowledgeGraph
 {
@@ -37,15 +36,57 @@ public class KnowledgeGraph
 	private final long m_id;
 	
 	/**
-	 * The nodes of the graph.
+	 * The nodes of the graph, indexed by their identifier.
 	 */
-	/*@ non_null @*/ private final Map<Long,GraphNode> m_nodes;
+	/*@ non_null @*/ protected final PersistentLongMap<GraphNode> m_nodes;
 
 	/**
 	 * The edges of the graph. The key in this map is the identifier of the
-	 * source node of the edge.
+	 * source node of the edge; the adjacency list contains the label and the
+	 * target of each edge leaving that node.
 	 */
-	/*@ non_null @*/ private final Map<Long,Set<GraphEdge>> m_edges;
+	/*@ non_null @*/ protected final PersistentLongMap<AdjacencyList> m_edges;
+
+	/**
+	 * The incoming edges of the graph. The key in this map is the identifier
+	 * of the target node of the edge; the adjacency list contains the label
+	 * and the source of each edge pointing to that node. This index mirrors
+	 * {@link #m_edges} and is updated along with it.
+	 */
+	/*@ non_null @*/ protected final PersistentLongMap<AdjacencyList> m_inEdges;
+
+	/**
+	 * An index associating the data of nodes to the nodes themselves. It is
+	 * used to find the nodes carrying a given value without scanning the
+	 * whole graph.
+	 */
+	/*@ non_null @*/ private final ValueIndex m_values;
+
+	/**
+	 * An index associating each edge label to the nodes that are the source of
+	 * an edge with that label.
+	 */
+	/*@ non_null @*/ private final LabelIndex m_labels;
+
+	/**
+	 * The token identifying the adjacency lists that this graph may modify in
+	 * place. All the structures of the graph are persistent: a copy of the
+	 * graph shares them with the original, and each of the two graphs obtains
+	 * a new token, so that neither of them modifies a shared list.
+	 */
+	/*@ non_null @*/ private Object m_edit;
+
+	/**
+	 * The index of the nodes sorted by their numerical value. The index is
+	 * created the first time it is needed; from then on, it is updated along
+	 * with the data of the nodes.
+	 */
+	private volatile RangeIndex m_ranges = null;
+
+	/**
+	 * A counter incremented by every modification of the graph.
+	 */
+	private long m_version = 0;
 	
 	/**
 	 * Creates a new empty knowledge graph and assigns it a unique identifier.
@@ -63,8 +104,36 @@ public class KnowledgeGraph
 	{
 		super();
 		m_id = id;
-		m_nodes = new HashMap<>();
-		m_edges = new HashMap<>();
+		m_nodes = new PersistentLongMap<GraphNode>();
+		m_edges = new PersistentLongMap<AdjacencyList>();
+		m_inEdges = new PersistentLongMap<AdjacencyList>();
+		m_values = new ValueIndex();
+		m_labels = new LabelIndex();
+		m_edit = new Object();
+	}
+
+	/**
+	 * Creates a new knowledge graph by copying the contents of an existing
+	 * one, and assigns it a unique identifier. The new graph shares its
+	 * structure with the original one, and the copy takes constant time
+	 * (save for the label index, whose size is the number of distinct
+	 * labels). Subsequent modifications of either graph only copy the parts
+	 * of the structure they touch, and do not affect the other graph.
+	 * @param g The graph to copy
+	 */
+	protected KnowledgeGraph(KnowledgeGraph g)
+	{
+		super();
+		m_id = s_idCounter++;
+		m_nodes = g.m_nodes.copy();
+		m_edges = g.m_edges.copy();
+		m_inEdges = g.m_inEdges.copy();
+		m_values = g.m_values.copy();
+		m_labels = g.m_labels.copy();
+		m_ranges = g.m_ranges == null ? null : g.m_ranges.copy();
+		m_version = g.m_version;
+		m_edit = new Object();
+		g.m_edit = new Object();
 	}
 	
 	/**
@@ -77,6 +146,19 @@ public class KnowledgeGraph
 		return m_id;
 	}
 
+	/**
+	 * Gets the version of the graph. The version changes every time a node or
+	 * an edge is added, modified or deleted; as long as it stays the same, all
+	 * the queries on the graph return the same results. Results computed on
+	 * a graph can therefore be cached along with the version of the graph.
+	 * 
+	 * @return The version
+	 */
+	public long getVersion()
+	{
+		return m_version;
+	}
+
 	/**
 	 * Adds a node to the graph.
 	 * 
@@ -99,12 +181,30 @@ public class KnowledgeGraph
 	 */
 	/*@ non_null @*/ public KnowledgeGraph addEdge(long from, String label, long to)
 	{
-		WritableGraphEdge edge = new WritableGraphEdge(from, label, to);
-		if (!m_edges.containsKey(edge.getFrom()))
+		return addEdge(from, LabelDictionary.getId(label), to);
+	}
+
+	/**
+	 * Adds an edge to the graph.
+	 * 
+	 * @param from
+	 *          The identifier of the source node
+	 * @param label
+	 *          The identifier of the label of the edge in the
+	 *          {@link LabelDictionary}
+	 * @param to
+	 *          The identifier of the target node
+	 * @return This graph
+	 */
+	/*@ non_null @*/ public KnowledgeGraph addEdge(long from, int label, long to)
+	{
+		if (!hasEdge(from, label, to))
 		{
-			m_edges.put(edge.getFrom(), new HashSet<GraphEdge>());
+			getWritableAdjacency(m_edges, from).add(label, to);
+			getWritableAdjacency(m_inEdges, to).add(label, from);
+			m_labels.add(label, from);
+			m_version++;
 		}
-		m_edges.get(edge.getFrom()).add(edge);
 		return this;
 	}
 
@@ -125,24 +225,33 @@ public class KnowledgeGraph
 	}
 	
 	/**
-	 * Creates a copy of this graph.
+	 * Creates a copy of this graph. The copy takes constant time; the two
+	 * graphs can then be modified independently.
 	 * @return A copy of the graph
 	 */
 	public KnowledgeGraph duplicate()
 	{
-		KnowledgeGraph g = new KnowledgeGraph();
-		g.m_nodes.putAll(m_nodes);
-		for (Map.Entry<Long,Set<GraphEdge>> entry : m_edges.entrySet())
-		{
-			Set<GraphEdge> new_set = new HashSet<GraphEdge>();
-			new_set.addAll(entry.getValue());
-			g.m_edges.put(entry.getKey(), new_set);
-		}
-		return g;
+		return new KnowledgeGraph(this);
+	}
+
+	/**
+	 * Creates a read-only copy of this graph in compressed sparse row form.
+	 * The copy is more compact than this graph, and answers queries faster;
+	 * it is the preferred representation for graphs that are no longer
+	 * modified. Subsequent modifications of this graph do not affect the
+	 * copy.
+	 * @return The read-only copy
+	 * @see FrozenKnowledgeGraph
+	 */
+	/*@ non_null @*/ public CompactKnowledgeGraph freeze()
+	{
+		return new FrozenKnowledgeGraph(this);
 	}
 
 	/**
-	 * Gets the nodes of the graph.
+	 * Gets the nodes of the graph. Each iterator of the collection enumerates
+	 * the nodes present when it is created, so the graph may be modified
+	 * while iterating over them.
 	 * 
 	 * @return The nodes
 	 */
@@ -158,10 +267,12 @@ public class KnowledgeGraph
 	 */
 	/*@ non_null @*/ public Collection<GraphEdge> getEdges()
 	{
-		Set<GraphEdge> edges = new HashSet<GraphEdge>();
-		for (Set<GraphEdge> edge_set : m_edges.values())
+		List<GraphEdge> edges = new ArrayList<GraphEdge>();
+		PrimitiveIterator.OfLong it = m_edges.keyIterator();
+		while (it.hasNext())
 		{
-			edges.addAll(edge_set);
+			long id = it.nextLong();
+			addEdges(id, m_edges.get(id), edges);
 		}
 		return edges;
 	}
@@ -175,7 +286,210 @@ public class KnowledgeGraph
 	 */
 	public Collection<GraphEdge> getEdges(long id)
 	{
-		return m_edges.getOrDefault(id, new HashSet<GraphEdge>());
+		List<GraphEdge> edges = new ArrayList<GraphEdge>();
+		AdjacencyList list = m_edges.get(id);
+		if (list != null)
+		{
+			addEdges(id, list, edges);
+		}
+		return edges;
+	}
+
+	/**
+	 * Gets the nodes of the graph whose data is equal to a given value, in the
+	 * sense of {@link IsEqualTo#equalObjects(Object, Object)}. This method
+	 * relies on an index and does not scan the nodes of the graph. Nodes
+	 * whose data is {@code null} are not indexed, so that the method returns
+	 * no node when the value is {@code null}.
+	 * 
+	 * @param data
+	 *          The value
+	 * @return The nodes
+	 */
+	/*@ non_null @*/ public Collection<GraphNode> getNodesWithData(Object data)
+	{
+		return m_values.get(data);
+	}
+
+	/**
+	 * Gets the nodes of the graph whose data is a number lying in a given
+	 * interval. The first call to this method sorts the nodes by their value;
+	 * subsequent calls only perform a search in logarithmic time, and
+	 * modifications of the graph update the order of the nodes instead of
+	 * sorting them again.
+	 * 
+	 * @param low
+	 *          The lower bound of the interval
+	 * @param include_low
+	 *          Whether the lower bound is in the interval
+	 * @param high
+	 *          The upper bound of the interval
+	 * @param include_high
+	 *          Whether the upper bound is in the interval
+	 * @return The nodes
+	 */
+	/*@ non_null @*/ public Collection<GraphNode> getNodesInRange(double low, boolean include_low, double high, boolean include_high)
+	{
+		RangeIndex index = m_ranges;
+		if (index == null)
+		{
+			index = new RangeIndex(getNodes());
+			m_ranges = index;
+		}
+		return index.get(low, include_low, high, include_high);
+	}
+
+	/**
+	 * Gets the edges of the graph that point to a given node.
+	 * 
+	 * @param id
+	 *          The identifier of the node
+	 * @return The edges
+	 */
+	public Collection<GraphEdge> getIncomingEdges(long id)
+	{
+		List<GraphEdge> edges = new ArrayList<GraphEdge>();
+		AdjacencyList list = m_inEdges.get(id);
+		if (list != null)
+		{
+			list.forEach((label, from) -> edges.add(new WritableGraphEdge(from, label, id)));
+		}
+		return edges;
+	}
+
+	/**
+	 * Gets the edges with a given label leaving a given node.
+	 * 
+	 * @param id
+	 *          The identifier of the source node
+	 * @param label
+	 *          The label of the edges
+	 * @return The edges
+	 */
+	/*@ non_null @*/ public Collection<GraphEdge> getOutgoingEdges(long id, String label)
+	{
+		List<GraphEdge> edges = new ArrayList<GraphEdge>();
+		int label_id = LabelDictionary.find(label);
+		AdjacencyList list = m_edges.get(id);
+		if (list != null && label_id >= 0)
+		{
+			list.forEach(label_id, to -> edges.add(new WritableGraphEdge(id, label_id, to)));
+		}
+		return edges;
+	}
+
+	/**
+	 * Gets the edges with a given label pointing to a given node.
+	 * 
+	 * @param id
+	 *          The identifier of the target node
+	 * @param label
+	 *          The label of the edges
+	 * @return The edges
+	 */
+	/*@ non_null @*/ public Collection<GraphEdge> getIncomingEdges(long id, String label)
+	{
+		List<GraphEdge> edges = new ArrayList<GraphEdge>();
+		int label_id = LabelDictionary.find(label);
+		AdjacencyList list = m_inEdges.get(id);
+		if (list != null && label_id >= 0)
+		{
+			list.forEach(label_id, from -> edges.add(new WritableGraphEdge(from, label_id, id)));
+		}
+		return edges;
+	}
+
+	/**
+	 * Gets all the edges of the graph carrying a given label. Only the
+	 * adjacency lists of nodes having at least one such edge are visited.
+	 * 
+	 * @param label
+	 *          The label
+	 * @return The edges
+	 */
+	/*@ non_null @*/ public Collection<GraphEdge> getEdgesWithLabel(String label)
+	{
+		int label_id = LabelDictionary.find(label);
+		List<GraphEdge> edges = new ArrayList<GraphEdge>(m_labels.countEdges(label_id));
+		PrimitiveIterator.OfLong it = m_labels.getSources(label_id);
+		while (it.hasNext())
+		{
+			edges.addAll(getOutgoingEdges(it.nextLong(), label));
+		}
+		return edges;
+	}
+
+	/**
+	 * Gets the number of edges of the graph carrying a given label.
+	 * 
+	 * @param label
+	 *          The label
+	 * @return The number of edges
+	 */
+	public int countEdges(String label)
+	{
+		return m_labels.countEdges(LabelDictionary.find(label));
+	}
+
+	/**
+	 * Determines if the graph contains an edge. This operation takes time
+	 * logarithmic in the number of neighbours of the source node.
+	 * 
+	 * @param from
+	 *          The identifier of the source node
+	 * @param label
+	 *          The label of the edge
+	 * @param to
+	 *          The identifier of the target node
+	 * @return {@code true} if the edge exists, {@code false} otherwise
+	 */
+	public boolean hasEdge(long from, String label, long to)
+	{
+		return hasEdge(from, LabelDictionary.find(label), to);
+	}
+
+	/**
+	 * Determines if the graph contains an edge. This operation takes time
+	 * logarithmic in the number of neighbours of the source node.
+	 * 
+	 * @param from
+	 *          The identifier of the source node
+	 * @param label
+	 *          The identifier of the label of the edge
+	 * @param to
+	 *          The identifier of the target node
+	 * @return {@code true} if the edge exists, {@code false} otherwise
+	 */
+	public boolean hasEdge(long from, int label, long to)
+	{
+		AdjacencyList list = m_edges.get(from);
+		return list != null && list.contains(label, to);
+	}
+
+	/**
+	 * Calls an action on the identifier of each node connected to a given
+	 * node by an edge with a given label. Unlike
+	 * {@link #getOutgoingEdges(long, String)}, this method does not create a
+	 * {@link GraphEdge} for each edge, and can stop before visiting all the
+	 * edges.
+	 * 
+	 * @param id
+	 *          The identifier of the node
+	 * @param label
+	 *          The identifier of the label of the edges
+	 * @param outgoing
+	 *          Set to {@code true} to visit the targets of the edges leaving
+	 *          the node, {@code false} to visit the sources of the edges
+	 *          pointing to it
+	 * @param action
+	 *          The action, which returns {@code false} to stop the visit
+	 * @return {@code false} if the action stopped the visit, {@code true}
+	 *         otherwise
+	 */
+	public boolean forEachNeighbour(long id, int label, boolean outgoing, /*@ non_null @*/ LongPredicate action)
+	{
+		AdjacencyList list = (outgoing ? m_edges : m_inEdges).get(id);
+		return list == null || list.forEach(label, action);
 	}
 
 	/**
@@ -203,7 +517,22 @@ public class KnowledgeGraph
 	public KnowledgeGraph setNodeData(long id, Object data)
 	{
 		WritableGraphNode node = new WritableGraphNode(id, data);
-		m_nodes.put(id, node);
+		GraphNode old_node = m_nodes.put(id, node);
+		RangeIndex ranges = m_ranges;
+		m_version++;
+		if (old_node != null)
+		{
+			m_values.remove(old_node);
+			if (ranges != null)
+			{
+				ranges.remove(old_node);
+			}
+		}
+		m_values.add(node);
+		if (ranges != null)
+		{
+			ranges.add(node);
+		}
 		return this;
 	}
 	
@@ -221,25 +550,8 @@ public class KnowledgeGraph
 	 */
 	public KnowledgeGraph setEdgeData(long from, String label, long to, String new_label)
 	{
-		if (!m_edges.containsKey(from))
-		{
-			m_edges.put(from, new HashSet<GraphEdge>());
-		}
-		Set<GraphEdge> edges = m_edges.get(from);
-		Iterator<GraphEdge> it = edges.iterator();
-		while (it.hasNext())
-		{
-			GraphEdge e = it.next();
-			if (e.getFrom() == from && e.getLabel().compareTo(label) == 0 && e.getTo() == to)
-			{
-				it.remove();
-				// We break since there is at most one edge with given triplet
-				break;
-			}
-		}
-		WritableGraphEdge edge = new WritableGraphEdge(from, new_label, to);
-		edges.add(edge);
-		return this;
+		deleteEdge(from, label, to);
+		return addEdge(from, new_label, to);
 	}
 	
 	/**
@@ -252,28 +564,23 @@ public class KnowledgeGraph
 	 */
 	public KnowledgeGraph deleteEdge(long from, String label, long to)
 	{
-		if (!m_edges.containsKey(from))
-		{
-			return this;
-		}
-		Set<GraphEdge> edges = m_edges.get(from);
-		Iterator<GraphEdge> it = edges.iterator();
-		while (it.hasNext())
+		int label_id = LabelDictionary.find(label);
+		// There is at most one edge with given triplet
+		if (hasEdge(from, label_id, to))
 		{
-			GraphEdge e = it.next();
-			if (e.getFrom() == from && e.getLabel().compareTo(label) == 0 && e.getTo() == to)
-			{
-				it.remove();
-				// We break since there is at most one edge with given triplet
-				return this;
-			}
+			getWritableAdjacency(m_edges, from).remove(label_id, to);
+			getWritableAdjacency(m_inEdges, to).remove(label_id, from);
+			m_labels.remove(label_id, from);
+			m_version++;
 		}
 		return this;
 	}
 	
 	/**
 	 * Deletes a node with given ID. All edges connected to that node in either
-	 * direction are also deleted.
+	 * direction are also deleted. Thanks to the index of incoming edges, this
+	 * operation only visits the edges incident on the node, and removing each
+	 * of them from the adjacency of its other end takes logarithmic time.
 	 * @param id The ID of the node to delete
 	 * @return {@code true} if a node was deleted, {@code false} otherwise
 	 */
@@ -283,19 +590,38 @@ public class KnowledgeGraph
 		{
 			return this;
 		}
-		m_nodes.remove(id);
-		m_edges.remove(id);
-		for (Map.Entry<Long,Set<GraphEdge>> entry : m_edges.entrySet())
+		GraphNode old_node = m_nodes.remove(id);
+		m_values.remove(old_node);
+		RangeIndex ranges = m_ranges;
+		if (ranges != null)
 		{
-			Iterator<GraphEdge> it = entry.getValue().iterator();
-			while (it.hasNext())
-			{
-				GraphEdge e = it.next();
-				if (e.getFrom() == id || e.getTo() == id)
+			ranges.remove(old_node);
+		}
+		m_version++;
+		AdjacencyList out = m_edges.remove(id);
+		if (out != null)
+		{
+			out.forEach((label, to) -> {
+				if (to != id)
 				{
-					it.remove();
+					getWritableAdjacency(m_inEdges, to).remove(label, id);
 				}
-			}
+				m_labels.remove(label, id);
+				return true;
+			});
+		}
+		AdjacencyList in = m_inEdges.remove(id);
+		if (in != null)
+		{
+			in.forEach((label, from) -> {
+				// Self-loops have already been removed above
+				if (from != id)
+				{
+					getWritableAdjacency(m_edges, from).remove(label, id);
+					m_labels.remove(label, from);
+				}
+				return true;
+			});
 		}
 		return this;
 	}
@@ -310,73 +636,219 @@ public class KnowledgeGraph
 		return m_nodes.size();
 	}
 
+	/**
+	 * Gets the adjacency list for a node in one of the edge indexes, in a
+	 * state where it can be modified by this graph. The list is created if it
+	 * does not exist yet, and is replaced by a copy if it is shared with
+	 * another version of the graph; this copy takes constant time, regardless
+	 * of the size of the list.
+	 * @param index The index (either outgoing or incoming edges)
+	 * @param id The identifier of the node
+	 * @return The adjacency list
+	 */
+	/*@ non_null @*/ protected AdjacencyList getWritableAdjacency(PersistentLongMap<AdjacencyList> index, long id)
+	{
+		AdjacencyList list = index.get(id);
+		if (list == null)
+		{
+			list = new AdjacencyList(m_edit);
+			index.put(id, list);
+		}
+		else if (!list.isOwnedBy(m_edit))
+		{
+			list = new AdjacencyList(list, m_edit);
+			index.put(id, list);
+		}
+		return list;
+	}
+
+	/**
+	 * Creates the {@link GraphEdge} objects corresponding to the contents of
+	 * an adjacency list, and adds them to a collection.
+	 * @param from The identifier of the source node of the edges
+	 * @param list The adjacency list
+	 * @param edges The collection to which the edges are added
+	 */
+	protected static void addEdges(long from, AdjacencyList list, Collection<GraphEdge> edges)
+	{
+		list.forEach((label, to) -> edges.add(new WritableGraphEdge(from, label, to)));
+	}
+
+	/**
+	 * Determines if two nodes are connected by a directed edge with a given
+	 * label. Each of the three arguments can either be bound to a specific
+	 * element of the graph, or be a value:
+	 * <ul>
+	 * <li>the source and the target are either a {@link GraphNode}, or a
+	 * value designating all the nodes whose data is equal to it;</li>
+	 * <li>the label is either a {@link GraphEdge}, designating that specific
+	 * edge, or a string designating all the edges with that label.</li>
+	 * </ul>
+	 * The method picks the index that best fits the arguments it receives:
+	 * a fully bound triple is checked in logarithmic time, and otherwise only
+	 * the edges incident on the smallest set of candidate nodes are visited.
+	 * @param from The source node, or the data of that node
+	 * @param label The label of the edge, or an edge
+	 * @param to The target node, or the data of that node
+	 * @return {@code true} if the nodes are connected, {@code false}
+	 * otherwise
+	 */
 	public boolean matches(Object from, Object label, Object to)
 	{
 		if (to == null || label == null || from == null)
 		{
 			return false;
 		}
-		Set<GraphNode> set_to = new HashSet<GraphNode>();
-		Set<GraphEdge> set_edge = new HashSet<GraphEdge>();
-		Set<GraphNode> set_from = new HashSet<GraphNode>();
-		if (from instanceof GraphNode)
+		if (label instanceof GraphEdge)
 		{
-			set_from.add((GraphNode) from);
+			GraphEdge edge = (GraphEdge) label;
+			return isNode(from, edge.getFrom()) && isNode(to, edge.getTo());
 		}
-		else
+		if (!(label instanceof String))
 		{
-			for (GraphNode node : m_nodes.values())
-			{
-				if (IsEqualTo.equalObjects(node.getData(), from))
-				{
-					set_from.add(node);
-				}
-			}
+			// Edge labels are strings and can be equal to nothing else
+			return false;
 		}
-		if (label instanceof GraphEdge)
+		return matches(from, LabelDictionary.find((String) label), to);
+	}
+
+	/**
+	 * Determines if two nodes are connected by a directed edge with a given
+	 * label. This method behaves like
+	 * {@link #matches(Object, Object, Object)}, except that the label is
+	 * given by its identifier in the {@link LabelDictionary}.
+	 * @param from The source node, or the data of that node
+	 * @param label The identifier of the label of the edge
+	 * @param to The target node, or the data of that node
+	 * @return {@code true} if the nodes are connected, {@code false}
+	 * otherwise
+	 */
+	public boolean matches(Object from, int label, Object to)
+	{
+		if (to == null || from == null || m_labels.countEdges(label) == 0)
 		{
-			set_edge.add((GraphEdge) label);
+			return false;
 		}
-		else
+		if (from instanceof GraphNode && to instanceof GraphNode)
 		{
-			for (GraphEdge edge : getEdges())
-			{
-				if (IsEqualTo.equalObjects(edge.getLabel(), label))
-				{
-					set_edge.add(edge);
-				}
-			}
+			return hasEdge(((GraphNode) from).getId(), label, ((GraphNode) to).getId());
+		}
+		if (from instanceof GraphNode)
+		{
+			return matchesAdjacent(m_edges.get(((GraphNode) from).getId()), label, to);
 		}
 		if (to instanceof GraphNode)
 		{
-			set_to.add((GraphNode) to);
+			return matchesAdjacent(m_inEdges.get(((GraphNode) to).getId()), label, from);
 		}
-		else
+		Collection<GraphNode> set_from = m_values.get(from);
+		Collection<GraphNode> set_to = m_values.get(to);
+		if (set_from.size() <= set_to.size())
 		{
-			for (GraphNode node : m_nodes.values())
+			for (GraphNode n : set_from)
 			{
-				if (IsEqualTo.equalObjects(node.getData(), to))
+				if (matchesAdjacent(m_edges.get(n.getId()), label, to))
 				{
-					set_to.add(node);
+					return true;
 				}
 			}
 		}
-		for (GraphNode from_node : set_from)
+		else
 		{
-			for (GraphEdge edge : set_edge)
+			for (GraphNode n : set_to)
 			{
-				for (GraphNode to_node : set_to)
+				if (matchesAdjacent(m_inEdges.get(n.getId()), label, from))
 				{
-					if (edge.getFrom() == from_node.getId() && edge.getTo() == to_node.getId())
-					{
-						return true;
-					}
+					return true;
 				}
 			}
 		}
 		return false;
 	}
+
+	/**
+	 * Determines if a node identifier corresponds to an argument of
+	 * {@link #matches(Object, Object, Object)}.
+	 * @param arg The argument, either a {@link GraphNode} or the data of a
+	 * node
+	 * @param id The identifier of the node
+	 * @return {@code true} if the node corresponds to the argument,
+	 * {@code false} otherwise
+	 */
+	protected boolean isNode(Object arg, long id)
+	{
+		if (arg instanceof GraphNode)
+		{
+			return ((GraphNode) arg).getId() == id;
+		}
+		GraphNode n = m_nodes.get(id);
+		return n != null && IsEqualTo.equalObjects(n.getData(), arg);
+	}
 	
+	/**
+	 * Determines if two nodes are connected by an edge with a given label,
+	 * regardless of the direction of that edge. When the source is a
+	 * {@link GraphNode}, its outgoing and incoming edges are examined in a
+	 * single pass; otherwise, the method falls back to two calls to
+	 * {@link #matches(Object, Object, Object)}.
+	 * @param from The first node, or the data of that node
+	 * @param label The label of the edge, or an edge
+	 * @param to The second node, or the data of that node
+	 * @return {@code true} if the nodes are connected, {@code false}
+	 * otherwise
+	 */
+	public boolean matchesUndirected(Object from, Object label, Object to)
+	{
+		if (to == null || label == null || from == null)
+		{
+			return false;
+		}
+		if (!(label instanceof String))
+		{
+			return matches(from, label, to) || matches(to, label, from);
+		}
+		return matchesUndirected(from, LabelDictionary.find((String) label), to);
+	}
+
+	/**
+	 * Determines if two nodes are connected by an edge with a given label,
+	 * regardless of the direction of that edge. This method behaves like
+	 * {@link #matchesUndirected(Object, Object, Object)}, except that the
+	 * label is given by its identifier in the {@link LabelDictionary}.
+	 * @param from The first node, or the data of that node
+	 * @param label The identifier of the label of the edge
+	 * @param to The second node, or the data of that node
+	 * @return {@code true} if the nodes are connected, {@code false}
+	 * otherwise
+	 */
+	public boolean matchesUndirected(Object from, int label, Object to)
+	{
+		if (!(from instanceof GraphNode))
+		{
+			return matches(from, label, to) || matches(to, label, from);
+		}
+		if (to == null || m_labels.countEdges(label) == 0)
+		{
+			return false;
+		}
+		long id = ((GraphNode) from).getId();
+		return matchesAdjacent(m_edges.get(id), label, to) || matchesAdjacent(m_inEdges.get(id), label, to);
+	}
+
+	/**
+	 * Determines if an adjacency list contains an edge with a given label
+	 * leading to a given node.
+	 * @param list The adjacency list, possibly null
+	 * @param label The identifier of the label of the edge
+	 * @param to The node at the other end, or the data of that node
+	 * @return {@code true} if such an edge exists, {@code false} otherwise
+	 */
+	protected boolean matchesAdjacent(AdjacencyList list, int label, Object to)
+	{
+		// The visit stops at the first edge leading to the node
+		return list != null && !list.forEach(label, n -> !isNode(to, n));
+	}
+
 	public static class WritableGraphNode extends GraphNode
 	{
 		protected WritableGraphNode(long id, Object data)
@@ -391,5 +863,10 @@ public class KnowledgeGraph
 		{
 			super(from, label, to);
 		}
+		
+		protected WritableGraphEdge(long from, int label, long to)
+		{
+			super(from, label, to);
+		}
 	}
 }
@@ -0,0 +1,133 @@
+/*
+    Basic processing of SPARQL queries in Java
+    Copyright (C) 2024 Sylvain Hallé
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Lesser General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.uqac.lif.sparql;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Associates each edge label to a dense integer identifier. Graphs typically
+ * use a handful of distinct labels over a very large number of edges; edges
+ * therefore store the identifier of their label instead of the label itself,
+ * and label comparisons become integer comparisons.
+ * <p>
+ * The dictionary is shared by all the graphs, so that the identifier of a
+ * label does not depend on the graph in which it appears, and edges of
+ * different graphs can be compared directly. Identifiers are never
+ * reclaimed. Lookups can be made concurrently with the addition of new
+ * labels.
+ * @author Sylvain Hallé
+ */
+public final class LabelDictionary
+{
+	/**
+	 * The identifier associated with each label.
+	 */
+	/*@ non_null @*/ private static final Map<String,Integer> s_ids = new ConcurrentHashMap<String,Integer>();
+
+	/**
+	 * The label associated with each identifier.
+	 */
+	/*@ non_null @*/ private static volatile String[] s_labels = new String[16];
+
+	/**
+	 * The number of labels in the dictionary.
+	 */
+	private static int s_size = 0;
+
+	/**
+	 * Cannot be instantiated.
+	 */
+	private LabelDictionary()
+	{
+		super();
+	}
+
+	/**
+	 * Gets the identifier of a label, adding the label to the dictionary if
+	 * it is not already present.
+	 * @param label The label
+	 * @return The identifier
+	 */
+	public static int getId(/*@ non_null @*/ String label)
+	{
+		Integer id = s_ids.get(label);
+		if (id != null)
+		{
+			return id;
+		}
+		return add(label);
+	}
+
+	/**
+	 * Gets the identifier of a label, without adding it to the dictionary.
+	 * @param label The label
+	 * @return The identifier, or -1 if the label is not in the dictionary,
+	 * which means that no edge carries this label
+	 */
+	public static int find(/*@ non_null @*/ String label)
+	{
+		Integer id = s_ids.get(label);
+		return id == null ? -1 : id;
+	}
+
+	/**
+	 * Gets the label associated with an identifier.
+	 * @param id The identifier
+	 * @return The label
+	 */
+	public static String getLabel(int id)
+	{
+		return s_labels[id];
+	}
+
+	/**
+	 * Gets the number of labels in the dictionary.
+	 * @return The number of labels
+	 */
+	public static synchronized int size()
+	{
+		return s_size;
+	}
+
+	/**
+	 * Adds a label to the dictionary. The label is written into the array of
+	 * labels before its identifier is published in the map, so that any
+	 * thread obtaining the identifier can also read the label.
+	 * @param label The label
+	 * @return The identifier given to the label
+	 */
+	private static synchronized int add(String label)
+	{
+		Integer id = s_ids.get(label);
+		if (id != null)
+		{
+			// Added by another thread in the meantime
+			return id;
+		}
+		if (s_size == s_labels.length)
+		{
+			s_labels = Arrays.copyOf(s_labels, s_size * 2);
+		}
+		int new_id = s_size++;
+		s_labels[new_id] = label;
+		s_ids.put(label, new_id);
+		return new_id;
+	}
+}
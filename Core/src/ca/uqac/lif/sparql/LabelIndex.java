@@ -0,0 +1,199 @@
+/*
+    Basic processing of SPARQL queries in Java
+    Copyright (C) 2024 Sylvain Hallé
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Lesser General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.uqac.lif.sparql;
+
+import java.util.Arrays;
+import java.util.PrimitiveIterator;
+
+/**
+ * An index associating each edge label to the nodes that are the source of
+ * at least one edge with this label. Together with the adjacency lists of
+ * outgoing and incoming edges, this index makes it possible to enumerate the
+ * edges matching a triple pattern whose only bound element is the label,
+ * without visiting the edges that carry other labels.
+ * <p>
+ * The index also keeps the number of edges carrying each label, which gives
+ * a cheap estimate of the selectivity of a label. Labels are designated by
+ * their identifier in the {@link LabelDictionary}; since these identifiers
+ * are dense, the entries are stored in an array indexed by them.
+ * @author Sylvain Hallé
+ */
+public class LabelIndex
+{
+	/**
+	 * The entries of the index, indexed by label identifier. An entry is null
+	 * if no edge carries the corresponding label.
+	 */
+	/*@ non_null @*/ protected Entry[] m_entries;
+
+	/**
+	 * Creates a new empty index.
+	 */
+	public LabelIndex()
+	{
+		super();
+		m_entries = new Entry[0];
+	}
+
+	/**
+	 * Records the addition of an edge.
+	 * @param label The identifier of the label of the edge
+	 * @param source The identifier of the source node of the edge
+	 */
+	public void add(int label, long source)
+	{
+		if (label >= m_entries.length)
+		{
+			m_entries = Arrays.copyOf(m_entries, Math.max(label + 1, LabelDictionary.size()));
+		}
+		Entry e = m_entries[label];
+		if (e == null)
+		{
+			e = new Entry();
+			m_entries[label] = e;
+		}
+		Integer count = e.m_sources.get(source);
+		e.m_sources.put(source, count == null ? 1 : count + 1);
+		e.m_edgeCount++;
+	}
+
+	/**
+	 * Records the removal of an edge.
+	 * @param label The identifier of the label of the edge
+	 * @param source The identifier of the source node of the edge
+	 */
+	public void remove(int label, long source)
+	{
+		Entry e = getEntry(label);
+		if (e == null)
+		{
+			return;
+		}
+		Integer count = e.m_sources.get(source);
+		if (count == null)
+		{
+			return;
+		}
+		if (count == 1)
+		{
+			e.m_sources.remove(source);
+		}
+		else
+		{
+			e.m_sources.put(source, count - 1);
+		}
+		e.m_edgeCount--;
+		if (e.m_edgeCount == 0)
+		{
+			m_entries[label] = null;
+		}
+	}
+
+	/**
+	 * Gets the number of edges carrying a given label.
+	 * @param label The label identifier
+	 * @return The number of edges
+	 */
+	public int countEdges(int label)
+	{
+		Entry e = getEntry(label);
+		return e == null ? 0 : e.m_edgeCount;
+	}
+
+	/**
+	 * Gets the number of distinct nodes that are the source of an edge
+	 * carrying a given label.
+	 * @param label The label identifier
+	 * @return The number of nodes
+	 */
+	public int countSources(int label)
+	{
+		Entry e = getEntry(label);
+		return e == null ? 0 : e.m_sources.size();
+	}
+
+	/**
+	 * Gets the identifiers of the nodes that are the source of an edge
+	 * carrying a given label.
+	 * @param label The label identifier
+	 * @return An iterator over the node identifiers
+	 */
+	public PrimitiveIterator.OfLong getSources(int label)
+	{
+		Entry e = getEntry(label);
+		if (e == null)
+		{
+			return new PersistentLongMap<Integer>().keyIterator();
+		}
+		return e.m_sources.keyIterator();
+	}
+
+	/**
+	 * Creates a copy of this index. Since the maps of source nodes are
+	 * persistent, the copy takes time proportional to the number of distinct
+	 * labels, and not to the number of edges.
+	 * @return The copy
+	 */
+	/*@ non_null @*/ public LabelIndex copy()
+	{
+		LabelIndex li = new LabelIndex();
+		li.m_entries = new Entry[m_entries.length];
+		for (int i = 0; i < m_entries.length; i++)
+		{
+			Entry e = m_entries[i];
+			if (e != null)
+			{
+				Entry new_e = new Entry();
+				new_e.m_edgeCount = e.m_edgeCount;
+				new_e.m_sources = e.m_sources.copy();
+				li.m_entries[i] = new_e;
+			}
+		}
+		return li;
+	}
+
+	/**
+	 * Gets the entry associated with a label.
+	 * @param label The label identifier
+	 * @return The entry, or null if no edge carries this label
+	 */
+	protected Entry getEntry(int label)
+	{
+		if (label < 0 || label >= m_entries.length)
+		{
+			return null;
+		}
+		return m_entries[label];
+	}
+
+	/**
+	 * The information kept for a single label.
+	 */
+	protected static class Entry
+	{
+		/**
+		 * The number of edges with this label leaving each source node.
+		 */
+		/*@ non_null @*/ protected PersistentLongMap<Integer> m_sources = new PersistentLongMap<Integer>();
+
+		/**
+		 * The total number of edges with this label.
+		 */
+		protected int m_edgeCount = 0;
+	}
+}
@@ -17,6 +17,8 @@
  */
 package ca.uqac.lif.sparql;
 
+import java.util.BitSet;
+
 import ca.uqac.lif.cep.Context;
 import ca.uqac.lif.cep.EventTracker;
 import ca.uqac.lif.cep.functions.Constant;
@@ -24,7 +26,10 @@ import ca.uqac.lif.cep.functions.ContextVariable;
 import ca.uqac.lif.cep.functions.Function;
 
 /**
- * A function extracting the label of a node designated by a variable.
+ * A function extracting the label of a node or an edge designated by a
+ * variable. The label of a node is its data, and the label of an edge is the
+ * string labelling it. The function returns {@code null} if the variable
+ * designates neither a node nor an edge.
  * @author Sylvain Hallé
  */
 public class LabelOf extends ContextFunction implements GraphFunction<Object>
@@ -47,6 +52,12 @@ public class LabelOf extends ContextFunction implements GraphFunction<Object>
 	 */
 	protected final Function m_variable;
 
+	/**
+	 * The index of the variable in a {@link Valuation}, or -1 if the
+	 * argument of the function is not a variable.
+	 */
+	protected final int m_slot;
+
 	/**
 	 * Creates a new constant.
 	 * 
@@ -57,18 +68,42 @@ public class LabelOf extends ContextFunction implements GraphFunction<Object>
 	{
 		super();
 		m_variable = variable;
+		m_slot = getSlot(variable);
 	}
 
 	@Override
 	public Object evaluate(KnowledgeGraph g, Valuation nu)
 	{
-		Object o = evaluateFromValuation(m_variable, g, nu);
-		if (o == null || !(o instanceof GraphNode))
+		return getLabel(evaluateFromValuation(m_variable, m_slot, nu));
+	}
+
+	/**
+	 * Gets the label of a node or an edge.
+	 * @param o The node or the edge
+	 * @return The label, or {@code null} if the object is neither a node nor
+	 * an edge
+	 */
+	protected static Object getLabel(Object o)
+	{
+		if (o instanceof GraphNode)
+		{
+			return ((GraphNode) o).getData();
+		}
+		if (o instanceof GraphEdge)
+		{
+			return ((GraphEdge) o).getLabel();
+		}
+		return null;
+	}
+
+	@Override
+	public boolean getFreeVariables(BitSet slots)
+	{
+		if (m_slot >= 0)
 		{
-			return null;
+			slots.set(m_slot);
 		}
-		GraphNode node = (GraphNode) o;
-		return node.getData();
+		return true;
 	}
 	
 	@Override
@@ -91,12 +126,6 @@ public class LabelOf extends ContextFunction implements GraphFunction<Object>
 	public void evaluate(Object[] inputs, Object[] outputs, Context c, EventTracker t)
 	{
 		KnowledgeGraph g = (KnowledgeGraph) inputs[0];
-		Object o = evaluateFromContext(m_variable, g, c);
-		if (o == null || !(o instanceof GraphNode))
-		{
-			outputs[0] = null;
-		}
-		GraphNode node = (GraphNode) o;
-		outputs[0] = node.getData();
+		outputs[0] = getLabel(evaluateFromContext(m_variable, g, c));
 	}
 }
@@ -0,0 +1,571 @@
+/*
+    Basic processing of SPARQL queries in Java
+    Copyright (C) 2024 Sylvain Hallé
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Lesser General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.uqac.lif.sparql;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A read-only knowledge graph that is read in place from a buffer holding
+ * the binary format produced by {@link BinaryGraphRenderer}. The buffer is
+ * typically a file mapped in memory with {@link #map(Path)}: opening the
+ * graph then only reads the header of the file and the table of labels, and
+ * the operating system loads the pages of the file as they are accessed.
+ * Apart from the table of labels, the graph holds nothing on the heap; the
+ * {@link GraphNode} and {@link GraphEdge} objects it returns are created on
+ * demand from the contents of the buffer. In particular, the nodes whose
+ * data lies in an interval are found by reading the data of every node,
+ * instead of building an index of numerical values as
+ * {@link KnowledgeGraph#getNodesInRange(double, boolean, double, boolean)
+ * KnowledgeGraph} does.
+ * <p>
+ * The format starts with a header made of:
+ * <ol>
+ * <li>the magic number {@link #MAGIC} and the version of the format;</li>
+ * <li>the number of node positions, edges, labels, nodes carrying data and
+ * indexed values, followed by a reserved integer;</li>
+ * <li>the offset, from the start of the buffer, of each of the
+ * {@link #NUM_SECTIONS} sections of the file.</li>
+ * </ol>
+ * Each section starts at a multiple of 8 bytes, and is an array of
+ * little-endian integers (or longs, for the identifiers of the nodes) laid
+ * out as described in {@link CompactKnowledgeGraph}, save for two blobs of
+ * bytes: the labels, encoded in UTF-8, and the data of the nodes, each value
+ * being a type tag followed by its binary representation. The last two
+ * sections are a table of the hash codes of the data of the nodes, sorted so
+ * that the nodes carrying a given value can be found by binary search.
+ * <p>
+ * A buffer is limited to 2 GB; larger graphs must be split. Several threads
+ * can query the graph concurrently, as only absolute reads are performed on
+ * the buffer.
+ * @author Sylvain Hallé
+ */
+public class MappedKnowledgeGraph extends CompactKnowledgeGraph
+{
+	/**
+	 * The magic number at the start of the format ("KGBF" in ASCII).
+	 */
+	public static final int MAGIC = 0x4B474246;
+
+	/**
+	 * The current version of the format.
+	 */
+	public static final int VERSION = 1;
+
+	/**
+	 * The section holding the identifiers of the nodes (longs).
+	 */
+	protected static final int S_IDS = 0;
+
+	protected static final int S_OUT_OFFSETS = 1;
+
+	protected static final int S_OUT_LABELS = 2;
+
+	protected static final int S_OUT_TARGETS = 3;
+
+	protected static final int S_IN_OFFSETS = 4;
+
+	protected static final int S_IN_LABELS = 5;
+
+	protected static final int S_IN_SOURCES = 6;
+
+	protected static final int S_LABEL_OFFSETS = 7;
+
+	protected static final int S_LABEL_EDGES = 8;
+
+	/**
+	 * The section holding the offset of each label in {@link #S_LABEL_BYTES}.
+	 */
+	protected static final int S_LABEL_STRINGS = 9;
+
+	protected static final int S_LABEL_BYTES = 10;
+
+	/**
+	 * The section holding the positions of the nodes that carry data.
+	 */
+	protected static final int S_DATA_NODES = 11;
+
+	/**
+	 * The section holding, for each position, the offset of the data of the
+	 * node in {@link #S_DATA_BYTES}, or -1 if the node carries no data.
+	 */
+	protected static final int S_DATA_OFFSETS = 12;
+
+	protected static final int S_DATA_BYTES = 13;
+
+	/**
+	 * The section holding the sorted hash codes of the values of the nodes,
+	 * normalized as in {@link ValueIndex}.
+	 */
+	protected static final int S_VALUE_HASHES = 14;
+
+	/**
+	 * The section holding the position of the node corresponding to each
+	 * hash code of {@link #S_VALUE_HASHES}.
+	 */
+	protected static final int S_VALUE_NODES = 15;
+
+	/**
+	 * The number of sections in the format.
+	 */
+	protected static final int NUM_SECTIONS = 16;
+
+	/**
+	 * The size of the header, in bytes.
+	 */
+	protected static final int HEADER_SIZE = 32 + 8 * NUM_SECTIONS;
+
+	/*
+	 * The type tags of the data of the nodes.
+	 */
+	protected static final byte T_NULL = 0;
+
+	protected static final byte T_INTEGER = 1;
+
+	protected static final byte T_LONG = 2;
+
+	protected static final byte T_FLOAT = 3;
+
+	protected static final byte T_DOUBLE = 4;
+
+	protected static final byte T_BOOLEAN = 5;
+
+	protected static final byte T_STRING = 6;
+
+	/**
+	 * The buffer holding the graph.
+	 */
+	/*@ non_null @*/ protected final ByteBuffer m_buffer;
+
+	/**
+	 * The number of node positions.
+	 */
+	protected final int m_nodeCount;
+
+	/**
+	 * The number of nodes carrying data.
+	 */
+	protected final int m_dataCount;
+
+	/**
+	 * The number of entries in the table of hash codes.
+	 */
+	protected final int m_valueCount;
+
+	/**
+	 * The start of each section in the buffer.
+	 */
+	/*@ non_null @*/ protected final int[] m_sections;
+
+	/*
+	 * Copies of the start of the most frequently accessed sections.
+	 */
+	protected final int m_ids;
+
+	protected final int m_outOffsets;
+
+	protected final int m_outLabels;
+
+	protected final int m_outTargets;
+
+	protected final int m_inOffsets;
+
+	protected final int m_inLabels;
+
+	protected final int m_inSources;
+
+	/**
+	 * The identifier in the {@link LabelDictionary} of each local label.
+	 */
+	/*@ non_null @*/ protected final int[] m_globalLabels;
+
+	/**
+	 * The local identifier of each label of the {@link LabelDictionary}, or
+	 * -1 if no edge of the graph carries this label.
+	 */
+	/*@ non_null @*/ protected final int[] m_localLabels;
+
+	/**
+	 * Opens a graph stored in a file, by mapping the file in memory.
+	 * @param path The path of the file
+	 * @return The graph
+	 * @throws IOException If the file cannot be read, or does not contain a
+	 * graph in the expected format
+	 */
+	/*@ non_null @*/ public static MappedKnowledgeGraph map(/*@ non_null @*/ Path path) throws IOException
+	{
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ))
+		{
+			long size = channel.size();
+			if (size > Integer.MAX_VALUE)
+			{
+				throw new IOException("Graph file larger than 2 GB");
+			}
+			// The mapping remains valid after the channel is closed
+			return new MappedKnowledgeGraph(channel.map(FileChannel.MapMode.READ_ONLY, 0, size));
+		}
+	}
+
+	/**
+	 * Creates a graph reading its contents from a buffer.
+	 * @param buffer The buffer, starting at position 0
+	 * @throws IOException If the buffer does not contain a graph in the
+	 * expected format
+	 */
+	public MappedKnowledgeGraph(/*@ non_null @*/ ByteBuffer buffer) throws IOException
+	{
+		super();
+		m_buffer = buffer.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+		int limit = m_buffer.limit();
+		if (limit < HEADER_SIZE || m_buffer.getInt(0) != MAGIC)
+		{
+			throw new IOException("Not a binary graph");
+		}
+		if (m_buffer.getInt(4) != VERSION)
+		{
+			throw new IOException("Unsupported version of the binary graph format: " + m_buffer.getInt(4));
+		}
+		m_nodeCount = m_buffer.getInt(8);
+		int edge_count = m_buffer.getInt(12);
+		int label_count = m_buffer.getInt(16);
+		m_dataCount = m_buffer.getInt(20);
+		m_valueCount = m_buffer.getInt(24);
+		if (m_nodeCount < 0 || edge_count < 0 || label_count < 0 || m_dataCount < 0 || m_valueCount < 0)
+		{
+			throw new IOException("Corrupted binary graph");
+		}
+		long[] lengths = getSectionLengths(m_nodeCount, edge_count, label_count, m_dataCount, m_valueCount);
+		m_sections = new int[NUM_SECTIONS];
+		for (int i = 0; i < NUM_SECTIONS; i++)
+		{
+			long start = m_buffer.getLong(32 + 8 * i);
+			long length = i == S_LABEL_BYTES || i == S_DATA_BYTES ? 0 : lengths[i];
+			if (start < HEADER_SIZE || start + length > limit)
+			{
+				throw new IOException("Corrupted binary graph");
+			}
+			m_sections[i] = (int) start;
+		}
+		m_ids = m_sections[S_IDS];
+		m_outOffsets = m_sections[S_OUT_OFFSETS];
+		m_outLabels = m_sections[S_OUT_LABELS];
+		m_outTargets = m_sections[S_OUT_TARGETS];
+		m_inOffsets = m_sections[S_IN_OFFSETS];
+		m_inLabels = m_sections[S_IN_LABELS];
+		m_inSources = m_sections[S_IN_SOURCES];
+		// Intern the labels of the graph in the dictionary
+		m_globalLabels = new int[label_count];
+		int max_label = -1;
+		for (int i = 0; i < label_count; i++)
+		{
+			int start = m_sections[S_LABEL_BYTES] + getInt(S_LABEL_STRINGS, i);
+			int end = m_sections[S_LABEL_BYTES] + getInt(S_LABEL_STRINGS, i + 1);
+			m_globalLabels[i] = LabelDictionary.getId(readString(start, end - start));
+			max_label = Math.max(max_label, m_globalLabels[i]);
+		}
+		m_localLabels = new int[max_label + 1];
+		Arrays.fill(m_localLabels, -1);
+		for (int i = 0; i < label_count; i++)
+		{
+			m_localLabels[m_globalLabels[i]] = i;
+		}
+	}
+
+	/**
+	 * Computes the length in bytes of each section of the format. The length
+	 * of the two sections holding a variable number of bytes is set to 0.
+	 * @param nodes The number of node positions
+	 * @param edges The number of edges
+	 * @param labels The number of labels
+	 * @param data The number of nodes carrying data
+	 * @param values The number of entries in the table of hash codes
+	 * @return The lengths
+	 */
+	protected static long[] getSectionLengths(long nodes, long edges, long labels, long data, long values)
+	{
+		long[] lengths = new long[NUM_SECTIONS];
+		lengths[S_IDS] = 8 * nodes;
+		lengths[S_OUT_OFFSETS] = 4 * (nodes + 1);
+		lengths[S_OUT_LABELS] = 4 * edges;
+		lengths[S_OUT_TARGETS] = 4 * edges;
+		lengths[S_IN_OFFSETS] = 4 * (nodes + 1);
+		lengths[S_IN_LABELS] = 4 * edges;
+		lengths[S_IN_SOURCES] = 4 * edges;
+		lengths[S_LABEL_OFFSETS] = 4 * (labels + 1);
+		lengths[S_LABEL_EDGES] = 4 * edges;
+		lengths[S_LABEL_STRINGS] = 4 * (labels + 1);
+		lengths[S_DATA_NODES] = 4 * data;
+		lengths[S_DATA_OFFSETS] = 4 * nodes;
+		lengths[S_VALUE_HASHES] = 4 * values;
+		lengths[S_VALUE_NODES] = 4 * values;
+		return lengths;
+	}
+
+	@Override
+	public Collection<GraphNode> getNodes()
+	{
+		return new AbstractList<GraphNode>()
+		{
+			@Override
+			public GraphNode get(int index)
+			{
+				if (index < 0 || index >= m_dataCount)
+				{
+					throw new IndexOutOfBoundsException();
+				}
+				return getNodeAt(getInt(S_DATA_NODES, index));
+			}
+
+			@Override
+			public int size()
+			{
+				return m_dataCount;
+			}
+		};
+	}
+
+	@Override
+	public int size()
+	{
+		return m_dataCount;
+	}
+
+	@Override
+	public Collection<GraphNode> getNodesWithData(Object data)
+	{
+		Object key = ValueIndex.normalize(data);
+		if (key == null)
+		{
+			return Collections.emptyList();
+		}
+		int h = key.hashCode();
+		int lo = 0, hi = m_valueCount;
+		while (lo < hi)
+		{
+			int mid = (lo + hi) >>> 1;
+			if (getInt(S_VALUE_HASHES, mid) < h)
+			{
+				lo = mid + 1;
+			}
+			else
+			{
+				hi = mid;
+			}
+		}
+		List<GraphNode> nodes = new ArrayList<GraphNode>();
+		for (int k = lo; k < m_valueCount && getInt(S_VALUE_HASHES, k) == h; k++)
+		{
+			int index = getInt(S_VALUE_NODES, k);
+			if (hasData(index, data))
+			{
+				nodes.add(getNodeAt(index));
+			}
+		}
+		return nodes;
+	}
+
+	/**
+	 * Gets the nodes of the graph whose data is a number lying in a given
+	 * interval. The format has no index of numerical values: this method
+	 * reads the data of all the nodes, which takes linear time, and only
+	 * keeps the nodes it returns on the heap.
+	 */
+	@Override
+	public Collection<GraphNode> getNodesInRange(double low, boolean include_low, double high, boolean include_high)
+	{
+		List<GraphNode> nodes = new ArrayList<GraphNode>();
+		for (int k = 0; k < m_dataCount; k++)
+		{
+			int index = getInt(S_DATA_NODES, k);
+			int offset = m_sections[S_DATA_BYTES] + getInt(S_DATA_OFFSETS, index);
+			byte type = m_buffer.get(offset);
+			if (type < T_INTEGER || type > T_DOUBLE)
+			{
+				// Not a number
+				continue;
+			}
+			// Comparisons with NaN are false, so that NaN is never in the interval
+			double x = ((Number) readData(offset)).doubleValue();
+			if ((x > low || (include_low && x == low)) && (x < high || (include_high && x == high)))
+			{
+				nodes.add(getNodeAt(index));
+			}
+		}
+		return nodes;
+	}
+
+	@Override
+	protected int getNodeCount()
+	{
+		return m_nodeCount;
+	}
+
+	@Override
+	protected long getNodeId(int index)
+	{
+		return m_buffer.getLong(m_ids + 8 * index);
+	}
+
+	@Override
+	protected GraphNode getNodeAt(int index)
+	{
+		int offset = getInt(S_DATA_OFFSETS, index);
+		if (offset < 0)
+		{
+			return null;
+		}
+		return new WritableGraphNode(getNodeId(index), readData(m_sections[S_DATA_BYTES] + offset));
+	}
+
+	@Override
+	protected boolean hasData(int index, Object value)
+	{
+		int offset = getInt(S_DATA_OFFSETS, index);
+		return offset >= 0 && IsEqualTo.equalObjects(readData(m_sections[S_DATA_BYTES] + offset), value);
+	}
+
+	@Override
+	protected int getOutOffset(int index)
+	{
+		return m_buffer.getInt(m_outOffsets + 4 * index);
+	}
+
+	@Override
+	protected int getOutLabel(int p)
+	{
+		return m_buffer.getInt(m_outLabels + 4 * p);
+	}
+
+	@Override
+	protected int getOutTarget(int p)
+	{
+		return m_buffer.getInt(m_outTargets + 4 * p);
+	}
+
+	@Override
+	protected int getInOffset(int index)
+	{
+		return m_buffer.getInt(m_inOffsets + 4 * index);
+	}
+
+	@Override
+	protected int getInLabel(int p)
+	{
+		return m_buffer.getInt(m_inLabels + 4 * p);
+	}
+
+	@Override
+	protected int getInSource(int p)
+	{
+		return m_buffer.getInt(m_inSources + 4 * p);
+	}
+
+	@Override
+	protected int getLabelCount()
+	{
+		return m_globalLabels.length;
+	}
+
+	@Override
+	protected int getLabelOffset(int label)
+	{
+		return getInt(S_LABEL_OFFSETS, label);
+	}
+
+	@Override
+	protected int getLabelEdge(int k)
+	{
+		return getInt(S_LABEL_EDGES, k);
+	}
+
+	@Override
+	protected int toLocalLabel(int label)
+	{
+		return label >= 0 && label < m_localLabels.length ? m_localLabels[label] : -1;
+	}
+
+	@Override
+	protected int toGlobalLabel(int label)
+	{
+		return m_globalLabels[label];
+	}
+
+	/**
+	 * Reads an element of a section made of integers.
+	 * @param section The section
+	 * @param index The index of the element
+	 * @return The element
+	 */
+	protected int getInt(int section, int index)
+	{
+		return m_buffer.getInt(m_sections[section] + 4 * index);
+	}
+
+	/**
+	 * Reads a value of the data of a node.
+	 * @param offset The position of the value in the buffer
+	 * @return The value
+	 */
+	protected Object readData(int offset)
+	{
+		switch (m_buffer.get(offset))
+		{
+		case T_INTEGER:
+			return m_buffer.getInt(offset + 1);
+		case T_LONG:
+			return m_buffer.getLong(offset + 1);
+		case T_FLOAT:
+			return m_buffer.getFloat(offset + 1);
+		case T_DOUBLE:
+			return m_buffer.getDouble(offset + 1);
+		case T_BOOLEAN:
+			return m_buffer.get(offset + 1) != 0;
+		case T_STRING:
+			return readString(offset + 5, m_buffer.getInt(offset + 1));
+		default:
+			return null;
+		}
+	}
+
+	/**
+	 * Reads a string encoded in UTF-8.
+	 * @param offset The position of the first byte in the buffer
+	 * @param length The number of bytes
+	 * @return The string
+	 */
+	protected String readString(int offset, int length)
+	{
+		byte[] bytes = new byte[length];
+		for (int i = 0; i < length; i++)
+		{
+			bytes[i] = m_buffer.get(offset + i);
+		}
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+}
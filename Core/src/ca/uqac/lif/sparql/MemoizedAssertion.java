@@ -0,0 +1,372 @@
+/*
+    Basic processing of SPARQL queries in Java
+    Copyright (C) 2024 Sylvain Hallé
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Lesser General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.uqac.lif.sparql;
+
+import java.lang.ref.WeakReference;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * An assertion that caches the results of another assertion. The result of
+ * an assertion only depends on the graph and on the values of its free
+ * variables; the cache hence associates the values of these variables to
+ * the result obtained for them, and is emptied whenever the assertion is
+ * evaluated on another graph, or on a graph whose
+ * {@link KnowledgeGraph#getVersion() version} has changed. The cache holds a
+ * bounded number of entries, and discards the least recently used ones.
+ * <p>
+ * The typical use of this class is to avoid evaluating repeatedly a
+ * subformula that does not depend on all the variables of the quantifiers
+ * that enclose it. In
+ * {@code allNodes("$x", allNodes("$y", or(eq(l("$x"), 0), existsNode("$z", connected("$y", "r", "$z")))))},
+ * the subformula starting at {@code existsNode} does not depend on
+ * {@code $x}: caching its result makes it evaluated once for every node
+ * {@code $y} instead of once for every pair of nodes. Method
+ * {@link #memoize(GraphAssertion)} finds such subformulas in an assertion
+ * and wraps them in a {@link MemoizedAssertion}.
+ * <p>
+ * The cache is shared by concurrent evaluations of the assertion; accesses
+ * to it are synchronized, but the evaluation of the wrapped assertion is
+ * not.
+ * @author Sylvain Hallé
+ */
+public class MemoizedAssertion implements GraphAssertion
+{
+	/**
+	 * The default maximum number of entries in the cache.
+	 */
+	public static final int DEFAULT_CAPACITY = 1 << 16;
+
+	/**
+	 * Wraps in a {@link MemoizedAssertion} each quantifier (or each
+	 * {@link JoinPlan} or {@link TrieJoin} produced by the
+	 * {@link QueryPlanner}) of an assertion
+	 * that does not depend on the variable of at least one of the quantifiers
+	 * that enclose it. Assertions are recognized as described in
+	 * {@link QueryPlanner}; a subformula whose free variables cannot be all
+	 * determined is left unchanged.
+	 * @param phi The assertion
+	 * @return The assertion with memoized subformulas
+	 */
+	/*@ non_null @*/ public static GraphAssertion memoize(/*@ non_null @*/ GraphAssertion phi)
+	{
+		return memoize(phi, new BitSet());
+	}
+
+	/**
+	 * Wraps the subformulas of an assertion in a {@link MemoizedAssertion}.
+	 * @param phi The assertion
+	 * @param bound The variables bound by the quantifiers enclosing the
+	 * assertion
+	 * @return The assertion with memoized subformulas
+	 */
+	/*@ non_null @*/ protected static GraphAssertion memoize(/*@ non_null @*/ GraphAssertion phi, /*@ non_null @*/ BitSet bound)
+	{
+		Class<?> c = phi.getClass();
+		if (c == Conjunction.class)
+		{
+			return new Conjunction(memoizeAll(((Conjunction) phi).m_operands, bound));
+		}
+		if (c == Disjunction.class)
+		{
+			return new Disjunction(memoizeAll(((Disjunction) phi).m_operands, bound));
+		}
+		if (c == Negation.class)
+		{
+			return new Negation(memoize(((Negation) phi).m_operand, bound));
+		}
+		GraphAssertion psi;
+		if (c == ExistsNode.class || c == ForAllNodes.class || c == ExistsEdge.class || c == ForAllEdges.class)
+		{
+			psi = memoizeQuantifier((Quantifier<?>) phi, bound);
+		}
+		else if (c == JoinPlan.class || c == TrieJoin.class)
+		{
+			psi = phi;
+		}
+		else
+		{
+			return phi;
+		}
+		BitSet free = new BitSet();
+		if (bound.isEmpty() || !psi.getFreeVariables(free))
+		{
+			return psi;
+		}
+		BitSet used = (BitSet) bound.clone();
+		used.and(free);
+		if (used.equals(bound))
+		{
+			// The subformula depends on all the enclosing variables
+			return psi;
+		}
+		return new MemoizedAssertion(psi, free);
+	}
+
+	/**
+	 * Wraps the subformulas of each assertion of an array in a
+	 * {@link MemoizedAssertion}.
+	 * @param operands The assertions
+	 * @param bound The variables bound by the quantifiers enclosing the
+	 * assertions
+	 * @return The assertions with memoized subformulas
+	 */
+	/*@ non_null @*/ protected static GraphAssertion[] memoizeAll(/*@ non_null @*/ GraphAssertion[] operands, /*@ non_null @*/ BitSet bound)
+	{
+		GraphAssertion[] out = new GraphAssertion[operands.length];
+		for (int i = 0; i < operands.length; i++)
+		{
+			out[i] = memoize(operands[i], bound);
+		}
+		return out;
+	}
+
+	/**
+	 * Wraps the subformulas of the operand of a quantifier in a
+	 * {@link MemoizedAssertion}, and creates a copy of the quantifier with
+	 * the new operand.
+	 * @param q The quantifier
+	 * @param bound The variables bound by the quantifiers enclosing the
+	 * quantifier
+	 * @return The new quantifier
+	 */
+	@SuppressWarnings("unchecked")
+	/*@ non_null @*/ protected static GraphAssertion memoizeQuantifier(/*@ non_null @*/ Quantifier<?> q, /*@ non_null @*/ BitSet bound)
+	{
+		BitSet inner = (BitSet) bound.clone();
+		inner.set(q.m_slot);
+		GraphAssertion body = memoize(q.m_phi, inner);
+		Class<?> c = q.getClass();
+		if (c == ExistsNode.class)
+		{
+			return new ExistsNode(q.m_variable, (Domain<GraphNode>) q.m_domain, body);
+		}
+		if (c == ForAllNodes.class)
+		{
+			return new ForAllNodes(q.m_variable, (Domain<GraphNode>) q.m_domain, body);
+		}
+		if (c == ExistsEdge.class)
+		{
+			return new ExistsEdge(q.m_variable, (Domain<GraphEdge>) q.m_domain, body);
+		}
+		return new ForAllEdges(q.m_variable, (Domain<GraphEdge>) q.m_domain, body);
+	}
+
+	/**
+	 * The assertion whose results are cached.
+	 */
+	/*@ non_null @*/ protected final GraphAssertion m_phi;
+
+	/**
+	 * The free variables of the assertion, whose values form the key of the
+	 * cache.
+	 */
+	/*@ non_null @*/ protected final int[] m_slots;
+
+	/**
+	 * The cache, in access order.
+	 */
+	/*@ non_null @*/ protected final LinkedHashMap<Key,Boolean> m_cache;
+
+	/**
+	 * The graph on which the results in the cache have been computed. The
+	 * reference is weak so that the cache does not keep a graph alive.
+	 */
+	/*@ non_null @*/ protected WeakReference<KnowledgeGraph> m_graph;
+
+	/**
+	 * The version of the graph on which the results in the cache have been
+	 * computed.
+	 */
+	protected long m_version;
+
+	/**
+	 * Creates a new memoized assertion with a cache of default capacity.
+	 * @param phi The assertion whose results are cached
+	 * @param free The free variables of the assertion, which must include all
+	 * the variables read by the assertion that are not bound inside it
+	 */
+	public MemoizedAssertion(/*@ non_null @*/ GraphAssertion phi, /*@ non_null @*/ BitSet free)
+	{
+		this(phi, free, DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * Creates a new memoized assertion.
+	 * @param phi The assertion whose results are cached
+	 * @param free The free variables of the assertion, which must include all
+	 * the variables read by the assertion that are not bound inside it
+	 * @param capacity The maximum number of entries in the cache
+	 */
+	@SuppressWarnings("serial")
+	public MemoizedAssertion(/*@ non_null @*/ GraphAssertion phi, /*@ non_null @*/ BitSet free, int capacity)
+	{
+		super();
+		m_phi = phi;
+		m_slots = free.stream().toArray();
+		m_cache = new LinkedHashMap<Key,Boolean>(16, 0.75f, true)
+		{
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Key,Boolean> eldest)
+			{
+				return size() > capacity;
+			}
+		};
+		m_graph = new WeakReference<KnowledgeGraph>(null);
+	}
+
+	@Override
+	public Boolean evaluate(KnowledgeGraph graph, Valuation nu)
+	{
+		Key key = new Key(nu, m_slots);
+		long version = graph.getVersion();
+		synchronized (m_cache)
+		{
+			if (m_graph.get() != graph || m_version != version)
+			{
+				m_cache.clear();
+				m_graph = new WeakReference<KnowledgeGraph>(graph);
+				m_version = version;
+			}
+			Boolean b = m_cache.get(key);
+			if (b != null)
+			{
+				return b;
+			}
+		}
+		Boolean b = m_phi.evaluate(graph, nu);
+		synchronized (m_cache)
+		{
+			if (m_graph.get() == graph && m_version == version)
+			{
+				m_cache.put(key, b);
+			}
+		}
+		return b;
+	}
+
+	@Override
+	public boolean getFreeVariables(BitSet slots)
+	{
+		return m_phi.getFreeVariables(slots);
+	}
+
+	/**
+	 * The values of the free variables of an assertion, used as a key in the
+	 * cache. Nodes are compared by their identifier, since some graphs create
+	 * a new {@link GraphNode} object every time a node is fetched; the other
+	 * values, including edges, are compared with {@link Object#equals(Object)}.
+	 */
+	protected static class Key
+	{
+		/**
+		 * The values of the variables.
+		 */
+		/*@ non_null @*/ protected final Object[] m_values;
+
+		/**
+		 * The hash code of the key.
+		 */
+		protected final int m_hashCode;
+
+		/**
+		 * Creates a new key.
+		 * @param nu The valuation
+		 * @param slots The variables whose values form the key
+		 */
+		public Key(/*@ non_null @*/ Valuation nu, /*@ non_null @*/ int[] slots)
+		{
+			super();
+			m_values = new Object[slots.length];
+			int h = 1;
+			for (int i = 0; i < slots.length; i++)
+			{
+				Object o = nu.get(slots[i]);
+				m_values[i] = o;
+				h = 31 * h + hash(o);
+			}
+			m_hashCode = h;
+		}
+
+		@Override
+		public int hashCode()
+		{
+			return m_hashCode;
+		}
+
+		@Override
+		public boolean equals(Object o)
+		{
+			if (!(o instanceof Key))
+			{
+				return false;
+			}
+			Key k = (Key) o;
+			if (k.m_hashCode != m_hashCode || k.m_values.length != m_values.length)
+			{
+				return false;
+			}
+			for (int i = 0; i < m_values.length; i++)
+			{
+				if (!same(m_values[i], k.m_values[i]))
+				{
+					return false;
+				}
+			}
+			return true;
+		}
+
+		@Override
+		public String toString()
+		{
+			return Arrays.toString(m_values);
+		}
+
+		/**
+		 * Computes the hash code of a value.
+		 * @param o The value
+		 * @return The hash code
+		 */
+		protected static int hash(Object o)
+		{
+			if (o instanceof GraphNode)
+			{
+				return Long.hashCode(((GraphNode) o).getId());
+			}
+			return o == null ? 0 : o.hashCode();
+		}
+
+		/**
+		 * Determines if two values are the same.
+		 * @param o1 The first value
+		 * @param o2 The second value
+		 * @return {@code true} if the values are the same, {@code false}
+		 * otherwise
+		 */
+		protected static boolean same(Object o1, Object o2)
+		{
+			if (o1 instanceof GraphNode && o2 instanceof GraphNode)
+			{
+				return ((GraphNode) o1).getId() == ((GraphNode) o2).getId();
+			}
+			return o1 == null ? o2 == null : o1.equals(o2);
+		}
+	}
+}
@@ -0,0 +1,236 @@
+/*
+    Basic processing of SPARQL queries in Java
+    Copyright (C) 2024 Sylvain Hallé
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Lesser General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.uqac.lif.sparql;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * Rewrites a graph assertion so that each quantifier only encloses the parts
+ * of its operand that mention its variable. Users often write assertions in
+ * prenex form, with all the quantifiers first and all the conditions
+ * inside the innermost one; each condition is then evaluated once for every
+ * combination of values of all the variables, even those it does not
+ * mention. The rewriting proceeds in three steps:
+ * <ol>
+ * <li>Negations are pushed inward, down to the atomic assertions, using De
+ * Morgan's laws and the duality between quantifiers; double negations are
+ * removed.</li>
+ * <li>A universal quantifier over a conjunction is split into a conjunction
+ * of universal quantifiers, and an existential quantifier over a disjunction
+ * is split into a disjunction of existential quantifiers (provided each
+ * disjunct mentions the variable).</li>
+ * <li>In an existential quantifier over a conjunction, the conjuncts that
+ * do not mention the variable are hoisted out of the quantifier:
+ * {@code existsNode("$x", and(phi, psi))} becomes
+ * {@code and(psi, existsNode("$x", phi))} if {@code psi} does not mention
+ * {@code $x}; dually, disjuncts that do not mention the variable of a
+ * universal quantifier are hoisted out of it. A condition on outer
+ * variables is thus evaluated in the loop of the innermost variable it
+ * mentions, and prunes the inner loops when it fails.</li>
+ * </ol>
+ * Conjuncts are only hoisted when at least one of them mentions the
+ * variable; a quantifier whose operand does not mention its variable at all
+ * is kept, since its value depends on whether the graph is empty.
+ * <p>
+ * Assertions are recognized as described in {@link QueryPlanner};
+ * quantifiers that already have a {@link Domain} are kept in place, and
+ * only their operand is rewritten. A subformula whose free variables cannot
+ * be all determined is considered to mention every variable. The rewriting is meant to be applied first, before the planner
+ * or the {@link AssertionCompiler}.
+ * @author Sylvain Hallé
+ */
+public final class Miniscoper
+{
+	/**
+	 * Cannot be instantiated.
+	 */
+	private Miniscoper()
+	{
+		super();
+	}
+
+	/**
+	 * Rewrites an assertion by narrowing the scope of its quantifiers.
+	 * @param phi The assertion
+	 * @return An equivalent assertion
+	 */
+	/*@ non_null @*/ public static GraphAssertion rewrite(/*@ non_null @*/ GraphAssertion phi)
+	{
+		return rewrite(phi, false);
+	}
+
+	/**
+	 * Rewrites an assertion or its negation.
+	 * @param phi The assertion
+	 * @param negated Set to {@code true} to rewrite the negation of the
+	 * assertion
+	 * @return The rewritten assertion
+	 */
+	/*@ non_null @*/ protected static GraphAssertion rewrite(/*@ non_null @*/ GraphAssertion phi, boolean negated)
+	{
+		Class<?> c = phi.getClass();
+		if (c == Negation.class)
+		{
+			return rewrite(((Negation) phi).m_operand, !negated);
+		}
+		if (c == Conjunction.class || c == Disjunction.class)
+		{
+			GraphAssertion[] operands = ((NaryConnective) phi).m_operands;
+			Object[] rewritten = new Object[operands.length];
+			for (int i = 0; i < operands.length; i++)
+			{
+				rewritten[i] = rewrite(operands[i], negated);
+			}
+			// De Morgan: the negation of a conjunction is a disjunction
+			if ((c == Conjunction.class) != negated)
+			{
+				return Conjunction.and(rewritten);
+			}
+			return Disjunction.or(rewritten);
+		}
+		if (c == ExistsNode.class || c == ForAllNodes.class || c == ExistsEdge.class || c == ForAllEdges.class)
+		{
+			Quantifier<?> q = (Quantifier<?>) phi;
+			boolean edge = c == ExistsEdge.class || c == ForAllEdges.class;
+			boolean exists = (c == ExistsNode.class || c == ExistsEdge.class) != negated;
+			GraphAssertion body = rewrite(q.m_phi, negated);
+			if (q.m_domain != null)
+			{
+				return copy(q, exists, body);
+			}
+			return quantify(q.m_variable, q.m_slot, edge, exists, body);
+		}
+		return negated ? new Negation(phi) : phi;
+	}
+
+	/**
+	 * Creates a quantifier over an operand, after splitting the quantifier or
+	 * hoisting the parts of the operand that do not mention its variable.
+	 * @param variable The variable of the quantifier
+	 * @param slot The identifier of the variable
+	 * @param edge Set to {@code true} to quantify over edges, {@code false}
+	 * to quantify over nodes
+	 * @param exists Set to {@code true} for an existential quantifier,
+	 * {@code false} for a universal quantifier
+	 * @param body The operand of the quantifier, already rewritten
+	 * @return The assertion
+	 */
+	/*@ non_null @*/ protected static GraphAssertion quantify(/*@ non_null @*/ String variable, int slot, boolean edge, boolean exists, /*@ non_null @*/ GraphAssertion body)
+	{
+		Class<?> c = body.getClass();
+		if (c != Conjunction.class && c != Disjunction.class)
+		{
+			return newQuantifier(variable, edge, exists, body);
+		}
+		// The connective over which the quantifier distributes
+		boolean distributes = (c == Conjunction.class) != exists;
+		GraphAssertion[] operands = ((NaryConnective) body).m_operands;
+		List<GraphAssertion> inside = new ArrayList<GraphAssertion>();
+		List<GraphAssertion> outside = new ArrayList<GraphAssertion>();
+		for (GraphAssertion op : operands)
+		{
+			if (mentions(op, slot))
+			{
+				inside.add(op);
+			}
+			else
+			{
+				outside.add(op);
+			}
+		}
+		if (distributes)
+		{
+			if (!outside.isEmpty())
+			{
+				// Quantifying an operand that does not mention the variable
+				// would depend on the emptiness of the graph
+				return newQuantifier(variable, edge, exists, body);
+			}
+			Object[] parts = new Object[operands.length];
+			for (int i = 0; i < operands.length; i++)
+			{
+				parts[i] = quantify(variable, slot, edge, exists, operands[i]);
+			}
+			return c == Conjunction.class ? Conjunction.and(parts) : Disjunction.or(parts);
+		}
+		if (inside.isEmpty() || outside.isEmpty())
+		{
+			return newQuantifier(variable, edge, exists, body);
+		}
+		GraphAssertion inner = c == Conjunction.class ? Conjunction.and(inside.toArray()) : Disjunction.or(inside.toArray());
+		outside.add(quantify(variable, slot, edge, exists, inner));
+		return c == Conjunction.class ? Conjunction.and(outside.toArray()) : Disjunction.or(outside.toArray());
+	}
+
+	/**
+	 * Determines if an assertion mentions a variable.
+	 * @param phi The assertion
+	 * @param slot The identifier of the variable
+	 * @return {@code true} if the variable is free in the assertion, or if
+	 * the free variables of the assertion cannot be determined
+	 */
+	protected static boolean mentions(/*@ non_null @*/ GraphAssertion phi, int slot)
+	{
+		BitSet free = new BitSet();
+		return !phi.getFreeVariables(free) || free.get(slot);
+	}
+
+	/**
+	 * Creates a quantifier.
+	 * @param variable The variable of the quantifier
+	 * @param edge Set to {@code true} to quantify over edges, {@code false}
+	 * to quantify over nodes
+	 * @param exists Set to {@code true} for an existential quantifier,
+	 * {@code false} for a universal quantifier
+	 * @param body The operand of the quantifier
+	 * @return The quantifier
+	 */
+	/*@ non_null @*/ protected static GraphAssertion newQuantifier(/*@ non_null @*/ String variable, boolean edge, boolean exists, /*@ non_null @*/ GraphAssertion body)
+	{
+		if (edge)
+		{
+			return exists ? new ExistsEdge(variable, body) : new ForAllEdges(variable, body);
+		}
+		return exists ? new ExistsNode(variable, body) : new ForAllNodes(variable, body);
+	}
+
+	/**
+	 * Creates a copy of a quantifier with a domain, possibly changing its kind.
+	 * A domain remains valid when the quantifier is negated, as it contains
+	 * all the values for which the operand may decide the result, for either
+	 * kind of quantifier.
+	 * @param q The quantifier
+	 * @param exists Set to {@code true} for an existential quantifier,
+	 * {@code false} for a universal quantifier
+	 * @param body The new operand of the quantifier
+	 * @return The quantifier
+	 */
+	@SuppressWarnings("unchecked")
+	/*@ non_null @*/ protected static GraphAssertion copy(/*@ non_null @*/ Quantifier<?> q, boolean exists, /*@ non_null @*/ GraphAssertion body)
+	{
+		if (q instanceof EdgeQuantifier)
+		{
+			Domain<GraphEdge> domain = (Domain<GraphEdge>) q.m_domain;
+			return exists ? new ExistsEdge(q.m_variable, domain, body) : new ForAllEdges(q.m_variable, domain, body);
+		}
+		Domain<GraphNode> domain = (Domain<GraphNode>) q.m_domain;
+		return exists ? new ExistsNode(q.m_variable, domain, body) : new ForAllNodes(q.m_variable, domain, body);
+	}
+}
@@ -17,10 +17,25 @@
  */
 package ca.uqac.lif.sparql;
 
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.List;
 
 /**
  * A Boolean connective that takes an arbitrary number of operands.
+ * <p>
+ * A connective stops evaluating its operands as soon as one of them
+ * decides its result. Since operands have no side effects, they can be
+ * evaluated in any order; the connective takes advantage of this by
+ * evaluating first the operands that are cheap and that most often decide
+ * the result. To this end, it measures at runtime, on a sample of its
+ * evaluations, the time taken by each operand and how often it decides the
+ * result, and periodically reorders its operands by increasing ratio
+ * between the two, in the manner of classical predicate ordering.
+ * <p>
+ * The statistics are updated without synchronization, which means that
+ * concurrent evaluations may lose some samples; this only affects the
+ * order of the operands, and never the result of the evaluation.
  * @author Sylvain Hallé
  */
 public abstract class NaryConnective implements GraphAssertion
@@ -30,15 +45,179 @@ public abstract class NaryConnective implements GraphAssertion
 	 */
 	/*@ non_null @*/ protected final GraphAssertion[] m_operands;
 
+	/**
+	 * The number of evaluations between two sampled evaluations. Must be a
+	 * power of two.
+	 */
+	protected static final int SAMPLING_PERIOD = 16;
+
+	/**
+	 * The number of evaluations between two reorderings of the operands. Must
+	 * be a multiple of {@link #SAMPLING_PERIOD}.
+	 */
+	protected static final int REORDERING_PERIOD = 1024;
+
+	/**
+	 * The order in which the operands are evaluated, as indices in
+	 * {@link #m_operands}. A reordering replaces the array instead of
+	 * modifying it, so that evaluations in progress are not affected.
+	 */
+	/*@ non_null @*/ protected volatile int[] m_order;
+
+	/**
+	 * The number of times the connective has been evaluated.
+	 */
+	protected int m_evaluations;
+
+	/**
+	 * For each operand, the number of sampled evaluations of the operand.
+	 */
+	/*@ non_null @*/ protected final long[] m_samples;
+
+	/**
+	 * For each operand, the total time, in nanoseconds, of its sampled
+	 * evaluations.
+	 */
+	/*@ non_null @*/ protected final long[] m_time;
+
+	/**
+	 * For each operand, the number of sampled evaluations where the operand
+	 * decided the result of the connective.
+	 */
+	/*@ non_null @*/ protected final long[] m_decisions;
+
 	public NaryConnective(GraphAssertion ... children)
 	{
 		super();
 		m_operands = children;
+		m_order = new int[children.length];
+		for (int i = 0; i < children.length; i++)
+		{
+			m_order[i] = i;
+		}
+		m_samples = new long[children.length];
+		m_time = new long[children.length];
+		m_decisions = new long[children.length];
 	}
 
 	public NaryConnective(List<GraphAssertion> children)
 	{
-		super();
-		m_operands = children.toArray(new GraphAssertion[children.size()]);
+		this(children.toArray(new GraphAssertion[children.size()]));
+	}
+
+	/**
+	 * Evaluates the operands until one of them has a given value.
+	 * @param g The knowledge graph
+	 * @param nu The valuation
+	 * @param decisive The value of an operand that decides the result of the
+	 * connective; this is {@code false} for a conjunction and {@code true}
+	 * for a disjunction
+	 * @return {@code decisive} if one of the operands has this value, its
+	 * negation otherwise
+	 */
+	protected boolean evaluateUntil(KnowledgeGraph g, Valuation nu, boolean decisive)
+	{
+		int[] order = m_order;
+		int evaluations = ++m_evaluations;
+		if ((evaluations & (SAMPLING_PERIOD - 1)) == 0)
+		{
+			if (evaluations % REORDERING_PERIOD == 0)
+			{
+				reorder(decisive);
+			}
+			return evaluateSampled(g, nu, order, decisive);
+		}
+		for (int i : order)
+		{
+			if (m_operands[i].evaluate(g, nu) == decisive)
+			{
+				return decisive;
+			}
+		}
+		return !decisive;
+	}
+
+	/**
+	 * Evaluates the operands until one of them has a given value, and
+	 * records the cost and the outcome of each operand that is evaluated.
+	 * @param g The knowledge graph
+	 * @param nu The valuation
+	 * @param order The order in which to evaluate the operands
+	 * @param decisive The value of an operand that decides the result of the
+	 * connective
+	 * @return {@code decisive} if one of the operands has this value, its
+	 * negation otherwise
+	 */
+	protected boolean evaluateSampled(KnowledgeGraph g, Valuation nu, int[] order, boolean decisive)
+	{
+		for (int i : order)
+		{
+			long start = System.nanoTime();
+			boolean b = m_operands[i].evaluate(g, nu);
+			m_time[i] += System.nanoTime() - start;
+			m_samples[i]++;
+			if (b == decisive)
+			{
+				m_decisions[i]++;
+				return decisive;
+			}
+		}
+		return !decisive;
+	}
+
+	/**
+	 * Sorts the operands by increasing ratio between their average cost and
+	 * the probability that they decide the result of the connective. An
+	 * operand that has never been sampled comes first, so that its cost gets
+	 * measured; an operand that never decided the result comes last. The
+	 * statistics are then halved, so that the order adapts if the cost or
+	 * the outcome of the operands change over time.
+	 * @param decisive The value of an operand that decides the result of the
+	 * connective
+	 */
+	protected synchronized void reorder(boolean decisive)
+	{
+		int n = m_operands.length;
+		double[] ranks = new double[n];
+		Integer[] order = new Integer[n];
+		for (int i = 0; i < n; i++)
+		{
+			order[i] = m_order[i];
+			if (m_samples[i] == 0)
+			{
+				ranks[i] = Double.NEGATIVE_INFINITY;
+			}
+			else if (m_decisions[i] == 0)
+			{
+				ranks[i] = Double.POSITIVE_INFINITY;
+			}
+			else
+			{
+				// Average cost divided by the probability of deciding the result
+				ranks[i] = (double) m_time[i] / m_decisions[i];
+			}
+			m_samples[i] /= 2;
+			m_time[i] /= 2;
+			m_decisions[i] /= 2;
+		}
+		// The sort is stable: operands with equal ranks keep their order
+		Arrays.sort(order, (a, b) -> Double.compare(ranks[a], ranks[b]));
+		int[] new_order = new int[n];
+		for (int i = 0; i < n; i++)
+		{
+			new_order[i] = order[i];
+		}
+		m_order = new_order;
+	}
+
+	@Override
+	public boolean getFreeVariables(BitSet slots)
+	{
+		boolean complete = true;
+		for (GraphAssertion child : m_operands)
+		{
+			complete &= child.getFreeVariables(slots);
+		}
+		return complete;
 	}
 }
\ No newline at end of file
@@ -17,6 +17,8 @@
  */
 package ca.uqac.lif.sparql;
 
+import java.util.BitSet;
+
 /**
  * A negation of a graph assertion.
  * @author Sylvain Hallé
@@ -54,4 +56,10 @@ public class Negation implements GraphAssertion
 	{
 		return !m_operand.evaluate(g, nu);
 	}
+
+	@Override
+	public boolean getFreeVariables(BitSet slots)
+	{
+		return m_operand.getFreeVariables(slots);
+	}
 }
@@ -29,6 +29,11 @@ public abstract class NodeQuantifier extends Quantifier<GraphNode>
 	{
 		super(variable, phi);
 	}
+
+	public NodeQuantifier(String variable, Domain<GraphNode> domain, GraphAssertion phi)
+	{
+		super(variable, domain, phi);
+	}
 	
 	@Override
 	protected Collection<GraphNode> getDomain(KnowledgeGraph graph)
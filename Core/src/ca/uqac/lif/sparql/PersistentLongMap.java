@@ -0,0 +1,777 @@
+/*
+    Basic processing of SPARQL queries in Java
+    Copyright (C) 2024 Sylvain Hallé
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Lesser General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.uqac.lif.sparql;
+
+import java.util.AbstractCollection;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.PrimitiveIterator;
+
+/**
+ * A map whose keys are primitive {@code long} values, implemented as a
+ * persistent hash array mapped trie. Each node of the trie holds up to 32
+ * entries or children, selected by 5 bits of the (mixed) key; the entries
+ * are stored in primitive arrays without any per-entry object.
+ * <p>
+ * The map itself is a mutable handle on the root of a trie. The
+ * {@link #copy()} method runs in constant time: the copy and the original
+ * share all their nodes, and each subsequent update on either map only
+ * copies the nodes on the path from the root to the modified entry (path
+ * copying), which takes time logarithmic in the size of the map. The
+ * contents of one map are therefore never affected by updates made on its
+ * copies.
+ * <p>
+ * To avoid copying the same path over and over, every node records the
+ * "edit token" of the map that created it; a map can modify in place the
+ * nodes that bear its current token, and obtains a fresh token each time it
+ * is copied. An iterator freezes the token of the map it is created from,
+ * so that the next update of the map also obtains a fresh token and leaves
+ * alone the nodes being iterated over. The map does not accept
+ * {@code null} values.
+ *
+ * @param <V> The type of the values
+ * @author Sylvain Hallé
+ */
+public class PersistentLongMap<V>
+{
+	/**
+	 * The number of bits of the key consumed at each level of the trie.
+	 */
+	protected static final int BITS = 5;
+
+	/**
+	 * The maximum depth of the trie.
+	 */
+	protected static final int MAX_DEPTH = 64 / BITS + 1;
+
+	/**
+	 * The root of the trie.
+	 */
+	/*@ non_null @*/ protected Node m_root;
+
+	/**
+	 * The number of mappings in the map.
+	 */
+	protected int m_size;
+
+	/**
+	 * The token identifying the nodes that this map may modify in place.
+	 */
+	/*@ non_null @*/ protected Edit m_edit;
+
+	/**
+	 * The value replaced or removed by the last update operation. This field
+	 * is used to return a second result from the recursive update methods.
+	 */
+	protected Object m_lastValue;
+
+	/**
+	 * Creates a new empty map.
+	 */
+	public PersistentLongMap()
+	{
+		this(new Node(null, 0, 0, new long[0], new Object[0], new Node[0]), 0);
+	}
+
+	/**
+	 * Creates a new map from an existing trie.
+	 * @param root The root of the trie
+	 * @param size The number of mappings in the trie
+	 */
+	protected PersistentLongMap(Node root, int size)
+	{
+		super();
+		m_root = root;
+		m_size = size;
+		m_edit = new Edit();
+	}
+
+	/**
+	 * Gets the number of mappings in the map.
+	 * @return The number of mappings
+	 */
+	public int size()
+	{
+		return m_size;
+	}
+
+	/**
+	 * Determines if the map is empty.
+	 * @return {@code true} if the map contains no mapping, {@code false}
+	 * otherwise
+	 */
+	public boolean isEmpty()
+	{
+		return m_size == 0;
+	}
+
+	/**
+	 * Gets the value associated with a key.
+	 * @param key The key
+	 * @return The value, or {@code null} if the key is not in the map
+	 */
+	@SuppressWarnings("unchecked")
+	public V get(long key)
+	{
+		long h = hash(key);
+		Node n = m_root;
+		int shift = 0;
+		while (true)
+		{
+			int bit = bit(h, shift);
+			if ((n.m_dataMap & bit) != 0)
+			{
+				int idx = index(n.m_dataMap, bit);
+				return n.m_keys[idx] == key ? (V) n.m_values[idx] : null;
+			}
+			if ((n.m_nodeMap & bit) == 0)
+			{
+				return null;
+			}
+			n = n.m_children[index(n.m_nodeMap, bit)];
+			shift += BITS;
+		}
+	}
+
+	/**
+	 * Determines if a key is present in the map.
+	 * @param key The key
+	 * @return {@code true} if the key is present, {@code false} otherwise
+	 */
+	public boolean containsKey(long key)
+	{
+		return get(key) != null;
+	}
+
+	/**
+	 * Associates a value to a key.
+	 * @param key The key
+	 * @param value The value, which must not be {@code null}
+	 * @return The value previously associated with the key, or {@code null}
+	 * if the key was not in the map
+	 */
+	@SuppressWarnings("unchecked")
+	public V put(long key, /*@ non_null @*/ V value)
+	{
+		thaw();
+		m_lastValue = null;
+		m_root = put(m_root, key, hash(key), value, 0);
+		if (m_lastValue == null)
+		{
+			m_size++;
+		}
+		V old = (V) m_lastValue;
+		m_lastValue = null;
+		return old;
+	}
+
+	/**
+	 * Removes the mapping associated with a key.
+	 * @param key The key
+	 * @return The value that was associated with the key, or {@code null}
+	 * if the key was not in the map
+	 */
+	@SuppressWarnings("unchecked")
+	public V remove(long key)
+	{
+		thaw();
+		m_lastValue = null;
+		m_root = remove(m_root, key, hash(key), 0);
+		if (m_lastValue != null)
+		{
+			m_size--;
+		}
+		V old = (V) m_lastValue;
+		m_lastValue = null;
+		return old;
+	}
+
+	/**
+	 * Removes all the mappings of the map.
+	 */
+	public void clear()
+	{
+		thaw();
+		m_root = new Node(m_edit, 0, 0, new long[0], new Object[0], new Node[0]);
+		m_size = 0;
+	}
+
+	/**
+	 * Creates a copy of this map in constant time. The copy shares its
+	 * structure with this map; the values themselves are not copied.
+	 * @return The copy
+	 */
+	public PersistentLongMap<V> copy()
+	{
+		// From now on, neither map may modify the shared nodes in place
+		m_edit = new Edit();
+		return new PersistentLongMap<V>(m_root, m_size);
+	}
+
+	/**
+	 * Gets an iterator over the keys of the map.
+	 * @return The iterator
+	 */
+	public PrimitiveIterator.OfLong keyIterator()
+	{
+		return new KeyIterator(m_edit);
+	}
+
+	/**
+	 * Gets a view of the values of the map. Each iterator of the collection
+	 * enumerates the contents of the map at the moment it is created, and is
+	 * not affected by later updates.
+	 * @return The collection of values
+	 */
+	public Collection<V> values()
+	{
+		return new ValueCollection();
+	}
+
+	/**
+	 * Calls an action on each mapping of the map. Unlike an iterator, the
+	 * visit does not freeze the edit token of the map, and therefore does
+	 * not cause later updates to copy any node; in exchange, the map must not
+	 * be modified by the action.
+	 * @param action The action, which returns {@code false} to stop the visit
+	 * @return {@code false} if the action stopped the visit, {@code true}
+	 * otherwise
+	 */
+	public boolean forEach(/*@ non_null @*/ EntryPredicate<? super V> action)
+	{
+		return forEach(m_root, action);
+	}
+
+	/**
+	 * Calls an action on each mapping of a sub-trie.
+	 * @param n The root of the sub-trie
+	 * @param action The action
+	 * @return {@code false} if the action stopped the visit, {@code true}
+	 * otherwise
+	 */
+	@SuppressWarnings("unchecked")
+	protected boolean forEach(Node n, EntryPredicate<? super V> action)
+	{
+		for (int i = 0; i < n.m_keys.length; i++)
+		{
+			if (!action.test(n.m_keys[i], (V) n.m_values[i]))
+			{
+				return false;
+			}
+		}
+		for (Node child : n.m_children)
+		{
+			if (!forEach(child, action))
+			{
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Replaces the edit token of the map by a new one if an iterator has
+	 * frozen it. This method is called before every update.
+	 */
+	protected void thaw()
+	{
+		if (m_edit.m_frozen)
+		{
+			m_edit = new Edit();
+		}
+	}
+
+	/**
+	 * Inserts a mapping into a sub-trie.
+	 * @param n The root of the sub-trie
+	 * @param key The key
+	 * @param h The hash of the key
+	 * @param value The value
+	 * @param shift The number of bits of the hash already consumed
+	 * @return The new root of the sub-trie
+	 */
+	protected Node put(Node n, long key, long h, Object value, int shift)
+	{
+		int bit = bit(h, shift);
+		if ((n.m_dataMap & bit) != 0)
+		{
+			int idx = index(n.m_dataMap, bit);
+			if (n.m_keys[idx] == key)
+			{
+				m_lastValue = n.m_values[idx];
+				Node e = editable(n);
+				e.m_values[idx] = value;
+				return e;
+			}
+			// Two keys share this position: push both into a new child node
+			Node child = merge(n.m_keys[idx], n.m_values[idx], key, value, h, shift + BITS);
+			Node e = editable(n);
+			int c_idx = index(n.m_nodeMap, bit);
+			e.m_keys = removeAt(n.m_keys, idx);
+			e.m_values = removeAt(n.m_values, idx);
+			e.m_children = insertAt(n.m_children, c_idx, child);
+			e.m_dataMap ^= bit;
+			e.m_nodeMap |= bit;
+			return e;
+		}
+		if ((n.m_nodeMap & bit) != 0)
+		{
+			int c_idx = index(n.m_nodeMap, bit);
+			Node child = n.m_children[c_idx];
+			Node new_child = put(child, key, h, value, shift + BITS);
+			if (new_child == child)
+			{
+				return n;
+			}
+			Node e = editable(n);
+			e.m_children[c_idx] = new_child;
+			return e;
+		}
+		int idx = index(n.m_dataMap, bit);
+		Node e = editable(n);
+		e.m_keys = insertAt(n.m_keys, idx, key);
+		e.m_values = insertAt(n.m_values, idx, value);
+		e.m_dataMap |= bit;
+		return e;
+	}
+
+	/**
+	 * Removes a mapping from a sub-trie. A child node left with a single
+	 * entry and no children is inlined into its parent, so that the shape of
+	 * the trie only depends on its contents.
+	 * @param n The root of the sub-trie
+	 * @param key The key
+	 * @param h The hash of the key
+	 * @param shift The number of bits of the hash already consumed
+	 * @return The new root of the sub-trie
+	 */
+	protected Node remove(Node n, long key, long h, int shift)
+	{
+		int bit = bit(h, shift);
+		if ((n.m_dataMap & bit) != 0)
+		{
+			int idx = index(n.m_dataMap, bit);
+			if (n.m_keys[idx] != key)
+			{
+				return n;
+			}
+			m_lastValue = n.m_values[idx];
+			Node e = editable(n);
+			e.m_keys = removeAt(n.m_keys, idx);
+			e.m_values = removeAt(n.m_values, idx);
+			e.m_dataMap ^= bit;
+			return e;
+		}
+		if ((n.m_nodeMap & bit) == 0)
+		{
+			return n;
+		}
+		int c_idx = index(n.m_nodeMap, bit);
+		Node child = n.m_children[c_idx];
+		Node new_child = remove(child, key, h, shift + BITS);
+		if (new_child == child)
+		{
+			return n;
+		}
+		Node e = editable(n);
+		if (new_child.m_nodeMap == 0 && new_child.m_keys.length == 1)
+		{
+			// Inline the remaining entry of the child
+			int idx = index(n.m_dataMap, bit);
+			e.m_children = removeAt(n.m_children, c_idx);
+			e.m_keys = insertAt(n.m_keys, idx, new_child.m_keys[0]);
+			e.m_values = insertAt(n.m_values, idx, new_child.m_values[0]);
+			e.m_nodeMap ^= bit;
+			e.m_dataMap |= bit;
+			return e;
+		}
+		e.m_children[c_idx] = new_child;
+		return e;
+	}
+
+	/**
+	 * Creates a sub-trie containing two entries whose hashes coincide on the
+	 * bits already consumed.
+	 * @param k1 The first key
+	 * @param v1 The first value
+	 * @param k2 The second key
+	 * @param v2 The second value
+	 * @param h2 The hash of the second key
+	 * @param shift The number of bits of the hash already consumed
+	 * @return The sub-trie
+	 */
+	protected Node merge(long k1, Object v1, long k2, Object v2, long h2, int shift)
+	{
+		// Since the hash function is a bijection, two distinct keys always
+		// differ on some bit and the recursion terminates
+		long h1 = hash(k1);
+		int bit1 = bit(h1, shift);
+		int bit2 = bit(h2, shift);
+		if (bit1 == bit2)
+		{
+			Node child = merge(k1, v1, k2, v2, h2, shift + BITS);
+			return new Node(m_edit, 0, bit1, new long[0], new Object[0], new Node[] {child});
+		}
+		if (Integer.compareUnsigned(bit1, bit2) < 0)
+		{
+			return new Node(m_edit, bit1 | bit2, 0, new long[] {k1, k2}, new Object[] {v1, v2}, new Node[0]);
+		}
+		return new Node(m_edit, bit1 | bit2, 0, new long[] {k2, k1}, new Object[] {v2, v1}, new Node[0]);
+	}
+
+	/**
+	 * Gets a version of a node that this map may modify in place: either the
+	 * node itself, if it bears the map's edit token, or a copy of it.
+	 * @param n The node
+	 * @return The editable node
+	 */
+	protected Node editable(Node n)
+	{
+		if (n.m_edit == m_edit)
+		{
+			return n;
+		}
+		return new Node(m_edit, n.m_dataMap, n.m_nodeMap, n.m_keys.clone(), n.m_values.clone(), n.m_children.clone());
+	}
+
+	/**
+	 * Computes the hash of a key. The mixing function is a bijection over
+	 * 64-bit values, so that two distinct keys never have the same hash.
+	 * @param key The key
+	 * @return The hash
+	 */
+	protected static long hash(long key)
+	{
+		long h = key;
+		h ^= h >>> 33;
+		h *= 0xFF51AFD7ED558CCDL;
+		h ^= h >>> 33;
+		h *= 0xC4CEB9FE1A85EC53L;
+		h ^= h >>> 33;
+		return h;
+	}
+
+	/**
+	 * Gets the bit designating the position of a hash at a given level.
+	 * @param h The hash
+	 * @param shift The number of bits of the hash already consumed
+	 * @return The bit
+	 */
+	protected static int bit(long h, int shift)
+	{
+		return 1 << ((int) (h >>> shift) & 31);
+	}
+
+	/**
+	 * Gets the index in a compressed array of the element designated by a
+	 * bit.
+	 * @param bitmap The bitmap of the elements present in the array
+	 * @param bit The bit
+	 * @return The index
+	 */
+	protected static int index(int bitmap, int bit)
+	{
+		return Integer.bitCount(bitmap & (bit - 1));
+	}
+
+	protected static long[] insertAt(long[] a, int idx, long x)
+	{
+		long[] b = new long[a.length + 1];
+		System.arraycopy(a, 0, b, 0, idx);
+		b[idx] = x;
+		System.arraycopy(a, idx, b, idx + 1, a.length - idx);
+		return b;
+	}
+
+	protected static Object[] insertAt(Object[] a, int idx, Object x)
+	{
+		Object[] b = new Object[a.length + 1];
+		System.arraycopy(a, 0, b, 0, idx);
+		b[idx] = x;
+		System.arraycopy(a, idx, b, idx + 1, a.length - idx);
+		return b;
+	}
+
+	protected static Node[] insertAt(Node[] a, int idx, Node x)
+	{
+		Node[] b = new Node[a.length + 1];
+		System.arraycopy(a, 0, b, 0, idx);
+		b[idx] = x;
+		System.arraycopy(a, idx, b, idx + 1, a.length - idx);
+		return b;
+	}
+
+	protected static long[] removeAt(long[] a, int idx)
+	{
+		long[] b = new long[a.length - 1];
+		System.arraycopy(a, 0, b, 0, idx);
+		System.arraycopy(a, idx + 1, b, idx, a.length - idx - 1);
+		return b;
+	}
+
+	protected static Object[] removeAt(Object[] a, int idx)
+	{
+		Object[] b = new Object[a.length - 1];
+		System.arraycopy(a, 0, b, 0, idx);
+		System.arraycopy(a, idx + 1, b, idx, a.length - idx - 1);
+		return b;
+	}
+
+	protected static Node[] removeAt(Node[] a, int idx)
+	{
+		Node[] b = new Node[a.length - 1];
+		System.arraycopy(a, 0, b, 0, idx);
+		System.arraycopy(a, idx + 1, b, idx, a.length - idx - 1);
+		return b;
+	}
+
+	/**
+	 * A node of the trie. The node stores its entries and its children in
+	 * separate compressed arrays; bit <i>i</i> of {@link #m_dataMap}
+	 * (resp. {@link #m_nodeMap}) indicates that position <i>i</i> holds an
+	 * entry (resp. a child).
+	 */
+	protected static class Node
+	{
+		/**
+		 * The edit token of the map that created this node.
+		 */
+		protected final Edit m_edit;
+
+		/**
+		 * The bitmap of the positions holding an entry.
+		 */
+		protected int m_dataMap;
+
+		/**
+		 * The bitmap of the positions holding a child.
+		 */
+		protected int m_nodeMap;
+
+		/**
+		 * The keys of the entries.
+		 */
+		protected long[] m_keys;
+
+		/**
+		 * The values of the entries.
+		 */
+		protected Object[] m_values;
+
+		/**
+		 * The children of the node.
+		 */
+		protected Node[] m_children;
+
+		protected Node(Edit edit, int data_map, int node_map, long[] keys, Object[] values, Node[] children)
+		{
+			super();
+			m_edit = edit;
+			m_dataMap = data_map;
+			m_nodeMap = node_map;
+			m_keys = keys;
+			m_values = values;
+			m_children = children;
+		}
+	}
+
+	/**
+	 * An action called on a mapping of the map.
+	 * @param <V> The type of the values
+	 */
+	public interface EntryPredicate<V>
+	{
+		/**
+		 * Calls the action on a mapping.
+		 * @param key The key
+		 * @param value The value
+		 * @return {@code false} to stop the visit, {@code true} otherwise
+		 */
+		public boolean test(long key, V value);
+	}
+
+	/**
+	 * The token identifying the nodes that a map may modify in place.
+	 */
+	protected static class Edit
+	{
+		/**
+		 * Whether an iterator may be visiting nodes bearing this token, in
+		 * which case the map may no longer modify them in place.
+		 */
+		protected boolean m_frozen = false;
+	}
+
+	/**
+	 * Iterator over the entries of the trie. The iterator performs a
+	 * depth-first traversal using an explicit stack. Creating an iterator
+	 * freezes the edit token of the map, so that later updates on the map
+	 * copy the nodes that exist at that moment instead of modifying them in
+	 * place; the iterator is thus not affected by them. The map itself is
+	 * not modified by the creation of an iterator.
+	 */
+	protected abstract class EntryIterator
+	{
+		/**
+		 * The stack of nodes being visited.
+		 */
+		protected final Node[] m_nodes = new Node[MAX_DEPTH + 1];
+
+		/**
+		 * For each node of the stack, the position of the next child to visit.
+		 */
+		protected final int[] m_childPos = new int[MAX_DEPTH + 1];
+
+		/**
+		 * The level of the top of the stack.
+		 */
+		protected int m_level;
+
+		/**
+		 * The node whose entries are being enumerated.
+		 */
+		protected Node m_current;
+
+		/**
+		 * The position of the next entry to return in the current node.
+		 */
+		protected int m_pos;
+
+		/**
+		 * Creates a new iterator.
+		 * @param edit The edit token of the map
+		 */
+		public EntryIterator(/*@ non_null @*/ Edit edit)
+		{
+			super();
+			// From now on, the map may not modify the visited nodes in place
+			edit.m_frozen = true;
+			m_level = 0;
+			m_nodes[0] = m_root;
+			m_childPos[0] = 0;
+			m_current = m_root;
+			m_pos = 0;
+			advance();
+		}
+
+		public boolean hasNext()
+		{
+			return m_current != null;
+		}
+
+		/**
+		 * Moves to the next entry and returns its position in the current node.
+		 * @return The position
+		 */
+		protected int nextPos()
+		{
+			if (m_current == null)
+			{
+				throw new NoSuchElementException();
+			}
+			return m_pos++;
+		}
+
+		/**
+		 * Makes sure that the current node has an entry at the current
+		 * position, moving to the next node with entries if necessary.
+		 */
+		protected void advance()
+		{
+			while (m_current != null && m_pos >= m_current.m_keys.length)
+			{
+				m_current = null;
+				while (m_level >= 0)
+				{
+					Node n = m_nodes[m_level];
+					if (m_childPos[m_level] < n.m_children.length)
+					{
+						Node child = n.m_children[m_childPos[m_level]++];
+						m_level++;
+						m_nodes[m_level] = child;
+						m_childPos[m_level] = 0;
+						m_current = child;
+						m_pos = 0;
+						break;
+					}
+					m_level--;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Iterator over the keys of the map.
+	 */
+	protected class KeyIterator extends EntryIterator implements PrimitiveIterator.OfLong
+	{
+		public KeyIterator(/*@ non_null @*/ Edit edit)
+		{
+			super(edit);
+		}
+
+		@Override
+		public long nextLong()
+		{
+			Node n = m_current;
+			long key = n.m_keys[nextPos()];
+			advance();
+			return key;
+		}
+	}
+
+	/**
+	 * Iterator over the values of the map.
+	 */
+	protected class ValueIterator extends EntryIterator implements Iterator<V>
+	{
+		public ValueIterator(/*@ non_null @*/ Edit edit)
+		{
+			super(edit);
+		}
+
+		@SuppressWarnings("unchecked")
+		@Override
+		public V next()
+		{
+			Node n = m_current;
+			V value = (V) n.m_values[nextPos()];
+			advance();
+			return value;
+		}
+	}
+
+	/**
+	 * A read-only view of the values of the map.
+	 */
+	protected class ValueCollection extends AbstractCollection<V>
+	{
+		@Override
+		public Iterator<V> iterator()
+		{
+			return new ValueIterator(m_edit);
+		}
+
+		@Override
+		public int size()
+		{
+			return m_size;
+		}
+	}
+}
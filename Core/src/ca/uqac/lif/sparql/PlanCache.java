@@ -0,0 +1,327 @@
+/*
+    Basic processing of SPARQL queries in Java
+    Copyright (C) 2024 Sylvain Hallé
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Lesser General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.uqac.lif.sparql;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import ca.uqac.lif.cep.functions.Constant;
+import ca.uqac.lif.cep.functions.Function;
+import ca.uqac.lif.sparql.ConnectedBy.UndirectedConnectedBy;
+import ca.uqac.lif.sparql.NumberComparison.IsGreaterThan;
+
+/**
+ * Keeps the optimized form of the assertions evaluated repeatedly. An
+ * assertion is prepared by {@link #prepare(GraphAssertion)}, which rewrites
+ * it with the {@link Miniscoper} and the {@link QueryPlanner}, and compiles
+ * the result with the {@link AssertionCompiler}; the assertion returned is
+ * then evaluated on as many graphs as needed. Preparing an assertion that
+ * has the same structure as one that is already in the cache returns the
+ * same prepared assertion, without analyzing it again. The cache holds a
+ * bounded number of assertions, and discards the least recently used ones.
+ * <p>
+ * Two assertions have the same structure if they are made of the same
+ * operators applied to the same variables, labels and constants; they are
+ * compared through a {@link Key}. Assertions are recognized as described in
+ * {@link QueryPlanner}; an assertion of any other class only has the same
+ * structure as itself.
+ * <p>
+ * The planner chooses indices from the form of the assertion alone, and
+ * not from the contents of a graph: a prepared assertion is therefore
+ * valid for every graph, and for every version of a graph, and is never
+ * removed from the cache for any other reason than its capacity.
+ * <p>
+ * Accesses to the cache are synchronized; an assertion is prepared outside
+ * of the lock, so that two threads may occasionally prepare the same
+ * assertion.
+ * @author Sylvain Hallé
+ */
+public class PlanCache
+{
+	/**
+	 * The default maximum number of assertions in the cache.
+	 */
+	public static final int DEFAULT_CAPACITY = 1024;
+
+	/**
+	 * The prepared assertions, in access order.
+	 */
+	/*@ non_null @*/ protected final LinkedHashMap<Key,GraphAssertion> m_cache;
+
+	/**
+	 * The number of calls to {@link #prepare(GraphAssertion)} that found the
+	 * assertion in the cache.
+	 */
+	protected long m_hits;
+
+	/**
+	 * The number of calls to {@link #prepare(GraphAssertion)} that had to
+	 * prepare the assertion.
+	 */
+	protected long m_misses;
+
+	/**
+	 * Creates a new cache of default capacity.
+	 */
+	public PlanCache()
+	{
+		this(DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * Creates a new cache.
+	 * @param capacity The maximum number of assertions in the cache
+	 */
+	@SuppressWarnings("serial")
+	public PlanCache(int capacity)
+	{
+		super();
+		m_cache = new LinkedHashMap<Key,GraphAssertion>(16, 0.75f, true)
+		{
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Key,GraphAssertion> eldest)
+			{
+				return size() > capacity;
+			}
+		};
+	}
+
+	/**
+	 * Gets the prepared form of an assertion, from the cache if an assertion
+	 * with the same structure has already been prepared.
+	 * @param phi The assertion
+	 * @return An assertion that evaluates to the same value as {@code phi} on
+	 * every graph and every valuation
+	 */
+	/*@ non_null @*/ public GraphAssertion prepare(/*@ non_null @*/ GraphAssertion phi)
+	{
+		Key key = new Key(phi);
+		synchronized (m_cache)
+		{
+			GraphAssertion prepared = m_cache.get(key);
+			if (prepared != null)
+			{
+				m_hits++;
+				return prepared;
+			}
+			m_misses++;
+		}
+		GraphAssertion prepared = AssertionCompiler.compile(QueryPlanner.plan(Miniscoper.rewrite(phi)));
+		synchronized (m_cache)
+		{
+			m_cache.put(key, prepared);
+		}
+		return prepared;
+	}
+
+	/**
+	 * Gets the number of assertions in the cache.
+	 * @return The number of assertions
+	 */
+	public int size()
+	{
+		synchronized (m_cache)
+		{
+			return m_cache.size();
+		}
+	}
+
+	/**
+	 * Gets the number of calls to {@link #prepare(GraphAssertion)} that found
+	 * the assertion in the cache.
+	 * @return The number of calls
+	 */
+	public long getHits()
+	{
+		synchronized (m_cache)
+		{
+			return m_hits;
+		}
+	}
+
+	/**
+	 * Gets the number of calls to {@link #prepare(GraphAssertion)} that had
+	 * to prepare the assertion.
+	 * @return The number of calls
+	 */
+	public long getMisses()
+	{
+		synchronized (m_cache)
+		{
+			return m_misses;
+		}
+	}
+
+	/**
+	 * Removes all the assertions from the cache.
+	 */
+	public void clear()
+	{
+		synchronized (m_cache)
+		{
+			m_cache.clear();
+		}
+	}
+
+	/**
+	 * The structure of an assertion, used as a key in the cache. The
+	 * structure is a tree of lists, each made of the class of an operator
+	 * followed by its variables, constants and operands; variables are
+	 * represented by their identifier in the {@link VariableDictionary}. An
+	 * object that is not recognized is represented by itself, and is hence
+	 * only equal to itself if its class does not redefine
+	 * {@link Object#equals(Object)}.
+	 */
+	protected static class Key
+	{
+		/**
+		 * The structure of the assertion.
+		 */
+		/*@ non_null @*/ protected final Object m_structure;
+
+		/**
+		 * The hash code of the key.
+		 */
+		protected final int m_hashCode;
+
+		/**
+		 * Creates the key of an assertion.
+		 * @param phi The assertion
+		 */
+		public Key(/*@ non_null @*/ GraphAssertion phi)
+		{
+			super();
+			m_structure = getStructure(phi);
+			m_hashCode = m_structure.hashCode();
+		}
+
+		@Override
+		public int hashCode()
+		{
+			return m_hashCode;
+		}
+
+		@Override
+		public boolean equals(Object o)
+		{
+			if (!(o instanceof Key))
+			{
+				return false;
+			}
+			Key k = (Key) o;
+			return m_hashCode == k.m_hashCode && m_structure.equals(k.m_structure);
+		}
+
+		/**
+		 * Gets the structure of a graph function or an assertion.
+		 * @param f The function
+		 * @return The structure
+		 */
+		/*@ non_null @*/ protected static Object getStructure(/*@ non_null @*/ GraphFunction<?> f)
+		{
+			Class<?> c = f.getClass();
+			if (c == Conjunction.class || c == Disjunction.class)
+			{
+				List<Object> s = newStructure(c);
+				for (GraphAssertion op : ((NaryConnective) f).m_operands)
+				{
+					s.add(getStructure(op));
+				}
+				return s;
+			}
+			if (c == Negation.class)
+			{
+				return newStructure(c, getStructure(((Negation) f).m_operand));
+			}
+			if (c == ExistsNode.class || c == ForAllNodes.class || c == ExistsEdge.class || c == ForAllEdges.class)
+			{
+				Quantifier<?> q = (Quantifier<?>) f;
+				// A domain is only equal to itself
+				return newStructure(c, q.m_slot, q.m_domain, getStructure(q.m_phi));
+			}
+			if (c == ConnectedBy.DirectedConnectedBy.class || c == UndirectedConnectedBy.class)
+			{
+				ConnectedBy a = (ConnectedBy) f;
+				return newStructure(c, getStructure(a.m_from, a.m_fromSlot), getStructure(a.m_label, a.m_labelSlot), getStructure(a.m_to, a.m_toSlot));
+			}
+			if (c == IsEqualTo.class)
+			{
+				List<Object> s = newStructure(c);
+				for (GraphFunction<?> arg : ((IsEqualTo) f).m_arguments)
+				{
+					s.add(getStructure(arg));
+				}
+				return s;
+			}
+			if (c == IsGreaterThan.class)
+			{
+				IsGreaterThan a = (IsGreaterThan) f;
+				return newStructure(c, getStructure(a.m_left), getStructure(a.m_right));
+			}
+			if (c == LabelOf.class)
+			{
+				LabelOf l = (LabelOf) f;
+				return newStructure(c, getStructure(l.m_variable, l.m_slot));
+			}
+			if (c == ca.uqac.lif.sparql.Constant.class)
+			{
+				return newStructure(c, ((ca.uqac.lif.sparql.Constant<?>) f).m_value);
+			}
+			return f;
+		}
+
+		/**
+		 * Gets the structure of a BeepBeep function giving a variable or a
+		 * constant.
+		 * @param f The function
+		 * @param slot The identifier of the variable, or -1 if the function is
+		 * not a variable
+		 * @return The structure
+		 */
+		protected static Object getStructure(/*@ non_null @*/ Function f, int slot)
+		{
+			if (slot >= 0)
+			{
+				return slot;
+			}
+			if (f instanceof Constant)
+			{
+				return newStructure(Constant.class, ((Constant) f).getValue());
+			}
+			return f;
+		}
+
+		/**
+		 * Creates the structure of an operator.
+		 * @param c The class of the operator
+		 * @param elements The variables, constants and operands of the
+		 * operator
+		 * @return The structure
+		 */
+		/*@ non_null @*/ protected static List<Object> newStructure(/*@ non_null @*/ Class<?> c, Object ... elements)
+		{
+			List<Object> s = new ArrayList<Object>(elements.length + 1);
+			s.add(c);
+			s.addAll(Arrays.asList(elements));
+			return s;
+		}
+	}
+}
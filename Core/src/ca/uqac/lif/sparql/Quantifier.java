@@ -17,11 +17,25 @@
  */
 package ca.uqac.lif.sparql;
 
+import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * Represents a quantifier. It is possible to quantify over either edges or
  * nodes in a graph.
+ * <p>
+ * A quantifier is normally evaluated sequentially, on the calling thread.
+ * Calling {@link #evaluate(KnowledgeGraph, Valuation, ForkJoinPool)} instead
+ * splits its domain into chunks that are evaluated in parallel by the
+ * threads of a {@link ForkJoinPool}. Each chunk works on its own copy of the
+ * valuation; the quantifiers nested inside the operand are still evaluated
+ * sequentially within each chunk. The graph is only read, and must not be
+ * modified while the evaluation is running.
  * 
  * @author Sylvain Hallé
  */
@@ -31,11 +45,34 @@ public abstract class Quantifier<T> implements GraphAssertion
 	 * The variable over which to quantify
 	 */
 	protected final String m_variable;
+
+	/**
+	 * The identifier of the variable in the {@link VariableDictionary}, which
+	 * is the index of its value in a {@link Valuation}.
+	 */
+	protected final int m_slot;
 	
 	/**
 	 * The assertion to evaluate.
 	 */
 	protected final GraphAssertion m_phi;
+
+	/**
+	 * The number of chunks per thread of the pool into which the domain of the
+	 * quantifier is split in a parallel evaluation. Having more chunks than
+	 * threads balances the load when the operand takes longer to evaluate on
+	 * some elements than on others.
+	 */
+	protected static final int CHUNKS_PER_THREAD = 8;
+
+	/**
+	 * A domain containing all the values for which the assertion may decide
+	 * the result of the quantifier, or {@code null} to range over all the
+	 * nodes or edges of the graph. For a universal quantifier, the assertion
+	 * must be true for every value outside this domain; for an existential
+	 * quantifier, it must be false.
+	 */
+	protected final Domain<T> m_domain;
 	
 	/**
 	 * Creates a new node quantifier
@@ -46,9 +83,27 @@ public abstract class Quantifier<T> implements GraphAssertion
 	 *          The assertion to evaluate
 	 */
 	public Quantifier(String variable, GraphAssertion phi)
+	{
+		this(variable, null, phi);
+	}
+
+	/**
+	 * Creates a new quantifier ranging over a restricted domain.
+	 * 
+	 * @param variable
+	 *          The variable over which to quantify
+	 * @param domain
+	 *          The domain, or {@code null} to range over all the nodes or
+	 *          edges of the graph
+	 * @param phi
+	 *          The assertion to evaluate
+	 */
+	public Quantifier(String variable, Domain<T> domain, GraphAssertion phi)
 	{
 		super();
 		m_variable = variable;
+		m_slot = VariableDictionary.getId(variable);
+		m_domain = domain;
 		m_phi = phi;
 	}
 	
@@ -57,4 +112,181 @@ public abstract class Quantifier<T> implements GraphAssertion
 	 * @return A collection of values
 	 */
 	protected abstract Collection<T> getDomain(KnowledgeGraph g);
+
+	/**
+	 * Gets the values over which the quantifier should range for a given
+	 * valuation. These are the candidates of the domain of the quantifier if
+	 * it has one, and all the values given by {@link #getDomain(KnowledgeGraph)}
+	 * otherwise.
+	 * @param g The graph
+	 * @param nu The valuation
+	 * @return A collection of values
+	 */
+	protected Collection<T> getDomain(KnowledgeGraph g, Valuation nu)
+	{
+		if (m_domain != null)
+		{
+			Collection<T> candidates = m_domain.getCandidates(g, nu);
+			if (candidates != null)
+			{
+				return candidates;
+			}
+		}
+		return getDomain(g);
+	}
+
+	/**
+	 * Determines if this quantifier is existential or universal. An
+	 * existential quantifier is true as soon as its operand is true for one
+	 * element of its domain; a universal quantifier is false as soon as its
+	 * operand is false for one element.
+	 * @return {@code true} if the quantifier is existential, {@code false} if
+	 * it is universal
+	 */
+	protected abstract boolean isExistential();
+
+	/**
+	 * Evaluates the quantifier in parallel, starting from an empty valuation.
+	 * @param graph The knowledge graph
+	 * @param pool The pool whose threads evaluate the chunks of the domain
+	 * @return The result of the evaluation
+	 * @see #evaluate(KnowledgeGraph, Valuation, ForkJoinPool)
+	 */
+	public Boolean evaluate(KnowledgeGraph graph, ForkJoinPool pool)
+	{
+		return evaluate(graph, new Valuation(), pool);
+	}
+
+	/**
+	 * Evaluates the quantifier in parallel. The domain of the quantifier is
+	 * split into chunks that are evaluated by the threads of a pool. As soon
+	 * as the operand decides the result of the quantifier on one element
+	 * (that is, is true for an existential quantifier or false for a
+	 * universal one), the chunks that have not yet been processed are
+	 * abandoned, and the chunks being processed stop at their next element.
+	 * The result is the same as that of a sequential evaluation.
+	 * <p>
+	 * The valuation is not modified: each chunk binds the variable of the
+	 * quantifier in a copy of it.
+	 * @param graph The knowledge graph, which must not be modified during the
+	 * evaluation
+	 * @param nu The valuation
+	 * @param pool The pool whose threads evaluate the chunks of the domain
+	 * @return The result of the evaluation
+	 */
+	public Boolean evaluate(KnowledgeGraph graph, Valuation nu, ForkJoinPool pool)
+	{
+		List<T> domain = new ArrayList<T>(getDomain(graph, nu));
+		int grain = Math.max(1, domain.size() / (pool.getParallelism() * CHUNKS_PER_THREAD));
+		AtomicBoolean decided = new AtomicBoolean(false);
+		pool.invoke(new ChunkTask(graph, nu, domain, 0, domain.size(), grain, decided));
+		return decided.get() == isExistential();
+	}
+
+	/**
+	 * Evaluates the operand of the quantifier on a range of elements of its
+	 * domain. A range larger than the grain is split in two halves, one of
+	 * which is forked.
+	 */
+	protected class ChunkTask extends RecursiveAction
+	{
+		private static final long serialVersionUID = 1L;
+
+		/**
+		 * The knowledge graph.
+		 */
+		/*@ non_null @*/ protected final KnowledgeGraph m_graph;
+
+		/**
+		 * The valuation given to the quantifier, which is copied by each chunk.
+		 */
+		/*@ non_null @*/ protected final Valuation m_valuation;
+
+		/**
+		 * The domain of the quantifier.
+		 */
+		/*@ non_null @*/ protected final List<T> m_domain;
+
+		/**
+		 * The index of the first element of the range.
+		 */
+		protected final int m_start;
+
+		/**
+		 * The index after the last element of the range.
+		 */
+		protected final int m_end;
+
+		/**
+		 * The maximum number of elements evaluated by a task without splitting
+		 * its range.
+		 */
+		protected final int m_grain;
+
+		/**
+		 * A flag shared by all the tasks, set when the operand decides the
+		 * result of the quantifier on some element.
+		 */
+		/*@ non_null @*/ protected final AtomicBoolean m_decided;
+
+		/**
+		 * Creates a new task.
+		 * @param graph The knowledge graph
+		 * @param nu The valuation given to the quantifier
+		 * @param domain The domain of the quantifier
+		 * @param start The index of the first element of the range
+		 * @param end The index after the last element of the range
+		 * @param grain The maximum number of elements evaluated without
+		 * splitting the range
+		 * @param decided The flag shared by all the tasks
+		 */
+		protected ChunkTask(KnowledgeGraph graph, Valuation nu, List<T> domain, int start, int end, int grain, AtomicBoolean decided)
+		{
+			super();
+			m_graph = graph;
+			m_valuation = nu;
+			m_domain = domain;
+			m_start = start;
+			m_end = end;
+			m_grain = grain;
+			m_decided = decided;
+		}
+
+		@Override
+		protected void compute()
+		{
+			if (m_decided.get())
+			{
+				return;
+			}
+			if (m_end - m_start > m_grain)
+			{
+				int middle = (m_start + m_end) >>> 1;
+				invokeAll(new ChunkTask(m_graph, m_valuation, m_domain, m_start, middle, m_grain, m_decided),
+						new ChunkTask(m_graph, m_valuation, m_domain, middle, m_end, m_grain, m_decided));
+				return;
+			}
+			boolean exists = isExistential();
+			Valuation nu = new Valuation(m_valuation);
+			for (int i = m_start; i < m_end && !m_decided.get(); i++)
+			{
+				nu.set(m_slot, m_domain.get(i));
+				if (m_phi.evaluate(m_graph, nu) == exists)
+				{
+					m_decided.set(true);
+					return;
+				}
+			}
+		}
+	}
+
+	@Override
+	public boolean getFreeVariables(BitSet slots)
+	{
+		BitSet inner = new BitSet();
+		boolean complete = m_phi.getFreeVariables(inner);
+		inner.clear(m_slot);
+		slots.or(inner);
+		return complete;
+	}
 }
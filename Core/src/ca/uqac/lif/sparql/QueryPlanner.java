@@ -0,0 +1,216 @@
+/*
+    Basic processing of SPARQL queries in Java
+    Copyright (C) 2024 Sylvain Hallé
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Lesser General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.uqac.lif.sparql;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * Rewrites a graph assertion into an equivalent one that is cheaper to
+ * evaluate. The planner looks for blocks of nested {@link ExistsNode} and
+ * {@link ExistsEdge} quantifiers whose operand is a conjunction, and
+ * replaces each of them with a {@link JoinPlan}, which binds the variables
+ * from the indices of the graph instead of enumerating all its nodes and
+ * edges, or with a {@link TrieJoin} if the block contains a cycle of
+ * edges. Universal quantifiers whose operand is guarded by a condition on
+ * the label of their variable, as in
+ * {@code allNodes("$x", implies(eq(l("$x"), "A"), phi))}, are given a
+ * {@link Domain} that only contains the nodes or edges satisfying the guard.
+ * The rest of the assertion is left as is.
+ * <p>
+ * Only the classes of this package are recognized, and they are matched by
+ * their exact class: an assertion of any other class, including a subclass
+ * of these classes, may evaluate differently from what its class suggests,
+ * and is kept unchanged together with its operands. All the rewritings of
+ * this package follow this rule, namely the {@link Miniscoper}, the
+ * vectorization into a {@link BatchJoin}, the insertion of
+ * {@link MemoizedAssertion}s, the {@link AssertionCompiler}, and the
+ * comparison of assertions in a {@link PlanCache}.
+ * @author Sylvain Hallé
+ */
+public final class QueryPlanner
+{
+	/**
+	 * Cannot be instantiated.
+	 */
+	private QueryPlanner()
+	{
+		super();
+	}
+
+	/**
+	 * Rewrites an assertion into an equivalent one that is cheaper to
+	 * evaluate.
+	 * @param phi The assertion
+	 * @return The rewritten assertion
+	 */
+	/*@ non_null @*/ public static GraphAssertion plan(/*@ non_null @*/ GraphAssertion phi)
+	{
+		Class<?> c = phi.getClass();
+		if (c == ExistsNode.class || c == ExistsEdge.class)
+		{
+			return planBlock(phi);
+		}
+		if (c == ForAllNodes.class)
+		{
+			ForAllNodes q = (ForAllNodes) phi;
+			GraphAssertion body = plan(q.m_phi);
+			return new ForAllNodes(q.m_variable, getGuardDomain(body, q, false), body);
+		}
+		if (c == ForAllEdges.class)
+		{
+			ForAllEdges q = (ForAllEdges) phi;
+			GraphAssertion body = plan(q.m_phi);
+			return new ForAllEdges(q.m_variable, getGuardDomain(body, q, true), body);
+		}
+		if (c == Conjunction.class)
+		{
+			return new Conjunction(planAll(((Conjunction) phi).m_operands));
+		}
+		if (c == Disjunction.class)
+		{
+			return new Disjunction(planAll(((Disjunction) phi).m_operands));
+		}
+		if (c == Negation.class)
+		{
+			return new Negation(plan(((Negation) phi).m_operand));
+		}
+		return phi;
+	}
+
+	/**
+	 * Finds a domain for a universal quantifier, from the guards of its
+	 * operand. A guard is an assertion on the label of the variable, such as
+	 * {@code eq(l("$x"), "A")}, that appears negated in the operand: in
+	 * {@code implies(and(eq(l("$x"), "A"), psi), phi)}, which is a
+	 * disjunction of {@code not(and(eq(l("$x"), "A"), psi))} and {@code phi},
+	 * the operand is true for every node that does not satisfy the guard.
+	 * @param body The operand of the quantifier
+	 * @param q The quantifier
+	 * @param edge Whether the quantifier ranges over edges
+	 * @return The domain of the guard, or the domain of the quantifier if no
+	 * guard is found
+	 */
+	@SuppressWarnings("unchecked")
+	protected static <T> Domain<T> getGuardDomain(GraphAssertion body, Quantifier<T> q, boolean edge)
+	{
+		GraphAssertion[] disjuncts = body.getClass() == Disjunction.class ? ((Disjunction) body).m_operands : new GraphAssertion[] {body};
+		Domain<?> best = q.m_domain;
+		for (GraphAssertion d : disjuncts)
+		{
+			if (d.getClass() != Negation.class)
+			{
+				continue;
+			}
+			List<GraphAssertion> guards = new ArrayList<GraphAssertion>();
+			addConjuncts(((Negation) d).m_operand, guards);
+			for (GraphAssertion guard : guards)
+			{
+				for (Domain<?> domain : Domain.getDomains(guard, q.m_slot, edge))
+				{
+					if (best == null || domain.m_score > best.m_score)
+					{
+						best = domain;
+					}
+				}
+			}
+		}
+		return (Domain<T>) best;
+	}
+
+	/**
+	 * Rewrites each assertion of an array.
+	 * @param operands The assertions
+	 * @return The list of rewritten assertions
+	 */
+	protected static List<GraphAssertion> planAll(GraphAssertion[] operands)
+	{
+		List<GraphAssertion> planned = new ArrayList<GraphAssertion>(operands.length);
+		for (GraphAssertion op : operands)
+		{
+			planned.add(plan(op));
+		}
+		return planned;
+	}
+
+	/**
+	 * Turns a block of existential quantifiers into a join plan. The block
+	 * extends down to the first operand that is not an existential
+	 * quantifier, or to the first quantifier on a variable already bound by
+	 * the block. A block whose edge assertions form a cycle is evaluated by a
+	 * {@link TrieJoin}.
+	 * @param phi The outermost quantifier of the block
+	 * @return The plan
+	 */
+	protected static GraphAssertion planBlock(GraphAssertion phi)
+	{
+		List<Integer> slots = new ArrayList<Integer>();
+		List<Boolean> edges = new ArrayList<Boolean>();
+		BitSet seen = new BitSet();
+		GraphAssertion body = phi;
+		while (body.getClass() == ExistsNode.class || body.getClass() == ExistsEdge.class)
+		{
+			Quantifier<?> q = (Quantifier<?>) body;
+			if (seen.get(q.m_slot))
+			{
+				break;
+			}
+			seen.set(q.m_slot);
+			slots.add(q.m_slot);
+			edges.add(q instanceof ExistsEdge);
+			body = q.m_phi;
+		}
+		List<GraphAssertion> operands = new ArrayList<GraphAssertion>();
+		addConjuncts(plan(body), operands);
+		int[] slot_array = new int[slots.size()];
+		boolean[] edge_array = new boolean[slots.size()];
+		for (int i = 0; i < slot_array.length; i++)
+		{
+			slot_array[i] = slots.get(i);
+			edge_array[i] = edges.get(i);
+		}
+		JoinPlan plan = new JoinPlan(slot_array, edge_array, operands);
+		if (TrieJoin.isCyclic(slot_array, edge_array, operands))
+		{
+			return new TrieJoin(slot_array, operands, plan);
+		}
+		return plan;
+	}
+
+	/**
+	 * Adds the operands of a conjunction to a list, flattening nested
+	 * conjunctions.
+	 * @param phi The assertion
+	 * @param operands The list to which the operands are added
+	 */
+	protected static void addConjuncts(GraphAssertion phi, List<GraphAssertion> operands)
+	{
+		if (phi.getClass() == Conjunction.class)
+		{
+			for (GraphAssertion op : ((Conjunction) phi).m_operands)
+			{
+				addConjuncts(op, operands);
+			}
+		}
+		else
+		{
+			operands.add(phi);
+		}
+	}
+}
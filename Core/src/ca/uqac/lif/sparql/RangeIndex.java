@@ -0,0 +1,546 @@
+/*
+    Basic processing of SPARQL queries in Java
+    Copyright (C) 2024 Sylvain Hallé
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Lesser General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.uqac.lif.sparql;
+
+import java.util.AbstractCollection;
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * An index of the nodes whose data is a number, sorted by the value of that
+ * number. The index answers the query for the nodes whose value lies in an
+ * interval in logarithmic time, and returns a view of the matching nodes
+ * without copying them.
+ * <p>
+ * The nodes are stored in a treap, that is, a binary search tree ordered by
+ * value (and then by node identifier) where each entry also has a priority
+ * derived from its identifier, and where parents have a higher priority
+ * than their children. This keeps the tree balanced with high probability,
+ * so that adding or removing a node takes logarithmic time.
+ * <p>
+ * Like a {@link ValueIndex}, the index is persistent: {@link #copy()} takes
+ * constant time, and the entries of the tree carry the token of the index
+ * that created them, so that they are copied before being modified by any
+ * other index.
+ * @author Sylvain Hallé
+ */
+public class RangeIndex
+{
+	/**
+	 * The root of the tree, or {@code null} if the index is empty.
+	 */
+	protected Entry m_root;
+
+	/**
+	 * The token identifying the entries that this index may modify in place.
+	 */
+	/*@ non_null @*/ protected Object m_owner;
+
+	/**
+	 * Creates a new empty index.
+	 */
+	public RangeIndex()
+	{
+		this((Entry) null);
+	}
+
+	/**
+	 * Creates the index of a collection of nodes. Nodes whose data is not a
+	 * number, or is not comparable to any number, are left out.
+	 * @param nodes The nodes
+	 */
+	public RangeIndex(/*@ non_null @*/ Collection<GraphNode> nodes)
+	{
+		this((Entry) null);
+		for (GraphNode node : nodes)
+		{
+			add(node);
+		}
+	}
+
+	/**
+	 * Creates a new index from an existing tree.
+	 * @param root The root of the tree
+	 */
+	protected RangeIndex(Entry root)
+	{
+		super();
+		m_root = root;
+		m_owner = new Object();
+	}
+
+	/**
+	 * Adds a node to the index. Nothing happens if the data of the node is
+	 * not a number.
+	 * @param node The node
+	 */
+	public void add(/*@ non_null @*/ GraphNode node)
+	{
+		if (isIndexed(node))
+		{
+			m_root = add(m_root, node, value(node), priority(node.getId()));
+		}
+	}
+
+	/**
+	 * Removes a node from the index.
+	 * @param node The node
+	 */
+	public void remove(/*@ non_null @*/ GraphNode node)
+	{
+		if (!isIndexed(node))
+		{
+			return;
+		}
+		double value = value(node);
+		long id = node.getId();
+		// Only copy the path to the entry if there is something to remove
+		Entry e = m_root;
+		while (e != null)
+		{
+			int c = compare(value, id, e);
+			if (c == 0)
+			{
+				m_root = remove(m_root, value, id);
+				return;
+			}
+			e = c < 0 ? e.m_left : e.m_right;
+		}
+	}
+
+	/**
+	 * Creates a copy of this index in constant time. The nodes themselves are
+	 * not copied.
+	 * @return The copy
+	 */
+	/*@ non_null @*/ public RangeIndex copy()
+	{
+		// From now on, neither index may modify the shared entries in place
+		m_owner = new Object();
+		return new RangeIndex(m_root);
+	}
+
+	/**
+	 * Gets the number of nodes in the index.
+	 * @return The number of nodes
+	 */
+	public int size()
+	{
+		return size(m_root);
+	}
+
+	/**
+	 * Gets the nodes whose value lies in an interval. The collection is a view
+	 * of the index; each of its iterators enumerates the nodes present when it
+	 * is created, and is not affected by later updates.
+	 * @param low The lower bound of the interval
+	 * @param include_low Whether the lower bound is in the interval
+	 * @param high The upper bound of the interval
+	 * @param include_high Whether the upper bound is in the interval
+	 * @return The nodes
+	 */
+	/*@ non_null @*/ public Collection<GraphNode> get(double low, boolean include_low, double high, boolean include_high)
+	{
+		if (Double.isNaN(low) || Double.isNaN(high) || low > high || (low == high && !(include_low && include_high)))
+		{
+			return Collections.emptyList();
+		}
+		return new Range(low, include_low, high, include_high);
+	}
+
+	/**
+	 * Inserts an entry into a sub-tree.
+	 * @param e The root of the sub-tree
+	 * @param node The node to insert
+	 * @param value The value of the node
+	 * @param priority The priority of the node
+	 * @return The new root of the sub-tree
+	 */
+	protected Entry add(Entry e, GraphNode node, double value, int priority)
+	{
+		if (e == null)
+		{
+			return new Entry(m_owner, node, value, priority);
+		}
+		int c = compare(value, node.getId(), e);
+		if (c == 0)
+		{
+			return e;
+		}
+		e = getWritable(e);
+		if (c < 0)
+		{
+			e.m_left = add(e.m_left, node, value, priority);
+			if (e.m_left.m_priority > e.m_priority)
+			{
+				e = rotateRight(e);
+			}
+		}
+		else
+		{
+			e.m_right = add(e.m_right, node, value, priority);
+			if (e.m_right.m_priority > e.m_priority)
+			{
+				e = rotateLeft(e);
+			}
+		}
+		e.update();
+		return e;
+	}
+
+	/**
+	 * Removes an entry from a sub-tree that contains it.
+	 * @param e The root of the sub-tree
+	 * @param value The value of the node to remove
+	 * @param id The identifier of the node to remove
+	 * @return The new root of the sub-tree
+	 */
+	protected Entry remove(/*@ non_null @*/ Entry e, double value, long id)
+	{
+		int c = compare(value, id, e);
+		if (c == 0)
+		{
+			return merge(e.m_left, e.m_right);
+		}
+		e = getWritable(e);
+		if (c < 0)
+		{
+			e.m_left = remove(e.m_left, value, id);
+		}
+		else
+		{
+			e.m_right = remove(e.m_right, value, id);
+		}
+		e.update();
+		return e;
+	}
+
+	/**
+	 * Merges two sub-trees, where all the entries of the first precede all
+	 * the entries of the second.
+	 * @param left The first sub-tree
+	 * @param right The second sub-tree
+	 * @return The root of the merged tree
+	 */
+	protected Entry merge(Entry left, Entry right)
+	{
+		if (left == null)
+		{
+			return right;
+		}
+		if (right == null)
+		{
+			return left;
+		}
+		if (left.m_priority > right.m_priority)
+		{
+			left = getWritable(left);
+			left.m_right = merge(left.m_right, right);
+			left.update();
+			return left;
+		}
+		right = getWritable(right);
+		right.m_left = merge(left, right.m_left);
+		right.update();
+		return right;
+	}
+
+	/**
+	 * Rotates a sub-tree to the right. Both the root and its left child must
+	 * belong to this index.
+	 * @param e The root of the sub-tree
+	 * @return The new root
+	 */
+	protected static Entry rotateRight(Entry e)
+	{
+		Entry l = e.m_left;
+		e.m_left = l.m_right;
+		e.update();
+		l.m_right = e;
+		return l;
+	}
+
+	/**
+	 * Rotates a sub-tree to the left. Both the root and its right child must
+	 * belong to this index.
+	 * @param e The root of the sub-tree
+	 * @return The new root
+	 */
+	protected static Entry rotateLeft(Entry e)
+	{
+		Entry r = e.m_right;
+		e.m_right = r.m_left;
+		e.update();
+		r.m_left = e;
+		return r;
+	}
+
+	/**
+	 * Gets an entry that this index may modify in place, copying it if it
+	 * belongs to another index.
+	 * @param e The entry
+	 * @return The entry or its copy
+	 */
+	protected Entry getWritable(/*@ non_null @*/ Entry e)
+	{
+		if (e.m_owner == m_owner)
+		{
+			return e;
+		}
+		Entry copy = new Entry(m_owner, e.m_node, e.m_value, e.m_priority);
+		copy.m_left = e.m_left;
+		copy.m_right = e.m_right;
+		copy.m_size = e.m_size;
+		return copy;
+	}
+
+	/**
+	 * Counts the entries of a sub-tree whose value is below a bound.
+	 * @param e The root of the sub-tree
+	 * @param bound The bound
+	 * @param inclusive Whether entries equal to the bound are counted
+	 * @return The number of entries
+	 */
+	protected static int countBelow(Entry e, double bound, boolean inclusive)
+	{
+		int count = 0;
+		while (e != null)
+		{
+			if (e.m_value < bound || (inclusive && e.m_value == bound))
+			{
+				count += size(e.m_left) + 1;
+				e = e.m_right;
+			}
+			else
+			{
+				e = e.m_left;
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Compares a value and an identifier to those of an entry.
+	 */
+	protected static int compare(double value, long id, Entry e)
+	{
+		int c = Double.compare(value, e.m_value);
+		if (c != 0)
+		{
+			return c;
+		}
+		return Long.compare(id, e.m_node.getId());
+	}
+
+	/**
+	 * Gets the number of entries of a sub-tree.
+	 */
+	protected static int size(Entry e)
+	{
+		return e == null ? 0 : e.m_size;
+	}
+
+	/**
+	 * Determines if a node belongs in the index.
+	 */
+	protected static boolean isIndexed(GraphNode n)
+	{
+		Object o = n.getData();
+		return o instanceof Number && !Double.isNaN(((Number) o).doubleValue());
+	}
+
+	/**
+	 * Gets the numerical value of the data of a node.
+	 */
+	protected static double value(GraphNode n)
+	{
+		return ((Number) n.getData()).doubleValue();
+	}
+
+	/**
+	 * Computes the priority of a node from its identifier.
+	 */
+	protected static int priority(long id)
+	{
+		long h = id * 0x9E3779B97F4A7C15L;
+		return (int) (h ^ (h >>> 32));
+	}
+
+	/**
+	 * An entry of the tree.
+	 */
+	protected static class Entry
+	{
+		/**
+		 * The token of the index that created this entry.
+		 */
+		protected final Object m_owner;
+
+		/**
+		 * The node.
+		 */
+		/*@ non_null @*/ protected final GraphNode m_node;
+
+		/**
+		 * The numerical value of the node.
+		 */
+		protected final double m_value;
+
+		/**
+		 * The priority of the entry.
+		 */
+		protected final int m_priority;
+
+		/**
+		 * The entries that precede this one.
+		 */
+		protected Entry m_left;
+
+		/**
+		 * The entries that follow this one.
+		 */
+		protected Entry m_right;
+
+		/**
+		 * The number of entries of the sub-tree rooted at this entry.
+		 */
+		protected int m_size;
+
+		protected Entry(Object owner, GraphNode node, double value, int priority)
+		{
+			super();
+			m_owner = owner;
+			m_node = node;
+			m_value = value;
+			m_priority = priority;
+			m_size = 1;
+		}
+
+		/**
+		 * Recomputes the size of the sub-tree after one of its children
+		 * changed.
+		 */
+		protected void update()
+		{
+			m_size = size(m_left) + 1 + size(m_right);
+		}
+	}
+
+	/**
+	 * The nodes whose value lies in an interval.
+	 */
+	protected class Range extends AbstractCollection<GraphNode>
+	{
+		protected final double m_low;
+
+		protected final boolean m_includeLow;
+
+		protected final double m_high;
+
+		protected final boolean m_includeHigh;
+
+		protected Range(double low, boolean include_low, double high, boolean include_high)
+		{
+			super();
+			m_low = low;
+			m_includeLow = include_low;
+			m_high = high;
+			m_includeHigh = include_high;
+		}
+
+		@Override
+		public int size()
+		{
+			return countBelow(m_root, m_high, m_includeHigh) - countBelow(m_root, m_low, !m_includeLow);
+		}
+
+		@Override
+		public Iterator<GraphNode> iterator()
+		{
+			// From now on, the index may not modify the visited entries in place
+			m_owner = new Object();
+			return new RangeIterator(m_root, this);
+		}
+	}
+
+	/**
+	 * In-order traversal of the entries of a range, using an explicit stack.
+	 */
+	protected static class RangeIterator implements Iterator<GraphNode>
+	{
+		/**
+		 * The entries whose node and right sub-tree remain to be visited.
+		 */
+		/*@ non_null @*/ protected final Deque<Entry> m_stack = new ArrayDeque<Entry>();
+
+		/**
+		 * The range being enumerated.
+		 */
+		/*@ non_null @*/ protected final Range m_range;
+
+		protected RangeIterator(Entry root, Range range)
+		{
+			super();
+			m_range = range;
+			descend(root);
+		}
+
+		@Override
+		public boolean hasNext()
+		{
+			Entry e = m_stack.peek();
+			return e != null && (e.m_value < m_range.m_high || (m_range.m_includeHigh && e.m_value == m_range.m_high));
+		}
+
+		@Override
+		public GraphNode next()
+		{
+			if (!hasNext())
+			{
+				throw new NoSuchElementException();
+			}
+			Entry e = m_stack.pop();
+			descend(e.m_right);
+			return e.m_node;
+		}
+
+		/**
+		 * Pushes the entries on the leftmost path of a sub-tree, skipping those
+		 * below the lower bound of the range.
+		 */
+		protected void descend(Entry e)
+		{
+			while (e != null)
+			{
+				if (e.m_value > m_range.m_low || (m_range.m_includeLow && e.m_value == m_range.m_low))
+				{
+					m_stack.push(e);
+					e = e.m_left;
+				}
+				else
+				{
+					e = e.m_right;
+				}
+			}
+		}
+	}
+}
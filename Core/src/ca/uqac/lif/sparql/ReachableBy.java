@@ -0,0 +1,584 @@
+/*
+    Basic processing of SPARQL queries in Java
+    Copyright (C) 2024 Sylvain Hallé
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Lesser General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.uqac.lif.sparql;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.function.LongPredicate;
+
+import ca.uqac.lif.cep.Context;
+import ca.uqac.lif.cep.EventTracker;
+import ca.uqac.lif.cep.functions.Constant;
+import ca.uqac.lif.cep.functions.ContextVariable;
+import ca.uqac.lif.cep.functions.Function;
+import ca.uqac.lif.cep.ltl.Troolean;
+
+/**
+ * Asserts that a node can be reached from another one by following one or
+ * more edges with a given label, in their direction. This corresponds to
+ * the property path <code>:r+</code> in SPARQL; the reflexive variant,
+ * which also holds when the two nodes are the same, corresponds to
+ * <code>:r*</code>. The length of the path can optionally be bounded.
+ * <p>
+ * The assertion is evaluated by a bidirectional breadth-first search: one
+ * search follows the edges forward from the source, the other follows them
+ * backward from the target, and the frontier with the fewest nodes is
+ * expanded at each step. The search stops as soon as the two meet. The
+ * nodes are visited through
+ * {@link KnowledgeGraph#forEachNeighbour(long, int, boolean, LongPredicate)
+ * forEachNeighbour()}, and the visited nodes are kept in sets of primitive
+ * identifiers, so that no object is created for each edge or node.
+ * <p>
+ * As with {@link ConnectedBy}, the source or the target can be the data of
+ * a node rather than a node; the search then starts from every node having
+ * this data. Like {@link ConnectedBy}, the function can also be used as a
+ * BeepBeep {@link Function}.
+ * @author Sylvain Hallé
+ */
+public class ReachableBy extends ContextFunction implements GraphAssertion
+{
+	/**
+	 * The value of {@link #m_maxLength} when the length of the path is not
+	 * bounded.
+	 */
+	public static final int UNBOUNDED = Integer.MAX_VALUE;
+
+	/**
+	 * Creates an assertion that a node is reachable from another through
+	 * one or more edges with a given label.
+	 * @param from The variable standing for the source node
+	 * @param label The label of the edges
+	 * @param to The variable standing for the target node
+	 * @return The assertion
+	 */
+	public static ReachableBy reachable(String from, String label, String to)
+	{
+		return new ReachableBy(toFunction(from), toFunction(label), toFunction(to), false, UNBOUNDED);
+	}
+
+	/**
+	 * Creates an assertion that a node is reachable from another through
+	 * at most a given number of edges with a given label.
+	 * @param from The variable standing for the source node
+	 * @param label The label of the edges
+	 * @param to The variable standing for the target node
+	 * @param max_length The maximum number of edges
+	 * @return The assertion
+	 */
+	public static ReachableBy reachable(String from, String label, String to, int max_length)
+	{
+		return new ReachableBy(toFunction(from), toFunction(label), toFunction(to), false, max_length);
+	}
+
+	/**
+	 * Creates an assertion that a node is equal to another, or reachable
+	 * from it through edges with a given label.
+	 * @param from The variable standing for the source node
+	 * @param label The label of the edges
+	 * @param to The variable standing for the target node
+	 * @return The assertion
+	 */
+	public static ReachableBy reachableOrSelf(String from, String label, String to)
+	{
+		return new ReachableBy(toFunction(from), toFunction(label), toFunction(to), true, UNBOUNDED);
+	}
+
+	/**
+	 * Converts an argument of the static constructors into a function.
+	 * @param s The argument, which is a variable if it starts with {@code $}
+	 * @return The function
+	 */
+	protected static Function toFunction(String s)
+	{
+		return s.startsWith("$") ? new ContextVariable(s) : new Constant(s);
+	}
+
+	/**
+	 * The source node, or the data of the source nodes.
+	 */
+	/*@ non_null @*/ protected final Function m_from;
+
+	/**
+	 * The label of the edges.
+	 */
+	/*@ non_null @*/ protected final Function m_label;
+
+	/**
+	 * The target node, or the data of the target nodes.
+	 */
+	/*@ non_null @*/ protected final Function m_to;
+
+	/**
+	 * The index in a {@link Valuation} of the variable standing for the
+	 * source, or -1 if the source is not a variable.
+	 */
+	protected final int m_fromSlot;
+
+	/**
+	 * The index in a {@link Valuation} of the variable standing for the
+	 * label, or -1 if the label is not a variable.
+	 */
+	protected final int m_labelSlot;
+
+	/**
+	 * The index in a {@link Valuation} of the variable standing for the
+	 * target, or -1 if the target is not a variable.
+	 */
+	protected final int m_toSlot;
+
+	/**
+	 * Whether a node is reachable from itself through a path of length 0.
+	 */
+	protected final boolean m_reflexive;
+
+	/**
+	 * The maximum number of edges of the path, or {@link #UNBOUNDED}.
+	 */
+	protected final int m_maxLength;
+
+	/**
+	 * Creates a new reachability assertion.
+	 * @param from The source node, or the data of the source nodes
+	 * @param label The label of the edges
+	 * @param to The target node, or the data of the target nodes
+	 * @param reflexive Whether a node is reachable from itself through a
+	 * path of length 0
+	 * @param max_length The maximum number of edges of the path, or
+	 * {@link #UNBOUNDED}
+	 */
+	public ReachableBy(Function from, Function label, Function to, boolean reflexive, int max_length)
+	{
+		super();
+		m_from = from;
+		m_label = label;
+		m_to = to;
+		m_fromSlot = getSlot(from);
+		m_labelSlot = getSlot(label);
+		m_toSlot = getSlot(to);
+		m_reflexive = reflexive;
+		m_maxLength = max_length;
+	}
+
+	@Override
+	public Boolean evaluate(KnowledgeGraph g, Valuation nu)
+	{
+		Object from = evaluateFromValuation(m_from, m_fromSlot, nu);
+		Object label = evaluateFromValuation(m_label, m_labelSlot, nu);
+		Object to = evaluateFromValuation(m_to, m_toSlot, nu);
+		return isReachable(g, from, label, to);
+	}
+
+	@Override
+	public void evaluate(Object[] inputs, Object[] outputs, Context c, EventTracker t)
+	{
+		KnowledgeGraph g = (KnowledgeGraph) inputs[0];
+		Object from = evaluateFromContext(m_from, inputs[0], c);
+		Object label = evaluateFromContext(m_label, inputs[0], c);
+		Object to = evaluateFromContext(m_to, inputs[0], c);
+		outputs[0] = isReachable(g, from, label, to) ? Troolean.Value.TRUE : Troolean.Value.FALSE;
+	}
+
+	/**
+	 * Determines if a node is reachable from another.
+	 * @param g The graph
+	 * @param from The source node, or the data of the source nodes
+	 * @param label The label of the edges
+	 * @param to The target node, or the data of the target nodes
+	 * @return {@code true} if the target is reachable, {@code false}
+	 * otherwise
+	 */
+	protected boolean isReachable(KnowledgeGraph g, Object from, Object label, Object to)
+	{
+		if (from == null || to == null || !(label instanceof String))
+		{
+			return false;
+		}
+		int label_id = LabelDictionary.find((String) label);
+		LongSet forward = getNodes(g, from);
+		LongSet backward = getNodes(g, to);
+		if (forward.isEmpty() || backward.isEmpty())
+		{
+			return false;
+		}
+		int max_length = m_maxLength;
+		if (!m_reflexive)
+		{
+			// A path of one or more edges starts with one of the successors
+			LongSet successors = new LongSet();
+			if (label_id >= 0)
+			{
+				forward.forEach(id -> g.forEachNeighbour(id, label_id, true, n -> {
+					successors.add(n);
+					return true;
+				}));
+			}
+			forward = successors;
+			if (max_length-- <= 0 || forward.isEmpty())
+			{
+				return false;
+			}
+		}
+		if (forward.intersects(backward))
+		{
+			return true;
+		}
+		if (label_id < 0)
+		{
+			return false;
+		}
+		return search(g, label_id, forward, backward, max_length);
+	}
+
+	/**
+	 * Searches for a path from one set of nodes to another, by expanding the
+	 * smaller frontier one level at a time.
+	 * @param g The graph
+	 * @param label The identifier of the label of the edges
+	 * @param forward The nodes reached from the source, which is also the
+	 * initial forward frontier
+	 * @param backward The nodes reached backward from the target, which is
+	 * also the initial backward frontier
+	 * @param max_length The maximum number of edges between the two sets
+	 * @return {@code true} if a path exists, {@code false} otherwise
+	 */
+	protected static boolean search(KnowledgeGraph g, int label, LongSet forward, LongSet backward, int max_length)
+	{
+		LongList forward_frontier = forward.toList();
+		LongList backward_frontier = backward.toList();
+		LongList spare = new LongList();
+		int length = 0;
+		while (length < max_length && forward_frontier.m_size > 0 && backward_frontier.m_size > 0)
+		{
+			boolean outgoing = forward_frontier.m_size <= backward_frontier.m_size;
+			LongList frontier = outgoing ? forward_frontier : backward_frontier;
+			LongSet visited = outgoing ? forward : backward;
+			LongSet other = outgoing ? backward : forward;
+			LongList next = spare;
+			next.clear();
+			for (int i = 0; i < frontier.m_size; i++)
+			{
+				boolean complete = g.forEachNeighbour(frontier.m_values[i], label, outgoing, n -> {
+					if (other.contains(n))
+					{
+						return false;
+					}
+					if (visited.add(n))
+					{
+						next.add(n);
+					}
+					return true;
+				});
+				if (!complete)
+				{
+					// The two searches meet
+					return true;
+				}
+			}
+			length++;
+			// The expanded frontier is replaced by the new one, and reused
+			spare = frontier;
+			if (outgoing)
+			{
+				forward_frontier = next;
+			}
+			else
+			{
+				backward_frontier = next;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Gets the identifiers of the nodes designated by an argument.
+	 * @param g The graph
+	 * @param o A node, or the data of the nodes
+	 * @return The set of identifiers
+	 */
+	protected static LongSet getNodes(KnowledgeGraph g, Object o)
+	{
+		LongSet set = new LongSet();
+		if (o instanceof GraphNode)
+		{
+			set.add(((GraphNode) o).getId());
+			return set;
+		}
+		Collection<GraphNode> nodes = g.getNodesWithData(o);
+		for (GraphNode n : nodes)
+		{
+			set.add(n.getId());
+		}
+		return set;
+	}
+
+	@Override
+	public boolean getFreeVariables(BitSet slots)
+	{
+		for (int slot : new int[] {m_fromSlot, m_labelSlot, m_toSlot})
+		{
+			if (slot >= 0)
+			{
+				slots.set(slot);
+			}
+		}
+		return true;
+	}
+
+	@Override
+	public Class<?> getOutputTypeFor(int index)
+	{
+		if (index == 0)
+		{
+			return Boolean.class;
+		}
+		return null;
+	}
+
+	@Override
+	public ReachableBy duplicate(boolean with_state)
+	{
+		return new ReachableBy(m_from, m_label, m_to, m_reflexive, m_maxLength);
+	}
+
+	/**
+	 * A growable list of {@code long} values.
+	 */
+	protected static class LongList
+	{
+		/**
+		 * The values, of which only the first {@link #m_size} are used.
+		 */
+		/*@ non_null @*/ protected long[] m_values = new long[16];
+
+		/**
+		 * The number of values in the list.
+		 */
+		protected int m_size;
+
+		/**
+		 * Adds a value at the end of the list.
+		 * @param x The value
+		 */
+		public void add(long x)
+		{
+			if (m_size == m_values.length)
+			{
+				m_values = Arrays.copyOf(m_values, m_size * 2);
+			}
+			m_values[m_size++] = x;
+		}
+
+		/**
+		 * Removes all the values of the list.
+		 */
+		public void clear()
+		{
+			m_size = 0;
+		}
+	}
+
+	/**
+	 * A set of {@code long} values, stored by open addressing with linear
+	 * probing. The visited sets of a search are never shared, so they do not
+	 * need the structural sharing of a {@link PersistentLongMap}.
+	 */
+	protected static class LongSet
+	{
+		/**
+		 * The value marking an empty slot. Since it could also be an element of
+		 * the set, its presence is recorded separately.
+		 */
+		protected static final long EMPTY = Long.MIN_VALUE;
+
+		/**
+		 * The slots of the table, whose length is a power of 2.
+		 */
+		/*@ non_null @*/ protected long[] m_slots;
+
+		/**
+		 * The number of elements in the set.
+		 */
+		protected int m_size;
+
+		/**
+		 * Whether {@link #EMPTY} is an element of the set.
+		 */
+		protected boolean m_hasEmpty;
+
+		/**
+		 * Creates a new empty set.
+		 */
+		public LongSet()
+		{
+			super();
+			m_slots = new long[16];
+			Arrays.fill(m_slots, EMPTY);
+		}
+
+		/**
+		 * Determines if the set is empty.
+		 * @return {@code true} if the set is empty, {@code false} otherwise
+		 */
+		public boolean isEmpty()
+		{
+			return m_size == 0;
+		}
+
+		/**
+		 * Determines if a value is in the set.
+		 * @param x The value
+		 * @return {@code true} if the value is in the set, {@code false}
+		 * otherwise
+		 */
+		public boolean contains(long x)
+		{
+			if (x == EMPTY)
+			{
+				return m_hasEmpty;
+			}
+			int mask = m_slots.length - 1;
+			for (int i = hash(x) & mask; m_slots[i] != EMPTY; i = (i + 1) & mask)
+			{
+				if (m_slots[i] == x)
+				{
+					return true;
+				}
+			}
+			return false;
+		}
+
+		/**
+		 * Adds a value to the set.
+		 * @param x The value
+		 * @return {@code true} if the value was not already in the set,
+		 * {@code false} otherwise
+		 */
+		public boolean add(long x)
+		{
+			if (x == EMPTY)
+			{
+				if (m_hasEmpty)
+				{
+					return false;
+				}
+				m_hasEmpty = true;
+				m_size++;
+				return true;
+			}
+			if (2 * (m_size + 1) > m_slots.length)
+			{
+				grow();
+			}
+			int mask = m_slots.length - 1;
+			int i = hash(x) & mask;
+			while (m_slots[i] != EMPTY)
+			{
+				if (m_slots[i] == x)
+				{
+					return false;
+				}
+				i = (i + 1) & mask;
+			}
+			m_slots[i] = x;
+			m_size++;
+			return true;
+		}
+
+		/**
+		 * Calls an action on each value of the set.
+		 * @param action The action, which returns {@code false} to stop
+		 */
+		public void forEach(LongPredicate action)
+		{
+			if (m_hasEmpty && !action.test(EMPTY))
+			{
+				return;
+			}
+			for (long x : m_slots)
+			{
+				if (x != EMPTY && !action.test(x))
+				{
+					return;
+				}
+			}
+		}
+
+		/**
+		 * Determines if this set has an element in common with another.
+		 * @param s The other set
+		 * @return {@code true} if the sets intersect, {@code false} otherwise
+		 */
+		public boolean intersects(LongSet s)
+		{
+			LongSet small = m_size <= s.m_size ? this : s;
+			LongSet large = small == this ? s : this;
+			boolean[] found = new boolean[1];
+			small.forEach(x -> !(found[0] = large.contains(x)));
+			return found[0];
+		}
+
+		/**
+		 * Gets the values of the set in a list.
+		 * @return The list
+		 */
+		/*@ non_null @*/ public LongList toList()
+		{
+			LongList list = new LongList();
+			forEach(x -> {
+				list.add(x);
+				return true;
+			});
+			return list;
+		}
+
+		/**
+		 * Doubles the number of slots of the table.
+		 */
+		protected void grow()
+		{
+			long[] old = m_slots;
+			m_slots = new long[old.length * 2];
+			Arrays.fill(m_slots, EMPTY);
+			int mask = m_slots.length - 1;
+			for (long x : old)
+			{
+				if (x != EMPTY)
+				{
+					int i = hash(x) & mask;
+					while (m_slots[i] != EMPTY)
+					{
+						i = (i + 1) & mask;
+					}
+					m_slots[i] = x;
+				}
+			}
+		}
+
+		/**
+		 * Spreads the bits of a value.
+		 * @param x The value
+		 * @return The hash of the value
+		 */
+		protected static int hash(long x)
+		{
+			long h = x * 0x9E3779B97F4A7C15L;
+			return (int) (h ^ (h >>> 32));
+		}
+	}
+}
@@ -0,0 +1,261 @@
+/*
+    Basic processing of SPARQL queries in Java
+    Copyright (C) 2024 Sylvain Hallé
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Lesser General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.uqac.lif.sparql;
+
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Enumerates the values of variables for which an assertion is true. The
+ * variables to enumerate are those of the {@link ExistsNode} and
+ * {@link ExistsEdge} quantifiers at the top of the assertion: for
+ * {@code existsNode("$x", and(eq(l("$x"), "A"), not(existsNode("$y",
+ * connected("$x", "r", "$y")))))}, the iterator produces one
+ * {@link Valuation} for each node labelled "A" that has no outgoing edge
+ * labelled "r", which is the same as the query
+ * <code>SELECT ?x WHERE { ... }</code> in SPARQL. The assertion is true if
+ * and only if the iterator produces at least one valuation.
+ * <p>
+ * The iterator enumerates the bindings of the {@link JoinPlan} that the
+ * {@link QueryPlanner} produces for these quantifiers: the variables are
+ * bound in the order chosen by the plan, their candidates are taken from
+ * the same indices, and each operand is evaluated as soon as the variables
+ * it reads are bound. The iterator can also be given the plan directly; a
+ * {@link TrieJoin} is enumerated through the join plan it falls back to.
+ * <p>
+ * The valuations are produced lazily: the iterator keeps an iterator over
+ * the candidates of each variable, and only advances them as far as needed
+ * to find the next valuation. The results are therefore never stored in
+ * memory, and a consumer can stop at any time, for instance by applying
+ * {@link Stream#limit(long)} to the stream returned by
+ * {@link #select(GraphAssertion, KnowledgeGraph)}.
+ * <p>
+ * Each valuation produced is a new object, which the consumer can keep; the
+ * graph must not be modified while the iteration is in progress.
+ * @author Sylvain Hallé
+ */
+public class SolutionIterator implements Iterator<Valuation>
+{
+	/**
+	 * Gets a lazy stream of the values of the variables of the top-level
+	 * existential quantifiers of an assertion that make it true.
+	 * @param phi The assertion, or the plan obtained for it
+	 * @param g The graph
+	 * @return The stream of valuations
+	 */
+	/*@ non_null @*/ public static Stream<Valuation> select(/*@ non_null @*/ GraphAssertion phi, /*@ non_null @*/ KnowledgeGraph g)
+	{
+		return select(phi, g, new Valuation());
+	}
+
+	/**
+	 * Gets a lazy stream of the values of the variables of the top-level
+	 * existential quantifiers of an assertion that make it true.
+	 * @param phi The assertion, or the plan obtained for it
+	 * @param g The graph
+	 * @param nu A valuation giving the values of the other free variables of
+	 * the assertion, which is not modified
+	 * @return The stream of valuations
+	 */
+	/*@ non_null @*/ public static Stream<Valuation> select(/*@ non_null @*/ GraphAssertion phi, /*@ non_null @*/ KnowledgeGraph g, /*@ non_null @*/ Valuation nu)
+	{
+		Spliterator<Valuation> s = Spliterators.spliteratorUnknownSize(new SolutionIterator(phi, g, nu), Spliterator.ORDERED | Spliterator.NONNULL);
+		return StreamSupport.stream(s, false);
+	}
+
+	/**
+	 * The graph.
+	 */
+	/*@ non_null @*/ protected final KnowledgeGraph m_graph;
+
+	/**
+	 * The valuation in which the variables are bound.
+	 */
+	/*@ non_null @*/ protected final Valuation m_valuation;
+
+	/**
+	 * The plan whose bindings are enumerated.
+	 */
+	/*@ non_null @*/ protected final JoinPlan m_plan;
+
+	/**
+	 * The iterator over the candidates of each variable.
+	 */
+	/*@ non_null @*/ protected final Iterator<?>[] m_iterators;
+
+	/**
+	 * The position of the variable being enumerated, or -1 before the first
+	 * call to {@link #findNext()}.
+	 */
+	protected int m_level;
+
+	/**
+	 * The next valuation to return, or {@code null} if it has not been found
+	 * yet.
+	 */
+	protected Valuation m_next;
+
+	/**
+	 * Whether all the valuations have been enumerated.
+	 */
+	protected boolean m_done;
+
+	/**
+	 * Creates a new iterator.
+	 * @param phi The assertion, or the plan obtained for it
+	 * @param g The graph
+	 * @param nu A valuation giving the values of the other free variables of
+	 * the assertion, which is not modified
+	 */
+	public SolutionIterator(/*@ non_null @*/ GraphAssertion phi, /*@ non_null @*/ KnowledgeGraph g, /*@ non_null @*/ Valuation nu)
+	{
+		super();
+		m_graph = g;
+		m_valuation = new Valuation(nu);
+		m_plan = getJoinPlan(phi);
+		m_iterators = new Iterator<?>[m_plan.m_slots.length];
+		m_level = -1;
+	}
+
+	/**
+	 * Gets the join plan of the top-level existential quantifiers of an
+	 * assertion.
+	 * @param phi The assertion, or the plan obtained for it
+	 * @return The join plan
+	 */
+	/*@ non_null @*/ protected static JoinPlan getJoinPlan(/*@ non_null @*/ GraphAssertion phi)
+	{
+		if (phi.getClass() != JoinPlan.class && phi.getClass() != TrieJoin.class)
+		{
+			phi = QueryPlanner.planBlock(phi);
+		}
+		if (phi.getClass() == TrieJoin.class)
+		{
+			phi = ((TrieJoin) phi).m_fallback;
+		}
+		return (JoinPlan) phi;
+	}
+
+	@Override
+	public boolean hasNext()
+	{
+		if (m_next == null && !m_done)
+		{
+			m_next = findNext();
+			m_done = m_next == null;
+		}
+		return m_next != null;
+	}
+
+	@Override
+	public Valuation next()
+	{
+		if (!hasNext())
+		{
+			throw new NoSuchElementException();
+		}
+		Valuation v = m_next;
+		m_next = null;
+		return v;
+	}
+
+	/**
+	 * Advances the iterators of the variables up to the next combination of
+	 * values satisfying all the operands.
+	 * @return A copy of the valuation for this combination, or {@code null}
+	 * if there is none
+	 */
+	protected Valuation findNext()
+	{
+		int n = m_iterators.length;
+		if (m_level < 0)
+		{
+			if (!check(0))
+			{
+				return null;
+			}
+			if (n == 0)
+			{
+				// No variable: a single, empty solution
+				m_level = 0;
+				return new Valuation(m_valuation);
+			}
+			m_level = 0;
+			m_iterators[0] = getCandidates(0).iterator();
+		}
+		while (m_level >= 0 && n > 0)
+		{
+			Iterator<?> it = m_iterators[m_level];
+			int slot = m_plan.m_slots[m_level];
+			if (!it.hasNext())
+			{
+				m_iterators[m_level] = null;
+				m_valuation.set(slot, null);
+				m_level--;
+				continue;
+			}
+			m_valuation.set(slot, it.next());
+			if (!check(m_level + 1))
+			{
+				continue;
+			}
+			if (m_level == n - 1)
+			{
+				return new Valuation(m_valuation);
+			}
+			m_level++;
+			m_iterators[m_level] = getCandidates(m_level).iterator();
+		}
+		return null;
+	}
+
+	/**
+	 * Gets the candidate values of a variable, as {@link JoinPlan} does.
+	 * @param level The position of the variable
+	 * @return The candidates
+	 */
+	/*@ non_null @*/ protected Collection<?> getCandidates(int level)
+	{
+		for (Domain<?> gen : m_plan.m_generators[level])
+		{
+			Collection<?> candidates = gen.getCandidates(m_graph, m_valuation);
+			if (candidates != null)
+			{
+				return candidates;
+			}
+		}
+		return m_plan.m_edges[level] ? m_graph.getEdges() : m_graph.getNodes();
+	}
+
+	/**
+	 * Evaluates the operands of the plan placed at a given index of
+	 * {@link JoinPlan#m_filters}.
+	 * @param index The index
+	 * @return {@code true} if all the operands are true, {@code false}
+	 * otherwise
+	 */
+	protected boolean check(int index)
+	{
+		return JoinPlan.check(m_plan.m_filters[index], m_graph, m_valuation);
+	}
+}
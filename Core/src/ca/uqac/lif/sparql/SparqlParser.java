@@ -0,0 +1,884 @@
+/*
+    Basic processing of SPARQL queries in Java
+    Copyright (C) 2024 Sylvain Hallé
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Lesser General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.uqac.lif.sparql;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Function;
+
+import static ca.uqac.lif.sparql.LabelOf.l;
+
+/**
+ * Parses queries written in a subset of SPARQL into {@link SparqlQuery}
+ * objects. The subset covers:
+ * <ul>
+ * <li>{@code ASK} queries, and {@code SELECT} queries with a list of
+ * variables, {@code *} or {@code (COUNT(...) AS ?v)}, optionally
+ * {@code DISTINCT} and followed by a {@code LIMIT};</li>
+ * <li>basic graph patterns made of triples, including the {@code ;} and
+ * {@code ,} abbreviations, and the property paths {@code :r+} and
+ * {@code :r*}, which become a {@link ReachableBy};</li>
+ * <li>{@code FILTER} expressions made of comparisons with {@code =},
+ * {@code !=}, {@code <}, {@code >}, {@code <=} and {@code >=}, the
+ * connectives {@code &&}, {@code ||} and {@code !}, and {@code EXISTS} or
+ * {@code NOT EXISTS} applied to a graph pattern.</li>
+ * </ul>
+ * The subject and object of a triple must be variables, which stand for
+ * nodes of the graph; its predicate is either the label of an edge or a
+ * variable standing for an edge. A label is written as an IRI
+ * ({@code <r>}) or a prefixed name ({@code :r} or {@code ex:r}), in which
+ * case only the part after the colon is kept; {@code PREFIX} declarations
+ * are accepted and ignored. In a filter, a variable stands for the label of
+ * its node or edge, and is compared with numbers or quoted strings.
+ * <p>
+ * For example, the query
+ * <pre>
+ * SELECT ?x WHERE { ?x :r ?y . FILTER (?x = "A" &amp;&amp; NOT EXISTS { ?y :s ?z }) }
+ * </pre>
+ * is compiled into {@code existsNode("$x", existsNode("$y", and(connected("$x",
+ * "r", "$y"), eq(l("$x"), "A"), not(existsNode("$z", connected("$y", "s",
+ * "$z")))))))}.
+ * <p>
+ * The names in this example are those of the query; in the assertion
+ * actually produced, the variables of a query are renamed {@code $0},
+ * {@code $1}, etc. in the order in which they occur. The
+ * {@link VariableDictionary} never reclaims the identifier of a variable,
+ * and every {@link Valuation} is as large as the largest identifier it
+ * holds: the renaming makes queries share the same few identifiers, instead
+ * of giving one to every name ever written in a query. The solutions of a
+ * query still use the names written in the query.
+ * <p>
+ * A query that cannot be parsed causes an {@link IllegalArgumentException}
+ * giving the position of the error.
+ * @author Sylvain Hallé
+ */
+public class SparqlParser
+{
+	/**
+	 * Creates a new parser.
+	 */
+	public SparqlParser()
+	{
+		super();
+	}
+
+	/**
+	 * Parses a query.
+	 * @param query The text of the query
+	 * @return The query
+	 * @throws IllegalArgumentException If the query is not in the supported
+	 * subset of SPARQL
+	 */
+	/*@ non_null @*/ public SparqlQuery parse(/*@ non_null @*/ String query)
+	{
+		Cursor c = new Cursor(query);
+		while (c.readKeyword("PREFIX") || c.readKeyword("BASE"))
+		{
+			// Prefixes are ignored, only the local part of names is kept
+			if (c.peek() != '<')
+			{
+				c.readName();
+				c.expect(":");
+			}
+			c.readIri();
+		}
+		SparqlQuery q;
+		if (c.readKeyword("ASK"))
+		{
+			c.readKeyword("WHERE");
+			Group g = readGroup(c);
+			q = new SparqlQuery(compile(c, g, new HashSet<String>(), null), null, null, false, null, -1);
+		}
+		else if (c.readKeyword("SELECT"))
+		{
+			q = readSelect(c);
+		}
+		else
+		{
+			throw c.error("Expected ASK or SELECT");
+		}
+		c.skipSpace();
+		if (!c.atEnd())
+		{
+			throw c.error("Unexpected text after the query");
+		}
+		return q;
+	}
+
+	/**
+	 * Parses the remainder of a SELECT query, after the keyword.
+	 * @param c The cursor
+	 * @return The query
+	 */
+	/*@ non_null @*/ protected SparqlQuery readSelect(/*@ non_null @*/ Cursor c)
+	{
+		boolean distinct = c.readKeyword("DISTINCT");
+		List<String> variables = new ArrayList<String>();
+		String count_variable = null;
+		boolean all = false;
+		if (c.read("*"))
+		{
+			all = true;
+		}
+		else if (c.read("("))
+		{
+			if (!c.readKeyword("COUNT"))
+			{
+				throw c.error("Expected COUNT");
+			}
+			c.expect("(");
+			if (c.readKeyword("DISTINCT"))
+			{
+				distinct = true;
+			}
+			if (c.read("*"))
+			{
+				all = true;
+			}
+			else
+			{
+				variables.add(c.readVariable());
+			}
+			c.expect(")");
+			if (!c.readKeyword("AS"))
+			{
+				throw c.error("Expected AS");
+			}
+			count_variable = c.getName(c.readVariable());
+			c.expect(")");
+		}
+		else
+		{
+			do
+			{
+				variables.add(c.readVariable());
+				c.skipSpace();
+			}
+			while (c.peek() == '?' || c.peek() == '$');
+		}
+		c.readKeyword("WHERE");
+		Group g = readGroup(c);
+		long limit = -1;
+		if (c.readKeyword("LIMIT"))
+		{
+			limit = c.readInteger();
+		}
+		Map<String,Boolean> pattern_variables = g.getVariables(c);
+		if (all)
+		{
+			variables.addAll(pattern_variables.keySet());
+		}
+		for (String v : variables)
+		{
+			if (!pattern_variables.containsKey(v))
+			{
+				throw c.error("Variable " + c.getName(v).replace('$', '?') + " does not occur in the pattern");
+			}
+		}
+		GraphAssertion phi = compile(c, g, new HashSet<String>(), variables);
+		String[] names = new String[variables.size()];
+		for (int i = 0; i < names.length; i++)
+		{
+			names[i] = c.getName(variables.get(i));
+		}
+		return new SparqlQuery(phi, variables.toArray(new String[variables.size()]), names, distinct, count_variable, limit);
+	}
+
+	/**
+	 * Parses a group graph pattern enclosed in braces.
+	 * @param c The cursor
+	 * @return The group
+	 */
+	/*@ non_null @*/ protected Group readGroup(/*@ non_null @*/ Cursor c)
+	{
+		c.expect("{");
+		Group g = new Group();
+		while (!c.read("}"))
+		{
+			if (c.readKeyword("FILTER"))
+			{
+				c.skipSpace();
+				g.m_filters.add(c.peek() == '(' ? readPrimary(c) : readUnary(c));
+			}
+			else
+			{
+				readTriples(c, g);
+			}
+			c.read(".");
+		}
+		return g;
+	}
+
+	/**
+	 * Parses the triples sharing a subject, with their predicates separated
+	 * by {@code ;} and their objects separated by {@code ,}.
+	 * @param c The cursor
+	 * @param g The group to which the triples are added
+	 */
+	protected void readTriples(/*@ non_null @*/ Cursor c, /*@ non_null @*/ Group g)
+	{
+		String subject = c.readVariable();
+		do
+		{
+			c.skipSpace();
+			if (c.peek() == '.' || c.peek() == '}')
+			{
+				// A trailing semicolon
+				break;
+			}
+			String predicate = readPredicate(c);
+			String path = "";
+			if (!predicate.startsWith("$") && (c.startsWith("+") || c.startsWith("*")))
+			{
+				path = String.valueOf(c.peek());
+				c.expect(path);
+			}
+			do
+			{
+				g.m_triples.add(new String[] {subject, predicate, c.readVariable(), path});
+			}
+			while (c.read(","));
+		}
+		while (c.read(";"));
+	}
+
+	/**
+	 * Parses the predicate of a triple.
+	 * @param c The cursor
+	 * @return A variable, or the label of an edge
+	 */
+	/*@ non_null @*/ protected String readPredicate(/*@ non_null @*/ Cursor c)
+	{
+		c.skipSpace();
+		char ch = c.peek();
+		if (ch == '?' || ch == '$')
+		{
+			return c.readVariable();
+		}
+		if (ch == '<')
+		{
+			return c.readIri();
+		}
+		if (ch != ':')
+		{
+			c.readName();
+		}
+		c.expect(":");
+		String label = c.readName();
+		if (label.isEmpty())
+		{
+			throw c.error("Expected the local part of a name");
+		}
+		return label;
+	}
+
+	/**
+	 * Parses a disjunction of filter expressions.
+	 * @param c The cursor
+	 * @return The expression
+	 */
+	/*@ non_null @*/ protected Expression readOr(/*@ non_null @*/ Cursor c)
+	{
+		List<Expression> operands = new ArrayList<Expression>();
+		do
+		{
+			operands.add(readAnd(c));
+		}
+		while (c.read("||"));
+		if (operands.size() == 1)
+		{
+			return operands.get(0);
+		}
+		return scope -> Disjunction.or(compileAll(operands, scope).toArray());
+	}
+
+	/**
+	 * Parses a conjunction of filter expressions.
+	 * @param c The cursor
+	 * @return The expression
+	 */
+	/*@ non_null @*/ protected Expression readAnd(/*@ non_null @*/ Cursor c)
+	{
+		List<Expression> operands = new ArrayList<Expression>();
+		do
+		{
+			operands.add(readUnary(c));
+		}
+		while (c.read("&&"));
+		if (operands.size() == 1)
+		{
+			return operands.get(0);
+		}
+		return scope -> Conjunction.and(compileAll(operands, scope).toArray());
+	}
+
+	/**
+	 * Parses a negation, an {@code EXISTS} or a comparison.
+	 * @param c The cursor
+	 * @return The expression
+	 */
+	/*@ non_null @*/ protected Expression readUnary(/*@ non_null @*/ Cursor c)
+	{
+		c.skipSpace();
+		if (c.peek() == '!' && !c.startsWith("!="))
+		{
+			c.expect("!");
+			Expression e = readUnary(c);
+			return scope -> new Negation(e.apply(scope));
+		}
+		if (c.readKeyword("EXISTS"))
+		{
+			Group g = readGroup(c);
+			return scope -> compile(c, g, scope, null);
+		}
+		if (c.readKeyword("NOT"))
+		{
+			if (!c.readKeyword("EXISTS"))
+			{
+				throw c.error("Expected EXISTS");
+			}
+			Group g = readGroup(c);
+			return scope -> new Negation(compile(c, g, scope, null));
+		}
+		if (c.peek() == '(')
+		{
+			return readPrimary(c);
+		}
+		GraphFunction<?> left = readTerm(c);
+		c.skipSpace();
+		String[] operators = {"!=", "<=", ">=", "=", "<", ">"};
+		for (String op : operators)
+		{
+			if (c.read(op))
+			{
+				GraphAssertion a = compare(op, left, readTerm(c));
+				return scope -> a;
+			}
+		}
+		throw c.error("Expected a comparison operator");
+	}
+
+	/**
+	 * Parses a filter expression enclosed in parentheses.
+	 * @param c The cursor
+	 * @return The expression
+	 */
+	/*@ non_null @*/ protected Expression readPrimary(/*@ non_null @*/ Cursor c)
+	{
+		c.expect("(");
+		Expression e = readOr(c);
+		c.expect(")");
+		return e;
+	}
+
+	/**
+	 * Parses an operand of a comparison: a variable, a number or a string.
+	 * @param c The cursor
+	 * @return The function giving the value of the operand
+	 */
+	/*@ non_null @*/ protected GraphFunction<?> readTerm(/*@ non_null @*/ Cursor c)
+	{
+		c.skipSpace();
+		char ch = c.peek();
+		if (ch == '?' || ch == '$')
+		{
+			return l(c.readVariable());
+		}
+		if (ch == '"' || ch == '\'')
+		{
+			return new Constant<Object>(c.readString());
+		}
+		return new Constant<Object>(c.readNumber());
+	}
+
+	/**
+	 * Creates the assertion comparing two operands.
+	 * @param op The comparison operator
+	 * @param left The left operand
+	 * @param right The right operand
+	 * @return The assertion
+	 */
+	/*@ non_null @*/ protected static GraphAssertion compare(/*@ non_null @*/ String op, /*@ non_null @*/ GraphFunction<?> left, /*@ non_null @*/ GraphFunction<?> right)
+	{
+		switch (op)
+		{
+		case "=":
+			return new IsEqualTo(left, right);
+		case "!=":
+			return new Negation(new IsEqualTo(left, right));
+		case ">":
+			return new NumberComparison.IsGreaterThan(left, right);
+		case "<":
+			return new NumberComparison.IsGreaterThan(right, left);
+		case ">=":
+			return Disjunction.or(new NumberComparison.IsGreaterThan(left, right), new IsEqualTo(left, right));
+		default:
+			return Disjunction.or(new NumberComparison.IsGreaterThan(right, left), new IsEqualTo(left, right));
+		}
+	}
+
+	/**
+	 * Compiles a group graph pattern into an assertion. The variables of the
+	 * pattern that are not bound by an enclosing pattern are bound by
+	 * existential quantifiers, the selected variables being the outermost.
+	 * @param c The cursor, used to report errors
+	 * @param g The group
+	 * @param scope The variables bound by the enclosing patterns
+	 * @param selected The variables to quantify first, or {@code null}
+	 * @return The assertion
+	 */
+	/*@ non_null @*/ protected static GraphAssertion compile(/*@ non_null @*/ Cursor c, /*@ non_null @*/ Group g, /*@ non_null @*/ Set<String> scope, List<String> selected)
+	{
+		Map<String,Boolean> variables = g.getVariables(c);
+		Set<String> inner_scope = new HashSet<String>(scope);
+		inner_scope.addAll(variables.keySet());
+		List<GraphAssertion> operands = new ArrayList<GraphAssertion>();
+		for (String[] t : g.m_triples)
+		{
+			switch (t[3])
+			{
+			case "+":
+				operands.add(ReachableBy.reachable(t[0], t[1], t[2]));
+				break;
+			case "*":
+				operands.add(ReachableBy.reachableOrSelf(t[0], t[1], t[2]));
+				break;
+			default:
+				operands.add(ConnectedBy.connected(t[0], t[1], t[2]));
+			}
+		}
+		operands.addAll(compileAll(g.m_filters, inner_scope));
+		GraphAssertion phi = operands.size() == 1 ? operands.get(0) : new Conjunction(operands);
+		List<String> order = new ArrayList<String>();
+		if (selected != null)
+		{
+			order.addAll(selected);
+		}
+		for (String v : variables.keySet())
+		{
+			if (!order.contains(v))
+			{
+				order.add(v);
+			}
+		}
+		for (int i = order.size() - 1; i >= 0; i--)
+		{
+			String v = order.get(i);
+			if (scope.contains(v))
+			{
+				continue;
+			}
+			phi = variables.get(v) ? new ExistsEdge(v, phi) : new ExistsNode(v, phi);
+		}
+		if (scope.isEmpty())
+		{
+			BitSet free = new BitSet();
+			phi.getFreeVariables(free);
+			if (!free.isEmpty())
+			{
+				throw c.error("Variable " + c.getName(VariableDictionary.getName(free.nextSetBit(0))).replace('$', '?') + " does not occur in the pattern");
+			}
+		}
+		return phi;
+	}
+
+	/**
+	 * Compiles filter expressions.
+	 * @param expressions The expressions
+	 * @param scope The variables bound by the patterns enclosing the filters
+	 * @return The assertions
+	 */
+	/*@ non_null @*/ protected static List<GraphAssertion> compileAll(/*@ non_null @*/ List<Expression> expressions, /*@ non_null @*/ Set<String> scope)
+	{
+		List<GraphAssertion> out = new ArrayList<GraphAssertion>(expressions.size());
+		for (Expression e : expressions)
+		{
+			out.add(e.apply(scope));
+		}
+		return out;
+	}
+
+	/**
+	 * A parsed filter expression, which becomes an assertion once the
+	 * variables bound by the enclosing patterns are known. These variables
+	 * are only known at the end of the group containing the filter, since a
+	 * filter applies to the whole group.
+	 */
+	protected interface Expression extends Function<Set<String>,GraphAssertion>
+	{
+		// Nothing more
+	}
+
+	/**
+	 * A group graph pattern, made of triples and filters.
+	 */
+	protected static class Group
+	{
+		/**
+		 * The triples of the group, each made of a subject variable, a
+		 * predicate, an object variable, and the modifier of a property path
+		 * ({@code +}, {@code *} or nothing).
+		 */
+		/*@ non_null @*/ protected final List<String[]> m_triples = new ArrayList<String[]>();
+
+		/**
+		 * The filters of the group.
+		 */
+		/*@ non_null @*/ protected final List<Expression> m_filters = new ArrayList<Expression>();
+
+		/**
+		 * Gets the variables occurring in the triples of the group.
+		 * @param c The cursor, used to report errors
+		 * @return A map associating each variable, in the order in which they
+		 * occur, with {@code true} if it stands for an edge and {@code false}
+		 * if it stands for a node
+		 */
+		/*@ non_null @*/ protected Map<String,Boolean> getVariables(/*@ non_null @*/ Cursor c)
+		{
+			Map<String,Boolean> variables = new LinkedHashMap<String,Boolean>();
+			for (String[] t : m_triples)
+			{
+				for (int i = 0; i < 3; i++)
+				{
+					if (!t[i].startsWith("$"))
+					{
+						continue;
+					}
+					Boolean previous = variables.put(t[i], i == 1);
+					if (previous != null && previous != (i == 1))
+					{
+						throw c.error("Variable " + c.getName(t[i]).replace('$', '?') + " stands for both a node and an edge");
+					}
+				}
+			}
+			return variables;
+		}
+	}
+
+	/**
+	 * Reads the characters of a query.
+	 */
+	protected static class Cursor
+	{
+		/**
+		 * The text of the query.
+		 */
+		/*@ non_null @*/ protected final String m_text;
+
+		/**
+		 * The position of the next character to read.
+		 */
+		protected int m_position;
+
+		/**
+		 * The name given to each variable of the query, indexed by the name
+		 * written in the query.
+		 */
+		/*@ non_null @*/ protected final Map<String,String> m_renamed = new HashMap<String,String>();
+
+		/**
+		 * The name written in the query for each variable, indexed by the
+		 * name given to it.
+		 */
+		/*@ non_null @*/ protected final Map<String,String> m_names = new HashMap<String,String>();
+
+		/**
+		 * Creates a new cursor at the start of a query.
+		 * @param text The text of the query
+		 */
+		public Cursor(/*@ non_null @*/ String text)
+		{
+			super();
+			m_text = text;
+			m_position = 0;
+		}
+
+		/**
+		 * Skips white space and comments.
+		 */
+		public void skipSpace()
+		{
+			while (m_position < m_text.length())
+			{
+				char ch = m_text.charAt(m_position);
+				if (ch == '#')
+				{
+					while (m_position < m_text.length() && m_text.charAt(m_position) != '\n')
+					{
+						m_position++;
+					}
+				}
+				else if (Character.isWhitespace(ch))
+				{
+					m_position++;
+				}
+				else
+				{
+					return;
+				}
+			}
+		}
+
+		/**
+		 * Determines if all the query has been read.
+		 * @return {@code true} if the end of the query is reached,
+		 * {@code false} otherwise
+		 */
+		public boolean atEnd()
+		{
+			return m_position >= m_text.length();
+		}
+
+		/**
+		 * Gets the next character without reading it.
+		 * @return The character, or 0 at the end of the query
+		 */
+		public char peek()
+		{
+			return atEnd() ? 0 : m_text.charAt(m_position);
+		}
+
+		/**
+		 * Determines if the text at the current position starts with a string.
+		 * @param s The string
+		 * @return {@code true} if the text starts with the string,
+		 * {@code false} otherwise
+		 */
+		public boolean startsWith(/*@ non_null @*/ String s)
+		{
+			return m_text.startsWith(s, m_position);
+		}
+
+		/**
+		 * Reads a string if the text after white space starts with it.
+		 * @param s The string
+		 * @return {@code true} if the string was read, {@code false} otherwise
+		 */
+		public boolean read(/*@ non_null @*/ String s)
+		{
+			skipSpace();
+			if (startsWith(s))
+			{
+				m_position += s.length();
+				return true;
+			}
+			return false;
+		}
+
+		/**
+		 * Reads a string that must come next.
+		 * @param s The string
+		 */
+		public void expect(/*@ non_null @*/ String s)
+		{
+			if (!read(s))
+			{
+				throw error("Expected '" + s + "'");
+			}
+		}
+
+		/**
+		 * Reads a keyword if it comes next, regardless of case.
+		 * @param keyword The keyword
+		 * @return {@code true} if the keyword was read, {@code false}
+		 * otherwise
+		 */
+		public boolean readKeyword(/*@ non_null @*/ String keyword)
+		{
+			skipSpace();
+			int end = m_position + keyword.length();
+			if (!m_text.regionMatches(true, m_position, keyword, 0, keyword.length()) || (end < m_text.length() && isNameChar(m_text.charAt(end))))
+			{
+				return false;
+			}
+			m_position = end;
+			return true;
+		}
+
+		/**
+		 * Reads a possibly empty name made of letters, digits, underscores and
+		 * dashes.
+		 * @return The name
+		 */
+		/*@ non_null @*/ public String readName()
+		{
+			skipSpace();
+			int start = m_position;
+			while (m_position < m_text.length() && isNameChar(m_text.charAt(m_position)))
+			{
+				m_position++;
+			}
+			return m_text.substring(start, m_position);
+		}
+
+		/**
+		 * Reads a variable, and gives it a name made of its position among the
+		 * variables of the query.
+		 * @return The name given to the variable, starting with {@code $}
+		 */
+		/*@ non_null @*/ public String readVariable()
+		{
+			skipSpace();
+			if (peek() != '?' && peek() != '$')
+			{
+				throw error("Expected a variable");
+			}
+			int start = ++m_position;
+			while (m_position < m_text.length() && isNameChar(m_text.charAt(m_position)))
+			{
+				m_position++;
+			}
+			if (m_position == start)
+			{
+				throw error("Expected the name of a variable");
+			}
+			String name = "$" + m_text.substring(start, m_position);
+			String renamed = m_renamed.get(name);
+			if (renamed == null)
+			{
+				renamed = "$" + m_renamed.size();
+				m_renamed.put(name, renamed);
+				m_names.put(renamed, name);
+			}
+			return renamed;
+		}
+
+		/**
+		 * Gets the name written in the query for a variable.
+		 * @param variable The name given to the variable by
+		 * {@link #readVariable()}
+		 * @return The name written in the query, starting with {@code $}
+		 */
+		/*@ non_null @*/ public String getName(/*@ non_null @*/ String variable)
+		{
+			return m_names.getOrDefault(variable, variable);
+		}
+
+		/**
+		 * Reads an IRI enclosed in angle brackets.
+		 * @return The IRI, without the brackets
+		 */
+		/*@ non_null @*/ public String readIri()
+		{
+			expect("<");
+			int end = m_text.indexOf('>', m_position);
+			if (end < 0)
+			{
+				throw error("Unterminated IRI");
+			}
+			String iri = m_text.substring(m_position, end);
+			m_position = end + 1;
+			return iri;
+		}
+
+		/**
+		 * Reads a string enclosed in single or double quotes. A backslash
+		 * escapes the next character.
+		 * @return The string, without the quotes
+		 */
+		/*@ non_null @*/ public String readString()
+		{
+			char quote = m_text.charAt(m_position++);
+			StringBuilder out = new StringBuilder();
+			while (m_position < m_text.length())
+			{
+				char ch = m_text.charAt(m_position++);
+				if (ch == quote)
+				{
+					return out.toString();
+				}
+				if (ch == '\\' && m_position < m_text.length())
+				{
+					ch = m_text.charAt(m_position++);
+				}
+				out.append(ch);
+			}
+			throw error("Unterminated string");
+		}
+
+		/**
+		 * Reads a number, which is a {@link Long} if it has neither a decimal
+		 * point nor an exponent, and a {@link Double} otherwise.
+		 * @return The number
+		 */
+		/*@ non_null @*/ public Number readNumber()
+		{
+			skipSpace();
+			int start = m_position;
+			while (m_position < m_text.length() && "+-.eE0123456789".indexOf(m_text.charAt(m_position)) >= 0)
+			{
+				m_position++;
+			}
+			String s = m_text.substring(start, m_position);
+			try
+			{
+				if (s.indexOf('.') < 0 && s.indexOf('e') < 0 && s.indexOf('E') < 0)
+				{
+					return Long.parseLong(s);
+				}
+				return Double.parseDouble(s);
+			}
+			catch (NumberFormatException e)
+			{
+				m_position = start;
+				throw error("Expected a variable, a number or a string");
+			}
+		}
+
+		/**
+		 * Reads a non-negative integer.
+		 * @return The integer
+		 */
+		public long readInteger()
+		{
+			Number n = readNumber();
+			if (!(n instanceof Long) || n.longValue() < 0)
+			{
+				throw error("Expected a non-negative integer");
+			}
+			return n.longValue();
+		}
+
+		/**
+		 * Creates an exception for a syntax error at the current position.
+		 * @param message The description of the error
+		 * @return The exception
+		 */
+		/*@ non_null @*/ public IllegalArgumentException error(/*@ non_null @*/ String message)
+		{
+			return new IllegalArgumentException(message + " at position " + m_position);
+		}
+
+		/**
+		 * Determines if a character can be part of a name.
+		 * @param ch The character
+		 * @return {@code true} if the character can be part of a name,
+		 * {@code false} otherwise
+		 */
+		protected static boolean isNameChar(char ch)
+		{
+			return Character.isLetterOrDigit(ch) || ch == '_' || ch == '-';
+		}
+	}
+}
@@ -0,0 +1,277 @@
+/*
+    Basic processing of SPARQL queries in Java
+    Copyright (C) 2024 Sylvain Hallé
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Lesser General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.uqac.lif.sparql;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Stream;
+
+/**
+ * A query obtained by a {@link SparqlParser}, ready to be executed on any
+ * number of graphs. The query is compiled into a {@link GraphAssertion}
+ * once, when it is parsed: the variables of its graph pattern become
+ * {@link ExistsNode} and {@link ExistsEdge} quantifiers over the
+ * conjunction of its triples and filters, and this assertion is optimized
+ * by the {@link QueryPlanner}. Executing the query then only evaluates the
+ * resulting plan, or enumerates its bindings.
+ * <p>
+ * An ASK query is executed by {@link #ask(KnowledgeGraph)}. A SELECT query
+ * is executed by {@link #select(KnowledgeGraph)}, which enumerates its
+ * solutions lazily with a {@link SolutionIterator}; a query selecting a
+ * COUNT produces a single solution giving the number of solutions of its
+ * pattern. A solution associates the names of the selected variables, as
+ * written in the query, to their values; the assertion itself uses the
+ * names given to the variables by the parser.
+ * @author Sylvain Hallé
+ */
+public class SparqlQuery
+{
+	/**
+	 * The assertion corresponding to the graph pattern of the query.
+	 */
+	/*@ non_null @*/ protected final GraphAssertion m_assertion;
+
+	/**
+	 * The assertion optimized by the {@link QueryPlanner}.
+	 */
+	/*@ non_null @*/ protected final GraphAssertion m_plan;
+
+	/**
+	 * The variables selected by the query, or {@code null} for an ASK query.
+	 * For a query selecting a COUNT, these are the variables whose values
+	 * are counted; for {@code COUNT(*)}, as for {@code SELECT *}, these are
+	 * all the variables of the pattern.
+	 */
+	protected final String[] m_variables;
+
+	/**
+	 * The names written in the query for the selected variables, or
+	 * {@code null} for an ASK query.
+	 */
+	protected final String[] m_names;
+
+	/**
+	 * Whether the solutions that are identical once restricted to the
+	 * selected variables are only produced once.
+	 */
+	protected final boolean m_distinct;
+
+	/**
+	 * The variable holding the number of solutions, or {@code null} if the
+	 * query does not select a COUNT.
+	 */
+	protected final String m_countVariable;
+
+	/**
+	 * The maximum number of solutions to produce, or -1 for no limit.
+	 */
+	protected final long m_limit;
+
+	/**
+	 * A function counting the solutions of a pattern with a single node
+	 * variable without enumerating them, or {@code null} if the query cannot
+	 * use one.
+	 */
+	protected final Aggregate.Count m_counter;
+
+	/**
+	 * Creates a new query.
+	 * @param phi The assertion corresponding to the graph pattern, whose
+	 * outermost quantifiers bind the variables of the pattern
+	 * @param variables The variables selected by the query, or {@code null}
+	 * for an ASK query
+	 * @param names The names of the selected variables in the solutions, or
+	 * {@code null} for an ASK query
+	 * @param distinct Whether identical solutions are only produced once
+	 * @param count_variable The variable holding the number of solutions, or
+	 * {@code null} if the query does not select a COUNT
+	 * @param limit The maximum number of solutions, or -1 for no limit
+	 */
+	public SparqlQuery(/*@ non_null @*/ GraphAssertion phi, String[] variables, String[] names, boolean distinct, String count_variable, long limit)
+	{
+		super();
+		m_assertion = phi;
+		m_plan = QueryPlanner.plan(phi);
+		m_variables = variables;
+		m_names = names;
+		m_distinct = distinct;
+		m_countVariable = count_variable;
+		m_limit = limit;
+		if (count_variable != null && phi.getClass() == ExistsNode.class && ((ExistsNode) phi).m_phi.getClass() != ExistsNode.class && ((ExistsNode) phi).m_phi.getClass() != ExistsEdge.class)
+		{
+			ExistsNode q = (ExistsNode) phi;
+			m_counter = new Aggregate.Count(q.m_variable, q.m_phi);
+		}
+		else
+		{
+			m_counter = null;
+		}
+	}
+
+	/**
+	 * Gets the assertion corresponding to the graph pattern of the query.
+	 * @return The assertion
+	 */
+	/*@ non_null @*/ public GraphAssertion getAssertion()
+	{
+		return m_assertion;
+	}
+
+	/**
+	 * Gets the optimized assertion evaluated by {@link #ask(KnowledgeGraph)}
+	 * and enumerated by {@link #select(KnowledgeGraph)}.
+	 * @return The assertion
+	 */
+	/*@ non_null @*/ public GraphAssertion getPlan()
+	{
+		return m_plan;
+	}
+
+	/**
+	 * Determines if this query is an ASK query.
+	 * @return {@code true} if the query is an ASK query, {@code false} if it
+	 * is a SELECT query
+	 */
+	public boolean isAsk()
+	{
+		return m_variables == null;
+	}
+
+	/**
+	 * Determines if the graph pattern of the query has a solution in a graph.
+	 * This is the result of an ASK query, but it can be called on any query.
+	 * @param g The graph
+	 * @return {@code true} if the pattern has a solution, {@code false}
+	 * otherwise
+	 */
+	public boolean ask(/*@ non_null @*/ KnowledgeGraph g)
+	{
+		return m_plan.evaluate(g);
+	}
+
+	/**
+	 * Gets the solutions of a SELECT query in a graph. Each solution is a
+	 * map giving a value to the selected variables only.
+	 * @param g The graph, which must not be modified while the stream is
+	 * consumed
+	 * @return The lazy stream of solutions
+	 * @throws IllegalStateException If the query is an ASK query
+	 */
+	/*@ non_null @*/ public Stream<Map<String,Object>> select(/*@ non_null @*/ KnowledgeGraph g)
+	{
+		if (m_variables == null)
+		{
+			throw new IllegalStateException("An ASK query has no solutions to select");
+		}
+		if (m_countVariable != null)
+		{
+			return Stream.of(Collections.singletonMap(m_countVariable, (Object) count(g)));
+		}
+		int[] slots = getSlots();
+		Stream<Valuation> valuations = SolutionIterator.select(m_plan, g);
+		if (m_distinct)
+		{
+			Set<List<Object>> seen = new HashSet<List<Object>>();
+			valuations = valuations.filter(nu -> seen.add(getKey(nu, slots)));
+		}
+		Stream<Map<String,Object>> solutions = valuations.map(nu -> project(nu, slots));
+		if (m_limit >= 0)
+		{
+			solutions = solutions.limit(m_limit);
+		}
+		return solutions;
+	}
+
+	/**
+	 * Counts the solutions of the graph pattern, or the distinct values of
+	 * the counted variables if the COUNT is distinct.
+	 * @param g The graph
+	 * @return The number of solutions
+	 */
+	protected long count(/*@ non_null @*/ KnowledgeGraph g)
+	{
+		if (m_counter != null)
+		{
+			// Each solution is a distinct node
+			return m_counter.evaluate(g, new Valuation());
+		}
+		Stream<Valuation> solutions = SolutionIterator.select(m_plan, g);
+		if (m_distinct)
+		{
+			int[] slots = getSlots();
+			Set<List<Object>> seen = new HashSet<List<Object>>();
+			solutions = solutions.filter(nu -> seen.add(getKey(nu, slots)));
+		}
+		return solutions.count();
+	}
+
+	/**
+	 * Gets the identifiers of the selected variables.
+	 * @return The identifiers
+	 */
+	/*@ non_null @*/ protected int[] getSlots()
+	{
+		int[] slots = new int[m_variables.length];
+		for (int i = 0; i < slots.length; i++)
+		{
+			slots[i] = VariableDictionary.getId(m_variables[i]);
+		}
+		return slots;
+	}
+
+	/**
+	 * Restricts a valuation to the selected variables.
+	 * @param nu The valuation
+	 * @param slots The identifiers of the selected variables
+	 * @return A map associating the name of each selected variable to its
+	 * value
+	 */
+	/*@ non_null @*/ protected Map<String,Object> project(/*@ non_null @*/ Valuation nu, /*@ non_null @*/ int[] slots)
+	{
+		Map<String,Object> out = new LinkedHashMap<String,Object>();
+		for (int i = 0; i < slots.length; i++)
+		{
+			out.put(m_names[i], nu.get(slots[i]));
+		}
+		return out;
+	}
+
+	/**
+	 * Gets a key identifying the values of some variables in a valuation.
+	 * Nodes are identified by their ID, since the same node may be
+	 * represented by distinct objects.
+	 * @param nu The valuation
+	 * @param slots The identifiers of the variables
+	 * @return The key
+	 */
+	/*@ non_null @*/ protected static List<Object> getKey(/*@ non_null @*/ Valuation nu, /*@ non_null @*/ int[] slots)
+	{
+		List<Object> key = new ArrayList<Object>(slots.length);
+		for (int slot : slots)
+		{
+			Object o = nu.get(slot);
+			key.add(o instanceof GraphNode ? (Object) ((GraphNode) o).getId() : o);
+		}
+		return key;
+	}
+}
@@ -0,0 +1,746 @@
+/*
+    Basic processing of SPARQL queries in Java
+    Copyright (C) 2024 Sylvain Hallé
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Lesser General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.uqac.lif.sparql;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+
+import ca.uqac.lif.sparql.ConnectedBy.DirectedConnectedBy;
+import ca.uqac.lif.sparql.ConnectedBy.UndirectedConnectedBy;
+
+/**
+ * Evaluates a block of existential quantifiers over nodes whose conjunction
+ * contains a cycle of {@link ConnectedBy} assertions, such as the triangle
+ * {@code existsNode("$x", existsNode("$y", existsNode("$z",
+ * and(connected("$x", "r", "$y"), connected("$y", "r", "$z"),
+ * connected("$z", "r", "$x")))))}, using the Leapfrog Triejoin algorithm.
+ * <p>
+ * A {@link JoinPlan} evaluates such a pattern one edge at a time: the
+ * candidates for {@code $z} are the neighbours of {@code $y}, and the edge
+ * back to {@code $x} is only checked afterwards, so that the number of
+ * partial bindings can grow far beyond the number of solutions. This class
+ * instead takes the candidates for a variable from the <em>intersection</em>
+ * of the adjacency lists of all the variables already bound to which it is
+ * connected. In a {@link CompactKnowledgeGraph}, the neighbours of a node
+ * through edges of a given label are sorted by position; the intersection
+ * is computed by the "leapfrog" method, where each list in turn seeks the
+ * largest value among the current values of the other lists. The running
+ * time is then bounded by the worst-case size of the result of the join
+ * (the AGM bound), up to a logarithmic factor.
+ * <p>
+ * The edges of a mutable {@link KnowledgeGraph} are not kept sorted; on
+ * such a graph, the evaluation is delegated to a fallback assertion, which
+ * is the {@link JoinPlan} of the same block. As in the join plan, the
+ * operands that are not used for the intersection are evaluated as soon as
+ * all the variables they read are bound. Instances of this class are
+ * created by the {@link QueryPlanner} for the blocks that satisfy
+ * {@link #isCyclic(int[], boolean[], List)}.
+ * @author Sylvain Hallé
+ */
+public class TrieJoin implements GraphAssertion
+{
+	/**
+	 * The variables of the block, in the order in which they are bound.
+	 */
+	/*@ non_null @*/ protected final int[] m_slots;
+
+	/**
+	 * For each variable, the edges that connect it to a variable bound
+	 * before it, and whose adjacency lists are intersected to obtain its
+	 * candidates.
+	 */
+	/*@ non_null @*/ protected final Step[][] m_steps;
+
+	/**
+	 * The operands to evaluate after each variable is bound. The operands at
+	 * index 0 do not read any variable of the block and are evaluated first;
+	 * those at index <i>k</i>+1 are evaluated once the <i>k</i>-th variable is
+	 * bound.
+	 */
+	/*@ non_null @*/ protected final GraphAssertion[][] m_filters;
+
+	/**
+	 * The operands of the conjunction.
+	 */
+	/*@ non_null @*/ protected final List<GraphAssertion> m_operands;
+
+	/**
+	 * The assertion evaluated on graphs that are not a
+	 * {@link CompactKnowledgeGraph}.
+	 */
+	/*@ non_null @*/ protected final GraphAssertion m_fallback;
+
+	/**
+	 * Determines if a block of existential quantifiers is worth evaluating
+	 * with a {@link TrieJoin}. This is the case if all its variables are
+	 * nodes, and if the {@link ConnectedBy} assertions with a constant label
+	 * between distinct variables of the block form a cycle.
+	 * @param slots The variables of the block
+	 * @param edges Whether each variable stands for an edge
+	 * @param operands The operands of the conjunction under the quantifiers
+	 * @return {@code true} if the block contains a cycle, {@code false}
+	 * otherwise
+	 */
+	public static boolean isCyclic(/*@ non_null @*/ int[] slots, /*@ non_null @*/ boolean[] edges, /*@ non_null @*/ List<GraphAssertion> operands)
+	{
+		for (boolean edge : edges)
+		{
+			if (edge)
+			{
+				return false;
+			}
+		}
+		// Union-find over the positions of the variables
+		int[] parent = new int[slots.length];
+		for (int i = 0; i < parent.length; i++)
+		{
+			parent[i] = i;
+		}
+		for (GraphAssertion op : operands)
+		{
+			int[] ends = getEnds(op, slots);
+			if (ends == null)
+			{
+				continue;
+			}
+			int a = find(parent, ends[0]);
+			int b = find(parent, ends[1]);
+			if (a == b)
+			{
+				return true;
+			}
+			parent[a] = b;
+		}
+		return false;
+	}
+
+	/**
+	 * Finds the representative of an element in a union-find structure.
+	 * @param parent The parent of each element
+	 * @param i The element
+	 * @return The representative
+	 */
+	private static int find(int[] parent, int i)
+	{
+		while (parent[i] != i)
+		{
+			parent[i] = parent[parent[i]];
+			i = parent[i];
+		}
+		return i;
+	}
+
+	/**
+	 * Gets the positions in the block of the endpoints of an edge assertion.
+	 * @param op The assertion
+	 * @param slots The variables of the block
+	 * @return An array with the positions of the source and the destination,
+	 * or {@code null} if the assertion is not a {@link ConnectedBy} with a
+	 * constant label between two distinct variables of the block, recognized
+	 * as described in {@link QueryPlanner}
+	 */
+	protected static int[] getEnds(/*@ non_null @*/ GraphAssertion op, /*@ non_null @*/ int[] slots)
+	{
+		if (op.getClass() != DirectedConnectedBy.class && op.getClass() != UndirectedConnectedBy.class)
+		{
+			return null;
+		}
+		ConnectedBy c = (ConnectedBy) op;
+		if (c.m_labelId < 0)
+		{
+			return null;
+		}
+		int from = -1, to = -1;
+		for (int i = 0; i < slots.length; i++)
+		{
+			if (slots[i] == c.m_fromSlot)
+			{
+				from = i;
+			}
+			if (slots[i] == c.m_toSlot)
+			{
+				to = i;
+			}
+		}
+		if (from < 0 || to < 0 || from == to)
+		{
+			return null;
+		}
+		return new int[] {from, to};
+	}
+
+	/**
+	 * Creates a new trie join.
+	 * @param slots The variables of the quantifiers, from the outermost to the
+	 * innermost; they must be distinct and stand for nodes
+	 * @param operands The operands of the conjunction under the quantifiers
+	 * @param fallback The assertion evaluated on graphs that are not a
+	 * {@link CompactKnowledgeGraph}
+	 */
+	public TrieJoin(/*@ non_null @*/ int[] slots, /*@ non_null @*/ List<GraphAssertion> operands, /*@ non_null @*/ GraphAssertion fallback)
+	{
+		super();
+		int n = slots.length;
+		m_operands = operands;
+		m_fallback = fallback;
+		// Collect the edge assertions between variables of the block
+		List<int[]> ends = new ArrayList<int[]>();
+		List<ConnectedBy> atoms = new ArrayList<ConnectedBy>();
+		List<GraphAssertion> others = new ArrayList<GraphAssertion>();
+		for (GraphAssertion op : operands)
+		{
+			int[] e = getEnds(op, slots);
+			if (e == null)
+			{
+				others.add(op);
+			}
+			else
+			{
+				ends.add(e);
+				atoms.add((ConnectedBy) op);
+			}
+		}
+		// Greedy order: bind first the variable with the most edges to the
+		// variables already bound, and with the most edges overall
+		int[] order = new int[n];
+		int[] rank = new int[n];
+		boolean[] bound = new boolean[n];
+		for (int step = 0; step < n; step++)
+		{
+			int best = -1, best_bound = -1, best_total = -1;
+			for (int v = 0; v < n; v++)
+			{
+				if (bound[v])
+				{
+					continue;
+				}
+				int to_bound = 0, total = 0;
+				for (int[] e : ends)
+				{
+					if (e[0] == v || e[1] == v)
+					{
+						total++;
+						if (bound[e[0] == v ? e[1] : e[0]])
+						{
+							to_bound++;
+						}
+					}
+				}
+				if (to_bound > best_bound || (to_bound == best_bound && total > best_total))
+				{
+					best = v;
+					best_bound = to_bound;
+					best_total = total;
+				}
+			}
+			order[step] = best;
+			rank[best] = step;
+			bound[best] = true;
+		}
+		m_slots = new int[n];
+		List<List<Step>> steps = new ArrayList<List<Step>>();
+		for (int i = 0; i < n; i++)
+		{
+			m_slots[i] = slots[order[i]];
+			steps.add(new ArrayList<Step>());
+		}
+		for (int k = 0; k < ends.size(); k++)
+		{
+			int from = rank[ends.get(k)[0]];
+			int to = rank[ends.get(k)[1]];
+			ConnectedBy c = atoms.get(k);
+			boolean directed = c.getClass() == DirectedConnectedBy.class;
+			// The later variable is found in the adjacency of the earlier one
+			if (to > from)
+			{
+				steps.get(to).add(new Step(from, c.m_labelId, true, !directed));
+			}
+			else
+			{
+				steps.get(from).add(new Step(to, c.m_labelId, false, !directed));
+			}
+		}
+		m_steps = new Step[n][];
+		for (int i = 0; i < n; i++)
+		{
+			m_steps[i] = steps.get(i).toArray(new Step[0]);
+		}
+		// Place the other operands after their last variable
+		List<List<GraphAssertion>> filters = new ArrayList<List<GraphAssertion>>();
+		for (int i = 0; i <= n; i++)
+		{
+			filters.add(new ArrayList<GraphAssertion>());
+		}
+		BitSet vars = new BitSet();
+		for (GraphAssertion op : others)
+		{
+			vars.clear();
+			int level = n;
+			if (op.getFreeVariables(vars))
+			{
+				level = 0;
+				for (int i = 0; i < n; i++)
+				{
+					if (vars.get(m_slots[i]))
+					{
+						level = i + 1;
+					}
+				}
+			}
+			filters.get(level).add(op);
+		}
+		m_filters = new GraphAssertion[n + 1][];
+		for (int i = 0; i <= n; i++)
+		{
+			m_filters[i] = filters.get(i).toArray(new GraphAssertion[0]);
+		}
+	}
+
+	@Override
+	public Boolean evaluate(KnowledgeGraph graph, Valuation nu)
+	{
+		if (!(graph instanceof CompactKnowledgeGraph))
+		{
+			return m_fallback.evaluate(graph, nu);
+		}
+		CompactKnowledgeGraph g = (CompactKnowledgeGraph) graph;
+		int[][] labels = new int[m_steps.length][];
+		for (int i = 0; i < m_steps.length; i++)
+		{
+			labels[i] = new int[m_steps[i].length];
+			for (int j = 0; j < m_steps[i].length; j++)
+			{
+				labels[i][j] = g.toLocalLabel(m_steps[i][j].m_label);
+				if (labels[i][j] < 0)
+				{
+					// No edge carries the label
+					return false;
+				}
+			}
+		}
+		Object[] previous = new Object[m_slots.length];
+		for (int i = 0; i < m_slots.length; i++)
+		{
+			previous[i] = nu.get(m_slots[i]);
+		}
+		try
+		{
+			return check(graph, nu, 0) && search(g, nu, labels, new int[m_slots.length], 0);
+		}
+		finally
+		{
+			for (int i = 0; i < m_slots.length; i++)
+			{
+				nu.set(m_slots[i], previous[i]);
+			}
+		}
+	}
+
+	/**
+	 * Binds the variables of the block from a given position, and looks for
+	 * values that satisfy all the operands.
+	 * @param g The graph
+	 * @param nu The valuation, which is modified in place
+	 * @param labels The local identifiers of the labels of each step
+	 * @param positions The positions of the nodes bound to the variables
+	 * @param level The position of the variable to bind
+	 * @return {@code true} if values satisfying all the operands are found,
+	 * {@code false} otherwise
+	 */
+	protected boolean search(CompactKnowledgeGraph g, Valuation nu, int[][] labels, int[] positions, int level)
+	{
+		if (level == m_slots.length)
+		{
+			return true;
+		}
+		Step[] steps = m_steps[level];
+		if (steps.length == 0)
+		{
+			for (int v = 0; v < g.getNodeCount(); v++)
+			{
+				if (bind(g, nu, labels, positions, level, v))
+				{
+					return true;
+				}
+			}
+			return false;
+		}
+		Cursor[] cursors = new Cursor[steps.length];
+		for (int j = 0; j < steps.length; j++)
+		{
+			cursors[j] = steps[j].getCursor(g, labels[level][j], positions[steps[j].m_other]);
+			if (cursors[j].atEnd())
+			{
+				return false;
+			}
+		}
+		// Leapfrog intersection: sort the cursors by key, then repeatedly
+		// move the cursor with the smallest key to the largest key
+		Arrays.sort(cursors, (a, b) -> Integer.compare(a.key(), b.key()));
+		int k = cursors.length;
+		int p = 0;
+		int max = cursors[k - 1].key();
+		while (true)
+		{
+			Cursor c = cursors[p];
+			if (c.key() == max)
+			{
+				if (bind(g, nu, labels, positions, level, max))
+				{
+					return true;
+				}
+				c.next();
+			}
+			else
+			{
+				c.seek(max);
+			}
+			if (c.atEnd())
+			{
+				return false;
+			}
+			max = c.key();
+			p = (p + 1) % k;
+		}
+	}
+
+	/**
+	 * Binds a variable to a node, evaluates the operands that can be
+	 * evaluated at this point, and continues with the next variable.
+	 * @param g The graph
+	 * @param nu The valuation
+	 * @param labels The local identifiers of the labels of each step
+	 * @param positions The positions of the nodes bound to the variables
+	 * @param level The position of the variable to bind
+	 * @param v The position of the node in the graph
+	 * @return {@code true} if values satisfying all the operands are found,
+	 * {@code false} otherwise
+	 */
+	protected boolean bind(CompactKnowledgeGraph g, Valuation nu, int[][] labels, int[] positions, int level, int v)
+	{
+		GraphNode node = g.getNodeAt(v);
+		if (node == null)
+		{
+			// Positions without data are not nodes of the graph
+			return false;
+		}
+		positions[level] = v;
+		nu.set(m_slots[level], node);
+		return check(g, nu, level + 1) && search(g, nu, labels, positions, level + 1);
+	}
+
+	/**
+	 * Evaluates the operands placed at a given index of {@link #m_filters}.
+	 * @param g The graph
+	 * @param nu The valuation
+	 * @param index The index
+	 * @return {@code true} if all the operands are true, {@code false}
+	 * otherwise
+	 */
+	protected boolean check(KnowledgeGraph g, Valuation nu, int index)
+	{
+		for (GraphAssertion op : m_filters[index])
+		{
+			if (!op.evaluate(g, nu))
+			{
+				return false;
+			}
+		}
+		return true;
+	}
+
+	@Override
+	public boolean getFreeVariables(BitSet slots)
+	{
+		return m_fallback.getFreeVariables(slots);
+	}
+
+	/**
+	 * An edge assertion used to find the candidates of a variable from the
+	 * node bound to a previous variable.
+	 */
+	protected static class Step
+	{
+		/**
+		 * The position in the block of the previous variable.
+		 */
+		protected final int m_other;
+
+		/**
+		 * The identifier of the label of the edge in the
+		 * {@link LabelDictionary}.
+		 */
+		protected final int m_label;
+
+		/**
+		 * Whether the candidates are the targets of the outgoing edges of the
+		 * previous node (otherwise they are the sources of its incoming edges).
+		 */
+		protected final boolean m_outgoing;
+
+		/**
+		 * Whether the edge may go in either direction.
+		 */
+		protected final boolean m_undirected;
+
+		/**
+		 * Creates a new step.
+		 * @param other The position in the block of the previous variable
+		 * @param label The identifier of the label of the edge
+		 * @param outgoing Whether the candidates are the targets of the
+		 * outgoing edges of the previous node
+		 * @param undirected Whether the edge may go in either direction
+		 */
+		protected Step(int other, int label, boolean outgoing, boolean undirected)
+		{
+			super();
+			m_other = other;
+			m_label = label;
+			m_outgoing = outgoing;
+			m_undirected = undirected;
+		}
+
+		/**
+		 * Gets a cursor over the candidates of this step.
+		 * @param g The graph
+		 * @param label The local identifier of the label
+		 * @param node The position of the node bound to the previous variable
+		 * @return The cursor
+		 */
+		protected Cursor getCursor(CompactKnowledgeGraph g, int label, int node)
+		{
+			RangeCursor c = new RangeCursor(g, m_outgoing, node, label);
+			if (!m_undirected)
+			{
+				return c;
+			}
+			return new UnionCursor(c, new RangeCursor(g, !m_outgoing, node, label));
+		}
+	}
+
+	/**
+	 * Iterates over a sorted sequence of node positions, with the possibility
+	 * of skipping forward to a given value.
+	 */
+	protected interface Cursor
+	{
+		/**
+		 * Determines if the cursor is past the end of its sequence.
+		 * @return {@code true} if the cursor is past the end
+		 */
+		public boolean atEnd();
+
+		/**
+		 * Gets the current value of the cursor.
+		 * @return The value
+		 */
+		public int key();
+
+		/**
+		 * Moves to the next value.
+		 */
+		public void next();
+
+		/**
+		 * Moves to the first value greater than or equal to a given value.
+		 * @param value The value
+		 */
+		public void seek(int value);
+	}
+
+	/**
+	 * A cursor over the neighbours of a node through edges with a given
+	 * label, in the adjacency of a {@link CompactKnowledgeGraph}.
+	 */
+	protected static class RangeCursor implements Cursor
+	{
+		/**
+		 * The graph.
+		 */
+		/*@ non_null @*/ protected final CompactKnowledgeGraph m_graph;
+
+		/**
+		 * Whether the range is in the outgoing edges.
+		 */
+		protected final boolean m_out;
+
+		/**
+		 * The current position in the adjacency.
+		 */
+		protected int m_position;
+
+		/**
+		 * The end of the range (exclusive).
+		 */
+		protected final int m_end;
+
+		/**
+		 * Creates a new cursor.
+		 * @param g The graph
+		 * @param out Set to {@code true} for the targets of the outgoing edges,
+		 * {@code false} for the sources of the incoming edges
+		 * @param node The position of the node
+		 * @param label The local identifier of the label
+		 */
+		protected RangeCursor(CompactKnowledgeGraph g, boolean out, int node, int label)
+		{
+			super();
+			m_graph = g;
+			m_out = out;
+			int start = out ? g.getOutOffset(node) : g.getInOffset(node);
+			int end = out ? g.getOutOffset(node + 1) : g.getInOffset(node + 1);
+			m_position = g.lowerBound(out, start, end, label);
+			m_end = g.lowerBound(out, m_position, end, label + 1);
+		}
+
+		@Override
+		public boolean atEnd()
+		{
+			return m_position >= m_end;
+		}
+
+		@Override
+		public int key()
+		{
+			return value(m_position);
+		}
+
+		@Override
+		public void next()
+		{
+			m_position++;
+		}
+
+		@Override
+		public void seek(int value)
+		{
+			// Galloping search, then binary search in the last interval
+			int step = 1;
+			int lo = m_position;
+			int hi = m_position;
+			while (hi < m_end && value(hi) < value)
+			{
+				lo = hi + 1;
+				hi += step;
+				step <<= 1;
+			}
+			hi = Math.min(hi, m_end);
+			while (lo < hi)
+			{
+				int mid = (lo + hi) >>> 1;
+				if (value(mid) < value)
+				{
+					lo = mid + 1;
+				}
+				else
+				{
+					hi = mid;
+				}
+			}
+			m_position = lo;
+		}
+
+		/**
+		 * Gets the position of the neighbour at a position in the adjacency.
+		 * @param p The position in the adjacency
+		 * @return The position of the neighbour
+		 */
+		protected int value(int p)
+		{
+			return m_out ? m_graph.getOutTarget(p) : m_graph.getInSource(p);
+		}
+	}
+
+	/**
+	 * A cursor over the union of the values of two cursors, without
+	 * duplicates.
+	 */
+	protected static class UnionCursor implements Cursor
+	{
+		/**
+		 * The first cursor.
+		 */
+		/*@ non_null @*/ protected final Cursor m_first;
+
+		/**
+		 * The second cursor.
+		 */
+		/*@ non_null @*/ protected final Cursor m_second;
+
+		/**
+		 * Creates a new cursor.
+		 * @param first The first cursor
+		 * @param second The second cursor
+		 */
+		protected UnionCursor(Cursor first, Cursor second)
+		{
+			super();
+			m_first = first;
+			m_second = second;
+		}
+
+		@Override
+		public boolean atEnd()
+		{
+			return m_first.atEnd() && m_second.atEnd();
+		}
+
+		@Override
+		public int key()
+		{
+			if (m_first.atEnd())
+			{
+				return m_second.key();
+			}
+			if (m_second.atEnd())
+			{
+				return m_first.key();
+			}
+			return Math.min(m_first.key(), m_second.key());
+		}
+
+		@Override
+		public void next()
+		{
+			int k = key();
+			if (!m_first.atEnd() && m_first.key() == k)
+			{
+				m_first.next();
+			}
+			if (!m_second.atEnd() && m_second.key() == k)
+			{
+				m_second.next();
+			}
+		}
+
+		@Override
+		public void seek(int value)
+		{
+			if (!m_first.atEnd())
+			{
+				m_first.seek(value);
+			}
+			if (!m_second.atEnd())
+			{
+				m_second.seek(value);
+			}
+		}
+	}
+}
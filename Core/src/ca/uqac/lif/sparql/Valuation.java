@@ -17,39 +17,58 @@
  */
 package ca.uqac.lif.sparql;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.util.Arrays;
 
 /**
  * Associates variables to either nodes or edges in a knowledge graph.
+ * <p>
+ * The value of each variable is stored in an array, at the index given to
+ * the variable by the {@link VariableDictionary}. The array is enlarged
+ * when a variable is set, so that a valuation is only as large as the
+ * largest identifier of the variables it has held. Since identifiers are
+ * never reclaimed, a variable whose name is first used after many others
+ * makes every valuation holding it as large as the whole dictionary.
+ * <p>
+ * Quantifiers do not create a new valuation for each element of their
+ * domain: they write the element in the slot of their variable, evaluate
+ * their operand, and restore the previous value of the slot once they are
+ * done. A valuation passed to
+ * {@link GraphFunction#evaluate(KnowledgeGraph, Valuation)} is therefore
+ * modified during the evaluation, but is left as it was when the evaluation
+ * returns. Consequently, a valuation must not be shared by evaluations
+ * running concurrently.
+ * <p>
+ * A variable associated with {@code null} is considered not to be in the
+ * valuation.
  * @author Sylvain Hallé
  */
 public class Valuation
 {
 	/**
-	 * The mapping of variables to node IDs.
+	 * The value of each variable, indexed by the identifier of the variable
+	 * in the {@link VariableDictionary}.
 	 */
-	protected final Map<String,Object> m_map;
-	
+	/*@ non_null @*/ protected Object[] m_values;
+
 	/**
 	 * Creates a new empty valuation.
 	 */
 	public Valuation()
 	{
 		super();
-		m_map = new HashMap<String,Object>();
+		m_values = new Object[8];
 	}
-	
+
 	/**
 	 * Creates a new valuation by copying an existing one.
-	 * @param v The existing valuation
+	 * @param nu The existing valuation
 	 */
 	public Valuation(Valuation nu)
 	{
-		this();
-		m_map.putAll(nu.m_map);
+		super();
+		m_values = nu.m_values.clone();
 	}
-	
+
 	/**
 	 * Adds a variable to this valuation.
 	 * 
@@ -61,10 +80,27 @@ public class Valuation
 	 */
 	public Valuation add(String variable, Object value)
 	{
-		m_map.put(variable, value);
+		return set(VariableDictionary.getId(variable), value);
+	}
+
+	/**
+	 * Sets the value of the variable with a given identifier.
+	 * @param slot The identifier of the variable in the
+	 * {@link VariableDictionary}
+	 * @param value The value associated with the variable, or {@code null}
+	 * to remove the variable from the valuation
+	 * @return This valuation
+	 */
+	public Valuation set(int slot, Object value)
+	{
+		if (slot >= m_values.length)
+		{
+			m_values = Arrays.copyOf(m_values, Math.max(slot + 1, m_values.length * 2));
+		}
+		m_values[slot] = value;
 		return this;
 	}
-	
+
 	/**
 	 * Gets the object associated with a variable.
 	 * 
@@ -74,9 +110,25 @@ public class Valuation
 	 */
 	public Object get(String variable)
 	{
-		return m_map.getOrDefault(variable, null);
+		return get(VariableDictionary.find(variable));
+	}
+
+	/**
+	 * Gets the object associated with the variable with a given identifier.
+	 * @param slot The identifier of the variable in the
+	 * {@link VariableDictionary}
+	 * @return The object, or {@code null} if the variable is not in the
+	 * valuation
+	 */
+	public Object get(int slot)
+	{
+		if (slot < 0 || slot >= m_values.length)
+		{
+			return null;
+		}
+		return m_values[slot];
 	}
-	
+
 	/**
 	 * Gets the object associated with a variable, or a default value if the
 	 * variable is not in the valuation.
@@ -90,12 +142,25 @@ public class Valuation
 	 */
 	public Object getOrDefault(String variable, Object default_value)
 	{
-		return m_map.getOrDefault(variable, default_value);
+		Object o = get(variable);
+		return o == null ? default_value : o;
 	}
-	
+
 	@Override
 	public String toString()
 	{
-		return m_map.toString();
+		StringBuilder out = new StringBuilder("{");
+		for (int i = 0; i < m_values.length; i++)
+		{
+			if (m_values[i] != null)
+			{
+				if (out.length() > 1)
+				{
+					out.append(", ");
+				}
+				out.append(VariableDictionary.getName(i)).append("=").append(m_values[i]);
+			}
+		}
+		return out.append("}").toString();
 	}
 }
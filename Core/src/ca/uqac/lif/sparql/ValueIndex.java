@@ -0,0 +1,304 @@
+/*
+    Basic processing of SPARQL queries in Java
+    Copyright (C) 2024 Sylvain Hallé
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Lesser General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.uqac.lif.sparql;
+
+import java.util.Collection;
+import java.util.Collections;
+
+/**
+ * A secondary index associating the data of nodes to the nodes that carry
+ * it. The index makes it possible to retrieve all the nodes whose data is
+ * equal to a given value without scanning the whole graph.
+ * <p>
+ * Two non-null values are considered equal by the index exactly when
+ * {@link IsEqualTo#equalObjects(Object, Object)} considers them equal. In
+ * particular, numbers of different types (e.g. {@code 1} and {@code 1.0})
+ * land in the same entry, and {@code NaN}, which is never equal to anything,
+ * is not indexed. Nodes whose data is {@code null} are not indexed either,
+ * although {@code equalObjects} considers {@code null} equal to itself: the
+ * index cannot be used to look them up, and {@link Domain} falls back to a
+ * scan of the graph when the value sought is {@code null}.
+ * <p>
+ * The index is persistent: it is stored in a {@link PersistentLongMap}
+ * keyed by the hash code of each value, and {@link #copy()} takes constant
+ * time. Values sharing the same hash code are chained in a short list of
+ * {@link Bucket}s. Like adjacency lists in a {@link KnowledgeGraph}, buckets
+ * carry the token of the index that created them, and are copied before
+ * being modified by any other index.
+ * @author Sylvain Hallé
+ */
+public class ValueIndex
+{
+	/**
+	 * The buckets of the index, indexed by the hash code of the values they
+	 * contain.
+	 */
+	/*@ non_null @*/ protected final PersistentLongMap<Bucket> m_index;
+
+	/**
+	 * The token identifying the buckets that this index may modify in place.
+	 */
+	/*@ non_null @*/ protected Object m_owner;
+
+	/**
+	 * Creates a new empty index.
+	 */
+	public ValueIndex()
+	{
+		this(new PersistentLongMap<Bucket>());
+	}
+
+	/**
+	 * Creates a new index from an existing map of buckets.
+	 * @param index The map
+	 */
+	protected ValueIndex(PersistentLongMap<Bucket> index)
+	{
+		super();
+		m_index = index;
+		m_owner = new Object();
+	}
+
+	/**
+	 * Adds a node to the index.
+	 * @param node The node
+	 */
+	public void add(/*@ non_null @*/ GraphNode node)
+	{
+		Object key = normalize(node.getData());
+		if (key == null)
+		{
+			return;
+		}
+		getWritableBucket(key, true).m_nodes.put(node.getId(), node);
+	}
+
+	/**
+	 * Removes a node from the index.
+	 * @param node The node
+	 */
+	public void remove(/*@ non_null @*/ GraphNode node)
+	{
+		Object key = normalize(node.getData());
+		if (key == null)
+		{
+			return;
+		}
+		Bucket b = getBucket(key);
+		if (b == null || b.m_nodes.get(node.getId()) != node)
+		{
+			return;
+		}
+		b = getWritableBucket(key, false);
+		b.m_nodes.remove(node.getId());
+		if (b.m_nodes.isEmpty())
+		{
+			// Unlink the bucket; the chain is owned by this index at this point
+			long h = key.hashCode();
+			Bucket first = m_index.get(h);
+			if (first == b)
+			{
+				if (b.m_next == null)
+				{
+					m_index.remove(h);
+				}
+				else
+				{
+					m_index.put(h, b.m_next);
+				}
+			}
+			else
+			{
+				Bucket prev = first;
+				while (prev.m_next != b)
+				{
+					prev = prev.m_next;
+				}
+				prev.m_next = b.m_next;
+			}
+		}
+	}
+
+	/**
+	 * Gets the nodes whose data is equal to a given value.
+	 * @param value The value
+	 * @return The nodes; the collection is empty if no node has this value,
+	 * and always empty for {@code null} and {@code NaN}
+	 */
+	/*@ non_null @*/ public Collection<GraphNode> get(Object value)
+	{
+		Object key = normalize(value);
+		if (key == null)
+		{
+			return Collections.emptyList();
+		}
+		Bucket b = getBucket(key);
+		if (b == null)
+		{
+			return Collections.emptyList();
+		}
+		return b.m_nodes.values();
+	}
+
+	/**
+	 * Creates a copy of this index in constant time. The nodes themselves are
+	 * not copied.
+	 * @return The copy
+	 */
+	/*@ non_null @*/ public ValueIndex copy()
+	{
+		// From now on, neither index may modify the shared buckets in place
+		m_owner = new Object();
+		return new ValueIndex(m_index.copy());
+	}
+
+	/**
+	 * Gets the bucket associated with a normalized value.
+	 * @param key The value
+	 * @return The bucket, or {@code null} if no node carries this value
+	 */
+	protected Bucket getBucket(/*@ non_null @*/ Object key)
+	{
+		Bucket b = m_index.get(key.hashCode());
+		while (b != null && !b.m_key.equals(key))
+		{
+			b = b.m_next;
+		}
+		return b;
+	}
+
+	/**
+	 * Gets the bucket associated with a normalized value, making sure that
+	 * the bucket and the chain that leads to it belong to this index. If they
+	 * do not, the whole chain is copied and replaces the original one.
+	 * @param key The value
+	 * @param create Set to {@code true} to create the bucket if it does not
+	 * exist
+	 * @return The bucket, or {@code null} if it does not exist and
+	 * {@code create} is {@code false}
+	 */
+	protected Bucket getWritableBucket(/*@ non_null @*/ Object key, boolean create)
+	{
+		long h = key.hashCode();
+		Bucket first = m_index.get(h);
+		boolean owned = true;
+		Bucket b = first;
+		while (b != null && !b.m_key.equals(key))
+		{
+			owned &= b.m_owner == m_owner;
+			b = b.m_next;
+		}
+		if (b == null)
+		{
+			if (!create)
+			{
+				return null;
+			}
+			b = new Bucket(key, new PersistentLongMap<GraphNode>(), first, m_owner);
+			m_index.put(h, b);
+			return b;
+		}
+		if (owned && b.m_owner == m_owner)
+		{
+			return b;
+		}
+		Bucket new_first = null, last = null, found = null;
+		for (Bucket c = first; c != null; c = c.m_next)
+		{
+			Bucket copy = new Bucket(c.m_key, c.m_nodes.copy(), null, m_owner);
+			if (c == b)
+			{
+				found = copy;
+			}
+			if (last == null)
+			{
+				new_first = copy;
+			}
+			else
+			{
+				last.m_next = copy;
+			}
+			last = copy;
+		}
+		m_index.put(h, new_first);
+		return found;
+	}
+
+	/**
+	 * Converts a value into the key under which it is stored in the index.
+	 * Numbers are all converted to their {@code double} value, mirroring the
+	 * numerical comparison performed by
+	 * {@link IsEqualTo#equalObjects(Object, Object)}.
+	 * @param value The value
+	 * @return The key, or {@code null} if the value is not indexed
+	 */
+	protected static Object normalize(Object value)
+	{
+		if (value instanceof Number)
+		{
+			double d = ((Number) value).doubleValue();
+			if (Double.isNaN(d))
+			{
+				return null;
+			}
+			if (d == 0)
+			{
+				// Makes -0.0 and 0.0 the same key
+				return 0d;
+			}
+			return d;
+		}
+		return value;
+	}
+
+	/**
+	 * The nodes associated with a single value, and a link to the next value
+	 * having the same hash code.
+	 */
+	protected static class Bucket
+	{
+		/**
+		 * The normalized value.
+		 */
+		/*@ non_null @*/ protected final Object m_key;
+
+		/**
+		 * The nodes carrying this value, indexed by their identifier.
+		 */
+		/*@ non_null @*/ protected final PersistentLongMap<GraphNode> m_nodes;
+
+		/**
+		 * The next bucket of the chain.
+		 */
+		protected Bucket m_next;
+
+		/**
+		 * The token of the index that created this bucket.
+		 */
+		protected final Object m_owner;
+
+		protected Bucket(Object key, PersistentLongMap<GraphNode> nodes, Bucket next, Object owner)
+		{
+			super();
+			m_key = key;
+			m_nodes = nodes;
+			m_next = next;
+			m_owner = owner;
+		}
+	}
+}
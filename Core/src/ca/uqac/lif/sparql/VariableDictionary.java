@@ -0,0 +1,140 @@
+/*
+    Basic processing of SPARQL queries in Java
+    Copyright (C) 2024 Sylvain Hallé
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Lesser General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.uqac.lif.sparql;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Associates each variable name to a dense integer identifier, which is used
+ * as the index of the variable in a {@link Valuation}. Quantifiers and the
+ * functions reading variables resolve the identifier of their variable once,
+ * when they are created; evaluating an assertion then reads and writes
+ * variables by index, without hashing their name.
+ * <p>
+ * As with the {@link LabelDictionary}, the dictionary is shared by all the
+ * assertions and identifiers are never reclaimed. The dictionary therefore
+ * grows with the number of distinct variable names used during the life of
+ * the process, and so does any valuation holding a variable added late,
+ * since a valuation stores its variables in an array indexed by their
+ * identifier. Programs creating assertions on the fly should draw their
+ * variable names from a small fixed set; this is why the
+ * {@link SparqlParser} renames the variables of the queries it parses
+ * instead of adding every name it reads. Lookups can be made concurrently
+ * with the addition of new variables.
+ * @author Sylvain Hallé
+ */
+public final class VariableDictionary
+{
+	/**
+	 * The identifier associated with each variable.
+	 */
+	/*@ non_null @*/ private static final Map<String,Integer> s_ids = new ConcurrentHashMap<String,Integer>();
+
+	/**
+	 * The variable associated with each identifier.
+	 */
+	/*@ non_null @*/ private static volatile String[] s_names = new String[16];
+
+	/**
+	 * The number of variables in the dictionary.
+	 */
+	private static volatile int s_size = 0;
+
+	/**
+	 * Cannot be instantiated.
+	 */
+	private VariableDictionary()
+	{
+		super();
+	}
+
+	/**
+	 * Gets the identifier of a variable, adding the variable to the dictionary
+	 * if it is not already present.
+	 * @param name The name of the variable
+	 * @return The identifier
+	 */
+	public static int getId(/*@ non_null @*/ String name)
+	{
+		Integer id = s_ids.get(name);
+		if (id != null)
+		{
+			return id;
+		}
+		return add(name);
+	}
+
+	/**
+	 * Gets the identifier of a variable, without adding it to the dictionary.
+	 * @param name The name of the variable
+	 * @return The identifier, or -1 if the variable is not in the dictionary,
+	 * which means that no valuation can give it a value
+	 */
+	public static int find(/*@ non_null @*/ String name)
+	{
+		Integer id = s_ids.get(name);
+		return id == null ? -1 : id;
+	}
+
+	/**
+	 * Gets the name of the variable associated with an identifier.
+	 * @param id The identifier
+	 * @return The name
+	 */
+	public static String getName(int id)
+	{
+		return s_names[id];
+	}
+
+	/**
+	 * Gets the number of variables in the dictionary.
+	 * @return The number of variables
+	 */
+	public static int size()
+	{
+		return s_size;
+	}
+
+	/**
+	 * Adds a variable to the dictionary. The name is written into the array
+	 * of names before its identifier is published in the map, so that any
+	 * thread obtaining the identifier can also read the name.
+	 * @param name The name of the variable
+	 * @return The identifier given to the variable
+	 */
+	private static synchronized int add(String name)
+	{
+		Integer id = s_ids.get(name);
+		if (id != null)
+		{
+			// Added by another thread in the meantime
+			return id;
+		}
+		int new_id = s_size;
+		if (new_id == s_names.length)
+		{
+			s_names = Arrays.copyOf(s_names, new_id * 2);
+		}
+		s_names[new_id] = name;
+		s_size = new_id + 1;
+		s_ids.put(name, new_id);
+		return new_id;
+	}
+}
@@ -0,0 +1,47 @@
+/*
+    Basic processing of SPARQL queries in Java
+    Copyright (C) 2024 Sylvain Hallé
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Lesser General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.uqac.lif.cep.sparql;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import ca.uqac.lif.sparql.KnowledgeGraph;
+
+public class BatchUpdateTest
+{
+	@Test
+	public void testBatch1()
+	{
+		KnowledgeGraph g = new KnowledgeGraph().addNode(0, "A").addNode(1, "B");
+		BatchUpdate inner = new BatchUpdate(Arrays.asList(new SetNodeData(0, "C"), new DeleteNode(1)));
+		BatchUpdate u = new BatchUpdate(Arrays.asList(new AddNode(2, "D"), inner, new AddNode(3, "E")));
+		KnowledgeGraph h = u.getValue(g);
+		// The functions that are not batches are applied, in order
+		assertEquals("C", h.getNode(0).getData());
+		assertNull(h.getNode(1));
+		assertEquals("D", h.getNode(2).getData());
+		assertEquals("E", h.getNode(3).getData());
+		assertEquals(3, h.size());
+		// The input graph is left untouched
+		assertEquals("A", g.getNode(0).getData());
+		assertEquals(2, g.size());
+	}
+}
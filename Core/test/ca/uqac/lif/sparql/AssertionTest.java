@@ -19,17 +19,34 @@ package ca.uqac.lif.sparql;
 
 import static org.junit.Assert.*;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.Collectors;
+
 import org.junit.Test;
 
+import ca.uqac.lif.cep.functions.Constant;
+import ca.uqac.lif.cep.functions.ContextVariable;
+
 import static ca.uqac.lif.sparql.Conjunction.and;
 import static ca.uqac.lif.sparql.ConnectedBy.connected;
+import static ca.uqac.lif.sparql.ConnectedBy.connectedUndir;
 import static ca.uqac.lif.sparql.Disjunction.implies;
 import static ca.uqac.lif.sparql.Disjunction.or;
+import static ca.uqac.lif.sparql.ExistsEdge.existsEdge;
+import static ca.uqac.lif.sparql.ForAllEdges.allEdges;
 import static ca.uqac.lif.sparql.ExistsNode.existsNode;
 import static ca.uqac.lif.sparql.ForAllNodes.allNodes;
 import static ca.uqac.lif.sparql.IsEqualTo.eq;
 import static ca.uqac.lif.sparql.LabelOf.l;
 import static ca.uqac.lif.sparql.Negation.not;
+import static ca.uqac.lif.sparql.NumberComparison.gt;
 
 @SuppressWarnings("unused")
 public class AssertionTest
@@ -72,4 +89,1230 @@ public class AssertionTest
 		GraphAssertion a = allNodes("$x", allNodes("$y", implies(and(eq(l("$x"), "A"), connected("$x", "r", "$y")), eq(l("$y"), "C"))));
 		assertFalse(a.evaluate(g));
 	}
+	
+	@Test
+	public void testConnected1()
+	{
+		KnowledgeGraph g = s_parser.parse(AssertionTest.class.getResourceAsStream("data/graph1.dot"));
+		// A literal target after a variable source is the data of a node
+		assertTrue(existsNode("$x", connected("$x", "r", "B")).evaluate(g));
+		assertFalse(existsNode("$x", connected("$x", "s", "B")).evaluate(g));
+		assertTrue(existsNode("$x", connectedUndir("$x", "s", "B")).evaluate(g));
+		// A variable label after a literal source is bound to an edge
+		assertTrue(existsEdge("$e", connected("A", "$e", "B")).evaluate(g));
+		assertFalse(existsEdge("$e", connected("B", "$e", "B")).evaluate(g));
+		assertTrue(existsEdge("$e", connectedUndir("B", "$e", "A")).evaluate(g));
+	}
+	
+	@Test
+	public void testLabel1()
+	{
+		KnowledgeGraph g = s_parser.parse(AssertionTest.class.getResourceAsStream("data/graph1.dot"));
+		// The label of an edge is the string labelling it
+		GraphAssertion a1 = existsEdge("$e", eq(l("$e"), "r"));
+		GraphAssertion a2 = existsEdge("$e", eq(l("$e"), "t"));
+		GraphAssertion a3 = allEdges("$s", allEdges("$t", eq(l("$s"), l("$t"))));
+		// Two consecutive edges with the same label, as in TicTacToe
+		GraphAssertion a4 = existsEdge("$s", existsEdge("$t", and(eq(l("$s"), l("$t")), connected("A", "$s", "B"), connected("B", "$t", "A"))));
+		GraphAssertion a5 = existsEdge("$s", existsEdge("$t", and(eq(l("$s"), l("$t")), connected("A", "$s", "B"), connected("A", "$t", "B"))));
+		assertTrue(a1.evaluate(g));
+		assertFalse(a2.evaluate(g));
+		assertFalse(a3.evaluate(g));
+		assertFalse(a4.evaluate(g));
+		assertTrue(a5.evaluate(g));
+		// The planner looks up the edges with the label in the index
+		assertTrue(QueryPlanner.plan(a1).evaluate(g));
+		assertFalse(QueryPlanner.plan(a2).evaluate(g));
+		assertFalse(QueryPlanner.plan(a3).evaluate(g));
+		assertFalse(QueryPlanner.plan(a4).evaluate(g));
+		assertTrue(QueryPlanner.plan(a5).evaluate(g));
+		// The label of a node is still its data
+		assertTrue(existsNode("$x", existsEdge("$e", and(eq(l("$x"), "B"), connected("$x", "$e", "A"), eq(l("$e"), "s")))).evaluate(g));
+	}
+	
+	@Test
+	public void testValuation1()
+	{
+		KnowledgeGraph g = s_parser.parse(AssertionTest.class.getResourceAsStream("data/graph1.dot"));
+		Valuation nu = new Valuation().add("$x", "outer");
+		// The inner quantifier hides the value of $x given by the outer one
+		GraphAssertion a = allNodes("$x", existsNode("$x", eq(l("$x"), "B")));
+		assertTrue(a.evaluate(g, nu));
+		// Quantifiers restore the valuation they are given
+		assertEquals("outer", nu.get("$x"));
+		assertNull(nu.get("$y"));
+	}
+	
+	@Test
+	public void testPlanner1()
+	{
+		GraphAssertion[] assertions = {
+				existsNode("$x", existsNode("$y", existsNode("$z", and(connected("$x", "r", "$y"), connected("$y", "s", "$z"), eq(l("$x"), l("$z")))))),
+				existsNode("$x", existsNode("$y", existsNode("$z", existsEdge("$s", existsEdge("$t", and(eq(l("$x"), l("$y"), l("$z")),
+						connected("$x", "$s", "$y"), connected("$y", "$t", "$z"))))))),
+				allNodes("$y", existsNode("$x", and(eq(l("$x"), 2), connectedUndir("$x", "t", "$y")))),
+				existsNode("$x", existsNode("$y", and(eq(l("$x"), 3), eq(l("$y"), l("$x")), not(connected("$x", "r", "$y"))))),
+				existsEdge("$e", existsNode("$x", connected("$x", "$e", "$x"))),
+				allNodes("$x", or(eq(l("$x"), 0), existsNode("$y", and(connected("$y", "s", "$x"), gt(l("$y"), l("$x")))))),
+				existsNode("$x", existsNode("$x", and(eq(l("$x"), 1), connectedUndir("$x", "$x", "$x")))),
+				allNodes("$x", implies(eq(l("$x"), 1), existsNode("$y", connected("$x", "r", "$y")))),
+				allNodes("$x", implies(and(gt(l("$x"), 1), connected("$x", "s", "$x")), eq(l("$x"), 3))),
+				allNodes("$x", implies(gt(2, l("$x")), existsNode("$y", and(gt(l("$y"), l("$x")), connectedUndir("$x", "t", "$y"))))),
+				allEdges("$e", implies(eq(l("$e"), "s"), existsNode("$x", and(connected("$x", "$e", "$x"), eq(l("$x"), 0))))),
+				existsNode("$x", existsNode("$y", existsEdge("$e", and(eq(l("$e"), "r"), connected("$x", "$e", "$y"), connected("$y", "r", "$x")))))};
+		int true_count = 0;
+		for (int seed = 0; seed < 3; seed++)
+		{
+			KnowledgeGraph g = KnowledgeGraphTest.createRandomGraph(seed);
+			for (GraphAssertion a : assertions)
+			{
+				boolean expected = a.evaluate(g);
+				assertEquals(expected, QueryPlanner.plan(a).evaluate(g));
+				assertEquals(expected, QueryPlanner.plan(a).evaluate(g.freeze()));
+				assertEquals(expected, AssertionCompiler.compile(QueryPlanner.plan(a)).evaluate(g));
+				true_count += expected ? 1 : 0;
+			}
+		}
+		// Both outcomes occur
+		assertTrue(true_count > 0 && true_count < 3 * assertions.length);
+	}
+	
+	@Test
+	public void testPlanner2()
+	{
+		KnowledgeGraph g = new KnowledgeGraph()
+				.addNode(0, 1)
+				.addNode(1, 2)
+				.addNode(2, 3)
+				.addEdge(1, "r", 1)
+				.addEdge(2, "r", 2);
+		GraphAssertion p = QueryPlanner.plan(allNodes("$x", implies(gt(l("$x"), 1), connected("$x", "r", "$x"))));
+		// The guard gives the quantifier a domain, taken from the range index
+		assertNotNull(((ForAllNodes) p).m_domain);
+		assertTrue(p.evaluate(g));
+		// The index is updated along with the data of the nodes
+		g.setNodeData(0, 5);
+		assertFalse(p.evaluate(g));
+		g.setNodeData(0, 0).setNodeData(2, "C");
+		assertTrue(p.evaluate(g));
+		g.deleteEdge(1, "r", 1);
+		assertFalse(p.evaluate(g));
+		g.deleteNode(1);
+		assertTrue(p.evaluate(g));
+	}
+	
+	@Test
+	public void testPlanner3()
+	{
+		KnowledgeGraph g = createSmallGraph();
+		GraphAssertion[] assertions = {
+				existsNode("$x", existsNode("$y", existsNode("$z", and(connected("$x", "t", "$y"), connected("$y", "t", "$z"), eq(l("$x"), l("$z")))))),
+				existsNode("$x", existsNode("$y", and(connected("$x", "t", "$y"), connected("$y", "t", "$x")))),
+				existsNode("$x", existsNode("$y", and(connected("$x", "u", "$y"), connected("$y", "t", "$x")))),
+				existsNode("$x", existsNode("$y", and(connected("$x", "u", "$y"), connected("$y", "u", "$x")))),
+				existsNode("$x", existsNode("$y", existsNode("$z", and(connectedUndir("$x", "t", "$y"), connectedUndir("$y", "t", "$z"), connectedUndir("$z", "u", "$x"))))),
+				existsNode("$x", existsNode("$y", and(eq(l("$x"), 5), connectedUndir("$x", "t", "$y")))),
+				existsNode("$x", existsNode("$y", existsEdge("$e", and(eq(l("$x"), 1), connected("$x", "$e", "$y"), eq(l("$e"), "t"))))),
+				existsNode("$x", existsNode("$y", existsEdge("$e", and(eq(l("$x"), 1), connected("$x", "$e", "$y"), eq(l("$e"), "u"))))),
+				existsEdge("$e", existsNode("$x", connected("$x", "$e", "$x"))),
+				allNodes("$y", existsNode("$x", and(eq(l("$x"), 1), connectedUndir("$x", "t", "$y")))),
+				allNodes("$x", implies(eq(l("$x"), 5), connected("$x", "t", "$x")))};
+		boolean[] expected = {true, true, true, false, false, false, true, false, false, false, true};
+		for (int i = 0; i < assertions.length; i++)
+		{
+			GraphAssertion p = QueryPlanner.plan(assertions[i]);
+			assertEquals(expected[i], assertions[i].evaluate(g));
+			assertEquals(expected[i], p.evaluate(g));
+			assertEquals(expected[i], p.evaluate(g.freeze()));
+			// On the empty graph, only the universal assertions are true
+			assertEquals(assertions[i] instanceof ForAllNodes, p.evaluate(new KnowledgeGraph()));
+		}
+	}
+	
+	@Test
+	public void testCompiler1()
+	{
+		GraphAssertion[] assertions = {
+				allNodes("$x", allNodes("$y", implies(connected("$x", "r", "$y"), connected("$y", "s", "$x")))),
+				existsNode("$x", existsNode("$y", and(eq(l("$x"), l("$y"), 1), not(connected("$x", "t", "$y")), connectedUndir("$y", "r", "$x")))),
+				allEdges("$e", or(eq(l("$e"), "s"), existsNode("$x", and(connected("$x", "$e", "$x"), gt(3, l("$x")))))),
+				existsEdge("$e", existsEdge("$f", and(eq(l("$e"), l("$f")), connected("$x", "$e", "$y"), connected("$y", "$f", "$x")))),
+				allNodes("$y", existsNode("$x", or(eq(l("$x"), l("$y")), gt(l("$x"), l("$y")))))};
+		for (int seed = 0; seed < 3; seed++)
+		{
+			KnowledgeGraph g = KnowledgeGraphTest.createRandomGraph(seed);
+			GraphNode x = g.getNodes().iterator().next();
+			for (GraphAssertion a : assertions)
+			{
+				// The fourth assertion reads $x and $y from the valuation
+				Valuation nu = new Valuation().add("$x", x).add("$y", x);
+				boolean expected = a.evaluate(g, nu);
+				assertEquals(expected, AssertionCompiler.compile(a).evaluate(g, nu));
+				assertEquals(expected, AssertionCompiler.compile(a).evaluate(g.freeze(), nu));
+				assertEquals(x, nu.get("$x"));
+			}
+		}
+	}
+	
+	@Test
+	public void testCompiler2()
+	{
+		KnowledgeGraph g = createSmallGraph();
+		GraphAssertion[] assertions = {
+				allNodes("$x", allNodes("$y", implies(connected("$x", "t", "$y"), connected("$y", "t", "$x")))),
+				existsNode("$x", existsNode("$y", and(connected("$x", "t", "$y"), connected("$y", "t", "$x")))),
+				allEdges("$e", or(eq(l("$e"), "t"), existsNode("$x", existsNode("$y", and(eq(l("$x"), 0), connected("$x", "$e", "$y")))))),
+				existsEdge("$e", existsEdge("$f", and(eq(l("$e"), l("$f")), connected("$x", "$e", "$y"), connected("$y", "$f", "$x")))),
+				existsNode("$x", and(eq(l("$x"), 5), connectedUndir("$x", "t", "$x"))),
+				allNodes("$y", existsNode("$x", gt(l("$x"), l("$y")))),
+				existsNode("$z", existsEdge("$e", and(connected("$x", "$e", "$z"), eq(l("$e"), "u"))))};
+		boolean[] expected = {false, true, true, true, false, false, true};
+		// The last assertions read $x and $y from the valuation
+		Valuation nu = new Valuation().add("$x", g.getNode(0)).add("$y", g.getNode(1));
+		for (int i = 0; i < assertions.length; i++)
+		{
+			GraphAssertion c = AssertionCompiler.compile(assertions[i]);
+			assertEquals(expected[i], assertions[i].evaluate(g, nu));
+			assertEquals(expected[i], c.evaluate(g, nu));
+			assertEquals(expected[i], c.evaluate(g.freeze(), nu));
+			// On the empty graph, only the universal assertions are true
+			assertEquals(assertions[i] instanceof ForAllNodes || assertions[i] instanceof ForAllEdges, c.evaluate(new KnowledgeGraph(), nu));
+			assertEquals(g.getNode(0), nu.get("$x"));
+			assertNull(nu.get("$z"));
+		}
+		// 1 has no "u" edge, and 2 no edge back to 1
+		assertFalse(AssertionCompiler.compile(assertions[6]).evaluate(g, new Valuation().add("$x", g.getNode(1))));
+		assertFalse(AssertionCompiler.compile(assertions[3]).evaluate(g, new Valuation().add("$x", g.getNode(1)).add("$y", g.getNode(2))));
+	}
+	
+	@Test
+	public void testParallel1()
+	{
+		Quantifier<?>[] assertions = {
+				allNodes("$x", existsNode("$y", or(connected("$x", "r", "$y"), connected("$y", "s", "$x")))),
+				allNodes("$x", or(eq(l("$x"), 0), existsNode("$y", and(connected("$y", "s", "$x"), gt(l("$y"), l("$x")))))),
+				existsNode("$x", existsNode("$y", and(eq(l("$x"), 3), eq(l("$y"), l("$x")), not(connected("$x", "r", "$y"))))),
+				existsEdge("$e", existsNode("$x", connected("$x", "$e", "$x"))),
+				allEdges("$e", existsNode("$x", or(connected("$x", "$e", "$x"), gt(l("$x"), 1))))};
+		ForkJoinPool pool = new ForkJoinPool(4);
+		try
+		{
+			int true_count = 0;
+			for (int seed = 0; seed < 3; seed++)
+			{
+				KnowledgeGraph g = KnowledgeGraphTest.createRandomGraph(seed).freeze();
+				for (Quantifier<?> a : assertions)
+				{
+					boolean expected = a.evaluate(g);
+					assertEquals(expected, a.evaluate(g, pool));
+					true_count += expected ? 1 : 0;
+				}
+			}
+			// Both outcomes occur
+			assertTrue(true_count > 0 && true_count < 3 * assertions.length);
+		}
+		finally
+		{
+			pool.shutdown();
+		}
+	}
+	
+	@Test
+	public void testParallel2()
+	{
+		KnowledgeGraph g = createSmallGraph().freeze();
+		Quantifier<?>[] assertions = {
+				allNodes("$x", existsNode("$y", or(connected("$x", "t", "$y"), connected("$y", "t", "$x")))),
+				allNodes("$x", existsNode("$y", connected("$x", "t", "$y"))),
+				existsNode("$x", existsNode("$y", and(connected("$x", "t", "$y"), connected("$y", "t", "$x")))),
+				existsEdge("$e", existsNode("$x", connected("$x", "$e", "$x"))),
+				allEdges("$e", or(eq(l("$e"), "t"), existsNode("$x", existsNode("$y", and(eq(l("$x"), 0), connected("$x", "$e", "$y")))))),
+				existsEdge("$e", existsNode("$x", existsNode("$y", and(eq(l("$e"), "u"), connected("$y", "$e", "$x"))))),
+				// The planner gives the quantifier an empty domain
+				(Quantifier<?>) QueryPlanner.plan(allNodes("$x", implies(eq(l("$x"), 5), connected("$x", "t", "$x"))))};
+		boolean[] expected = {true, false, true, false, true, true, true};
+		ForkJoinPool pool = new ForkJoinPool(4);
+		try
+		{
+			for (int i = 0; i < assertions.length; i++)
+			{
+				assertEquals(expected[i], assertions[i].evaluate(g));
+				assertEquals(expected[i], assertions[i].evaluate(g, pool));
+				// On the empty graph, only the universal assertions are true
+				assertEquals(!assertions[i].isExistential(), assertions[i].evaluate(new KnowledgeGraph(), pool));
+			}
+		}
+		finally
+		{
+			pool.shutdown();
+		}
+	}
+	
+	@Test
+	public void testReordering1()
+	{
+		KnowledgeGraph g = KnowledgeGraphTest.createRandomGraph(0);
+		GraphNode x = g.getNodes().iterator().next();
+		Valuation nu = new Valuation().add("$x", x);
+		Object label = x.getData();
+		// The first operand is always true and the second always false
+		NaryConnective c = (NaryConnective) and(eq(l("$x"), label), not(eq(l("$x"), label)));
+		// The first operand is always false and the second always true
+		NaryConnective d = (NaryConnective) or(not(eq(l("$x"), label)), eq(l("$x"), label));
+		for (int i = 0; i < 2 * NaryConnective.REORDERING_PERIOD; i++)
+		{
+			assertFalse(c.evaluate(g, nu));
+			assertTrue(d.evaluate(g, nu));
+		}
+		// The operand that decides the result is now evaluated first
+		assertArrayEquals(new int[] {1, 0}, c.m_order);
+		assertArrayEquals(new int[] {1, 0}, d.m_order);
+	}
+	
+	@Test
+	public void testMemoize1()
+	{
+		GraphAssertion[] assertions = {
+				allNodes("$x", allNodes("$y", or(eq(l("$x"), 0), existsNode("$z", connected("$y", "r", "$z"))))),
+				allNodes("$x", existsNode("$y", and(eq(l("$y"), l("$x")), allNodes("$z", implies(connected("$y", "s", "$z"), gt(l("$z"), 0)))))),
+				existsNode("$x", existsNode("$y", and(connected("$x", "t", "$y"), not(existsEdge("$e", connected("$y", "$e", "$y")))))),
+				allNodes("$x", implies(eq(l("$x"), 2), existsNode("$y", and(eq(l("$y"), 3), existsNode("$z", connectedUndir("$y", "r", "$z"))))))};
+		// The subformula on $y and $z does not depend on $x
+		ForAllNodes m0 = (ForAllNodes) MemoizedAssertion.memoize(assertions[0]);
+		assertTrue(((NaryConnective) ((ForAllNodes) m0.m_phi).m_phi).m_operands[1] instanceof MemoizedAssertion);
+		int true_count = 0;
+		for (int seed = 0; seed < 3; seed++)
+		{
+			KnowledgeGraph g = KnowledgeGraphTest.createRandomGraph(seed);
+			for (GraphAssertion a : assertions)
+			{
+				GraphAssertion m = MemoizedAssertion.memoize(a);
+				GraphAssertion p = MemoizedAssertion.memoize(QueryPlanner.plan(a));
+				boolean expected = a.evaluate(g);
+				assertEquals(expected, m.evaluate(g));
+				assertEquals(expected, p.evaluate(g));
+				assertEquals(expected, m.evaluate(g.freeze()));
+				true_count += expected ? 1 : 0;
+				// The cache is discarded when the graph changes
+				KnowledgeGraph h = g.duplicate();
+				for (GraphNode n : new ArrayList<GraphNode>(h.getNodes()))
+				{
+					h.setNodeData(n.getId(), 3);
+					assertEquals(a.evaluate(h), m.evaluate(h));
+					assertEquals(a.evaluate(h), p.evaluate(h));
+				}
+			}
+		}
+		// Both outcomes occur
+		assertTrue(true_count > 0 && true_count < 3 * assertions.length);
+	}
+	
+	@Test
+	public void testMemoize2()
+	{
+		KnowledgeGraph g = createSmallGraph();
+		GraphAssertion[] assertions = {
+				allNodes("$x", allNodes("$y", or(eq(l("$x"), 0), existsNode("$z", connected("$y", "t", "$z"))))),
+				allNodes("$x", existsNode("$y", and(eq(l("$y"), l("$x")), allNodes("$z", implies(connected("$y", "t", "$z"), gt(l("$z"), 0)))))),
+				existsNode("$x", existsNode("$y", and(connected("$x", "t", "$y"), not(existsEdge("$e", connected("$y", "$e", "$y")))))),
+				allNodes("$x", implies(eq(l("$x"), 1), existsNode("$y", and(eq(l("$y"), 0), existsNode("$z", connectedUndir("$y", "u", "$z")))))),
+				allNodes("$x", implies(eq(l("$x"), 5), existsNode("$y", connected("$y", "t", "$y"))))};
+		boolean[] expected = {false, false, true, true, true};
+		for (int i = 0; i < assertions.length; i++)
+		{
+			GraphAssertion m = MemoizedAssertion.memoize(assertions[i]);
+			assertEquals(expected[i], m.evaluate(g));
+			assertEquals(expected[i], MemoizedAssertion.memoize(QueryPlanner.plan(assertions[i])).evaluate(g));
+			assertEquals(expected[i], m.evaluate(g.freeze()));
+			// On the empty graph, only the universal assertions are true
+			assertEquals(assertions[i] instanceof ForAllNodes, m.evaluate(new KnowledgeGraph()));
+		}
+		// Node 2 now has an outgoing edge: the cached value for it is discarded
+		GraphAssertion m = MemoizedAssertion.memoize(assertions[0]);
+		assertFalse(m.evaluate(g));
+		g.addEdge(2, "t", 2);
+		assertTrue(m.evaluate(g));
+		g.deleteEdge(2, "t", 2);
+		assertFalse(m.evaluate(g));
+	}
+	
+	@Test
+	public void testMiniscope1()
+	{
+		GraphAssertion a = Miniscoper.rewrite(existsNode("$x", existsNode("$y", and(eq(l("$x"), 1), connected("$x", "r", "$y")))));
+		// The condition on $x is hoisted out of the quantifier on $y
+		GraphAssertion body = ((ExistsNode) a).m_phi;
+		assertTrue(body instanceof Conjunction);
+		assertTrue(((Conjunction) body).m_operands[0] instanceof IsEqualTo);
+		assertTrue(((Conjunction) body).m_operands[1] instanceof ExistsNode);
+		// Negations are pushed through quantifiers
+		assertTrue(Miniscoper.rewrite(not(allNodes("$x", eq(l("$x"), 1)))) instanceof ExistsNode);
+		GraphAssertion[] assertions = {
+				existsNode("$x", existsNode("$y", existsNode("$z", existsEdge("$s", existsEdge("$t", and(eq(l("$x"), l("$y"), l("$z")),
+						connected("$x", "$s", "$y"), connected("$y", "$t", "$z"))))))),
+				allNodes("$x", allNodes("$y", implies(and(eq(l("$x"), 1), connected("$x", "r", "$y")), eq(l("$y"), 2)))),
+				not(existsNode("$x", allNodes("$y", or(eq(l("$x"), 0), not(connected("$y", "s", "$x")), gt(l("$y"), 2))))),
+				allNodes("$x", allNodes("$y", and(or(eq(l("$x"), 0), gt(l("$x"), 0)), or(eq(l("$y"), 3), not(connectedUndir("$x", "t", "$y")))))),
+				existsNode("$x", existsEdge("$e", or(and(eq(l("$e"), "r"), connected("$x", "$e", "$x")), and(eq(l("$x"), 3), not(existsNode("$x", eq(l("$x"), 4)))))))};
+		int true_count = 0;
+		for (int seed = 0; seed < 3; seed++)
+		{
+			KnowledgeGraph g = KnowledgeGraphTest.createRandomGraph(seed);
+			for (GraphAssertion phi : assertions)
+			{
+				GraphAssertion m = Miniscoper.rewrite(phi);
+				boolean expected = m.evaluate(g);
+				if (phi != assertions[0])
+				{
+					// The original form of the first assertion is too slow
+					assertEquals(phi.evaluate(g), expected);
+				}
+				assertEquals(expected, QueryPlanner.plan(phi).evaluate(g));
+				assertEquals(expected, QueryPlanner.plan(m).evaluate(g));
+				true_count += expected ? 1 : 0;
+			}
+		}
+		// Both outcomes occur
+		assertTrue(true_count > 0 && true_count < 3 * assertions.length);
+		// Quantifiers over an empty graph keep their value
+		for (GraphAssertion phi : assertions)
+		{
+			assertEquals(phi.evaluate(new KnowledgeGraph()), Miniscoper.rewrite(phi).evaluate(new KnowledgeGraph()));
+		}
+	}
+	
+	@Test
+	public void testMiniscope2()
+	{
+		KnowledgeGraph g = createSmallGraph();
+		GraphAssertion[] assertions = {
+				existsNode("$x", existsNode("$y", existsNode("$z", existsEdge("$s", existsEdge("$t", and(eq(l("$x"), l("$y"), l("$z")),
+						connected("$x", "$s", "$y"), connected("$y", "$t", "$z"))))))),
+				allNodes("$x", allNodes("$y", implies(and(eq(l("$x"), 1), connected("$x", "t", "$y")), eq(l("$y"), 2)))),
+				not(existsNode("$x", allNodes("$y", or(eq(l("$x"), 5), not(connected("$y", "t", "$x")), gt(l("$y"), 1))))),
+				allNodes("$x", allNodes("$y", and(or(eq(l("$x"), 0), gt(l("$x"), 0)), or(eq(l("$y"), 2), not(connectedUndir("$x", "t", "$y")))))),
+				existsNode("$x", existsEdge("$e", or(and(eq(l("$e"), "u"), connected("$x", "$e", "$x")), and(eq(l("$x"), 2), not(existsNode("$x", eq(l("$x"), 5))))))),
+				not(allNodes("$x", existsNode("$y", connected("$x", "t", "$y"))))};
+		boolean[] expected = {false, false, true, false, true, true};
+		boolean[] expected_empty = {false, true, true, true, false, false};
+		for (int i = 0; i < assertions.length; i++)
+		{
+			GraphAssertion m = Miniscoper.rewrite(assertions[i]);
+			assertEquals(expected[i], assertions[i].evaluate(g));
+			assertEquals(expected[i], m.evaluate(g));
+			assertEquals(expected[i], QueryPlanner.plan(m).evaluate(g));
+			assertEquals(expected_empty[i], m.evaluate(new KnowledgeGraph()));
+		}
+	}
+	
+	@Test
+	public void testBatch1()
+	{
+		GraphAssertion[] assertions = {
+				existsNode("$x", existsNode("$y", existsNode("$z", and(connected("$x", "r", "$y"), connected("$y", "s", "$z"), eq(l("$x"), l("$z")))))),
+				allNodes("$y", existsNode("$x", and(eq(l("$x"), 2), connectedUndir("$x", "t", "$y")))),
+				existsNode("$x", existsNode("$y", and(eq(l("$x"), 3), eq(l("$y"), l("$x")), not(connected("$x", "r", "$y"))))),
+				allNodes("$x", allNodes("$y", or(not(connected("$x", "s", "$y")), gt(l("$y"), l("$x")), eq(l("$x"), 0)))),
+				existsNode("$x", existsNode("$y", and(gt(2, l("$x")), existsEdge("$e", connected("$x", "$e", "$y")), not(gt(l("$y"), 1))))),
+				allNodes("$x", implies(eq(l("$x"), 1), existsNode("$y", connected("$x", "r", "$y")))),
+				existsNode("$x", existsNode("$x", and(eq(l("$x"), 1), connectedUndir("$x", "s", "$x"))))};
+		int true_count = 0;
+		for (int seed = 0; seed < 3; seed++)
+		{
+			KnowledgeGraph g = KnowledgeGraphTest.createRandomGraph(seed);
+			for (GraphAssertion a : assertions)
+			{
+				GraphAssertion b = BatchJoin.vectorize(a);
+				boolean expected = a.evaluate(g);
+				assertEquals(expected, b.evaluate(g));
+				assertEquals(expected, b.evaluate(g.freeze()));
+				true_count += expected ? 1 : 0;
+			}
+		}
+		// Both outcomes occur
+		assertTrue(true_count > 0 && true_count < 3 * assertions.length);
+		assertTrue(BatchJoin.vectorize(assertions[0]) instanceof BatchJoin);
+		assertFalse(BatchJoin.vectorize(assertions[0]).evaluate(new KnowledgeGraph()));
+	}
+	
+	@Test
+	public void testBatch2()
+	{
+		// The columns of the graph are copied again after each update
+		KnowledgeGraph g = new KnowledgeGraph()
+				.addNode(0, 1)
+				.addNode(1, 2)
+				.addEdge(0, "r", 1);
+		GraphAssertion b = BatchJoin.vectorize(existsNode("$x", existsNode("$y", and(connected("$x", "r", "$y"), eq(l("$y"), 3)))));
+		assertFalse(b.evaluate(g));
+		g.setNodeData(1, 3);
+		assertTrue(b.evaluate(g));
+		assertFalse(b.evaluate(g.duplicate().setNodeData(1, 2)));
+		assertTrue(b.evaluate(g));
+		g.addNode(2, 3).deleteNode(1).addEdge(0, "r", 2);
+		assertTrue(b.evaluate(g));
+	}
+	
+	@Test
+	public void testBatch3()
+	{
+		KnowledgeGraph g = s_parser.parse(AssertionTest.class.getResourceAsStream("data/graph1.dot"));
+		GraphAssertion a = existsNode("$x", existsNode("$y", and(eq(l("$x"), "A"), connected("$x", "r", "$y"), not(eq(l("$y"), l("$x"))), existsEdge("$e", connected("$y", "$e", "$x")))));
+		BatchJoin b = (BatchJoin) BatchJoin.vectorize(a);
+		// The guard on $x is checked on the first table
+		assertEquals(1, b.m_filters[0].length);
+		assertTrue(b.m_filters[0][0] instanceof BatchJoin.EqualsFilter);
+		// Only the quantifier is checked row by row
+		assertEquals(3, b.m_filters[1].length);
+		assertTrue(b.m_filters[1][0] instanceof BatchJoin.EdgeFilter);
+		assertTrue(b.m_filters[1][1] instanceof BatchJoin.NegatedFilter);
+		assertTrue(b.m_filters[1][2] instanceof BatchJoin.RowFilter);
+		assertTrue(b.evaluate(g));
+		assertFalse(BatchJoin.vectorize(existsNode("$x", existsNode("$y", and(eq(l("$x"), "B"), connected("$x", "r", "$y"))))).evaluate(g));
+	}
+	
+	@Test
+	public void testBatch4()
+	{
+		KnowledgeGraph g = createSmallGraph();
+		GraphAssertion[] assertions = {
+				existsNode("$x", existsNode("$y", existsNode("$z", and(connected("$x", "t", "$y"), connected("$y", "t", "$z"), eq(l("$x"), l("$z")))))),
+				allNodes("$y", existsNode("$x", and(eq(l("$x"), 1), connectedUndir("$x", "t", "$y")))),
+				existsNode("$x", existsNode("$y", and(eq(l("$x"), 5), connectedUndir("$x", "t", "$y")))),
+				allNodes("$x", allNodes("$y", or(not(connected("$x", "t", "$y")), gt(l("$y"), l("$x")), eq(l("$x"), 1)))),
+				existsNode("$x", existsNode("$y", and(gt(1, l("$x")), existsEdge("$e", connected("$x", "$e", "$y")), not(gt(l("$y"), 1))))),
+				existsNode("$x", existsNode("$y", and(connected("$x", "u", "$y"), connected("$y", "u", "$x")))),
+				existsNode("$x", existsNode("$y", and(connected("$x", "t", "$y"), connected("$y", "t", "$x"))))};
+		boolean[] expected = {true, false, false, true, true, false, true};
+		for (int i = 0; i < assertions.length; i++)
+		{
+			GraphAssertion b = BatchJoin.vectorize(assertions[i]);
+			assertEquals(expected[i], assertions[i].evaluate(g));
+			assertEquals(expected[i], b.evaluate(g));
+			assertEquals(expected[i], b.evaluate(g.freeze()));
+			// On the empty graph, only the universal assertions are true
+			assertEquals(assertions[i] instanceof ForAllNodes, b.evaluate(new KnowledgeGraph()));
+		}
+	}
+	
+	@Test
+	public void testTrieJoin1()
+	{
+		GraphAssertion[] assertions = {
+				existsNode("$x", existsNode("$y", existsNode("$z", and(connected("$x", "r", "$y"), connected("$y", "r", "$z"), connected("$z", "r", "$x"))))),
+				existsNode("$x", existsNode("$y", existsNode("$z", and(connectedUndir("$x", "s", "$y"), connectedUndir("$y", "t", "$z"), connectedUndir("$z", "r", "$x"), eq(l("$x"), l("$z")))))),
+				existsNode("$x", existsNode("$y", and(connected("$x", "r", "$y"), connected("$y", "s", "$x"), gt(l("$y"), 1)))),
+				existsNode("$w", existsNode("$x", existsNode("$y", existsNode("$z", and(connected("$w", "r", "$x"), connected("$x", "s", "$y"),
+						connectedUndir("$y", "t", "$z"), connected("$w", "r", "$z"), not(eq(l("$w"), l("$y")))))))),
+				existsNode("$x", existsNode("$y", existsNode("$z", and(connected("$x", "r", "$y"), connected("$y", "r", "$z"), connected("$x", "q", "$z")))))};
+		int true_count = 0;
+		for (int seed = 0; seed < 3; seed++)
+		{
+			KnowledgeGraph g = KnowledgeGraphTest.createRandomGraph(seed);
+			for (GraphAssertion a : assertions)
+			{
+				GraphAssertion p = QueryPlanner.plan(a);
+				assertTrue(p instanceof TrieJoin);
+				boolean expected = a.evaluate(g);
+				assertEquals(expected, p.evaluate(g));
+				assertEquals(expected, p.evaluate(g.freeze()));
+				true_count += expected ? 1 : 0;
+			}
+		}
+		// Both outcomes occur
+		assertTrue(true_count > 0 && true_count < 3 * assertions.length);
+		// A path is not a cycle
+		assertTrue(QueryPlanner.plan(existsNode("$x", existsNode("$y", existsNode("$z", and(connected("$x", "r", "$y"), connected("$y", "r", "$z")))))) instanceof JoinPlan);
+	}
+	
+	@Test
+	public void testTrieJoin2()
+	{
+		KnowledgeGraph g = s_parser.parse(AssertionTest.class.getResourceAsStream("data/graph1.dot"));
+		int[] slots = {VariableDictionary.getId("$x"), VariableDictionary.getId("$y")};
+		// On a compact graph, the fallback must not be called
+		GraphAssertion fallback = (graph, nu) -> {
+			throw new AssertionError("The fallback plan was evaluated");
+		};
+		TrieJoin t1 = new TrieJoin(slots, Arrays.asList(connected("$x", "r", "$y"), connected("$y", "s", "$x")), fallback);
+		TrieJoin t2 = new TrieJoin(slots, Arrays.asList(connected("$x", "r", "$y"), connected("$y", "r", "$x")), fallback);
+		TrieJoin t3 = new TrieJoin(slots, Arrays.asList(connected("$x", "r", "$y"), connected("$y", "s", "$x"), eq(l("$y"), "A")), fallback);
+		assertTrue(t1.evaluate(g.freeze()));
+		assertFalse(t2.evaluate(g.freeze()));
+		assertFalse(t3.evaluate(g.freeze()));
+		try
+		{
+			t1.evaluate(g);
+			fail("The fallback plan was not evaluated");
+		}
+		catch (AssertionError e)
+		{
+			// Expected
+		}
+	}
+	
+	@Test
+	public void testTrieJoin3()
+	{
+		KnowledgeGraph g = createSmallGraph();
+		// Closes the path 0 -t-> 1 -t-> 2 into a triangle
+		KnowledgeGraph h = g.duplicate().addEdge(2, "u", 0);
+		GraphAssertion[] assertions = {
+				existsNode("$x", existsNode("$y", and(connected("$x", "t", "$y"), connected("$y", "t", "$x")))),
+				existsNode("$x", existsNode("$y", and(connected("$x", "u", "$y"), connected("$y", "u", "$x")))),
+				existsNode("$x", existsNode("$y", and(connected("$x", "u", "$y"), connected("$y", "t", "$x"), gt(l("$y"), 0)))),
+				existsNode("$x", existsNode("$y", existsNode("$z", and(connectedUndir("$x", "t", "$y"), connectedUndir("$y", "t", "$z"), connectedUndir("$z", "u", "$x"))))),
+				existsNode("$x", existsNode("$y", existsNode("$z", and(connected("$x", "t", "$y"), connected("$y", "t", "$z"), connected("$z", "u", "$x")))))};
+		boolean[] expected_g = {true, false, true, false, false};
+		boolean[] expected_h = {true, false, true, true, true};
+		for (int i = 0; i < assertions.length; i++)
+		{
+			GraphAssertion p = QueryPlanner.plan(assertions[i]);
+			assertTrue(p instanceof TrieJoin);
+			assertEquals(expected_g[i], assertions[i].evaluate(g));
+			assertEquals(expected_g[i], p.evaluate(g));
+			assertEquals(expected_g[i], p.evaluate(g.freeze()));
+			assertEquals(expected_h[i], assertions[i].evaluate(h));
+			assertEquals(expected_h[i], p.evaluate(h));
+			assertEquals(expected_h[i], p.evaluate(h.freeze()));
+			assertFalse(p.evaluate(new KnowledgeGraph().freeze()));
+		}
+	}
+	
+	@Test
+	public void testSelect1()
+	{
+		GraphAssertion[] bodies = {
+				and(connected("$x", "r", "$y"), eq(l("$x"), l("$y"))),
+				and(eq(l("$x"), 2), not(connected("$x", "s", "$y")), gt(l("$y"), l("$x"))),
+				or(connectedUndir("$x", "t", "$y"), and(eq(l("$x"), 0), eq(l("$y"), 3))),
+				and(connected("$x", "r", "$y"), existsNode("$z", and(connected("$y", "s", "$z"), not(eq(l("$z"), l("$x"))))))};
+		int solution_count = 0;
+		for (int seed = 0; seed < 3; seed++)
+		{
+			KnowledgeGraph g = KnowledgeGraphTest.createRandomGraph(seed);
+			for (GraphAssertion body : bodies)
+			{
+				int expected = 0;
+				for (GraphNode x : g.getNodes())
+				{
+					for (GraphNode y : g.getNodes())
+					{
+						expected += body.evaluate(g, new Valuation().add("$x", x).add("$y", y)) ? 1 : 0;
+					}
+				}
+				GraphAssertion a = existsNode("$x", existsNode("$y", body));
+				assertEquals(expected, SolutionIterator.select(a, g).count());
+				assertEquals(Math.min(expected, 3), SolutionIterator.select(a, g).limit(3).count());
+				assertTrue(SolutionIterator.select(a, g).allMatch(nu -> body.evaluate(g, nu)));
+				assertEquals(expected > 0, a.evaluate(g));
+				solution_count += expected;
+			}
+		}
+		assertTrue(solution_count > 0);
+	}
+	
+	@Test
+	public void testSelect2()
+	{
+		// Two edges join 0 and 1 in each direction, one of them with another label
+		KnowledgeGraph g = createSmallGraph();
+		GraphAssertion a1 = existsNode("$x", existsNode("$y", and(eq(l("$x"), 1), connectedUndir("$x", "t", "$y"))));
+		GraphAssertion a2 = existsNode("$y", existsNode("$x", and(eq(l("$x"), 1), connectedUndir("$x", "t", "$y"))));
+		GraphAssertion a3 = existsNode("$x", existsNode("$y", and(eq(l("$x"), 0), existsEdge("$e", connected("$x", "$e", "$y")))));
+		GraphAssertion a4 = existsNode("$x", existsNode("$y", existsEdge("$e", and(eq(l("$x"), 1), connectedUndir("$x", "$e", "$y")))));
+		assertEquals(Arrays.asList("$x=1 $y=0", "$x=1 $y=2"), getSolutions(a1, g));
+		assertEquals(Arrays.asList("$y=0 $x=1", "$y=2 $x=1"), getSolutions(a2, g));
+		assertEquals(Arrays.asList("$x=0 $y=1"), getSolutions(a3, g));
+		assertEquals(Arrays.asList("$x=1 $y=0 $e=0-[t]-> 1", "$x=1 $y=0 $e=0-[u]-> 1", "$x=1 $y=0 $e=1-[t]-> 0", "$x=1 $y=2 $e=1-[t]-> 2"), getSolutions(a4, g));
+		GraphAssertion[] assertions = {a1, a2, a3, a4,
+				existsNode("$x", existsNode("$y", existsEdge("$e", connected("$x", "$e", "$y")))),
+				existsNode("$x", existsNode("$y", existsEdge("$e", connectedUndir("$x", "$e", "$y")))),
+				existsNode("$x", existsNode("$y", connectedUndir("$x", "t", "$y"))),
+				existsNode("$x", existsNode("$y", and(connected("$x", "t", "$y"), connected("$y", "t", "$x")))),
+				existsNode("$x", existsNode("$y", existsNode("$z", and(connectedUndir("$x", "t", "$y"), connectedUndir("$y", "t", "$z"), connectedUndir("$z", "u", "$x"))))),
+				existsNode("$x", existsNode("$y", and(eq(l("$x"), 5), connectedUndir("$x", "t", "$y"))))};
+		for (GraphAssertion a : assertions)
+		{
+			List<String> expected = getSolutionsByBruteForce(a, g);
+			assertEquals(expected, getSolutions(a, g));
+			assertEquals(expected, getSolutions(a, QueryPlanner.plan(a), g));
+			assertEquals(expected, getSolutions(a, g.freeze()));
+			assertTrue(getSolutions(a, new KnowledgeGraph()).isEmpty());
+		}
+		assertTrue(getSolutions(assertions[assertions.length - 1], g).isEmpty());
+	}
+	
+	@Test
+	public void testAggregate1()
+	{
+		GraphAssertion[] conditions = {
+				eq(l("$y"), 2),
+				connected("$x", "r", "$y"),
+				and(connectedUndir("$x", "s", "$y"), gt(l("$y"), l("$x"))),
+				or(eq(l("$y"), 0), connected("$y", "t", "$x"))};
+		for (int seed = 0; seed < 3; seed++)
+		{
+			KnowledgeGraph g = KnowledgeGraphTest.createRandomGraph(seed);
+			assertEquals(g.size(), Aggregate.count("$y").evaluate(g).intValue());
+			for (GraphNode x : g.getNodes())
+			{
+				Valuation nu = new Valuation().add("$x", x);
+				for (GraphAssertion phi : conditions)
+				{
+					int count = 0;
+					double sum = 0, max = Double.NEGATIVE_INFINITY;
+					for (GraphNode y : g.getNodes())
+					{
+						nu.add("$y", y);
+						if (phi.evaluate(g, nu))
+						{
+							count++;
+							if (y.getData() instanceof Number)
+							{
+								sum += ((Number) y.getData()).doubleValue();
+								max = Math.max(max, ((Number) y.getData()).doubleValue());
+							}
+						}
+					}
+					nu.add("$y", null);
+					assertEquals(count, Aggregate.count("$y", phi).evaluate(g, nu).intValue());
+					assertEquals(sum, Aggregate.sum("$y", phi).evaluate(g, nu), 0);
+					Number m = Aggregate.max("$y", phi).evaluate(g, nu);
+					assertEquals(max, m == null ? Double.NEGATIVE_INFINITY : m.doubleValue(), 0);
+					assertEquals(count >= 3, AtLeastNodes.atLeastNodes(3, "$y", phi).evaluate(g, nu));
+					assertNull(nu.get("$y"));
+				}
+			}
+		}
+		KnowledgeGraph g = KnowledgeGraphTest.createRandomGraph(0);
+		GraphAssertion a = allNodes("$x", or(eq(l("$x"), 3), AtLeastNodes.atLeastNodes(2, "$y", connectedUndir("$x", "r", "$y"))));
+		assertEquals(a.evaluate(g), allNodes("$x", or(eq(l("$x"), 3), gt(Aggregate.count("$y", connectedUndir("$x", "r", "$y")), 1))).evaluate(g));
+		assertEquals(0, Aggregate.min("$y", null).evaluate(g).intValue());
+		assertTrue(gt(Aggregate.count("$y", eq(l("$y"), 1)), 5).evaluate(g));
+	}
+	
+	@Test
+	public void testAggregate2()
+	{
+		KnowledgeGraph g = createSmallGraph();
+		Valuation nu0 = new Valuation().add("$x", g.getNode(0));
+		Valuation nu1 = new Valuation().add("$x", g.getNode(1));
+		GraphAssertion out_t = connected("$x", "t", "$y");
+		GraphAssertion adjacent = existsEdge("$e", connectedUndir("$x", "$e", "$y"));
+		assertEquals(3, Aggregate.count("$y").evaluate(g).intValue());
+		assertEquals(1, Aggregate.count("$y", out_t).evaluate(g, nu0).intValue());
+		assertEquals(2, Aggregate.count("$y", out_t).evaluate(g, nu1).intValue());
+		// 0 and 1 are joined by three edges, but 1 is counted once
+		assertEquals(1, Aggregate.count("$y", adjacent).evaluate(g, nu0).intValue());
+		assertEquals(2, Aggregate.count("$y", adjacent).evaluate(g, nu1).intValue());
+		assertEquals(2, Aggregate.sum("$y", out_t).evaluate(g, nu1), 0);
+		assertEquals(2, Aggregate.max("$y", out_t).evaluate(g, nu1).intValue());
+		assertEquals(0, Aggregate.min("$y", out_t).evaluate(g, nu1).intValue());
+		assertFalse(AtLeastNodes.atLeastNodes(2, "$y", adjacent).evaluate(g, nu0));
+		assertTrue(AtLeastNodes.atLeastNodes(2, "$y", adjacent).evaluate(g, nu1));
+		// No node has the label 5
+		GraphAssertion none = eq(l("$y"), 5);
+		assertEquals(0, Aggregate.count("$y", none).evaluate(g).intValue());
+		assertEquals(0, Aggregate.sum("$y", none).evaluate(g).doubleValue(), 0);
+		assertNull(Aggregate.max("$y", none).evaluate(g));
+		assertTrue(AtLeastNodes.atLeastNodes(0, "$y", none).evaluate(g));
+		assertFalse(AtLeastNodes.atLeastNodes(1, "$y", none).evaluate(g));
+		// The empty graph
+		KnowledgeGraph h = new KnowledgeGraph();
+		assertEquals(0, Aggregate.count("$y").evaluate(h).intValue());
+		assertEquals(0, Aggregate.sum("$y", null).evaluate(h).doubleValue(), 0);
+		assertNull(Aggregate.min("$y", null).evaluate(h));
+		assertFalse(AtLeastNodes.atLeastNodes(1, "$y", null).evaluate(h));
+	}
+	
+	@Test
+	public void testSparql1()
+	{
+		SparqlParser parser = new SparqlParser();
+		SparqlQuery[] queries = {
+				parser.parse("PREFIX : <http://example.org/> ASK { ?x :r ?y . ?y :r ?x . ?x :s ?y FILTER (?x > 1) }"),
+				parser.parse("ASK WHERE { ?x <t> ?y ; :r ?z , ?y . FILTER (?x >= 2 && !(?y != ?z)) }"),
+				parser.parse("ask { ?x ?e ?y FILTER (?e = \"s\" || ?x < 1) FILTER NOT EXISTS { ?y :r ?x } }")};
+		GraphAssertion[] expected = {
+				existsNode("$x", existsNode("$y", and(connected("$x", "r", "$y"), connected("$y", "r", "$x"), connected("$x", "s", "$y"), gt(l("$x"), 1)))),
+				existsNode("$x", existsNode("$y", existsNode("$z", and(connected("$x", "t", "$y"), connected("$x", "r", "$z"), connected("$x", "r", "$y"),
+						or(gt(l("$x"), 2), eq(l("$x"), 2)), eq(l("$y"), l("$z")))))),
+				existsNode("$x", existsEdge("$e", existsNode("$y", and(connected("$x", "$e", "$y"), or(eq(l("$e"), "s"), gt(1, l("$x"))),
+						not(connected("$y", "r", "$x"))))))};
+		int true_count = 0;
+		for (int seed = 0; seed < 3; seed++)
+		{
+			KnowledgeGraph g = KnowledgeGraphTest.createRandomGraph(seed);
+			for (int i = 0; i < queries.length; i++)
+			{
+				assertTrue(queries[i].isAsk());
+				boolean b = expected[i].evaluate(g);
+				assertEquals(b, queries[i].ask(g));
+				true_count += b ? 1 : 0;
+			}
+		}
+		assertTrue(true_count > 0 && true_count < 3 * queries.length);
+		SparqlQuery select = parser.parse("SELECT ?x WHERE { ?x :r ?y . FILTER (?y > 1) }");
+		SparqlQuery distinct = parser.parse("SELECT DISTINCT ?x WHERE { ?x :r ?y . FILTER (?y > 1) }");
+		SparqlQuery count = parser.parse("SELECT (COUNT(*) AS ?n) WHERE { ?x :r ?y . FILTER (?y > 1) }");
+		SparqlQuery count_distinct = parser.parse("SELECT (COUNT(DISTINCT ?x) AS ?n) WHERE { ?x :r ?y . FILTER (?y > 1) }");
+		SparqlQuery count_nodes = parser.parse("SELECT (COUNT(?x) AS ?n) { ?x :r ?y FILTER (?x = 1) FILTER NOT EXISTS { ?y :s ?y } }");
+		for (int seed = 0; seed < 3; seed++)
+		{
+			KnowledgeGraph g = KnowledgeGraphTest.createRandomGraph(seed);
+			// Count the solutions with nested loops over the nodes
+			long solutions = 0, solutions_nodes = 0;
+			Set<Long> sources = new HashSet<Long>();
+			for (GraphNode x : g.getNodes())
+			{
+				for (GraphNode y : g.getNodes())
+				{
+					if (!g.hasEdge(x.getId(), "r", y.getId()))
+					{
+						continue;
+					}
+					if (((Number) y.getData()).intValue() > 1)
+					{
+						solutions++;
+						sources.add(x.getId());
+					}
+					if (((Number) x.getData()).intValue() == 1 && !g.hasEdge(y.getId(), "s", y.getId()))
+					{
+						solutions_nodes++;
+					}
+				}
+			}
+			assertTrue(solutions > sources.size() && solutions_nodes > 0);
+			assertEquals(solutions, select.select(g).count());
+			assertTrue(select.select(g).allMatch(nu -> nu.get("$x") instanceof GraphNode && !nu.containsKey("$y")));
+			assertEquals(sources.size(), distinct.select(g).count());
+			assertEquals(solutions, count.select(g).findFirst().get().get("$n"));
+			assertEquals((long) sources.size(), count_distinct.select(g).findFirst().get().get("$n"));
+			assertEquals(solutions_nodes, count_nodes.select(g).findFirst().get().get("$n"));
+			assertEquals(Math.min(solutions, 2), parser.parse("SELECT * { ?x :r ?y . FILTER (?y > 1) } LIMIT 2").select(g).count());
+		}
+		// Two edges join 0 and 1 in each direction, one of them with another label
+		KnowledgeGraph g = createSmallGraph();
+		assertEquals(4, parser.parse("SELECT ?x ?y { ?x ?e ?y }").select(g).count());
+		assertEquals(3, parser.parse("SELECT DISTINCT ?x ?y { ?x ?e ?y }").select(g).count());
+		assertEquals(2L, parser.parse("SELECT (COUNT(?y) AS ?n) { ?x ?e ?y FILTER (?x = 1) }").select(g).findFirst().get().get("$n"));
+		assertEquals(2L, parser.parse("SELECT (COUNT(*) AS ?n) { ?x :t ?y . ?y :t ?x }").select(g).findFirst().get().get("$n"));
+		assertEquals(0L, parser.parse("SELECT (COUNT(*) AS ?n) { ?x :t ?y FILTER (?x = 5) }").select(g).findFirst().get().get("$n"));
+		assertEquals(0, parser.parse("SELECT ?x { ?x :u ?y . ?y :u ?x }").select(g).count());
+		// The empty graph
+		for (KnowledgeGraph h : new KnowledgeGraph[] {new KnowledgeGraph(), new KnowledgeGraph().freeze()})
+		{
+			assertFalse(parser.parse("ASK { ?x ?e ?y }").ask(h));
+			assertTrue(parser.parse("ASK { FILTER NOT EXISTS { ?x :t ?y } }").ask(h));
+			assertEquals(0, parser.parse("SELECT ?x { ?x :t ?y }").select(h).count());
+			assertEquals(0L, parser.parse("SELECT (COUNT(*) AS ?n) { ?x :t ?y }").select(h).findFirst().get().get("$n"));
+		}
+	}
+	
+	@Test
+	public void testSparql2()
+	{
+		KnowledgeGraph g = new KnowledgeGraph()
+				.addNode(0, 1)
+				.addNode(1, 2)
+				.addEdge(0, "r", 1);
+		SparqlParser parser = new SparqlParser();
+		SparqlQuery q = parser.parse("SELECT ?b ?a WHERE { ?a :r ?b }");
+		Map<String,Object> solution = q.select(g).findFirst().get();
+		assertEquals(Arrays.asList("$b", "$a"), new ArrayList<String>(solution.keySet()));
+		assertEquals(1L, ((GraphNode) solution.get("$b")).getId());
+		assertEquals(0L, ((GraphNode) solution.get("$a")).getId());
+		// The names of the variables are not added to the dictionary
+		int size = VariableDictionary.size();
+		for (int i = 0; i < 100; i++)
+		{
+			assertTrue(parser.parse("ASK { ?first" + i + " :r ?second" + i + " }").ask(g));
+		}
+		assertEquals(size, VariableDictionary.size());
+		// A valuation makes room for any identifier it is given
+		Valuation nu = new Valuation();
+		assertNull(nu.get(size + 100));
+		nu.set(size + 100, "v");
+		assertEquals("v", nu.get(size + 100));
+		assertNull(nu.get(size + 99));
+		assertEquals("v", new Valuation(nu).get(size + 100));
+		try
+		{
+			parser.parse("SELECT ?z { ?x :r ?y }");
+			fail("No error");
+		}
+		catch (IllegalArgumentException e)
+		{
+			assertTrue(e.getMessage().startsWith("Variable ?z "));
+		}
+	}
+	
+	@Test
+	public void testSparql3()
+	{
+		SparqlParser parser = new SparqlParser();
+		String[][] errors = {
+				{"ASK { ?x :r }", "Expected a variable at position 12"},
+				{"ASK { ?x r ?y }", "Expected ':' at position 11"},
+				{"ASK { ? :r ?y }", "Expected the name of a variable at position 7"},
+				{"ASK { ?x ?x ?y }", "Variable ?x stands for both a node and an edge at position 16"},
+				{"ASK { ?x :r ?y FILTER (?x 1) }", "Expected a comparison operator at position 26"},
+				{"ASK { ?x :r ?y FILTER (?z = 1) }", "Variable ?z does not occur in the pattern at position 32"},
+				{"SELECT (SUM(?x) AS ?n) { ?x :r ?y }", "Expected COUNT at position 8"},
+				{"SELECT (COUNT(*) ?n) { ?x :r ?y }", "Expected AS at position 17"},
+				{"DESCRIBE ?x", "Expected ASK or SELECT at position 0"},
+				{"ASK { ?x :r ?y } }", "Unexpected text after the query at position 17"}};
+		for (String[] e : errors)
+		{
+			try
+			{
+				parser.parse(e[0]);
+				fail("No error for " + e[0]);
+			}
+			catch (IllegalArgumentException ex)
+			{
+				assertEquals(e[1], ex.getMessage());
+			}
+		}
+	}
+	
+	@Test
+	public void testPlanCache1()
+	{
+		PlanCache cache = new PlanCache(3);
+		for (int seed = 0; seed < 3; seed++)
+		{
+			KnowledgeGraph g = KnowledgeGraphTest.createRandomGraph(seed);
+			for (int k = 1; k <= 2; k++)
+			{
+				// A new assertion object each time, with the same structure
+				GraphAssertion a = existsNode("$x", existsNode("$y", and(connected("$x", "r", "$y"), eq(l("$y"), k), not(eq(l("$x"), l("$y"))))));
+				GraphAssertion b = allNodes("$x", implies(eq(l("$x"), k), existsNode("$y", connectedUndir("$x", "s", "$y"))));
+				assertEquals(a.evaluate(g), cache.prepare(a).evaluate(g));
+				assertEquals(b.evaluate(g), cache.prepare(b).evaluate(g));
+			}
+		}
+		// Two values of k for two assertions, in a cache of capacity 3
+		assertEquals(3, cache.size());
+		assertEquals(12, cache.getHits() + cache.getMisses());
+		GraphAssertion c1 = existsNode("$x", and(eq(l("$x"), "A"), connected("$x", "r", "$x")));
+		GraphAssertion c2 = existsNode("$x", and(eq(l("$x"), "A"), connected("$x", "r", "$x")));
+		GraphAssertion c3 = existsNode("$x", and(eq(l("$x"), "B"), connected("$x", "r", "$x")));
+		GraphAssertion c4 = existsNode("$y", and(eq(l("$y"), "A"), connected("$y", "r", "$y")));
+		assertSame(cache.prepare(c1), cache.prepare(c2));
+		assertNotSame(cache.prepare(c1), cache.prepare(c3));
+		assertNotSame(cache.prepare(c1), cache.prepare(c4));
+		cache.clear();
+		assertEquals(0, cache.size());
+	}
+	
+	@Test
+	public void testPlanCache2()
+	{
+		PlanCache cache = new PlanCache(2);
+		GraphAssertion c1 = existsNode("$x", and(eq(l("$x"), "A"), connected("$x", "r", "$x")));
+		GraphAssertion c2 = existsNode("$x", and(eq(l("$x"), "A"), connected("$x", "r", "$x")));
+		GraphAssertion c3 = existsNode("$x", and(eq(l("$x"), "B"), connected("$x", "r", "$x")));
+		GraphAssertion c4 = existsNode("$x", and(eq(l("$x"), "C"), connected("$x", "r", "$x")));
+		GraphAssertion p1 = cache.prepare(c1);
+		assertSame(p1, cache.prepare(c2));
+		assertEquals(1, cache.getHits());
+		assertEquals(1, cache.getMisses());
+		cache.prepare(c3);
+		// c1 was used more recently than c3; adding c4 evicts c3
+		assertSame(p1, cache.prepare(c1));
+		cache.prepare(c4);
+		assertEquals(2, cache.size());
+		assertSame(p1, cache.prepare(c2));
+		assertEquals(3, cache.getHits());
+		assertEquals(3, cache.getMisses());
+		cache.prepare(c3);
+		assertEquals(4, cache.getMisses());
+		// Adding c3 again evicted c4, and c1 stays
+		assertSame(p1, cache.prepare(c1));
+		cache.prepare(c4);
+		assertEquals(4, cache.getHits());
+		assertEquals(5, cache.getMisses());
+	}
+	
+	@Test
+	public void testPlanCache3()
+	{
+		KnowledgeGraph g = createSmallGraph();
+		PlanCache cache = new PlanCache(4);
+		int[] labels = {0, 1, 2, 5};
+		boolean[] expected_a = {true, true, true, false};
+		boolean[] expected_b = {true, true, false, true};
+		for (int round = 0; round < 2; round++)
+		{
+			for (int i = 0; i < labels.length; i++)
+			{
+				GraphAssertion a = existsNode("$x", existsNode("$y", and(connected("$x", "t", "$y"), eq(l("$y"), labels[i]), not(eq(l("$x"), l("$y"))))));
+				GraphAssertion b = allNodes("$x", implies(eq(l("$x"), labels[i]), existsNode("$y", connectedUndir("$x", "u", "$y"))));
+				assertEquals(expected_a[i], cache.prepare(a).evaluate(g));
+				assertEquals(expected_b[i], cache.prepare(b).evaluate(g));
+				// The same plans, taken from the cache, on the empty graph
+				assertFalse(cache.prepare(a).evaluate(new KnowledgeGraph()));
+				assertTrue(cache.prepare(b).evaluate(new KnowledgeGraph()));
+			}
+		}
+		// Eight assertions cycle through a cache of capacity 4
+		assertEquals(4, cache.size());
+		assertEquals(16, cache.getHits());
+		assertEquals(16, cache.getMisses());
+	}
+	
+	@Test
+	public void testReachable1()
+	{
+		SparqlParser parser = new SparqlParser();
+		SparqlQuery q = parser.parse("SELECT (COUNT(*) AS ?n) { ?x :r+ ?y . ?y :s* ?x FILTER (?x > 1) }");
+		int true_count = 0;
+		for (int seed = 0; seed < 3; seed++)
+		{
+			KnowledgeGraph g = KnowledgeGraphTest.createRandomGraph(seed);
+			// Compare with the transitive closure computed naively, also through
+			// the endpoints of edges that are not nodes of the graph
+			List<GraphNode> nodes = new ArrayList<GraphNode>(g.getNodes());
+			List<Long> ids = new ArrayList<Long>();
+			for (GraphNode x : nodes)
+			{
+				ids.add(x.getId());
+			}
+			for (GraphEdge e : g.getEdges())
+			{
+				for (long id : new long[] {e.getFrom(), e.getTo()})
+				{
+					if (!ids.contains(id))
+					{
+						ids.add(id);
+					}
+				}
+			}
+			for (String label : new String[] {"r", "s", "q"})
+			{
+				int n = ids.size();
+				int[][] dist = new int[n][n];
+				for (int i = 0; i < n; i++)
+				{
+					for (int j = 0; j < n; j++)
+					{
+						dist[i][j] = g.hasEdge(ids.get(i), label, ids.get(j)) ? 1 : Integer.MAX_VALUE / 2;
+					}
+				}
+				for (int k = 0; k < n; k++)
+				{
+					for (int i = 0; i < n; i++)
+					{
+						for (int j = 0; j < n; j++)
+						{
+							dist[i][j] = Math.min(dist[i][j], dist[i][k] + dist[k][j]);
+						}
+					}
+				}
+				ReachableBy plus = ReachableBy.reachable("$x", label, "$y");
+				ReachableBy star = ReachableBy.reachableOrSelf("$x", label, "$y");
+				ReachableBy bounded = ReachableBy.reachable("$x", label, "$y", 2);
+				KnowledgeGraph frozen = g.freeze();
+				for (int i = 0; i < nodes.size(); i++)
+				{
+					for (int j = 0; j < nodes.size(); j++)
+					{
+						Valuation nu = new Valuation().add("$x", nodes.get(i)).add("$y", nodes.get(j));
+						boolean b = dist[i][j] < Integer.MAX_VALUE / 2;
+						assertEquals(b, plus.evaluate(g, nu));
+						assertEquals(b, plus.evaluate(frozen, nu));
+						assertEquals(b || i == j, star.evaluate(g, nu));
+						assertEquals(dist[i][j] <= 2, bounded.evaluate(frozen, nu));
+						true_count += b ? 1 : 0;
+					}
+				}
+			}
+			GraphAssertion a = existsNode("$x", existsNode("$y", and(ReachableBy.reachable("$x", "r", "$y"), ReachableBy.reachableOrSelf("$y", "s", "$x"), gt(l("$x"), 1))));
+			assertEquals(SolutionIterator.select(a, g).count(), ((Number) q.select(g).findFirst().get().get("$n")).longValue());
+			// Source given by the data of the nodes
+			assertEquals(existsNode("$x", and(eq(l("$x"), 2), ReachableBy.reachable("$x", "t", "$y"))).evaluate(g, new Valuation().add("$y", nodes.get(0))),
+					new ReachableBy(new Constant(2), new Constant("t"), new ContextVariable("$y"), false, ReachableBy.UNBOUNDED)
+					.evaluate(g, new Valuation().add("$y", nodes.get(0))));
+		}
+		assertTrue(true_count > 0);
+	}
+	
+	@Test
+	public void testReachable2()
+	{
+		KnowledgeGraph g = createSmallGraph();
+		// 0 and 1 reach each other through a cycle of "t" edges
+		boolean[][] plus_t = {{true, true, true}, {true, true, true}, {false, false, false}};
+		boolean[][] one_t = {{false, true, false}, {true, false, true}, {false, false, false}};
+		boolean[][] plus_u = {{false, true, false}, {false, false, false}, {false, false, false}};
+		ReachableBy t_plus = ReachableBy.reachable("$x", "t", "$y");
+		ReachableBy t_star = ReachableBy.reachableOrSelf("$x", "t", "$y");
+		ReachableBy t_one = ReachableBy.reachable("$x", "t", "$y", 1);
+		ReachableBy t_two = ReachableBy.reachable("$x", "t", "$y", 2);
+		ReachableBy u_plus = ReachableBy.reachable("$x", "u", "$y");
+		ReachableBy v_star = ReachableBy.reachableOrSelf("$x", "v", "$y");
+		for (KnowledgeGraph h : new KnowledgeGraph[] {g, g.freeze()})
+		{
+			for (int i = 0; i < 3; i++)
+			{
+				for (int j = 0; j < 3; j++)
+				{
+					Valuation nu = new Valuation().add("$x", h.getNode(i)).add("$y", h.getNode(j));
+					assertEquals(plus_t[i][j], t_plus.evaluate(h, nu));
+					assertEquals(plus_t[i][j] || i == j, t_star.evaluate(h, nu));
+					assertEquals(one_t[i][j], t_one.evaluate(h, nu));
+					assertEquals(plus_t[i][j], t_two.evaluate(h, nu));
+					assertEquals(plus_u[i][j], u_plus.evaluate(h, nu));
+					// No edge is labelled "v"
+					assertEquals(i == j, v_star.evaluate(h, nu));
+				}
+			}
+		}
+		SparqlParser parser = new SparqlParser();
+		String[] queries = {
+				"SELECT (COUNT(*) AS ?n) { ?x :t+ ?y }",
+				"SELECT (COUNT(*) AS ?n) { ?x :t* ?y }",
+				"SELECT (COUNT(*) AS ?n) { ?x :u+ ?y . ?y :t+ ?x }",
+				"SELECT (COUNT(*) AS ?n) { ?x :v+ ?y }"};
+		long[] counts = {6, 7, 1, 0};
+		for (int i = 0; i < queries.length; i++)
+		{
+			SparqlQuery q = parser.parse(queries[i]);
+			assertEquals(counts[i], q.select(g).findFirst().get().get("$n"));
+			assertEquals(0L, q.select(new KnowledgeGraph()).findFirst().get().get("$n"));
+		}
+	}
+	
+	/**
+	 * Creates a small graph where two nodes are joined by several edges, in
+	 * both directions, and one of the nodes has another neighbour.
+	 * @return The graph
+	 */
+	protected static KnowledgeGraph createSmallGraph()
+	{
+		return new KnowledgeGraph()
+				.addNode(0, 0)
+				.addNode(1, 1)
+				.addNode(2, 2)
+				.addEdge(0, "t", 1)
+				.addEdge(1, "t", 0)
+				.addEdge(0, "u", 1)
+				.addEdge(1, "t", 2);
+	}
+	
+	/**
+	 * Enumerates the solutions of an assertion with a {@link SolutionIterator}.
+	 * @param phi The assertion, whose top-level existential quantifiers bind
+	 * the variables to enumerate
+	 * @param g The graph
+	 * @return The sorted list of solutions, as given by
+	 * {@link #describe(Valuation, List)}
+	 */
+	protected static List<String> getSolutions(GraphAssertion phi, KnowledgeGraph g)
+	{
+		return getSolutions(phi, phi, g);
+	}
+	
+	/**
+	 * Enumerates the solutions of an assertion with a {@link SolutionIterator}
+	 * over another assertion equivalent to it, such as its plan.
+	 * @param phi The assertion, whose top-level existential quantifiers bind
+	 * the variables to enumerate
+	 * @param psi The assertion given to the iterator
+	 * @param g The graph
+	 * @return The sorted list of solutions, as given by
+	 * {@link #describe(Valuation, List)}
+	 */
+	protected static List<String> getSolutions(GraphAssertion phi, GraphAssertion psi, KnowledgeGraph g)
+	{
+		List<String> variables = getVariables(phi, new ArrayList<Boolean>());
+		return SolutionIterator.select(psi, g).map(nu -> describe(nu, variables)).sorted().collect(Collectors.toList());
+	}
+	
+	/**
+	 * Enumerates the solutions of an assertion by trying every combination of
+	 * nodes and edges for its variables, independently of the query engine.
+	 * @param phi The assertion, whose top-level existential quantifiers bind
+	 * the variables to enumerate
+	 * @param g The graph
+	 * @return The sorted list of solutions, as given by
+	 * {@link #describe(Valuation, List)}
+	 */
+	protected static List<String> getSolutionsByBruteForce(GraphAssertion phi, KnowledgeGraph g)
+	{
+		List<Boolean> edges = new ArrayList<Boolean>();
+		List<String> variables = getVariables(phi, edges);
+		for (int i = 0; i < variables.size(); i++)
+		{
+			phi = ((Quantifier<?>) phi).m_phi;
+		}
+		List<String> solutions = new ArrayList<String>();
+		enumerate(phi, g, variables, edges, new Valuation(), solutions);
+		Collections.sort(solutions);
+		return solutions;
+	}
+	
+	/**
+	 * Adds to a list the solutions of an assertion for all the values of the
+	 * variables not yet bound in a valuation.
+	 */
+	protected static void enumerate(GraphAssertion phi, KnowledgeGraph g, List<String> variables, List<Boolean> edges, Valuation nu, List<String> solutions)
+	{
+		int i = 0;
+		while (i < variables.size() && nu.get(variables.get(i)) != null)
+		{
+			i++;
+		}
+		if (i == variables.size())
+		{
+			if (phi.evaluate(g, nu))
+			{
+				solutions.add(describe(nu, variables));
+			}
+			return;
+		}
+		for (Object o : edges.get(i) ? g.getEdges() : g.getNodes())
+		{
+			nu.add(variables.get(i), o);
+			enumerate(phi, g, variables, edges, nu, solutions);
+		}
+		nu.add(variables.get(i), null);
+	}
+	
+	/**
+	 * Gets the variables of the top-level existential quantifiers of an
+	 * assertion, in the order of the quantifiers.
+	 * @param phi The assertion
+	 * @param edges A list to which is added, for each variable, whether it
+	 * stands for an edge
+	 * @return The variables
+	 */
+	protected static List<String> getVariables(GraphAssertion phi, List<Boolean> edges)
+	{
+		List<String> variables = new ArrayList<String>();
+		while (phi instanceof ExistsNode || phi instanceof ExistsEdge)
+		{
+			variables.add(((Quantifier<?>) phi).m_variable);
+			edges.add(phi instanceof ExistsEdge);
+			phi = ((Quantifier<?>) phi).m_phi;
+		}
+		return variables;
+	}
+	
+	/**
+	 * Describes the values of some variables in a valuation, nodes being
+	 * given by their ID.
+	 */
+	protected static String describe(Valuation nu, List<String> variables)
+	{
+		StringBuilder out = new StringBuilder();
+		for (String v : variables)
+		{
+			Object o = nu.get(v);
+			out.append(out.length() == 0 ? "" : " ").append(v).append("=").append(o instanceof GraphNode ? ((GraphNode) o).getId() : o);
+		}
+		return out.toString();
+	}
 }
@@ -19,10 +19,29 @@ package ca.uqac.lif.sparql;
 
 import static org.junit.Assert.*;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+
 import org.junit.Test;
 
 public class KnowledgeGraphTest
 {
+	/**
+	 * The labels used in randomly generated graphs.
+	 */
+	protected static final String[] s_labels = {"r", "s", "t"};
+	
 	@Test
 	public void testCopy1()
 	{
@@ -64,4 +83,491 @@ public class KnowledgeGraphTest
 		assertTrue(g1.matches("A", "x", "B"));
 		assertFalse(g2.matches("A", "b", "B"));
 	}
+	
+	@Test
+	public void testEdges1()
+	{
+		KnowledgeGraph g = new KnowledgeGraph()
+				.addNode(0, "A")
+				.addNode(1, "B")
+				.addNode(2, "C")
+				.addEdge(0, "x", 1)
+				.addEdge(0, "x", 1)
+				.addEdge(0, "y", 2)
+				.addEdge(2, "x", 0);
+		assertEquals(2, g.getEdges(0).size());
+		assertEquals(3, g.getEdges().size());
+		assertTrue(g.getEdges(1).isEmpty());
+		g.deleteNode(2);
+		assertEquals(1, g.getEdges(0).size());
+		assertEquals(1, g.getEdges().size());
+		assertNull(g.getNode(2));
+	}
+	
+	@Test
+	public void testIncomingEdges1()
+	{
+		KnowledgeGraph g = new KnowledgeGraph()
+				.addNode(0, "A")
+				.addNode(1, "B")
+				.addNode(2, "C")
+				.addEdge(0, "x", 1)
+				.addEdge(2, "y", 1)
+				.addEdge(1, "z", 1);
+		assertEquals(3, g.getIncomingEdges(1).size());
+		g.deleteEdge(2, "y", 1);
+		assertEquals(2, g.getIncomingEdges(1).size());
+		g.setEdgeData(0, "x", 1, "w");
+		assertTrue(g.matches("A", "w", "B"));
+		assertFalse(g.matches("A", "x", "B"));
+		g.deleteNode(1);
+		assertTrue(g.getEdges(0).isEmpty());
+		assertTrue(g.getIncomingEdges(1).isEmpty());
+		assertTrue(g.getEdges().isEmpty());
+	}
+	
+	@Test
+	public void testMatchesUndirected1()
+	{
+		KnowledgeGraph g = new KnowledgeGraph()
+				.addNode(0, "A")
+				.addNode(1, "B")
+				.addEdge(0, "x", 1);
+		assertTrue(g.matchesUndirected(g.getNode(1), "x", g.getNode(0)));
+		assertTrue(g.matchesUndirected(g.getNode(1), "x", "A"));
+		assertTrue(g.matchesUndirected("A", "x", "B"));
+		assertFalse(g.matchesUndirected(g.getNode(1), "y", g.getNode(0)));
+	}
+	
+	@Test
+	public void testNodesWithData1()
+	{
+		KnowledgeGraph g1 = new KnowledgeGraph()
+				.addNode(0, "A")
+				.addNode(1, 3)
+				.addNode(2, "A")
+				.addEdge(0, "x", 1);
+		assertEquals(2, g1.getNodesWithData("A").size());
+		assertEquals(1, g1.getNodesWithData(3.0).size());
+		assertTrue(g1.matches("A", "x", 3d));
+		KnowledgeGraph g2 = g1.duplicate()
+				.setNodeData(0, "B")
+				.deleteNode(2);
+		assertEquals(2, g1.getNodesWithData("A").size());
+		assertTrue(g2.getNodesWithData("A").isEmpty());
+		assertEquals(1, g2.getNodesWithData("B").size());
+		assertTrue(g2.matches("B", "x", 3));
+		assertFalse(g2.matches("A", "x", 3));
+	}
+	
+	@Test
+	public void testIndexes1()
+	{
+		// Compares the indexes of the graph with a plain set of triples
+		Random r = new Random(0);
+		KnowledgeGraph g = new KnowledgeGraph();
+		Set<String> expected = new HashSet<String>();
+		String[] labels = {"r", "s", "t"};
+		for (int i = 0; i < 10; i++)
+		{
+			g.addNode(i, i % 3);
+		}
+		for (int i = 0; i < 5000; i++)
+		{
+			long from = r.nextInt(10), to = r.nextInt(10);
+			String label = labels[r.nextInt(labels.length)];
+			if (r.nextInt(3) > 0)
+			{
+				g.addEdge(from, label, to);
+				expected.add(from + label + to);
+			}
+			else
+			{
+				g.deleteEdge(from, label, to);
+				expected.remove(from + label + to);
+			}
+		}
+		int count = 0;
+		for (long from = 0; from < 10; from++)
+		{
+			for (String label : labels)
+			{
+				for (long to = 0; to < 10; to++)
+				{
+					boolean b = expected.contains(from + label + to);
+					assertEquals(b, g.hasEdge(from, label, to));
+					assertEquals(b, g.matches(g.getNode(from), label, g.getNode(to)));
+					if (b)
+					{
+						count++;
+						assertTrue(g.matches(from % 3, label, to % 3));
+						assertTrue(g.matches(g.getNode(from), label, to % 3));
+						assertTrue(g.matches(from % 3, label, g.getNode(to)));
+					}
+				}
+			}
+		}
+		assertEquals(count, g.getEdges().size());
+		assertEquals(g.countEdges("r"), g.getEdgesWithLabel("r").size());
+		assertEquals(count, g.getEdgesWithLabel("r").size() + g.getEdgesWithLabel("s").size() + g.getEdgesWithLabel("t").size());
+	}
+	
+	@Test
+	public void testRanges1()
+	{
+		KnowledgeGraph g1 = new KnowledgeGraph()
+				.addNode(0, 1)
+				.addNode(1, 2.5)
+				.addNode(2, "A")
+				.addNode(3, 4);
+		assertEquals(2, g1.getNodesInRange(1, true, 3, false).size());
+		assertEquals(1, g1.getNodesInRange(1, false, 3, false).size());
+		// The index now exists; updates must be reflected in it
+		g1.setNodeData(1, 7).setNodeData(2, 2);
+		KnowledgeGraph g2 = g1.duplicate()
+				.deleteNode(0)
+				.setNodeData(3, "B");
+		assertEquals(2, g1.getNodesInRange(1, true, 3, false).size());
+		assertEquals(2, g1.getNodesInRange(4, true, 7, true).size());
+		assertEquals(1, g2.getNodesInRange(1, true, 3, false).size());
+		assertEquals(7, g2.getNodesInRange(4, true, 7, true).iterator().next().getData());
+		assertTrue(g2.getNodesInRange(8, true, 9, true).isEmpty());
+		// The index of an empty graph is empty
+		KnowledgeGraph g3 = new KnowledgeGraph();
+		assertTrue(g3.getNodesInRange(Double.NEGATIVE_INFINITY, true, Double.POSITIVE_INFINITY, true).isEmpty());
+		assertTrue(g3.freeze().getNodesInRange(Double.NEGATIVE_INFINITY, true, Double.POSITIVE_INFINITY, true).isEmpty());
+	}
+
+	@Test
+	public void testRanges2()
+	{
+		// Compares the range index with a scan of the nodes after each update
+		Random r = new Random(2);
+		KnowledgeGraph g = new KnowledgeGraph();
+		for (int i = 0; i < 2000; i++)
+		{
+			if (i % 100 == 0)
+			{
+				g = g.duplicate();
+			}
+			long id = r.nextInt(50);
+			if (r.nextInt(4) == 0)
+			{
+				g.deleteNode(id);
+			}
+			else
+			{
+				g.setNodeData(id, r.nextInt(3) == 0 ? "A" : r.nextInt(20));
+			}
+			int low = r.nextInt(20), high = low + r.nextInt(5);
+			Set<Long> expected = new HashSet<Long>();
+			for (GraphNode n : g.getNodes())
+			{
+				if (n.getData() instanceof Integer && (Integer) n.getData() >= low && (Integer) n.getData() < high)
+				{
+					expected.add(n.getId());
+				}
+			}
+			Set<Long> found = new HashSet<Long>();
+			for (GraphNode n : g.getNodesInRange(low, true, high, false))
+			{
+				found.add(n.getId());
+			}
+			assertEquals(expected, found);
+			assertEquals(expected.size(), g.getNodesInRange(low, true, high, false).size());
+		}
+	}
+
+	@Test
+	public void testLabels1()
+	{
+		KnowledgeGraph g1 = new KnowledgeGraph().addEdge(0, "label1", 1);
+		KnowledgeGraph g2 = new KnowledgeGraph().addEdge(0, "label1", 1);
+		GraphEdge e1 = g1.getEdges(0).iterator().next();
+		GraphEdge e2 = g2.getEdges(0).iterator().next();
+		assertEquals("label1", e1.getLabel());
+		assertEquals(e1, e2);
+		assertEquals(LabelDictionary.find("label1"), e1.getLabelId());
+		assertEquals(-1, LabelDictionary.find("no edge has this label"));
+		assertFalse(g1.hasEdge(0, "no edge has this label", 1));
+	}
+	
+	@Test
+	public void testVersions1()
+	{
+		// Each update is applied on a copy; all versions must remain intact
+		Random r = new Random(1);
+		String[] labels = {"r", "s"};
+		KnowledgeGraph g = new KnowledgeGraph();
+		Set<String> expected = new HashSet<String>();
+		KnowledgeGraph[] versions = new KnowledgeGraph[500];
+		int[] sizes = new int[versions.length];
+		for (int i = 0; i < versions.length; i++)
+		{
+			g = g.duplicate();
+			long from = r.nextInt(20), to = r.nextInt(20);
+			String label = labels[r.nextInt(labels.length)];
+			switch (r.nextInt(4))
+			{
+			case 0:
+				g.deleteNode(from);
+				expected.removeIf(t -> t.startsWith(from + ":") || t.endsWith(":" + from));
+				break;
+			case 1:
+				g.deleteEdge(from, label, to);
+				expected.remove(from + ":" + label + ":" + to);
+				break;
+			default:
+				g.addNode(from, from).addNode(to, to).addEdge(from, label, to);
+				expected.add(from + ":" + label + ":" + to);
+			}
+			versions[i] = g;
+			sizes[i] = expected.size();
+			assertEquals(sizes[i], g.getEdges().size());
+		}
+		for (int i = 0; i < versions.length; i++)
+		{
+			assertEquals(sizes[i], versions[i].getEdges().size());
+			int in = 0;
+			for (GraphNode n : versions[i].getNodes())
+			{
+				in += versions[i].getIncomingEdges(n.getId()).size();
+			}
+			assertEquals(sizes[i], in);
+			assertEquals(sizes[i], versions[i].countEdges("r") + versions[i].countEdges("s"));
+		}
+	}
+	
+	@Test
+	public void testVersions2()
+	{
+		// A hub node connected to each neighbour by one, two or three edges
+		KnowledgeGraph g = new KnowledgeGraph().addNode(0, 0);
+		for (int i = 1; i <= 1000; i++)
+		{
+			g.addNode(i, i).addEdge(0, "r", i);
+			if (i % 2 == 0)
+			{
+				g.addEdge(0, "s", i);
+			}
+			if (i % 3 == 0)
+			{
+				g.addEdge(0, "t", i);
+			}
+		}
+		KnowledgeGraph h = g.duplicate();
+		for (int i = 1; i <= 1000; i += 2)
+		{
+			h.deleteEdge(0, "r", i);
+			h.addEdge(0, "s", i);
+		}
+		h.deleteEdge(0, "t", 6).addEdge(0, "q", 6);
+		assertEquals(1000 + 500 + 333, g.getEdges(0).size());
+		assertEquals(1000 + 500 + 333, h.getEdges(0).size());
+		assertEquals(1000, g.getOutgoingEdges(0, "r").size());
+		assertEquals(500, h.getOutgoingEdges(0, "r").size());
+		assertEquals(1000, h.getOutgoingEdges(0, "s").size());
+		assertTrue(g.hasEdge(0, "r", 5) && !g.hasEdge(0, "s", 5) && g.hasEdge(0, "t", 6));
+		assertTrue(!h.hasEdge(0, "r", 5) && h.hasEdge(0, "s", 5) && !h.hasEdge(0, "t", 6) && h.hasEdge(0, "q", 6));
+		assertEquals(3, g.getIncomingEdges(6).size());
+		assertEquals(3, h.getIncomingEdges(6).size());
+		KnowledgeGraph k = h.duplicate().deleteNode(0);
+		assertEquals(0, k.getEdges().size());
+		assertEquals(0, k.getIncomingEdges(6).size());
+		assertEquals(1000 + 500 + 333, h.getEdges().size());
+		assertEquals(1000 + 500 + 333, g.getEdges().size());
+	}
+	
+	@Test
+	public void testFreeze1()
+	{
+		// The frozen graph must answer every query like the original one
+		KnowledgeGraph g = createRandomGraph(2);
+		KnowledgeGraph f = g.freeze();
+		assertSameQueries(g, f);
+		try
+		{
+			f.addNode(100, 0);
+			fail("A frozen graph must be read-only");
+		}
+		catch (UnsupportedOperationException e)
+		{
+			// Expected
+		}
+		KnowledgeGraph d = f.duplicate().addNode(100, 0);
+		assertEquals(f.size() + 1, d.size());
+		assertEquals(f.getEdges().size(), d.getEdges().size());
+	}
+	
+	@Test
+	public void testBinary1() throws IOException
+	{
+		KnowledgeGraph g = createRandomGraph(3);
+		g.addNode(200, "some text").addNode(201, 2.5).addNode(202, true).addEdge(200, "label with é", 201);
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		new BinaryGraphRenderer().render(g, baos);
+		KnowledgeGraph m = new MappedKnowledgeGraph(ByteBuffer.wrap(baos.toByteArray()));
+		assertSameQueries(g, m);
+		assertEquals("some text", m.getNode(200).getData());
+		assertEquals(2.5, m.getNode(201).getData());
+		assertEquals(true, m.getNode(202).getData());
+		assertTrue(m.hasEdge(200, "label with é", 201));
+		assertEquals(1, m.getNodesWithData(2.5).size());
+		// Ranges are found by reading the data of each node in the buffer
+		assertEquals(getIds(g.getNodesInRange(2, false, 3, false)), getIds(m.getNodesInRange(2, false, 3, false)));
+		assertEquals(201L, m.getNodesInRange(2.5, true, 2.5, true).iterator().next().getId());
+		assertTrue(m.getNodesInRange(3, true, 2, true).isEmpty());
+		// Rendering the mapped graph again yields the same bytes
+		ByteArrayOutputStream baos2 = new ByteArrayOutputStream();
+		new BinaryGraphRenderer().render(m, baos2);
+		assertArrayEquals(baos.toByteArray(), baos2.toByteArray());
+	}
+	
+	@Test
+	public void testParse1()
+	{
+		String[] labels = {"12", "-7", "+3", "2147483648", "-2147483648", "1.5", " 2e3 ", ".5", "1.", "0x1p3", "1f", "NaN",
+				"-Infinity", "1e", "e1", "-", "", "abc", "1 2", "é", "12345678901234567890", "0.1", "1e-300", "3.14159265358979"};
+		StringBuilder dot = new StringBuilder("# A comment\r\n\r\n");
+		for (int i = 0; i < labels.length; i++)
+		{
+			dot.append("  ").append(i).append(" [label=\"").append(labels[i]).append("\"];\r\n");
+		}
+		dot.append("0 -> 1 [label=\"a\"];;\n1 -> 2 [label=\"é\"]\u20280 -> 2 [label=\"a\"]\n");
+		dot.append("0 -> 3 [label=\"a\"] ;\n0 -> 4 [label=\"a\"]x\n0  -> 5 [label=\"a\"]\n");
+		StringBuilder long_label = new StringBuilder();
+		for (int i = 0; i < 70000; i++)
+		{
+			long_label.append((char) ('a' + i % 26));
+		}
+		dot.append("100 [label=\"").append(long_label).append("\"]");
+		KnowledgeGraph g = new DotGraphParser().parse(new ByteArrayInputStream(dot.toString().getBytes(StandardCharsets.UTF_8)));
+		for (int i = 0; i < labels.length; i++)
+		{
+			assertEquals(labels[i], DotGraphParser.readFromString(labels[i]), g.getNode(i).getData());
+		}
+		assertEquals(long_label.toString(), g.getNode(100).getData());
+		assertEquals(labels.length + 1, g.size());
+		assertEquals(3, g.getEdges().size());
+		assertTrue(g.hasEdge(0, "a", 1));
+		assertTrue(g.hasEdge(1, "é", 2));
+		assertTrue(g.hasEdge(0, "a", 2));
+	}
+	
+	@Test
+	public void testParseParallel1() throws IOException
+	{
+		KnowledgeGraph g = createRandomGraph(4);
+		Path file = Files.createTempFile("graph", ".dot");
+		try
+		{
+			try (OutputStream os = Files.newOutputStream(file))
+			{
+				new DotGraphRenderer().render(g, os);
+			}
+			KnowledgeGraph p = new DotGraphParser().parse(file);
+			assertSameQueries(g, p);
+			for (int chunk_size : new int[] {1, 50, 1000, 1 << 20})
+			{
+				assertSameQueries(p, new DotGraphParser().parse(file, ForkJoinPool.commonPool(), chunk_size));
+			}
+		}
+		finally
+		{
+			Files.delete(file);
+		}
+	}
+	
+	/**
+	 * Creates a random graph where some edges lead to nodes without data.
+	 * @param seed The seed of the random generator
+	 * @return The graph
+	 */
+	protected static KnowledgeGraph createRandomGraph(long seed)
+	{
+		Random r = new Random(seed);
+		KnowledgeGraph g = new KnowledgeGraph();
+		for (int i = 0; i < 30; i++)
+		{
+			g.addNode(i * 3, i % 4);
+		}
+		for (int i = 0; i < 300; i++)
+		{
+			g.addEdge(r.nextInt(31) * 3, s_labels[r.nextInt(s_labels.length)], r.nextInt(31) * 3);
+		}
+		return g;
+	}
+	
+	/**
+	 * Checks that two graphs produced by {@link #createRandomGraph(long)}
+	 * give the same answer to every query.
+	 * @param g The first graph
+	 * @param f The second graph
+	 */
+	protected static void assertSameQueries(KnowledgeGraph g, KnowledgeGraph f)
+	{
+		assertEquals(g.size(), f.size());
+		assertEquals(new HashSet<GraphEdge>(g.getEdges()), new HashSet<GraphEdge>(f.getEdges()));
+		assertEquals(g.getEdges().size(), f.getEdges().size());
+		for (String label : s_labels)
+		{
+			assertEquals(g.countEdges(label), f.countEdges(label));
+			assertEquals(new HashSet<GraphEdge>(g.getEdgesWithLabel(label)), new HashSet<GraphEdge>(f.getEdgesWithLabel(label)));
+		}
+		for (int from = 0; from <= 30; from++)
+		{
+			GraphNode n_from = f.getNode(from * 3);
+			assertEquals(g.getNode(from * 3) == null, n_from == null);
+			if (n_from != null)
+			{
+				assertEquals(g.getNode(from * 3).getData(), n_from.getData());
+			}
+			assertEquals(new HashSet<GraphEdge>(g.getEdges(from * 3)), new HashSet<GraphEdge>(f.getEdges(from * 3)));
+			assertEquals(new HashSet<GraphEdge>(g.getIncomingEdges(from * 3)), new HashSet<GraphEdge>(f.getIncomingEdges(from * 3)));
+			for (String label : s_labels)
+			{
+				assertEquals(new HashSet<GraphEdge>(g.getIncomingEdges(from * 3, label)), new HashSet<GraphEdge>(f.getIncomingEdges(from * 3, label)));
+				for (int to = 0; to <= 30; to++)
+				{
+					GraphNode n_to = f.getNode(to * 3);
+					assertEquals(g.hasEdge(from * 3, label, to * 3), f.hasEdge(from * 3, label, to * 3));
+					if (n_from != null && n_to != null)
+					{
+						assertEquals(g.matches(n_from, label, n_to), f.matches(n_from, label, n_to));
+						assertEquals(g.matches(n_from, label, to % 4), f.matches(n_from, label, to % 4));
+						assertEquals(g.matches(from % 4, label, n_to), f.matches(from % 4, label, n_to));
+						assertEquals(g.matchesUndirected(n_from, label, to % 4), f.matchesUndirected(n_from, label, to % 4));
+					}
+				}
+			}
+		}
+		for (int a = 0; a < 4; a++)
+		{
+			assertEquals(g.getNodesWithData(a).size(), f.getNodesWithData(a).size());
+			assertEquals(getIds(g.getNodesInRange(a, true, 3, false)), getIds(f.getNodesInRange(a, true, 3, false)));
+			assertEquals(getIds(g.getNodesInRange(0, false, a, true)), getIds(f.getNodesInRange(0, false, a, true)));
+			for (String label : s_labels)
+			{
+				for (int b = 0; b < 4; b++)
+				{
+					assertEquals(g.matches(a, label, b), f.matches(a, label, b));
+				}
+			}
+		}
+	}
+
+	/**
+	 * Gets the identifiers of a collection of nodes.
+	 * @param nodes The nodes
+	 * @return The set of identifiers
+	 */
+	protected static Set<Long> getIds(Collection<GraphNode> nodes)
+	{
+		Set<Long> ids = new HashSet<Long>();
+		for (GraphNode n : nodes)
+		{
+			ids.add(n.getId());
+		}
+		return ids;
+	}
 }
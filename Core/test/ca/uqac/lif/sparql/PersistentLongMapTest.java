@@ -0,0 +1,143 @@
+/*
+    Basic processing of SPARQL queries in Java
+    Copyright (C) 2024 Sylvain Hallé
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Lesser General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.uqac.lif.sparql;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.PrimitiveIterator;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class PersistentLongMapTest
+{
+	@Test
+	public void testPutGet()
+	{
+		PersistentLongMap<String> map = new PersistentLongMap<String>();
+		assertNull(map.put(3, "A"));
+		assertNull(map.put(-7, "B"));
+		assertEquals("A", map.put(3, "C"));
+		assertEquals(2, map.size());
+		assertEquals("C", map.get(3));
+		assertEquals("B", map.get(-7));
+		assertNull(map.get(0));
+		assertEquals("C", map.remove(3));
+		assertNull(map.remove(3));
+		assertEquals(1, map.size());
+	}
+
+	@Test
+	public void testVersions()
+	{
+		// Takes a copy of the map at regular intervals, and checks at the end
+		// that every copy still has the contents it had when it was taken
+		Random r = new Random(0);
+		PersistentLongMap<Integer> map = new PersistentLongMap<Integer>();
+		Map<Long,Integer> expected = new HashMap<Long,Integer>();
+		List<PersistentLongMap<Integer>> versions = new ArrayList<PersistentLongMap<Integer>>();
+		List<Map<Long,Integer>> expected_versions = new ArrayList<Map<Long,Integer>>();
+		for (int i = 0; i < 20000; i++)
+		{
+			long key = r.nextInt(2000) * 0x100000001L;
+			if (r.nextInt(3) > 0)
+			{
+				assertEquals(expected.put(key, i), map.put(key, i));
+			}
+			else
+			{
+				assertEquals(expected.remove(key), map.remove(key));
+			}
+			assertEquals(expected.size(), map.size());
+			if (i % 1000 == 0)
+			{
+				versions.add(map.copy());
+				expected_versions.add(new HashMap<Long,Integer>(expected));
+			}
+		}
+		versions.add(map);
+		expected_versions.add(expected);
+		for (int i = 0; i < versions.size(); i++)
+		{
+			assertContents(expected_versions.get(i), versions.get(i));
+		}
+	}
+
+	@Test
+	public void testIterateWhileUpdating()
+	{
+		// The iterator must see the 2000 values present when it was created
+		PersistentLongMap<Integer> map = new PersistentLongMap<Integer>();
+		for (int i = 0; i < 2000; i++)
+		{
+			map.put(i, i);
+		}
+		int count = 0;
+		for (Integer v : map.values())
+		{
+			if (v % 2 == 0)
+			{
+				map.remove(v);
+			}
+			map.put(2000 + v, v);
+			count++;
+		}
+		assertEquals(2000, count);
+		assertEquals(3000, map.size());
+		// Values replaced in place after the creation of an iterator are not
+		// seen by it
+		Iterator<Integer> it = map.values().iterator();
+		for (int i = 0; i < 4000; i++)
+		{
+			map.put(i, -1);
+		}
+		count = 0;
+		while (it.hasNext())
+		{
+			assertTrue(it.next() >= 0);
+			count++;
+		}
+		assertEquals(3000, count);
+	}
+
+	protected static void assertContents(Map<Long,Integer> expected, PersistentLongMap<Integer> map)
+	{
+		assertEquals(expected.size(), map.size());
+		int count = 0;
+		PrimitiveIterator.OfLong it = map.keyIterator();
+		while (it.hasNext())
+		{
+			long key = it.nextLong();
+			assertEquals(expected.get(key), map.get(key));
+			count++;
+		}
+		assertEquals(expected.size(), count);
+		count = 0;
+		for (Integer v : map.values())
+		{
+			assertNotNull(v);
+			count++;
+		}
+		assertEquals(expected.size(), count);
+	}
+}